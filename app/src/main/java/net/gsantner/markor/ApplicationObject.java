@@ -9,11 +9,19 @@
 #########################################################*/
 package net.gsantner.markor;
 
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.webkit.WebView;
 
 import androidx.multidex.MultiDexApplication;
 
 import net.gsantner.markor.model.AppSettings;
+import net.gsantner.markor.model.DocumentCache;
+import net.gsantner.opoc.frontend.textview.TextViewUndoRedo;
+
+import other.de.stanetz.jpencconverter.DerivedKeyCache;
 
 public class ApplicationObject extends MultiDexApplication {
     // Make resources not marked as unused
@@ -47,5 +55,34 @@ public class ApplicationObject extends MultiDexApplication {
             new WebView(getApplicationContext());
         } catch (Exception ignored) {
         }
+
+        // Forget derived keys and decrypted contents when the screen gets locked
+        registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(final Context context, final Intent intent) {
+                clearDecryptedData();
+            }
+        }, new IntentFilter(Intent.ACTION_SCREEN_OFF));
+
+        // Undo history of documents deleted or moved outside of the app
+        new Thread(() -> TextViewUndoRedo.prunePersistentLogs(_appSettings.getUndoHistoryDirectory())).start();
+    }
+
+    public static void clearDecryptedData() {
+        DerivedKeyCache.getInstance().clear();
+        DocumentCache.get().clearEncrypted();
+        DocumentCache.getSearchCache().clear();
+    }
+
+    @Override
+    public void onTrimMemory(final int level) {
+        super.onTrimMemory(level);
+        // Decrypted contents and derived keys are only kept while the app is visible
+        if (level >= TRIM_MEMORY_UI_HIDDEN) {
+            clearDecryptedData();
+        }
+        if (level >= TRIM_MEMORY_BACKGROUND || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+            DocumentCache.get().clear();
+        }
     }
 }
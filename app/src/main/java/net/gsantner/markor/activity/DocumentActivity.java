@@ -276,10 +276,17 @@ public class DocumentActivity extends MarkorBaseActivity {
 
         final boolean sameDocumentRequested = (
                 currentFragment instanceof DocumentEditAndViewFragment &&
-                        document.getPath().equals(((DocumentEditAndViewFragment) currentFragment).getDocument().getPath()));
+                        document.getPath().equals(((DocumentEditAndViewFragment) currentFragment).getDocument().getPath())) || (
+                currentFragment instanceof DocumentLargeFileViewFragment &&
+                        document.getPath().equals(((DocumentLargeFileViewFragment) currentFragment).getDocument().getPath()));
 
         if (!sameDocumentRequested) {
-            showFragment(DocumentEditAndViewFragment.newInstance(document, lineNumber, startPreview));
+            // Files too large for the editor are opened read-only, without loading them to memory
+            if (DocumentLargeFileViewFragment.isLargeFile(document)) {
+                showFragment(DocumentLargeFileViewFragment.newInstance(document, lineNumber));
+            } else {
+                showFragment(DocumentEditAndViewFragment.newInstance(document, lineNumber, startPreview));
+            }
         }
     }
 
@@ -265,7 +265,9 @@ public class DocumentEditAndViewFragment extends MarkorBaseFragment implements F
 
     @Override
     public void onPause() {
-        saveDocument(false);
+        if (saveDocument(false) && _editTextUndoRedoHelper != null) {
+            _editTextUndoRedoHelper.flushPersistentLog();
+        }
         _webView.onPause();
         _appSettings.addRecentDocument(_document.getFile());
         _appSettings.setDocumentPreviewState(_document.getPath(), _isPreviewVisible);
@@ -394,6 +396,12 @@ public class DocumentEditAndViewFragment extends MarkorBaseFragment implements F
                     _editTextUndoRedoHelper.setTextView(_hlEditor);
                 }
 
+                // Plaintext of encrypted documents must not end up on disk
+                if (!_document.isEncrypted()) {
+                    final File undoDir = _appSettings.getUndoHistoryDirectory();
+                    _editTextUndoRedoHelper.setPersistentLog(TextViewUndoRedo.getPersistentLogFile(undoDir, _document.getFile()), _document.getPath());
+                }
+
                 _hlEditor.setSelection(sel[0], sel[1]);
                 TextViewUtils.showSelection(_hlEditor);
             }
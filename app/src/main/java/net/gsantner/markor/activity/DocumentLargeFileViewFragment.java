@@ -0,0 +1,291 @@
+/*#######################################################
+ *
+ *   Maintained by Gregor Santner, 2017-
+ *   https://gsantner.net/
+ *
+ *   License of this file: Apache 2.0 (Commercial upon request)
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+#########################################################*/
+package net.gsantner.markor.activity;
+
+import android.app.Activity;
+import android.graphics.Color;
+import android.graphics.Typeface;
+import android.os.Bundle;
+import android.text.Layout;
+import android.text.SpannableString;
+import android.text.Spanned;
+import android.text.style.BackgroundColorSpan;
+import android.util.Log;
+import android.util.TypedValue;
+import android.view.Menu;
+import android.view.MenuInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.SearchView;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
+
+import net.gsantner.markor.R;
+import net.gsantner.markor.model.Document;
+import net.gsantner.markor.model.MappedTextFile;
+import net.gsantner.opoc.frontend.settings.GsFontPreferenceCompat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Read-only viewer for text files too large to be loaded into the editor.
+ * The file is memory-mapped, see {@link MappedTextFile}, and only pages near the visible region are decoded.
+ */
+public class DocumentLargeFileViewFragment extends MarkorBaseFragment {
+    public static final String FRAGMENT_TAG = "DocumentLargeFileViewFragment";
+    public static final long LARGE_FILE_MIN_BYTES = 16 * 1024 * 1024;
+    private static final int INDEX_PROGRESS_INTERVAL_MS = 250;
+
+    public static DocumentLargeFileViewFragment newInstance(final @NonNull Document document, final Integer lineNumber) {
+        DocumentLargeFileViewFragment f = new DocumentLargeFileViewFragment();
+        Bundle args = new Bundle();
+        args.putSerializable(Document.EXTRA_DOCUMENT, document);
+        if (lineNumber != null) {
+            args.putInt(Document.EXTRA_FILE_LINE_NUMBER, lineNumber);
+        }
+        f.setArguments(args);
+        return f;
+    }
+
+    /**
+     * Whether document should be shown by this viewer instead of the editor
+     */
+    public static boolean isLargeFile(final Document document) {
+        final File file = document.getFile();
+        return !document.isBinaryFileNoTextLoading() && !document.isEncrypted() && file.length() >= LARGE_FILE_MIN_BYTES;
+    }
+
+    private Document _document;
+    private MappedTextFile _mapped;
+    private RecyclerView _pagesView;
+    private View _progressView;
+    private final PageAdapter _adapter = new PageAdapter();
+    private final ExecutorService _worker = Executors.newSingleThreadExecutor();
+
+    // Last search match, in bytes
+    private String _searchQuery = "";
+    private long _matchStart = -1, _matchEnd = -1;
+
+    public DocumentLargeFileViewFragment() {
+    }
+
+    @Override
+    protected int getLayoutResId() {
+        return R.layout.document__fragment__large_file;
+    }
+
+    @Override
+    public void onViewCreated(final @NonNull View view, final Bundle savedInstanceState) {
+        super.onViewCreated(view, savedInstanceState);
+        final Activity activity = getActivity();
+        _document = getArguments() != null ? (Document) getArguments().getSerializable(Document.EXTRA_DOCUMENT) : null;
+        _pagesView = view.findViewById(R.id.document__fragment__large_file__pages);
+        _progressView = view.findViewById(R.id.document__fragment__large_file__progress);
+
+        try {
+            _mapped = new MappedTextFile(_document.getFile());
+        } catch (IOException | NullPointerException e) {
+            Log.e(FRAGMENT_TAG, "Could not map file", e);
+            Toast.makeText(activity, R.string.error_could_not_open_file, Toast.LENGTH_LONG).show();
+            activity.finish();
+            return;
+        }
+
+        if (activity instanceof DocumentActivity) {
+            ((DocumentActivity) activity).setDocumentTitle(_document.getTitle());
+        }
+        Toast.makeText(activity, R.string.large_file_opened_read_only, Toast.LENGTH_SHORT).show();
+
+        _pagesView.setLayoutManager(new LinearLayoutManager(activity));
+        _pagesView.setBackgroundColor(_appSettings.getEditorBackgroundColor());
+        _pagesView.setAdapter(_adapter);
+
+        final int line = getArguments().getInt(Document.EXTRA_FILE_LINE_NUMBER, -1);
+        _worker.execute(_mapped::indexPages);
+        _pagesView.postDelayed(() -> updateIndexProgress(line), INDEX_PROGRESS_INTERVAL_MS);
+    }
+
+    // Show pages as they get indexed, then go to the requested line
+    private void updateIndexProgress(final int line) {
+        if (_mapped == null || !isAdded()) {
+            return;
+        }
+        _adapter.updatePageCount();
+        if (!_mapped.isIndexed()) {
+            _pagesView.postDelayed(() -> updateIndexProgress(line), INDEX_PROGRESS_INTERVAL_MS);
+            return;
+        }
+
+        _progressView.setVisibility(View.GONE);
+        if (line == Document.EXTRA_FILE_LINE_NUMBER_LAST) {
+            _pagesView.scrollToPosition(_adapter.getItemCount() - 1);
+        } else if (line > 0) {
+            final int page = _mapped.getPageForLine(line - 1);
+            final String text = _mapped.getPage(page);
+            int index = 0;
+            for (long l = _mapped.getPageFirstLine(page); l < line - 1 && index >= 0; l++) {
+                index = text.indexOf('\n', index) + 1;
+                index = index > 0 ? index : -1;
+            }
+            scrollToChar(page, Math.max(0, index));
+        }
+    }
+
+    @Override
+    public void onCreateOptionsMenu(Menu menu, MenuInflater inflater) {
+        super.onCreateOptionsMenu(menu, inflater);
+        inflater.inflate(R.menu.document__large_file__menu, menu);
+        _cu.tintMenuItems(menu, true, Color.WHITE);
+
+        final SearchView searchView = (SearchView) menu.findItem(R.id.action_search_view).getActionView();
+        searchView.setSubmitButtonEnabled(true);
+        searchView.setQueryHint(getString(R.string.search));
+        searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
+            @Override
+            public boolean onQueryTextSubmit(final String query) {
+                findNext(query);
+                return true;
+            }
+
+            @Override
+            public boolean onQueryTextChange(final String query) {
+                return false;
+            }
+        });
+    }
+
+    // Search from the last match on, streaming through the file on the worker
+    private void findNext(final String query) {
+        if (_mapped == null || query.isEmpty()) {
+            return;
+        }
+        final long from = query.equals(_searchQuery) && _matchStart >= 0 ? _matchStart + 1 : 0;
+        _searchQuery = query;
+        _worker.execute(() -> {
+            final long start = _mapped.find(query, from, true);
+            _pagesView.post(() -> showMatch(query, start));
+        });
+    }
+
+    private void showMatch(final String query, final long start) {
+        if (!isAdded() || !query.equals(_searchQuery)) {
+            return;
+        }
+        final int page = start >= 0 ? _mapped.getPageForOffset(start) : -1;
+        if (page < 0) {
+            // Not found, or indexing has not reached the match yet
+            _matchStart = _matchEnd = -1;
+            _adapter.notifyDataSetChanged();
+            Toast.makeText(getActivity(), R.string.search_text_not_found, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        _matchStart = start;
+        _matchEnd = start + query.getBytes(StandardCharsets.UTF_8).length;
+        _adapter.notifyDataSetChanged();
+        scrollToChar(page, _mapped.decode(_mapped.getPageStart(page), start).length());
+    }
+
+    // Scroll page to the top, then by the position of char within the page
+    private void scrollToChar(final int page, final int charIndex) {
+        final LinearLayoutManager manager = (LinearLayoutManager) _pagesView.getLayoutManager();
+        if (manager == null) {
+            return;
+        }
+        manager.scrollToPositionWithOffset(page, 0);
+        _pagesView.post(() -> {
+            final RecyclerView.ViewHolder holder = _pagesView.findViewHolderForAdapterPosition(page);
+            final Layout layout = holder != null ? ((TextView) holder.itemView).getLayout() : null;
+            if (layout != null) {
+                final int offset = Math.min(charIndex, layout.getText().length());
+                _pagesView.scrollBy(0, layout.getLineTop(layout.getLineForOffset(offset)));
+            }
+        });
+    }
+
+    @Override
+    public String getFragmentTag() {
+        return FRAGMENT_TAG;
+    }
+
+    public Document getDocument() {
+        return _document;
+    }
+
+    @Override
+    public void onDestroy() {
+        _worker.shutdownNow();
+        try {
+            if (_mapped != null) {
+                _mapped.close();
+            }
+        } catch (IOException ignored) {
+        }
+        super.onDestroy();
+    }
+
+    private class PageAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
+        private int _count = 0;
+
+        void updatePageCount() {
+            final int count = _mapped.getPageCount();
+            if (count > _count) {
+                final int previous = _count;
+                _count = count;
+                notifyItemRangeInserted(previous, count - previous);
+            }
+        }
+
+        @NonNull
+        @Override
+        public RecyclerView.ViewHolder onCreateViewHolder(@NonNull final ViewGroup parent, final int viewType) {
+            final TextView view = new TextView(parent.getContext());
+            view.setLayoutParams(new RecyclerView.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.WRAP_CONTENT));
+            view.setTextSize(TypedValue.COMPLEX_UNIT_SP, _appSettings.getDocumentFontSize(_document.getPath()));
+            view.setTypeface(GsFontPreferenceCompat.typeface(parent.getContext(), _appSettings.getFontFamily(), Typeface.NORMAL));
+            view.setTextColor(_appSettings.getEditorForegroundColor());
+            view.setLineSpacing(0, _appSettings.getEditorLineSpacing());
+            view.setTextIsSelectable(true);
+            return new RecyclerView.ViewHolder(view) {
+            };
+        }
+
+        @Override
+        public void onBindViewHolder(@NonNull final RecyclerView.ViewHolder holder, final int position) {
+            final long start = _mapped.getPageStart(position), end = _mapped.getPageEnd(position);
+            String text = _mapped.decode(start, end);
+            if (text.endsWith("\n")) {
+                text = text.substring(0, text.length() - 1); // Next page starts on a new line anyway
+            }
+
+            if (_matchStart >= start && _matchStart < end) {
+                final SpannableString spannable = new SpannableString(text);
+                final int matchStart = _mapped.decode(start, _matchStart).length();
+                final int matchEnd = Math.min(text.length(), matchStart + _mapped.decode(_matchStart, _matchEnd).length());
+                spannable.setSpan(new BackgroundColorSpan(Color.YELLOW), matchStart, matchEnd, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                ((TextView) holder.itemView).setText(spannable);
+            } else {
+                ((TextView) holder.itemView).setText(text);
+            }
+        }
+
+        @Override
+        public int getItemCount() {
+            return _count;
+        }
+    }
+}
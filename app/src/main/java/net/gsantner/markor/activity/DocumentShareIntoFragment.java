@@ -197,13 +197,9 @@ public class DocumentShareIntoFragment extends MarkorBaseFragment {
             final String shareIntoFormat = _cu.formatDateTime(context, _appSettings.getShareIntoPrefix(), System.currentTimeMillis());
             final boolean isTodoTxt = FormatRegistry.CONVERTER_TODOTXT.isFileOutOfThisFormat(file.getAbsolutePath());
 
-            final String oldContent = document.loadContent(context);
-            if (oldContent != null) {
-                final String newContent = oldContent.replaceAll("(^[\\r\\n]+|[\\r\\n]+$)", "")
-                        + separator
-                        + (isTodoTxt ? _sharedText : formatOrPrefixSharedText(shareIntoFormat, _sharedText));
-                document.saveContent(context, newContent);
-            } else {
+            // Only the new text is written, the existing content is not loaded
+            final String text = isTodoTxt ? _sharedText : formatOrPrefixSharedText(shareIntoFormat, _sharedText);
+            if (!document.appendContent(context, separator, text)) {
                 Toast.makeText(context, R.string.error_could_not_open_file, Toast.LENGTH_LONG).show();
             }
 
@@ -180,6 +180,7 @@ public class SettingsActivity extends MarkorBaseActivity {
             setPreferenceVisible(R.string.pref_key__is_multi_window_enabled, Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP);
 
             setPreferenceVisible(R.string.pref_key__set_encryption_password, Build.VERSION.SDK_INT >= Build.VERSION_CODES.M);
+            setPreferenceVisible(R.string.pref_key__is_encryption_segmented, Build.VERSION.SDK_INT >= Build.VERSION_CODES.O);
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M && _appSettings.isDefaultPasswordSet()) {
                 updateSummary(R.string.pref_key__set_encryption_password, getString(R.string.hidden_password));
             }
@@ -31,6 +31,11 @@ public class KeyValueSyntaxHighlighter extends SyntaxHighlighterBase {
         super(as);
     }
 
+    @Override
+    protected int[] getRecomputeRegion(final CharSequence text, final int[] dirty) {
+        return lineRegion(text, dirty);
+    }
+
     @Override
     protected void generateSpans() {
 
@@ -0,0 +1,882 @@
+/*#######################################################
+ *
+ *   Maintained by Gregor Santner, 2018-
+ *   https://gsantner.net/
+ *
+ *   License of this file: Apache 2.0 (Commercial upon request)
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+#########################################################*/
+package net.gsantner.markor.format.markdown;
+
+import android.util.Patterns;
+
+import androidx.annotation.Nullable;
+
+import net.gsantner.opoc.wrapper.GsCallback;
+
+import java.util.Arrays;
+import java.util.regex.Matcher;
+
+/**
+ * Single pass lexer for Markdown highlighting.
+ * <p>
+ * Finds the same regions as the patterns of {@link MarkdownSyntaxHighlighter}
+ * (one pattern per category), but in one scan over the text instead of one scan per pattern.
+ * Every category is matched like Matcher.find() does, with an own position up to which text is consumed.
+ * Constructs are only tried where they can start - at line starts, newlines and their marker characters.
+ * <p>
+ * Like the highlighter's matchers, a region can be lexed. Matches start and end within the region,
+ * lookarounds and anchors see the whole text.
+ * <p>
+ * Unlike the patterns, block state is carried from line to line: fenced code blocks (also inside of quotes,
+ * where they end with the quote) are found as {@link #FENCED_CODE}. In there, only tabs and quote markers
+ * are lexed. The text before the region is scanned for fences, so a region can start inside of a block.
+ * <p>
+ * Not thread safe - use one instance per thread.
+ */
+@SuppressWarnings("WeakerAccess")
+public class MarkdownHighlightLexer {
+
+    // Categories, named after the pattern they replace
+    public static final int HEADING = 0;
+    public static final int LINK = 1;
+    public static final int LIST_UNORDERED = 2;
+    public static final int LIST_ORDERED = 3;
+    public static final int DOUBLESPACE_LINE_ENDING = 4;
+    public static final int BOLD = 5;
+    public static final int ITALICS = 6;
+    public static final int QUOTATION = 7;
+    public static final int STRIKETHROUGH = 8;
+    public static final int CODE = 9;
+    public static final int TAB = 10;               // Of SyntaxHighlighterBase.createTabSpans
+    public static final int HEX_COLOR = 11;         // Group 1 of ColorUnderlineSpan.HEX_CODE_UNDERLINE_PATTERN
+    public static final int URL = 12;               // Of Patterns.WEB_URL
+    public static final int FENCED_CODE = 13;       // Fenced code blocks, no pattern
+    public static final int CATEGORY_COUNT = 14;
+
+    private static final int MAX_LIST_INDENT = 16;
+    private static final int MIN_FENCE_LENGTH = 3;
+    private static final String EMPHASIS_FOLLOWERS = ".,:;-]})";
+    private static final String HEX_COLOR_SURROUNDING = "\";,:'*";
+
+    private final int[][] _spans = new int[CATEGORY_COUNT][];
+    private final int[] _counts = new int[CATEGORY_COUNT];
+    private final int[] _consumed = new int[CATEGORY_COUNT]; // Per category, like the position of a matcher
+    private boolean _simpleHeadings = false;
+    private int[] _fences = new int[12];                      // Start, end and quote depth of fenced code blocks
+    private Matcher _urlMatcher;
+
+    private CharSequence _text;
+    private int _length, _to;
+
+    public MarkdownHighlightLexer() {
+        for (int i = 0; i < CATEGORY_COUNT; i++) {
+            _spans[i] = new int[64];
+        }
+    }
+
+    /**
+     * Match headings like {@link MarkdownSyntaxHighlighter#HEADING_SIMPLE} instead of
+     * {@link MarkdownSyntaxHighlighter#HEADING} (which also matches underlined headings)
+     */
+    public MarkdownHighlightLexer setSimpleHeadings(final boolean simpleHeadings) {
+        _simpleHeadings = simpleHeadings;
+        return this;
+    }
+
+    public MarkdownHighlightLexer lex(final CharSequence text) {
+        return lex(text, 0, text.length(), null);
+    }
+
+    /**
+     * Find all spans in region [from, to) of text. Previous results are cleared.
+     *
+     * @param cancelled Checked once per line, stop lexing when it returns true
+     * @return this
+     */
+    public MarkdownHighlightLexer lex(final CharSequence text, final int from, final int to, @Nullable final GsCallback.b0 cancelled) {
+        Arrays.fill(_counts, 0);
+        _text = text;
+        _length = text.length();
+        final int end = Math.min(to, _length);
+
+        try {
+            // Text between fenced code blocks is lexed like a region of its own
+            int segment = from;
+            final int fences = findFences(from, end);
+            for (int i = 0; i < fences; i++) {
+                final int start = Math.max(_fences[3 * i], from), stop = Math.min(_fences[3 * i + 1], end);
+                if (start > segment && !lexSegment(segment, start, cancelled)) {
+                    return this;
+                }
+                lexFence(from, start, stop, _fences[3 * i + 2] > 0);
+                segment = stop;
+            }
+            if (segment < end) {
+                lexSegment(segment, end, cancelled);
+            }
+        } finally {
+            _text = null;
+            if (_urlMatcher != null) {
+                _urlMatcher.reset("");
+            }
+        }
+
+        return this;
+    }
+
+    // Lex [from, to), outside of fenced code. Returns false if cancelled
+    private boolean lexSegment(final int from, final int to, @Nullable final GsCallback.b0 cancelled) {
+        Arrays.fill(_consumed, from);
+        _to = to;
+
+        boolean lineStart = isLineStart(from);
+        int line = from;
+        boolean urlCandidate = false;
+        for (int p = from; p < _to; p++) {
+            final char c = _text.charAt(p);
+
+            if (lineStart) {
+                if (cancelled != null && cancelled.callback()) {
+                    return false;
+                }
+                lexLineStart(p, c);
+            }
+
+            if (c == '\n' || p == 0) {
+                // Patterns starting with '(\n|^)'
+                if (!_simpleHeadings && !lineStart) {
+                    tryHeading(p);
+                }
+                tryQuotation(p);
+                tryListUnordered(p);
+            }
+
+            if ((p + 1 < _to && at(p + 1) == '#') || (p == 0 && c == '#')) {
+                tryHexColor(p);
+            }
+
+            switch (c) {
+                case '*':
+                case '_': {
+                    tryBold(p);
+                    tryItalics(p);
+                    break;
+                }
+                case '~': {
+                    tryStrikethrough(p);
+                    break;
+                }
+                case '`': {
+                    tryInlineCode(p);
+                    break;
+                }
+                case '[': {
+                    tryLink(p);
+                    break;
+                }
+                case '.': {
+                    // Every web address has a dot between two label chars
+                    urlCandidate |= p > from && p + 1 < _to && isUrlChar(at(p - 1)) && isUrlChar(at(p + 1));
+                    break;
+                }
+                default: {
+                    if (c == '\t') {
+                        add(TAB, p, p + 1);
+                    }
+                    if (isBlank(c) && p > 0 && !isSpace(_text.charAt(p - 1))) {
+                        tryDoubleSpaceLineEnding(p);
+                    }
+                }
+            }
+
+            if (c == '\n') {
+                if (urlCandidate) {
+                    findUrls(line, p);
+                    urlCandidate = false;
+                }
+                line = p + 1;
+            }
+
+            lineStart = isLineTerminator(c) && isLineStart(p + 1);
+        }
+
+        if (urlCandidate) {
+            findUrls(line, _to);
+        }
+        return true;
+    }
+
+    // A fenced code block [start, end), region starts at from
+    private void lexFence(final int from, final int start, final int end, final boolean quoted) {
+        _to = end;
+        add(FENCED_CODE, start, end);
+        for (int p = start; p < end; p++) {
+            final char c = at(p);
+            if (c == '\t') {
+                add(TAB, p, p + 1);
+            } else if (quoted && c == '>' && (p == 0 || at(p - 1) == '\n')) {
+                if (p == 0) {
+                    add(QUOTATION, 0, 1);
+                } else if (p - 1 >= from) {
+                    add(QUOTATION, p - 1, p + 1);
+                }
+            }
+        }
+    }
+
+    public int getCount(final int category) {
+        return _counts[category];
+    }
+
+    public int getStart(final int category, final int index) {
+        return _spans[category][2 * index];
+    }
+
+    public int getEnd(final int category, final int index) {
+        return _spans[category][2 * index + 1];
+    }
+
+    // Constructs which start at a line start (the '^' of multiline patterns)
+    private void lexLineStart(final int p, final char c) {
+        if (_simpleHeadings) {
+            if (c == '#') {
+                tryHeadingSimple(p);
+            }
+        } else {
+            tryHeading(p);
+        }
+
+        if (isBlank(c)) {
+            tryIndentedCode(p);
+        }
+
+        tryListOrdered(p);
+    }
+
+    // Matchers - each one corresponds to one pattern, tried at position p
+    // ---------------------------------------------------------------------------------------------
+
+    // (?m)((^#{1,6}[^\S\n][^\n]+)|((\n|^)[^\s]+.*?\n(-{2,}|={2,})[^\S\n]*$))
+    private void tryHeading(final int p) {
+        if (p < _consumed[HEADING]) {
+            return;
+        }
+
+        // Heading starting with #
+        if (isLineStart(p)) {
+            final int hashes = countRun(p, '#', 7);
+            if (hashes >= 1 && hashes <= 6 && p + hashes < _to && isBlank(at(p + hashes))) {
+                final int end = indexOf('\n', p + hashes + 1);
+                if (end > p + hashes + 1) {
+                    add(HEADING, p, end);
+                    return;
+                }
+            }
+        }
+
+        // Underlined heading
+        final int textStart = at(p) == '\n' ? p + 1 : (isLineStart(p) ? p : -1);
+        if (textStart < 0 || textStart >= _to || isSpace(at(textStart))) {
+            return;
+        }
+
+        int i = textStart;
+        while (i < _to && !isSpace(at(i))) {
+            i++;
+        }
+        while (i < _to && !isLineTerminator(at(i))) {
+            i++;
+        }
+        if (i >= _to - 2 || at(i) != '\n') {
+            return;
+        }
+
+        final char underline = at(i + 1);
+        if (underline != '-' && underline != '=') {
+            return;
+        }
+        final int blanksStart = i + 1 + countRun(i + 1, underline, Integer.MAX_VALUE);
+        if (blanksStart - i - 1 < 2) {
+            return;
+        }
+
+        int end = blanksStart;
+        while (end < _to && isBlank(at(end))) {
+            end++;
+        }
+        for (; end >= blanksStart; end--) {
+            if (isLineEndMultiline(end)) {
+                add(HEADING, p, end);
+                return;
+            }
+        }
+    }
+
+    // (?m)^(#{1,6}\s.*$)
+    private void tryHeadingSimple(final int p) {
+        if (p < _consumed[HEADING]) {
+            return;
+        }
+
+        final int hashes = countRun(p, '#', 7);
+        if (hashes > 6 || p + hashes >= _to || !isSpace(at(p + hashes))) {
+            return;
+        }
+
+        int end = p + hashes + 1;
+        while (end < _to && !isLineTerminator(at(end))) {
+            end++;
+        }
+        if (isLineEndMultiline(end)) {
+            add(HEADING, p, end);
+        }
+    }
+
+    // \[([^\[]+)\]\(([^\)]+)\)
+    private void tryLink(final int p) {
+        if (p < _consumed[LINK]) {
+            return;
+        }
+
+        // The text can not contain '[' - try ']' from the last possible one, like the greedy pattern does
+        final int nextOpen = indexOf('[', p + 1);
+        for (int k = Math.min(nextOpen, _to) - 2; k >= p + 2; k--) {
+            if (at(k) == ']' && at(k + 1) == '(' && k + 2 < _to && at(k + 2) != ')') {
+                final int close = indexOf(')', k + 2);
+                if (close < _to) {
+                    add(LINK, p, close + 1);
+                    return;
+                }
+            }
+        }
+    }
+
+    // (\n|^)\s{0,16}([*+-])( \[[ xX]\])?(?= )
+    private void tryListUnordered(final int p) {
+        if (p < _consumed[LIST_UNORDERED]) {
+            return;
+        }
+
+        final int end = (at(p) == '\n') ? matchListUnordered(p + 1) : -1;
+        if (end > 0) {
+            add(LIST_UNORDERED, p, end);
+        } else if (p == 0) {
+            final int endAtStart = matchListUnordered(0);
+            if (endAtStart > 0) {
+                add(LIST_UNORDERED, 0, endAtStart);
+            }
+        }
+    }
+
+    private int matchListUnordered(final int from) {
+        final int bullet = from + countSpaces(from, MAX_LIST_INDENT + 1);
+        if (bullet - from > MAX_LIST_INDENT || bullet >= _to || "*+-".indexOf(at(bullet)) < 0) {
+            return -1;
+        }
+
+        // Checkbox
+        final int box = bullet + 1;
+        if (box + 4 <= _to && at(box) == ' ' && at(box + 1) == '[' && " xX".indexOf(at(box + 2)) >= 0 && at(box + 3) == ']' && peek(box + 4) == ' ') {
+            return box + 4;
+        }
+        return peek(box) == ' ' ? box : -1;
+    }
+
+    // (?m)^\s{0,16}(\d+)(:?\.|\))\s
+    private void tryListOrdered(final int p) {
+        if (p < _consumed[LIST_ORDERED]) {
+            return;
+        }
+
+        final int digits = p + countSpaces(p, MAX_LIST_INDENT + 1);
+        if (digits - p > MAX_LIST_INDENT) {
+            return;
+        }
+
+        int i = digits;
+        while (i < _to && at(i) >= '0' && at(i) <= '9') {
+            i++;
+        }
+        if (i == digits || i >= _to) {
+            return;
+        }
+
+        if (at(i) == ':' && i + 1 < _to && at(i + 1) == '.') {
+            i += 2;
+        } else if (at(i) == '.' || at(i) == ')') {
+            i += 1;
+        } else {
+            return;
+        }
+
+        if (i < _to && isSpace(at(i))) {
+            add(LIST_ORDERED, p, i + 1);
+        }
+    }
+
+    // (?m)(?<=\S)([^\S\n]{2,})\n
+    private void tryDoubleSpaceLineEnding(final int p) {
+        if (p < _consumed[DOUBLESPACE_LINE_ENDING]) {
+            return;
+        }
+
+        int i = p;
+        while (i < _to && isBlank(at(i))) {
+            i++;
+        }
+        if (i - p >= 2 && i < _to && at(i) == '\n') {
+            add(DOUBLESPACE_LINE_ENDING, p, i + 1);
+        }
+    }
+
+    // (?<=(\n|^|\s|\[|\{|\())(([*_]){2,3})(?=\S)(.*?)\S\2(?=(\n|$|\s|\.|,|:|;|-|\]|\}|\)))
+    private void tryBold(final int p) {
+        if (p < _consumed[BOLD] || !isEmphasisStart(p)) {
+            return;
+        }
+
+        for (int len = 3; len >= 2; len--) {
+            if (p + len > _to || !isEmphasisMarker(p, len)) {
+                continue;
+            }
+
+            final int end = findEmphasisEnd(p, len);
+            if (end > 0) {
+                add(BOLD, p, end);
+                return;
+            }
+        }
+    }
+
+    // (?<=(\n|^|\s|\[|\{|\())([*_])(?=((?!\2)|\2{2,}))(?=\S)(.*?)\S\2(?=(\n|$|\s|\.|,|:|;|-|\]|\}|\)))
+    private void tryItalics(final int p) {
+        if (p < _consumed[ITALICS] || !isEmphasisStart(p)) {
+            return;
+        }
+
+        final char marker = at(p);
+        if (peek(p + 1) == marker && peek(p + 2) != marker) {
+            return;
+        }
+
+        final int end = findEmphasisEnd(p, 1);
+        if (end > 0) {
+            add(ITALICS, p, end);
+        }
+    }
+
+    // End of emphasis with marker text[p, p + len), -1 if none
+    private int findEmphasisEnd(final int p, final int len) {
+        if (p + len >= _length || isSpace(at(p + len))) {
+            return -1;
+        }
+
+        for (int q = p + len; q < _to; q++) {
+            final char c = at(q);
+            final int end = q + 1 + len;
+            if (!isSpace(c) && end <= _to && regionEquals(q + 1, p, len) && isEmphasisFollower(end)) {
+                return end;
+            }
+            if (isLineTerminator(c)) {
+                break;
+            }
+        }
+        return -1;
+    }
+
+    // (\n|^)>
+    private void tryQuotation(final int p) {
+        if (at(p) == '\n' && p + 1 < _to && at(p + 1) == '>') {
+            add(QUOTATION, p, p + 2);
+        } else if (p == 0 && at(0) == '>') {
+            add(QUOTATION, 0, 1);
+        }
+    }
+
+    // ~{2}(.*?)\S~{2}
+    private void tryStrikethrough(final int p) {
+        if (p < _consumed[STRIKETHROUGH] || p + 2 > _to || at(p + 1) != '~') {
+            return;
+        }
+
+        for (int q = p + 2; q < _to; q++) {
+            final char c = at(q);
+            if (!isSpace(c) && q + 3 <= _to && at(q + 1) == '~' && at(q + 2) == '~') {
+                add(STRIKETHROUGH, p, q + 3);
+                return;
+            }
+            if (isLineTerminator(c)) {
+                return;
+            }
+        }
+    }
+
+    // (?m)(`(?!`)(.*?)`) of CODE
+    private void tryInlineCode(final int p) {
+        if (p < _consumed[CODE] || peek(p + 1) == '`') {
+            return;
+        }
+
+        for (int q = p + 1; q < _to; q++) {
+            final char c = at(q);
+            if (c == '`') {
+                add(CODE, p, q + 1);
+                return;
+            }
+            if (isLineTerminator(c)) {
+                return;
+            }
+        }
+    }
+
+    // (?m)(^[^\S\n]{4}(?![0-9\-*+]).*$) of CODE
+    private void tryIndentedCode(final int p) {
+        if (p < _consumed[CODE] || p + 4 > _to) {
+            return;
+        }
+
+        for (int i = p; i < p + 4; i++) {
+            if (!isBlank(at(i))) {
+                return;
+            }
+        }
+        if ("0123456789-*+".indexOf(peek(p + 4)) >= 0) {
+            return;
+        }
+
+        int end = p + 4;
+        while (end < _to && !isLineTerminator(at(end))) {
+            end++;
+        }
+        if (isLineEndMultiline(end)) {
+            add(CODE, p, end);
+        }
+    }
+
+    // (?:\s|[";,:'*]|^)(#[A-Fa-f0-9]{6,8})+(?:\s|[";,:'*]|$) - only group 1 is added
+    private void tryHexColor(final int p) {
+        if (p < _consumed[HEX_COLOR]) {
+            return;
+        }
+
+        if (isHexColorSurrounding(at(p)) && matchHexColors(p, p + 1)) {
+            return;
+        }
+        if (p == 0 && at(0) == '#') {
+            matchHexColors(0, 0);
+        }
+    }
+
+    // Match (#[A-Fa-f0-9]{6,8})+ and the end at hash, for a match starting at start
+    private boolean matchHexColors(final int start, int hash) {
+        while (hash < _to && at(hash) == '#') {
+            int i = hash + 1;
+            while (i < _to && i - hash <= 8 && isHexDigit(at(i))) {
+                i++;
+            }
+            // Fewer digits leave a digit, which can neither start another color nor end the match
+            if (i - hash - 1 < 6 || (i < _to && isHexDigit(at(i)))) {
+                return false;
+            }
+
+            if (i < _to && isHexColorSurrounding(at(i))) {
+                add(HEX_COLOR, hash, i);
+                _consumed[HEX_COLOR] = i + 1;
+                return true;
+            } else if (isTextEnd(i)) {
+                add(HEX_COLOR, hash, i);
+                return true;
+            }
+            hash = i;
+        }
+        return false;
+    }
+
+    // Patterns.WEB_URL in the line [start, end)
+    private void findUrls(final int start, final int end) {
+        if (_urlMatcher == null) {
+            _urlMatcher = Patterns.WEB_URL.matcher(_text);
+        } else {
+            _urlMatcher.reset(_text);
+        }
+        _urlMatcher.region(start, end).useTransparentBounds(true).useAnchoringBounds(false);
+        while (_urlMatcher.find()) {
+            if (_urlMatcher.end() > _urlMatcher.start()) {
+                add(URL, _urlMatcher.start(), _urlMatcher.end());
+            }
+        }
+    }
+
+    // Fenced code blocks
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Find fenced code blocks which intersect [from, to) into _fences. Lines are scanned from the text start.
+     * A block starts with a line of at least three '`' or '~' and ends after a line with at least as many of them,
+     * or before the first line with fewer quote markers than its opening line. Otherwise it ends with the text.
+     *
+     * @return Number of blocks
+     */
+    private int findFences(final int from, final int to) {
+        int count = 0;
+        int open = -1, fenceLength = 0, fenceDepth = 0;
+        char fenceChar = 0;
+
+        for (int line = 0; line <= _length; ) {
+            final int lineEnd = lineEnd(line);
+            if (open < 0 && line >= to) {
+                break;
+            }
+
+            // Quote markers
+            int i = line, depth = 0;
+            while (true) {
+                final int marker = skipIndent(i, lineEnd);
+                if (marker < lineEnd && at(marker) == '>') {
+                    depth++;
+                    i = marker + 1 < lineEnd && at(marker + 1) == ' ' ? marker + 2 : marker + 1;
+                } else {
+                    break;
+                }
+            }
+            final int content = skipIndent(i, lineEnd);
+
+            if (open >= 0 && depth < fenceDepth) {
+                // Quote ended, and the block with it. This line is looked at again
+                count = addFence(count, open, Math.max(open, line - 1), fenceDepth, from);
+                open = -1;
+                continue;
+            }
+
+            if (open >= 0) {
+                final int run = runLength(content, lineEnd, fenceChar);
+                if (depth == fenceDepth && run >= fenceLength && isBlankUntil(content + run, lineEnd)) {
+                    count = addFence(count, open, lineEnd, fenceDepth, from);
+                    open = -1;
+                }
+            } else if (content < lineEnd && (at(content) == '`' || at(content) == '~')) {
+                final char c = at(content);
+                final int run = runLength(content, lineEnd, c);
+                if (run >= MIN_FENCE_LENGTH && (c == '~' || indexOf('`', content + run, lineEnd) == lineEnd)) {
+                    open = line;
+                    fenceChar = c;
+                    fenceLength = run;
+                    fenceDepth = depth;
+                }
+            }
+
+            if (open >= 0 && lineEnd >= to) {
+                break; // Ends after the region
+            }
+            line = lineEnd + 1;
+        }
+
+        if (open >= 0) {
+            count = addFence(count, open, _length, fenceDepth, from);
+        }
+        return count;
+    }
+
+    // Add a block if it ends after from
+    private int addFence(final int count, final int start, final int end, final int depth, final int from) {
+        if (end <= from) {
+            return count;
+        }
+        if (3 * count + 3 > _fences.length) {
+            _fences = Arrays.copyOf(_fences, 2 * _fences.length);
+        }
+        _fences[3 * count] = start;
+        _fences[3 * count + 1] = end;
+        _fences[3 * count + 2] = depth;
+        return count + 1;
+    }
+
+    // Index of the '\n' ending the line, or the text length
+    private int lineEnd(int i) {
+        while (i < _length && _text.charAt(i) != '\n') {
+            i++;
+        }
+        return i;
+    }
+
+    // Skip up to three spaces of indentation
+    private int skipIndent(int i, final int end) {
+        final int max = i + 3;
+        while (i < end && i < max && at(i) == ' ') {
+            i++;
+        }
+        return i;
+    }
+
+    private int runLength(final int from, final int end, final char c) {
+        int i = from;
+        while (i < end && at(i) == c) {
+            i++;
+        }
+        return i - from;
+    }
+
+    private int indexOf(final char c, int from, final int end) {
+        while (from < end && at(from) != c) {
+            from++;
+        }
+        return from;
+    }
+
+    private boolean isBlankUntil(int i, final int end) {
+        while (i < end && isSpace(at(i))) {
+            i++;
+        }
+        return i >= end;
+    }
+
+    // Helpers
+    // ---------------------------------------------------------------------------------------------
+
+    private void add(final int category, final int start, final int end) {
+        int[] spans = _spans[category];
+        final int count = _counts[category];
+        if (2 * count + 2 > spans.length) {
+            spans = _spans[category] = Arrays.copyOf(spans, 2 * spans.length);
+        }
+        spans[2 * count] = start;
+        spans[2 * count + 1] = end;
+        _counts[category] = count + 1;
+        _consumed[category] = end;
+    }
+
+    private char at(final int i) {
+        return _text.charAt(i);
+    }
+
+    // Char at i, or 0 if out of text. Use for lookaheads, which see beyond the region
+    private char peek(final int i) {
+        return i < _length ? _text.charAt(i) : 0;
+    }
+
+    // Index of first c in [from, _to), or _to if there is none
+    private int indexOf(final char c, int from) {
+        while (from < _to && at(from) != c) {
+            from++;
+        }
+        return from;
+    }
+
+    // Number of consecutive c starting at from, at most max
+    private int countRun(final int from, final char c, final int max) {
+        int i = from;
+        while (i < _to && i - from < max && at(i) == c) {
+            i++;
+        }
+        return i - from;
+    }
+
+    // Number of consecutive whitespace chars starting at from, at most max
+    private int countSpaces(final int from, final int max) {
+        int i = from;
+        while (i < _to && i - from < max && isSpace(at(i))) {
+            i++;
+        }
+        return i - from;
+    }
+
+    private boolean regionEquals(final int a, final int b, final int len) {
+        for (int i = 0; i < len; i++) {
+            if (at(a + i) != at(b + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isEmphasisMarker(final int p, final int len) {
+        for (int i = p; i < p + len; i++) {
+            if (at(i) != '*' && at(i) != '_') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // (?<=(\n|^|\s|\[|\{|\())
+    private boolean isEmphasisStart(final int p) {
+        if (p == 0) {
+            return true;
+        }
+        final char c = at(p - 1);
+        return isSpace(c) || c == '[' || c == '{' || c == '(';
+    }
+
+    // (?=(\n|$|\s|\.|,|:|;|-|\]|\}|\)))
+    private boolean isEmphasisFollower(final int i) {
+        if (i >= _length) {
+            return true;
+        }
+        final char c = at(i);
+        return isSpace(c) || EMPHASIS_FOLLOWERS.indexOf(c) >= 0 || (i == _length - 1 && isLineTerminator(c));
+    }
+
+    // '^' in multiline mode
+    private boolean isLineStart(final int i) {
+        if (i >= _length) {
+            return false;
+        } else if (i == 0) {
+            return true;
+        }
+        final char c = at(i - 1);
+        return isLineTerminator(c) && !(c == '\r' && at(i) == '\n');
+    }
+
+    // '$' in multiline mode
+    private boolean isLineEndMultiline(final int i) {
+        if (i >= _length) {
+            return true;
+        }
+        final char c = at(i);
+        return isLineTerminator(c) && !(c == '\n' && i > 0 && at(i - 1) == '\r');
+    }
+
+    // '$' without multiline mode, also before a line terminator which ends the text
+    private boolean isTextEnd(final int i) {
+        if (i >= _length) {
+            return true;
+        } else if (i == _length - 2) {
+            return at(i) == '\r' && at(i + 1) == '\n';
+        } else if (i == _length - 1) {
+            final char c = at(i);
+            return c == '\n' ? i == 0 || at(i - 1) != '\r' : isLineTerminator(c);
+        }
+        return false;
+    }
+
+    private static boolean isHexDigit(final char c) {
+        return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F');
+    }
+
+    // (?:\s|[";,:'*]) of hex colors
+    private static boolean isHexColorSurrounding(final char c) {
+        return isSpace(c) || HEX_COLOR_SURROUNDING.indexOf(c) >= 0;
+    }
+
+    // Chars a label of a web address can start or end with, see Patterns.WEB_URL
+    private static boolean isUrlChar(final char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c >= '\u00A0';
+    }
+
+    // '\s'
+    private static boolean isSpace(final char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f' || c == '\u000B';
+    }
+
+    // '[^\S\n]'
+    private static boolean isBlank(final char c) {
+        return c != '\n' && isSpace(c);
+    }
+
+    // Chars not matched by '.'
+    private static boolean isLineTerminator(final char c) {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+}
@@ -11,7 +11,9 @@ package net.gsantner.markor.format.markdown;
 
 import android.graphics.Paint;
 import android.graphics.Typeface;
+import android.text.style.TypefaceSpan;
 
+import net.gsantner.markor.format.general.ColorUnderlineSpan;
 import net.gsantner.markor.frontend.textview.SyntaxHighlighterBase;
 import net.gsantner.markor.model.AppSettings;
 
@@ -49,6 +51,10 @@ public class MarkdownSyntaxHighlighter extends SyntaxHighlighterBase {
     private boolean _highlightCodeChangeFont;
     private boolean _highlightBiggerHeadings;
     private boolean _highlightCodeBlock;
+    private boolean _singlePassLexer;
+
+    // Only used in generateSpans, which never runs concurrently
+    private final MarkdownHighlightLexer _lexer = new MarkdownHighlightLexer();
 
     @Override
     public SyntaxHighlighterBase configure(Paint paint) {
@@ -56,19 +62,36 @@ public class MarkdownSyntaxHighlighter extends SyntaxHighlighterBase {
         _highlightCodeChangeFont = _appSettings.isHighlightCodeMonospaceFont();
         _highlightBiggerHeadings = _appSettings.isMarkdownBiggerHeadings();
         _highlightCodeBlock = _appSettings.isHighlightCodeBlock();
+        _singlePassLexer = _appSettings.isMarkdownHighlightSinglePassLexer();
         _delay = _appSettings.getMarkdownHighlightingDelay();
         return super.configure(paint);
     }
 
+    @Override
+    protected int[] getRecomputeRegion(final CharSequence text, final int[] dirty) {
+        return paragraphRegion(text, dirty);
+    }
+
+    // Fenced code blocks are only found by the lexer
+    @Override
+    protected String[] getBlockDelimiters() {
+        return _singlePassLexer ? new String[]{"```", "~~~"} : super.getBlockDelimiters();
+    }
+
     @Override
     protected void generateSpans() {
 
+        if (_singlePassLexer) {
+            generateLexerSpans();
+            return;
+        }
+
         createTabSpans(_tabSize);
         createUnderlineHexColorsSpans();
         createSmallBlueLinkSpans();
 
         if (_highlightBiggerHeadings) {
-            createSpanForMatches(HEADING, new WrMarkdownHeaderSpanCreator(_spannable, MD_COLOR_HEADING, _textSize));
+            createSpanForMatches(HEADING, new WrMarkdownHeaderSpanCreator(_text, MD_COLOR_HEADING, _textSize));
         } else {
             createColorSpanForMatches(HEADING_SIMPLE, MD_COLOR_HEADING);
         }
@@ -94,4 +117,65 @@ public class MarkdownSyntaxHighlighter extends SyntaxHighlighterBase {
             createColorBackgroundSpan(CODE, MD_COLOR_CODEBLOCK);
         }
     }
+
+    // Same spans as the patterns above, found by a single pass of the lexer. Also highlights fenced code blocks
+    private void generateLexerSpans() {
+        final int[] region = getGenerateRegion();
+        _lexer.setSimpleHeadings(!_highlightBiggerHeadings).lex(_text, region[0], region[1], this::isGenerateCancelled);
+
+        if (_tabSize > 0) {
+            for (int i = 0; i < _lexer.getCount(MarkdownHighlightLexer.TAB); i++) {
+                addSpanGroup(createBlankSpan(_tabSize), _lexer.getStart(MarkdownHighlightLexer.TAB, i), _lexer.getEnd(MarkdownHighlightLexer.TAB, i));
+            }
+        }
+
+        for (int i = 0; i < _lexer.getCount(MarkdownHighlightLexer.HEX_COLOR); i++) {
+            final int start = _lexer.getStart(MarkdownHighlightLexer.HEX_COLOR, i), end = _lexer.getEnd(MarkdownHighlightLexer.HEX_COLOR, i);
+            addSpanGroup(new ColorUnderlineSpan(_text.subSequence(start, end).toString(), 3f), start, end);
+        }
+
+        addLexerSpans(MarkdownHighlightLexer.URL, createSmallBlueLinkSpan());
+
+        if (_highlightBiggerHeadings) {
+            final WrMarkdownHeaderSpanCreator creator = new WrMarkdownHeaderSpanCreator(_text, MD_COLOR_HEADING, _textSize);
+            for (int i = 0; i < _lexer.getCount(MarkdownHighlightLexer.HEADING); i++) {
+                final int start = _lexer.getStart(MarkdownHighlightLexer.HEADING, i), end = _lexer.getEnd(MarkdownHighlightLexer.HEADING, i);
+                addSpanGroup(creator.createHeaderSpan(start, end), start, end);
+            }
+        } else {
+            addLexerSpans(MarkdownHighlightLexer.HEADING, new HighlightSpan().setForeColor(MD_COLOR_HEADING));
+        }
+
+        addLexerSpans(MarkdownHighlightLexer.LINK, new HighlightSpan().setForeColor(MD_COLOR_LINK));
+        addLexerSpans(MarkdownHighlightLexer.LIST_UNORDERED, new HighlightSpan().setForeColor(MD_COLOR_LIST));
+        addLexerSpans(MarkdownHighlightLexer.LIST_ORDERED, new HighlightSpan().setForeColor(MD_COLOR_LIST));
+
+        if (_highlightLineEnding) {
+            addLexerSpans(MarkdownHighlightLexer.DOUBLESPACE_LINE_ENDING, new HighlightSpan().setBackColor(MD_COLOR_CODEBLOCK));
+        }
+
+        addLexerSpans(MarkdownHighlightLexer.BOLD, new HighlightSpan().setTypeface(Typeface.BOLD));
+        addLexerSpans(MarkdownHighlightLexer.ITALICS, new HighlightSpan().setTypeface(Typeface.ITALIC));
+        addLexerSpans(MarkdownHighlightLexer.QUOTATION, new HighlightSpan().setForeColor(MD_COLOR_QUOTE));
+        addLexerSpans(MarkdownHighlightLexer.STRIKETHROUGH, new HighlightSpan().setStrike(true));
+
+        for (final int category : new int[]{MarkdownHighlightLexer.CODE, MarkdownHighlightLexer.FENCED_CODE}) {
+            if (_highlightCodeChangeFont) {
+                for (int i = 0; i < _lexer.getCount(category); i++) {
+                    addSpanGroup(new TypefaceSpan("monospace"), _lexer.getStart(category, i), _lexer.getEnd(category, i));
+                }
+            }
+
+            if (_highlightCodeBlock) {
+                addLexerSpans(category, new HighlightSpan().setBackColor(MD_COLOR_CODEBLOCK));
+            }
+        }
+    }
+
+    // Add a copy of span for every match of the category
+    private void addLexerSpans(final int category, final HighlightSpan span) {
+        for (int i = 0; i < _lexer.getCount(category); i++) {
+            addSpanGroup(span.callback(null), _lexer.getStart(category, i), _lexer.getEnd(category, i));
+        }
+    }
 }
\ No newline at end of file
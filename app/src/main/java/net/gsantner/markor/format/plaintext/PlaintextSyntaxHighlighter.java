@@ -18,6 +18,11 @@ public class PlaintextSyntaxHighlighter extends SyntaxHighlighterBase {
         super(as);
     }
 
+    @Override
+    protected int[] getRecomputeRegion(final CharSequence text, final int[] dirty) {
+        return lineRegion(text, dirty);
+    }
+
     @Override
     protected void generateSpans() {
         createTabSpans(_tabSize);
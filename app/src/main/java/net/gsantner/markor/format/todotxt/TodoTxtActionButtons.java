@@ -27,7 +27,6 @@ import net.gsantner.markor.format.ActionButtonBase;
 import net.gsantner.markor.frontend.MarkorDialogFactory;
 import net.gsantner.markor.frontend.textview.TextViewUtils;
 import net.gsantner.markor.model.Document;
-import net.gsantner.opoc.util.GsFileUtils;
 
 import java.io.File;
 import java.text.ParseException;
@@ -162,14 +161,9 @@ public class TodoTxtActionButtons extends ActionButtonBase {
                     }
                     if (!move.isEmpty() && _document.testCreateParent()) {
                         File doneFile = new File(_document.getFile().getParentFile(), callbackPayload);
-                        String doneFileContents = "";
-                        if (doneFile.exists() && doneFile.canRead()) {
-                            doneFileContents = GsFileUtils.readTextFileFast(doneFile).first.trim() + "\n";
-                        }
-                        doneFileContents += TodoTxtTask.tasksToString(move) + "\n";
 
-                        // Write to done file
-                        if (new Document(doneFile).saveContent(getActivity(), doneFileContents)) {
+                        // Append to done file
+                        if (new Document(doneFile).appendContent(getActivity(), "\n", TodoTxtTask.tasksToString(move) + "\n")) {
                             final String tasksString = TodoTxtTask.tasksToString(keep);
                             _hlEditor.setText(tasksString);
                             _hlEditor.setSelection(
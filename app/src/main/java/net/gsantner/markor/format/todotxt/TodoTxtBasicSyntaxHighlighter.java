@@ -26,6 +26,11 @@ public class TodoTxtBasicSyntaxHighlighter extends SyntaxHighlighterBase {
         super(as);
     }
 
+    @Override
+    protected int[] getRecomputeRegion(final CharSequence text, final int[] dirty) {
+        return lineRegion(text, dirty);
+    }
+
     @Override
     public void generateSpans() {
         createSmallBlueLinkSpans();
@@ -90,6 +90,17 @@ public class WikitextSyntaxHighlighter extends SyntaxHighlighterBase {
         return super.configure(paint);
     }
 
+    @Override
+    protected int[] getRecomputeRegion(final CharSequence text, final int[] dirty) {
+        return paragraphRegion(text, dirty);
+    }
+
+    // Multiline preformatted blocks may span several paragraphs
+    @Override
+    protected String[] getBlockDelimiters() {
+        return new String[]{"'''"};
+    }
+
     @Override
     protected void generateSpans() {
 
@@ -97,7 +108,7 @@ public class WikitextSyntaxHighlighter extends SyntaxHighlighterBase {
         createUnderlineHexColorsSpans();
 
         if (_isWikitextBiggerHeadings) {
-            createSpanForMatches(HEADING, new WrWikitextHeaderSpanCreator(_spannable, Colors.COLOR_HEADING, _textSize));
+            createSpanForMatches(HEADING, new WrWikitextHeaderSpanCreator(_text, Colors.COLOR_HEADING, _textSize));
         } else {
             createColorSpanForMatches(HEADING, Colors.COLOR_HEADING);
         }
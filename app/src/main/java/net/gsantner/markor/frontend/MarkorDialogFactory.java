@@ -64,6 +64,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class MarkorDialogFactory {
     public static AppSettings as() {
@@ -141,10 +142,18 @@ public class MarkorDialogFactory {
 
     public static void showSearchFilesDialog(Activity activity, File searchDir, GsCallback.a2<String, Integer> callback) {
         if (!FileSearchEngine.isSearchExecuting) {
+            // Index changes made since the last search while the query is typed
+            FileSearchEngine.getNotebookIndex(activity).updateInBackground();
             GsCallback.a1<FileSearchEngine.SearchOptions> fileSearchDialogCallback = (searchOptions) -> {
                 searchOptions.rootSearchDir = searchDir;
-                FileSearchEngine.queueFileSearch(activity, searchOptions, (searchResults) ->
-                        FileSearchResultSelectorDialog.showDialog(activity, searchResults, callback));
+                final AtomicReference<FileSearchResultSelectorDialog> resultDialog = new AtomicReference<>();
+                final FileSearchEngine.QueueSearchFilesTask task = FileSearchEngine.queueFileSearch(activity, searchOptions,
+                        (resultBatch) -> resultDialog.get().addResults(resultBatch),
+                        (searchResults) -> resultDialog.get().setSearchFinished());
+                // Results are shown while searching, unless the query could not be used
+                if (!task.isCancelled()) {
+                    resultDialog.set(FileSearchResultSelectorDialog.showDialog(activity, callback, task::stopSearch));
+                }
             };
             FileSearchDialog.showDialog(activity, fileSearchDialogCallback);
         }
@@ -326,7 +326,7 @@ public class NewFileDialog extends DialogFragment {
         final byte[] bytes;
         if (encrypt && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
             final char[] pass = ApplicationObject.settings().getDefaultPassword();
-            bytes = new JavaPasswordbasedCryption(Build.VERSION.SDK_INT, new SecureRandom()).encrypt(t, pass);
+            bytes = new JavaPasswordbasedCryption(Build.VERSION.SDK_INT, ApplicationObject.settings().isEncryptionSegmented(), new SecureRandom()).encrypt(t, pass);
         } else {
             bytes = t.getBytes();
         }
@@ -60,6 +60,7 @@ public class FileSearchDialog {
         final CheckBox caseSensitivityCheckBox = new CheckBox(activity);
         final CheckBox searchInContentCheckBox = new CheckBox(activity);
         final CheckBox onlyFirstContentMatchCheckBox = new CheckBox(activity);
+        final CheckBox rankedCheckBox = new CheckBox(activity);
 
         final AppSettings appSettings = ApplicationObject.settings();
         final GsCallback.a0 submit = () -> {
@@ -71,6 +72,7 @@ public class FileSearchDialog {
                 opt.isCaseSensitiveQuery = caseSensitivityCheckBox.isChecked();
                 opt.isSearchInContent = searchInContentCheckBox.isChecked();
                 opt.isOnlyFirstContentMatch = onlyFirstContentMatchCheckBox.isChecked();
+                opt.maxRankedResults = rankedCheckBox.isChecked() ? FileSearchEngine.MAX_RANKED_RESULTS : 0;
                 opt.ignoredDirectories = appSettings.getFileSearchIgnorelist();
                 opt.maxSearchDepth = appSettings.getSearchMaxDepth();
                 if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.M) {
@@ -80,6 +82,7 @@ public class FileSearchDialog {
                 appSettings.setSearchQueryCaseSensitivity(opt.isCaseSensitiveQuery);
                 appSettings.setSearchInContent(opt.isSearchInContent);
                 appSettings.setOnlyFirstContentMatch(opt.isOnlyFirstContentMatch);
+                appSettings.setSearchRanked(rankedCheckBox.isChecked());
                 dialogCallback.callback(opt);
             }
         };
@@ -151,6 +154,11 @@ public class FileSearchDialog {
         onlyFirstContentMatchCheckBox.setVisibility(searchInContentCheckBox.isChecked() ? View.VISIBLE : View.INVISIBLE);
         dialogLayout.addView(onlyFirstContentMatchCheckBox, subCheckBoxMargins);
 
+        // Checkbox: Best matches only
+        rankedCheckBox.setText(R.string.show_best_matches_only);
+        rankedCheckBox.setChecked(appSettings.isSearchRanked());
+        dialogLayout.addView(rankedCheckBox, margins);
+
         // ScrollView
         scrollView.addView(dialogLayout);
 
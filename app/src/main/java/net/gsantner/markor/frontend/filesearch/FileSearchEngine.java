@@ -2,39 +2,30 @@ package net.gsantner.markor.frontend.filesearch;
 
 import android.annotation.SuppressLint;
 import android.app.Activity;
+import android.content.Context;
 import android.os.AsyncTask;
-import android.os.Build;
-import android.util.Pair;
+import android.os.Handler;
+import android.os.Looper;
 import android.view.View;
 import android.widget.Toast;
 
 import com.google.android.material.snackbar.Snackbar;
 
+import net.gsantner.markor.ApplicationObject;
 import net.gsantner.markor.R;
 import net.gsantner.markor.format.FormatRegistry;
-import net.gsantner.opoc.util.GsFileUtils;
+import net.gsantner.markor.model.Document;
 import net.gsantner.opoc.wrapper.GsCallback;
 
-import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.lang.ref.WeakReference;
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Queue;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicReference;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
-import other.de.stanetz.jpencconverter.JavaPasswordbasedCryption;
 
 @SuppressWarnings("WeakerAccess")
 
@@ -44,8 +35,11 @@ public class FileSearchEngine {
     public final static List<String> defaultIgnoredDirs = new ArrayList<>(Arrays.asList("^\\.git$", "^\\.tmp$", ".*[Tt]humb.*"));
 
     public static final int maxPreviewLength = 100;
+    public static final long MAX_READ_AT_ONCE_BYTES = 8 * 1024 * 1024;
     public static final int maxQueryHistoryCount = 20;
+    public static final int MAX_RANKED_RESULTS = 50;
     public static final LinkedList<String> queryHistory = new LinkedList<>();
+    private static FullTextIndex notebookIndex;
 
     public static void addToHistory(String query) {
         queryHistory.remove(query);
@@ -70,25 +64,65 @@ public class FileSearchEngine {
         public boolean isShowMatchPreview = true;
         public boolean isShowResultOnCancel = true;
         public char[] password = new char[0];
+
+        public int maxRankedResults; // 0 for all results, else only the best ones
+        public Map<String, Long> touchTimes; // When files were last opened or saved in the app, by absolute path
+    }
+
+    public static class LineMatch {
+        public final String preview; // Matched line, or the part around the match
+        public final int lineNumber;
+
+        public LineMatch(final String a_preview, final int a_lineNumber) {
+            preview = a_preview;
+            lineNumber = a_lineNumber;
+        }
     }
 
     public static class FitFile {
         public final String path;
         public final boolean isDirectory;
-        public final List<Pair<String, Integer>> matchesWithLineNumberAndLineText;
+        public final List<LineMatch> matchesWithLineNumberAndLineText;
+        public final double score; // Of a ranked search, higher is better
 
-        public FitFile(final String a_path, final boolean a_isDirectory, List<Pair<String, Integer>> lineNumbers) {
+        public FitFile(final String a_path, final boolean a_isDirectory, List<LineMatch> lineNumbers) {
+            this(a_path, a_isDirectory, lineNumbers, 0);
+        }
+
+        public FitFile(final String a_path, final boolean a_isDirectory, List<LineMatch> lineNumbers, final double a_score) {
             path = a_path;
             isDirectory = a_isDirectory;
             matchesWithLineNumberAndLineText = Collections.unmodifiableList(lineNumbers != null ? lineNumbers : new ArrayList<>());
+            score = a_score;
+        }
+    }
+
+    /**
+     * Index of the notebook directory, stored in the cache directory. Recreated if the notebook directory changed.
+     */
+    public static synchronized FullTextIndex getNotebookIndex(final Context context) {
+        final File notebook = ApplicationObject.settings().getNotebookDirectory().getAbsoluteFile();
+        if (notebookIndex == null || !notebookIndex.getRootDir().equals(notebook)) {
+            notebookIndex = new FullTextIndex(notebook, new File(context.getCacheDir(), "notebook_index.bin"), file -> FormatRegistry.isFileSupported(file, true));
         }
+        return notebookIndex;
     }
 
-    public static FileSearchEngine.QueueSearchFilesTask queueFileSearch(Activity activity, SearchOptions config, GsCallback.a1<List<FitFile>> callback) {
+    /**
+     * Search in the background.
+     *
+     * @param resultBatchCallback receives results on the main thread while searching, see {@link FileSearcher#setResultListener}.
+     *                            If null, progress is shown in a Snackbar instead
+     * @param callback            receives all results on the main thread when done
+     */
+    public static FileSearchEngine.QueueSearchFilesTask queueFileSearch(Activity activity, SearchOptions config, GsCallback.a1<List<FitFile>> resultBatchCallback, GsCallback.a1<List<FitFile>> callback) {
         FileSearchEngine.activity.set(new WeakReference<>(activity));
         FileSearchEngine.isSearchExecuting = true;
         FileSearchEngine.addToHistory(config.query);
-        FileSearchEngine.QueueSearchFilesTask task = new FileSearchEngine.QueueSearchFilesTask(config, callback);
+        if (config.maxRankedResults > 0 && config.touchTimes == null) {
+            config.touchTimes = Document.getTouchTimes(activity);
+        }
+        FileSearchEngine.QueueSearchFilesTask task = new FileSearchEngine.QueueSearchFilesTask(config, getNotebookIndex(activity), resultBatchCallback, callback);
         task.execute();
 
         return task;
@@ -97,49 +131,43 @@ public class FileSearchEngine {
     public static class QueueSearchFilesTask extends AsyncTask<Void, Integer, List<FitFile>> {
         private final SearchOptions _config;
         private final GsCallback.a1<List<FitFile>> _callback;
-        private final Pattern _regex;
+        private final GsCallback.a1<List<FitFile>> _resultBatchCallback;
+        private final FileSearcher _searcher;
+        private final FullTextIndex _index;
 
         private Snackbar _snackBar;
-        private Integer _countCheckedFiles = 0;
-        private Integer _currentQueueLength = 1;
-        private boolean _isCanceled = false;
-        private Integer _currentSearchDepth = 0;
-        private final List<FitFile> _result = new ArrayList<>();
-        private final List<Pattern> _ignoredRegexDirs = new ArrayList<>();
-        private final List<String> _ignoredExactDirs = new ArrayList<>();
-
-        public QueueSearchFilesTask(final SearchOptions config, final GsCallback.a1<List<FitFile>> callback) {
+
+        public QueueSearchFilesTask(final SearchOptions config, final FullTextIndex index, final GsCallback.a1<List<FitFile>> resultBatchCallback, final GsCallback.a1<List<FitFile>> callback) {
             _config = config;
             _callback = callback;
+            _resultBatchCallback = resultBatchCallback;
+            _index = index;
+            _searcher = new FileSearcher(config, file -> FormatRegistry.isFileSupported(file, true)).setIndex(index);
+            if (resultBatchCallback != null) {
+                // Posted before onPostExecute, so all batches arrive before the final result
+                final Handler handler = new Handler(Looper.getMainLooper());
+                _searcher.setResultListener(batch -> handler.post(() -> resultBatchCallback.callback(batch)));
+            }
 
-            _config.query = _config.isCaseSensitiveQuery ? _config.query : _config.query.toLowerCase();
-            splitRegexExactFiles(config.ignoredDirectories, _ignoredExactDirs, _ignoredRegexDirs);
-            splitRegexExactFiles(FileSearchEngine.defaultIgnoredDirs, _ignoredExactDirs, _ignoredRegexDirs);
-
-            Pattern pattern = null;
-            if (_config.isRegexQuery) {
-                try {
-                    _config.query = _config.query.replaceAll("(?<![.])[*]", ".*");
-                    pattern = Pattern.compile(_config.query);
-                } catch (Exception ex) {
-                    Activity a;
-                    if (FileSearchEngine.activity.get() != null && (a = FileSearchEngine.activity.get().get()) != null) {
-                        String errorMessage = a.getString(R.string.regex_can_not_be_compiled) + ": " + _config.query;
-                        Toast.makeText(a, errorMessage, Toast.LENGTH_LONG).show();
-                    }
+            Activity a;
+            if (FileSearchEngine.activity.get() != null && (a = FileSearchEngine.activity.get().get()) != null) {
+                for (final String pattern : _searcher.getInvalidPatterns()) {
+                    String errorMessage = a.getString(R.string.regex_can_not_be_compiled) + ": " + pattern;
+                    Toast.makeText(a, errorMessage, Toast.LENGTH_LONG).show();
                 }
             }
-            _regex = pattern;
         }
 
         @Override
         protected void onPreExecute() {
             super.onPreExecute();
-            if (_config.isRegexQuery && _regex == null) {
+            if (!_searcher.isValid()) {
                 cancel(true);
                 return;
             }
-            bindSnackBar(_config.query);
+            if (_resultBatchCallback == null) {
+                bindSnackBar(_config.query);
+            }
         }
 
         @SuppressLint("ShowToast")
@@ -170,92 +198,21 @@ public class FileSearchEngine {
 
         @Override
         protected List<FitFile> doInBackground(Void... voidp) {
-            Queue<File> mainQueue = new LinkedList<>();
-            mainQueue.add(_config.rootSearchDir);
-
-            while (!mainQueue.isEmpty() && !isCancelled() && !_isCanceled) {
-                File currentDirectory = mainQueue.remove();
-
-                if (!currentDirectory.canRead() || currentDirectory.isFile()) {
-                    continue;
-                }
+            final List<FitFile> result = _searcher.search(_resultBatchCallback != null ? null : () -> publishProgress(
+                    _searcher.getPendingTaskCount(), _searcher.getCurrentDepth(), _searcher.getResultCount(), _searcher.getCheckedFileCount()));
 
-                _currentSearchDepth = getDirectoryDepth(_config.rootSearchDir, currentDirectory);
-                if (_currentSearchDepth > _config.maxSearchDepth) {
-                    break;
-                }
-                _currentQueueLength = mainQueue.size() + 1;
-                publishProgress(_currentQueueLength, _currentSearchDepth, _result.size(), _countCheckedFiles);
-
-                mainQueue.addAll(currentDirectoryHandler(currentDirectory));
-            }
-
-            if (_isCanceled && _result.size() == 0) {
+            if (_searcher.isCanceled() && result.size() == 0 && _resultBatchCallback == null) {
                 cancel(true);
             }
 
-            return _result;
-        }
-
-        private Queue<File> currentDirectoryHandler(File currentDir) {
-            Queue<File> subQueue = new LinkedList<>();
-
-            try {
-                if (!currentDir.canRead() || currentDir.isFile()) {
-                    return subQueue;
-                }
-
-                File[] subDirsOrFiles = currentDir.listFiles();
-                for (final File f : (subDirsOrFiles != null ? subDirsOrFiles : new File[0])) {
-                    if (isCancelled() || _isCanceled) {
-                        break;
-                    }
-                    _countCheckedFiles++;
-
-                    if (!f.canRead()) {
-                        continue;
-                    } else if (f.isDirectory()) { // Handling for directory
-                        if (isIgnored(f) || isFileContainSymbolicLinks(f, currentDir)) {
-                            continue;
-                        }
-                        subQueue.add(f);
-                    } else { // Handling for file
-                        if (isIgnored(f)) {
-                            continue;
-                        }
-
-                        if (_config.isSearchInContent) {
-                            if (!FormatRegistry.isFileSupported(f, true)) {
-                                continue;
-                            }
-                            List<Pair<String, Integer>> contentMatches = getContentMatches(f, _config.isOnlyFirstContentMatch);
-
-                            if (contentMatches.isEmpty()) {
-                                continue;
-                            }
-
-                            String path = f.getCanonicalPath().replace(_config.rootSearchDir.getCanonicalPath() + "/", "");
-                            _result.add(new FitFile(path, false, contentMatches));
-                        }
-                    }
-
-                    if (!_config.isSearchInContent) {
-                        getFileIfNameMatches(f);
-                    }
-
-                    publishProgress(_currentQueueLength + subQueue.size(), _currentSearchDepth, _result.size(), _countCheckedFiles);
-                }
-            } catch (Exception ignored) {
-            }
-
-            return subQueue;
+            return result;
         }
 
         @Override
         protected void onProgressUpdate(Integer... values) {
             super.onProgressUpdate(values);
             if (_snackBar != null) {
-                // _currentQueueLength, _currentSearchDepth, _result.size(), _countCheckedFiles
+                // Pending tasks, search depth, result count, checked files
                 _snackBar.setText("⭕" + values[2] + " || \uD83D\uDD0D" + values[0] + " || ⬇️ " + values[1] + " || \uD83D\uDC41️" + values[3] + "\n" + _config.query);
             }
         }
@@ -267,6 +224,9 @@ public class FileSearchEngine {
             if (_snackBar != null) {
                 _snackBar.dismiss();
             }
+            if (_index != null) {
+                _index.updateInBackground();
+            }
             if (_callback != null) {
                 try {
                     _callback.callback(ret);
@@ -278,181 +238,22 @@ public class FileSearchEngine {
         @Override
         protected void onCancelled() {
             super.onCancelled();
+            _searcher.cancel();
             FileSearchEngine.isSearchExecuting = false;
         }
 
-        public void splitRegexExactFiles(List<String> list, List<String> exactList, List<Pattern> regexList) {
-            for (String pattern : (list != null ? list : new ArrayList<String>())) {
-                if (pattern.isEmpty()) {
-                    continue;
-                }
-                if (!_config.isCaseSensitiveQuery) {
-                    pattern = pattern.toLowerCase();
-                }
-
-                if (pattern.startsWith("\"")) {
-                    pattern = pattern.replace("\"", "");
-                    if (pattern.isEmpty()) {
-                        continue;
-                    }
-                    exactList.add(pattern);
-                } else {
-                    pattern = pattern.replaceAll("(?<![.])[*]", ".*");
-                    try {
-                        regexList.add(Pattern.compile(pattern));
-                    } catch (Exception ex) {
-
-                        Activity a;
-                        if (FileSearchEngine.activity.get() != null && (a = FileSearchEngine.activity.get().get()) != null) {
-                            String errorMessage = a.getString(R.string.regex_can_not_be_compiled) + ": " + pattern;
-                            Toast.makeText(a, errorMessage, Toast.LENGTH_LONG).show();
-                        }
-                    }
-                }
-            }
-        }
-
-        private boolean isFileContainSymbolicLinks(File file, File expectedParentDir) {
-            try {
-                File realParentDir = file.getCanonicalFile().getParentFile();
-                if (realParentDir != null && expectedParentDir.getCanonicalPath().equals(realParentDir.getCanonicalPath())) {
-                    return false;
-                }
-            } catch (Exception ignored) {
-            }
-
-            return true;
-        }
-
-        private void getFileIfNameMatches(File file) {
-            try {
-                String fileName = _config.isCaseSensitiveQuery ? file.getName() : file.getName().toLowerCase();
-                boolean isMatch = _config.isRegexQuery ? _regex.matcher(fileName).matches() : fileName.contains(_config.query);
-
-                if (isMatch) {
-                    String path = file.getCanonicalPath().replace(_config.rootSearchDir.getCanonicalPath() + "/", "");
-                    _result.add(new FitFile(path, file.isDirectory(), null));
-                }
-            } catch (Exception ignored) {
-            }
-        }
-
-        private int getDirectoryDepth(File parentDir, File childDir) {
-            try {
-                String parentPath = parentDir.getCanonicalPath();
-                String childPath = childDir.getCanonicalPath();
-                if (!childPath.startsWith(parentPath)) {
-                    return -1;
-                }
-
-                String res = childPath.replace(parentPath, "");
-                return res.split("/").length;
-            } catch (Exception ignored) {
-            }
-
-            return -1;
+        /**
+         * Stop searching, results found so far are still delivered
+         */
+        public void stopSearch() {
+            _searcher.cancel();
         }
 
         private void preCancel() {
-            if (_config.isShowResultOnCancel) {
-                _isCanceled = true;
-                return;
-            }
-
-            cancel(true);
-        }
-
-        // Match line and return preview string. Preview will be null if no match found
-        private String matchLine(final String line) {
-            final String preparedLine = _config.isCaseSensitiveQuery ? line : line.toLowerCase();
-
-            int start = -1, end = -1;
-            if (_config.isRegexQuery) {
-                final Matcher match = _regex.matcher(preparedLine);
-                if (match.find()) {
-                    start = match.start();
-                    end = match.end();
-                }
-            } else {
-                start = preparedLine.indexOf(_config.query);
-                if (start >= 0) {
-                    end = start + _config.query.length();
-                }
-            }
-
-            // Preview is based on original line
-            if (start >= 0 && end <= line.length()) {
-                if (!_config.isShowMatchPreview) {
-                    return "";
-                }
-                if (line.length() < maxPreviewLength) {
-                    return line;
-                } else {
-                    int offset = (maxPreviewLength - (end - start)) / 2;
-                    int subStart = Math.max(start - offset, 0);
-                    int subEnd = Math.min(end + offset, line.length());
-                    return String.format("… %s …", line.substring(subStart, subEnd));
-                }
-            }
-            return null;
-        }
-
-        private List<Pair<String, Integer>> getContentMatches(final File file, final boolean isFirstMatchOnly) {
-            List<Pair<String, Integer>> ret = new ArrayList<>();
-
-            if (!file.canRead() || file.isDirectory()) {
-                return ret;
-            }
-
-            try (final BufferedReader br = new BufferedReader(new InputStreamReader(getInputStream(file)))) {
-                int lineNumber = 0;
-                for (String line; (line = br.readLine()) != null; ) {
-                    if (isCancelled() || _isCanceled) {
-                        break;
-                    }
-                    line = matchLine(line);
-                    if (line != null) {
-                        ret.add(new Pair<>(line, lineNumber));
-                        if (isFirstMatchOnly) {
-                            break;
-                        }
-                    }
-                    lineNumber++;
-                }
-            } catch (Exception ignored) {
-            }
-
-            return ret;
-        }
-
-        private boolean isIgnored(File directory) {
-            final String dirName = _config.isCaseSensitiveQuery ? directory.getName() : directory.getName().toLowerCase();
-            for (final String pattern : _ignoredExactDirs) {
-                if (dirName.equals(pattern)) {
-                    return true;
-                }
-            }
-
-            for (final Pattern pattern : _ignoredRegexDirs) {
-                if (pattern.matcher(dirName).matches()) {
-                    return true;
-                }
-            }
-            return false;
-        }
-
-        private InputStream getInputStream(File file) throws FileNotFoundException {
-            if (isEncryptedFile(file)) {
-                final byte[] encryptedContext = GsFileUtils.readCloseStreamWithSize(new FileInputStream(file), (int) file.length());
-                return new ByteArrayInputStream(JavaPasswordbasedCryption.getDecryptedText(encryptedContext, _config.password.clone()).getBytes(StandardCharsets.UTF_8));
-            } else {
-                return new FileInputStream(file);
+            _searcher.cancel();
+            if (!_config.isShowResultOnCancel) {
+                cancel(true);
             }
         }
     }
-
-
-    private static boolean isEncryptedFile(File file) {
-        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.M && file.getName().endsWith(JavaPasswordbasedCryption.DEFAULT_ENCRYPTION_EXTENSION);
-    }
 }
@@ -3,15 +3,15 @@ package net.gsantner.markor.frontend.filesearch;
 import android.annotation.SuppressLint;
 import android.app.Activity;
 import android.content.Context;
-import android.database.DataSetObserver;
 import android.text.Editable;
 import android.text.TextWatcher;
-import android.util.Pair;
+import android.view.Gravity;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.view.WindowManager;
-import android.widget.ExpandableListAdapter;
+import android.widget.BaseExpandableListAdapter;
+import android.widget.Button;
 import android.widget.ExpandableListView;
 import android.widget.LinearLayout;
 import android.widget.TextView;
@@ -26,30 +26,152 @@ import net.gsantner.opoc.wrapper.GsCallback;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.Map;
 
+/**
+ * Dialog listing search results, which can be filled while the search is still running.
+ * Results are kept in {@link FileSearcher#RESULT_ORDER}, independent of the order they arrive in.
+ */
 public class FileSearchResultSelectorDialog {
+    private final Activity _activity;
+    private final GsCallback.a2<String, Integer> _dialogCallback;
+    private final GsCallback.a0 _stopCallback;
+    private final List<FileSearchEngine.FitFile> _results = new ArrayList<>();
+    private final Map<FileSearchEngine.FitFile, Long> _ids = new IdentityHashMap<>();
+    private final List<FileSearchEngine.FitFile> _filteredResults = new ArrayList<>();
+    private final List<GroupItemsInfo> _filteredItems = new ArrayList<>();
+    private String _filterQuery = "";
+    private final ExpandableSearchResultsListAdapter _adapter;
+    private final AppCompatEditText _searchEditText;
+    private final TextView _emptyView;
+    private AlertDialog _dialog;
+    private boolean _isSearching;
+
+    /**
+     * Show dialog for completed search results
+     */
     public static void showDialog(final Activity activity, final List<FileSearchEngine.FitFile> searchResults, final GsCallback.a2<String, Integer> dialogCallback) {
-        final AtomicReference<AlertDialog> dialog = new AtomicReference<>();
-        dialog.set(buildDialog(activity, dialog, searchResults, dialogCallback).create());
-        if (dialog.get().getWindow() != null) {
-            dialog.get().getWindow().setSoftInputMode(WindowManager.LayoutParams.SOFT_INPUT_ADJUST_RESIZE | WindowManager.LayoutParams.SOFT_INPUT_STATE_ALWAYS_VISIBLE);
+        final FileSearchResultSelectorDialog dialog = showDialog(activity, dialogCallback, null);
+        dialog.addResults(searchResults);
+        dialog.setSearchFinished();
+    }
+
+    /**
+     * Show dialog for a running search, results are added by {@link #addResults} until {@link #setSearchFinished}
+     *
+     * @param stopCallback stops the search, called when a result is opened, the dialog closed or the search stopped by the user
+     */
+    public static FileSearchResultSelectorDialog showDialog(final Activity activity, final GsCallback.a2<String, Integer> dialogCallback, final GsCallback.a0 stopCallback) {
+        final FileSearchResultSelectorDialog dialog = new FileSearchResultSelectorDialog(activity, dialogCallback, stopCallback);
+        dialog.show();
+        return dialog;
+    }
+
+    private FileSearchResultSelectorDialog(final Activity activity, final GsCallback.a2<String, Integer> dialogCallback, final GsCallback.a0 stopCallback) {
+        _activity = activity;
+        _dialogCallback = dialogCallback;
+        _stopCallback = stopCallback;
+        _isSearching = true;
+        _adapter = new ExpandableSearchResultsListAdapter(activity);
+        _adapter.setData(_filteredItems);
+        _searchEditText = new AppCompatEditText(activity);
+        _emptyView = new TextView(activity);
+    }
+
+    private void show() {
+        _dialog = buildDialog().create();
+        if (_dialog.getWindow() != null) {
+            _dialog.getWindow().setSoftInputMode(WindowManager.LayoutParams.SOFT_INPUT_ADJUST_RESIZE | WindowManager.LayoutParams.SOFT_INPUT_STATE_ALWAYS_VISIBLE);
+        }
+        _dialog.show();
+        if (_dialog.getWindow() != null) {
+            _dialog.getWindow().setLayout(WindowManager.LayoutParams.MATCH_PARENT, WindowManager.LayoutParams.WRAP_CONTENT);
         }
-        dialog.get().show();
-        if (dialog.get().getWindow() != null) {
-            dialog.get().getWindow().setLayout(WindowManager.LayoutParams.MATCH_PARENT, WindowManager.LayoutParams.WRAP_CONTENT);
+
+        // Set here so that the dialog stays open
+        final Button stopButton = _dialog.getButton(AlertDialog.BUTTON_NEUTRAL);
+        if (stopButton != null) {
+            stopButton.setOnClickListener(v -> stopSearch());
         }
+        updateState();
+    }
+
+    /**
+     * Add results in place, results already shown keep their order. Only the added results are filtered
+     */
+    public void addResults(final List<FileSearchEngine.FitFile> searchResults) {
+        for (final FileSearchEngine.FitFile fitFile : searchResults) {
+            _results.add(insertionIndex(_results, fitFile), fitFile);
+            _ids.put(fitFile, (long) _ids.size());
+            final GroupItemsInfo item = filter(fitFile, _ids.get(fitFile), _filterQuery);
+            if (item != null) {
+                final int index = insertionIndex(_filteredResults, fitFile);
+                _filteredResults.add(index, fitFile);
+                _filteredItems.add(index, item);
+            }
+        }
+        _adapter.notifyDataSetChanged();
+        updateState();
+    }
+
+    private static int insertionIndex(final List<FileSearchEngine.FitFile> results, final FileSearchEngine.FitFile fitFile) {
+        final int index = Collections.binarySearch(results, fitFile, FileSearcher.RESULT_ORDER);
+        return index < 0 ? -index - 1 : index;
+    }
+
+    public void setSearchFinished() {
+        _isSearching = false;
+        updateState();
     }
 
-    private static AlertDialog.Builder buildDialog(final Activity activity, final AtomicReference<AlertDialog> dialog, final List<FileSearchEngine.FitFile> searchResults, final GsCallback.a2<String, Integer> dialogCallback) {
+    private void stopSearch() {
+        if (_isSearching && _stopCallback != null) {
+            _stopCallback.callback();
+        }
+    }
+
+    // Filter all results again, only when the filter text changed
+    private void applyFilter() {
+        final String query = (_searchEditText.getText() == null ? "" : _searchEditText.getText().toString()).toLowerCase();
+        if (query.equals(_filterQuery)) {
+            return;
+        }
+        _filterQuery = query;
+        _filteredResults.clear();
+        _filteredItems.clear();
+        for (final FileSearchEngine.FitFile fitFile : _results) {
+            final GroupItemsInfo item = filter(fitFile, _ids.get(fitFile), query);
+            if (item != null) {
+                _filteredResults.add(fitFile);
+                _filteredItems.add(item);
+            }
+        }
+        _adapter.notifyDataSetChanged();
+    }
+
+    private void updateState() {
+        if (_dialog == null) {
+            return;
+        }
+        _searchEditText.setVisibility(_results.isEmpty() ? View.GONE : View.VISIBLE);
+        _emptyView.setText(_isSearching ? _activity.getString(R.string.searching) : "     ¯\\_(ツ)_/¯     ");
+        _dialog.setTitle(_isSearching ? _activity.getString(R.string.searching) + " (" + _results.size() + ")" : _activity.getString(R.string.select));
+        final Button stopButton = _dialog.getButton(AlertDialog.BUTTON_NEUTRAL);
+        if (stopButton != null) {
+            stopButton.setVisibility(_isSearching && _stopCallback != null ? View.VISIBLE : View.GONE);
+        }
+    }
+
+    private AlertDialog.Builder buildDialog() {
+        final Activity activity = _activity;
         final AlertDialog.Builder dialogBuilder = new AlertDialog.Builder(activity, R.style.Theme_AppCompat_DayNight_Dialog);
 
         final LinearLayout dialogLayout = new LinearLayout(activity);
         dialogLayout.setOrientation(LinearLayout.VERTICAL);
 
         final ExpandableListView expandableListView = new ExpandableListView(activity);
-        final AppCompatEditText searchEditText = new AppCompatEditText(activity);
 
         final int dp4px = GsContextUtils.instance.convertDpToPx(activity, 4);
         final int textColor = ContextCompat.getColor(activity, R.color.primary_text);
@@ -57,26 +179,24 @@ public class FileSearchResultSelectorDialog {
         margins.setMargins(dp4px * 5, dp4px, dp4px * 5, dp4px);
 
         // EdiText: Search query input
-        searchEditText.setHint(R.string.search);
-        searchEditText.setSingleLine(true);
-        searchEditText.setMaxLines(1);
-        searchEditText.setTextColor(textColor);
-        searchEditText.setHintTextColor((textColor & 0x00FFFFFF) | 0x99000000);
-
-        if (!searchResults.isEmpty()) {
-            dialogLayout.addView(searchEditText, margins);
-        }
+        _searchEditText.setHint(R.string.search);
+        _searchEditText.setSingleLine(true);
+        _searchEditText.setMaxLines(1);
+        _searchEditText.setTextColor(textColor);
+        _searchEditText.setHintTextColor((textColor & 0x00FFFFFF) | 0x99000000);
+        dialogLayout.addView(_searchEditText, margins);
+
+        // Shown while there are no results
+        _emptyView.setTextColor(textColor);
+        _emptyView.setGravity(Gravity.CENTER);
+        _emptyView.setPadding(dp4px * 5, dp4px * 5, dp4px * 5, dp4px * 5);
+        dialogLayout.addView(_emptyView, margins);
 
         // List filling
-        final ArrayList<GroupItemsInfo> groupItemsData = filter(searchResults, "");
-        final ExpandableSearchResultsListAdapter adapter = new ExpandableSearchResultsListAdapter(activity, groupItemsData);
-        searchEditText.addTextChangedListener(new TextWatcher() {
+        _searchEditText.addTextChangedListener(new TextWatcher() {
             @Override
             public void afterTextChanged(final Editable arg0) {
-                String filterText = searchEditText.getText() == null ? "" : searchEditText.getText().toString();
-                ArrayList<GroupItemsInfo> filteredGroups = filter(searchResults, filterText);
-                ExpandableSearchResultsListAdapter adapter = new ExpandableSearchResultsListAdapter(activity, filteredGroups);
-                expandableListView.setAdapter(adapter);
+                applyFilter();
             }
 
             @Override
@@ -89,16 +209,17 @@ public class FileSearchResultSelectorDialog {
         });
 
         expandableListView.setGroupIndicator(null);
-        expandableListView.setAdapter(adapter);
+        expandableListView.setAdapter(_adapter);
+        expandableListView.setEmptyView(_emptyView);
 
         expandableListView.setOnGroupClickListener((parent, view, groupPosition, id) -> {
             GroupItemsInfo groupItem = (GroupItemsInfo) parent.getExpandableListAdapter().getGroup(groupPosition);
 
             if (groupItem.children.isEmpty()) {
-                if (dialog != null && dialog.get() != null) {
-                    dialog.get().dismiss();
+                if (_dialog != null) {
+                    _dialog.dismiss();
                 }
-                dialogCallback.callback(groupItem.path, -1);
+                _dialogCallback.callback(groupItem.path, -1);
             }
             return false;
         });
@@ -110,7 +231,8 @@ public class FileSearchResultSelectorDialog {
             if (type == ExpandableListView.PACKED_POSITION_TYPE_GROUP) {
                 final int groupPosition = ExpandableListView.getPackedPositionGroup(position);
                 // Start on end of first line
-                dialogCallback.callback(((GroupItemsInfo) expandableListView.getExpandableListAdapter().getGroup(groupPosition)).path, 0);
+                stopSearch();
+                _dialogCallback.callback(((GroupItemsInfo) expandableListView.getExpandableListAdapter().getGroup(groupPosition)).path, 0);
             }
             ;
             return true;
@@ -118,9 +240,10 @@ public class FileSearchResultSelectorDialog {
 
         expandableListView.setOnChildClickListener((parent, v, groupPosition, childPosition, id) -> {
             GroupItemsInfo groupItem = (GroupItemsInfo) parent.getExpandableListAdapter().getGroup(groupPosition);
-            Pair<String, Integer> childItem = (Pair<String, Integer>) parent.getExpandableListAdapter().getChild(groupPosition, childPosition);
-            if (childItem != null && childItem.second != null && childItem.second >= 0) {
-                dialogCallback.callback(groupItem.path, childItem.second);
+            FileSearchEngine.LineMatch childItem = (FileSearchEngine.LineMatch) parent.getExpandableListAdapter().getChild(groupPosition, childPosition);
+            if (childItem != null && childItem.lineNumber >= 0) {
+                stopSearch();
+                _dialogCallback.callback(groupItem.path, childItem.lineNumber);
             }
             return false;
         });
@@ -131,39 +254,42 @@ public class FileSearchResultSelectorDialog {
         dialogBuilder.setView(dialogLayout)
                 .setTitle(R.string.select)
                 .setOnCancelListener(null)
-                .setMessage(searchResults.isEmpty() ? "     ¯\\_(ツ)_/¯     " : null)
+                .setOnDismissListener(dialogInterface -> stopSearch())
                 .setNegativeButton(android.R.string.cancel, (dialogInterface, i) -> dialogInterface.dismiss());
+        if (_stopCallback != null) {
+            dialogBuilder.setNeutralButton(R.string.stop_search, null);
+        }
         return dialogBuilder;
     }
 
+    // Item of the result with the matches containing the lowercase query, or null if nothing matches
     @SuppressWarnings("ConstantConditions")
-    private static ArrayList<GroupItemsInfo> filter(final List<FileSearchEngine.FitFile> searchResults, String query) {
-        final ArrayList<GroupItemsInfo> groupItemsData = new ArrayList<>();
-        query = query.toLowerCase();
-
-        for (final FileSearchEngine.FitFile fitFile : searchResults) {
-            final boolean isPathContainsQuery = query.isEmpty() || fitFile.path.toLowerCase().contains(query);
-            final ArrayList<Pair<String, Integer>> groupChildItems = new ArrayList<>();
+    private static GroupItemsInfo filter(final FileSearchEngine.FitFile fitFile, final Long id, final String query) {
+        final boolean isPathContainsQuery = query.isEmpty() || fitFile.path.toLowerCase().contains(query);
+        final ArrayList<FileSearchEngine.LineMatch> groupChildItems = new ArrayList<>();
 
-            for (final Pair<String, Integer> contentMatch : fitFile.matchesWithLineNumberAndLineText) {
-                if (isPathContainsQuery || contentMatch.first.toLowerCase().contains(query)) {
-                    groupChildItems.add(contentMatch);
-                }
-            }
-            if (isPathContainsQuery || !groupChildItems.isEmpty()) {
-                groupItemsData.add(new GroupItemsInfo(fitFile.path, fitFile.isDirectory, groupChildItems));
+        for (final FileSearchEngine.LineMatch contentMatch : fitFile.matchesWithLineNumberAndLineText) {
+            if (isPathContainsQuery || contentMatch.preview.toLowerCase().contains(query)) {
+                groupChildItems.add(contentMatch);
             }
         }
-        return groupItemsData;
+        if (isPathContainsQuery || !groupChildItems.isEmpty()) {
+            return new GroupItemsInfo(fitFile.path, fitFile.isDirectory, groupChildItems, id != null ? id : -1);
+        }
+        return null;
     }
 
-    private static class ExpandableSearchResultsListAdapter implements ExpandableListAdapter {
-        public final List<GroupItemsInfo> data;
+    private static class ExpandableSearchResultsListAdapter extends BaseExpandableListAdapter {
+        public List<GroupItemsInfo> data = Collections.emptyList();
         private final Context _context;
 
-        public ExpandableSearchResultsListAdapter(Context context, List<GroupItemsInfo> groupItems) {
+        public ExpandableSearchResultsListAdapter(Context context) {
             _context = context;
+        }
+
+        public void setData(final List<GroupItemsInfo> groupItems) {
             data = Collections.unmodifiableList(groupItems);
+            notifyDataSetChanged();
         }
 
         @Override
@@ -188,7 +314,7 @@ public class FileSearchResultSelectorDialog {
 
         @Override
         public long getGroupId(int groupPosition) {
-            return groupPosition;
+            return data.get(groupPosition).id;
         }
 
         @Override
@@ -215,18 +341,17 @@ public class FileSearchResultSelectorDialog {
             return textView;
         }
 
-        @SuppressWarnings("unchecked")
         @SuppressLint("SetTextI18n")
         @Override
         public View getChildView(final int groupPosition, final int childPosition, final boolean isLastChild, final View convertView, final ViewGroup parent) {
-            Pair<String, Integer> childInfo = (Pair<String, Integer>) getChild(groupPosition, childPosition);
+            FileSearchEngine.LineMatch childInfo = (FileSearchEngine.LineMatch) getChild(groupPosition, childPosition);
             TextView textView = (TextView) convertView;
             if (convertView == null) {
                 LayoutInflater mInflater = (LayoutInflater) _context.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
                 textView = (TextView) mInflater.inflate(android.R.layout.simple_list_item_1, null);
                 textView.setClickable(false);
             }
-            textView.setText("+" + childInfo.second + ": " + childInfo.first);
+            textView.setText("+" + childInfo.lineNumber + ": " + childInfo.preview);
 
             return textView;
         }
@@ -236,57 +361,24 @@ public class FileSearchResultSelectorDialog {
             return true;
         }
 
-        @Override
-        public boolean areAllItemsEnabled() {
-            return true;
-        }
-
-        @Override
-        public boolean isEmpty() {
-            return false;
-        }
-
-        @Override
-        public void onGroupExpanded(int groupPosition) {
-        }
-
-        @Override
-        public void onGroupCollapsed(int groupPosition) {
-        }
-
-        @Override
-        public long getCombinedChildId(long groupPosition, long childPosition) {
-            return 0;
-        }
-
-        @Override
-        public long getCombinedGroupId(long groupPosition) {
-            return 0;
-        }
-
+        // Expanded groups stay expanded when results are added before them
         @Override
         public boolean hasStableIds() {
-            return false;
-        }
-
-        @Override
-        public void registerDataSetObserver(DataSetObserver dataSetObserver) {
-        }
-
-        @Override
-        public void unregisterDataSetObserver(DataSetObserver dataSetObserver) {
+            return true;
         }
     }
 
     public static class GroupItemsInfo {
         public final String path;
         public final boolean isDirectory;
-        public final ArrayList<Pair<String, Integer>> children;
+        public final ArrayList<FileSearchEngine.LineMatch> children;
+        public final long id;
 
-        public GroupItemsInfo(String a_path, boolean a_isDirectory, ArrayList<Pair<String, Integer>> a_children) {
+        public GroupItemsInfo(String a_path, boolean a_isDirectory, ArrayList<FileSearchEngine.LineMatch> a_children, long a_id) {
             path = a_path;
             isDirectory = a_isDirectory;
             children = a_children != null ? a_children : new ArrayList<>();
+            id = a_id;
         }
 
         @Override
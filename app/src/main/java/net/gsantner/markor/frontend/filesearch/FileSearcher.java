@@ -0,0 +1,636 @@
+/*#######################################################
+ *
+ *   Maintained by Gregor Santner, 2017-
+ *   https://gsantner.net/
+ *
+ *   License of this file: Apache 2.0 (Commercial upon request)
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+#########################################################*/
+package net.gsantner.markor.frontend.filesearch;
+
+import android.os.Build;
+
+import net.gsantner.markor.model.DocumentCache;
+import net.gsantner.opoc.util.GsByteMatcher;
+import net.gsantner.opoc.util.GsFileUtils;
+import net.gsantner.opoc.util.GsFileWalker;
+import net.gsantner.opoc.wrapper.GsCallback;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import other.de.stanetz.jpencconverter.JavaPasswordbasedCryption;
+
+/**
+ * Searches a directory tree for files by name or content, with {@link FileSearchEngine.SearchOptions}.
+ * <p>
+ * Directories are listed and files are matched as separate tasks on a pool of threads, so walking
+ * and reading overlap across cores. Results are sorted like a breadth-first walk in name order,
+ * independent of which task finished first.
+ * <p>
+ * A ranked search ({@link FileSearchEngine.SearchOptions#maxRankedResults}) keeps only the best results,
+ * scored by file name, headings, density of matching lines and when the file was last touched in the app.
+ * The tree is walked first, then files are read in order of the best score they could reach,
+ * until no remaining file can beat the worst kept result. The best density is bounded by the file size,
+ * which only prunes much when a single match per file is searched or the query is long.
+ */
+public class FileSearcher {
+    public static final int DEFAULT_THREAD_COUNT = Math.max(2, Runtime.getRuntime().availableProcessors());
+    public static final int RESULT_BATCH_SIZE = 20;
+    private static final int PROGRESS_INTERVAL_MS = 100;
+    private static final int RESULT_BATCH_INTERVAL_MS = 50;
+
+    // Weights of a ranked search, a result scores at most their sum
+    static final double SCORE_NAME = 4;
+    static final double SCORE_HEADING = 2;
+    static final double SCORE_DENSITY = 2;
+    static final double SCORE_RECENCY = 2;
+    private static final int DENSITY_BYTES_PER_MATCH = 512;
+    private static final long RECENCY_HALF_LIFE_MS = 7L * 24 * 60 * 60 * 1000;
+
+    private final FileSearchEngine.SearchOptions _config;
+    private final GsCallback.b1<File> _isTextFile;
+    private final int _threadCount;
+    private final Pattern _regex;
+    private final GsByteMatcher _byteMatcher;
+    private final GsFileWalker _walker;
+    private final List<Pattern> _ignoredRegexDirs = new ArrayList<>();
+    private final List<String> _ignoredExactDirs = new ArrayList<>();
+    private final List<String> _invalidPatterns = new ArrayList<>();
+
+    private final ConcurrentLinkedQueue<FileSearchEngine.FitFile> _result = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<FileSearchEngine.FitFile> _unpublished = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger _pendingTasks = new AtomicInteger();
+    private final AtomicInteger _checkedFiles = new AtomicInteger();
+    private final AtomicInteger _readFiles = new AtomicInteger();
+    private final AtomicInteger _resultCount = new AtomicInteger();
+    private final AtomicInteger _maxDepth = new AtomicInteger();
+    private volatile boolean _isCanceled = false;
+    private ExecutorService _executor;
+    private FullTextIndex _index;
+    private FullTextIndex.Candidates _candidates;
+    private GsCallback.a1<List<FileSearchEngine.FitFile>> _resultListener;
+
+    // Ranked search: files to read with their best possible score, and the best results, worst first
+    private final ConcurrentLinkedQueue<RankedFile> _rankedFiles = new ConcurrentLinkedQueue<>();
+    private final PriorityQueue<FileSearchEngine.FitFile> _ranked = new PriorityQueue<>(11, Collections.reverseOrder(RESULT_ORDER));
+
+    private static class RankedFile {
+        final File file;
+        final String path;
+        final double knownScore; // Known without reading
+        final double maxScore;
+
+        RankedFile(final File file, final String path, final double knownScore, final double maxContentScore) {
+            this.file = file;
+            this.path = path;
+            this.knownScore = knownScore;
+            this.maxScore = knownScore + maxContentScore;
+        }
+    }
+
+    /**
+     * @param config      options, the query is prepared for matching (lowercase if not case sensitive)
+     * @param isTextFile  whether the content of a file is searched
+     * @param threadCount number of threads to search with
+     */
+    public FileSearcher(final FileSearchEngine.SearchOptions config, final GsCallback.b1<File> isTextFile, final int threadCount) {
+        _config = config;
+        _isTextFile = isTextFile;
+        _threadCount = Math.max(1, threadCount);
+
+        _config.query = _config.isCaseSensitiveQuery ? _config.query : _config.query.toLowerCase();
+        splitRegexExactFiles(config.ignoredDirectories);
+        splitRegexExactFiles(FileSearchEngine.defaultIgnoredDirs);
+        _walker = new GsFileWalker().setMaxDepth(_config.maxSearchDepth).setIgnoredNames(this::isIgnored);
+
+        Pattern pattern = null;
+        if (_config.isRegexQuery) {
+            try {
+                _config.query = _config.query.replaceAll("(?<![.])[*]", ".*");
+                pattern = Pattern.compile(_config.query);
+            } catch (Exception ex) {
+                _invalidPatterns.add(_config.query);
+            }
+        }
+        _regex = pattern;
+
+        // Plain queries are found in the undecoded bytes, only lines with a hit are decoded
+        final GsByteMatcher matcher = _config.isRegexQuery ? null : new GsByteMatcher(_config.query, !_config.isCaseSensitiveQuery, Locale.getDefault());
+        _byteMatcher = matcher != null && matcher.isSupported() ? matcher : null;
+    }
+
+    public FileSearcher(final FileSearchEngine.SearchOptions config, final GsCallback.b1<File> isTextFile) {
+        this(config, isTextFile, DEFAULT_THREAD_COUNT);
+    }
+
+    /**
+     * Skip files which the index knows cannot contain the query, for content searches.
+     * Files in the index which changed since, or are not in it, are still read.
+     */
+    public FileSearcher setIndex(final FullTextIndex index) {
+        _index = index;
+        return this;
+    }
+
+    /**
+     * Receive results while searching, on the searching thread. Results are handed over in batches,
+     * every {@value #RESULT_BATCH_INTERVAL_MS} ms or {@value #RESULT_BATCH_SIZE} results, the first one
+     * right away. Each batch is in {@link #RESULT_ORDER}. Results of a ranked search are handed over once, when done.
+     */
+    public FileSearcher setResultListener(final GsCallback.a1<List<FileSearchEngine.FitFile>> listener) {
+        _resultListener = listener;
+        return this;
+    }
+
+    /**
+     * False if the query is an invalid regex
+     */
+    public boolean isValid() {
+        return !_config.isRegexQuery || _regex != null;
+    }
+
+    /**
+     * Query and ignore patterns which could not be compiled
+     */
+    public List<String> getInvalidPatterns() {
+        return Collections.unmodifiableList(_invalidPatterns);
+    }
+
+    /**
+     * Search and wait for all files to be checked, or until canceled.
+     *
+     * @param progress called about every {@value #PROGRESS_INTERVAL_MS} ms while searching, may be null
+     * @return results found, so far if canceled
+     */
+    public List<FileSearchEngine.FitFile> search(final GsCallback.a0 progress) {
+        if (!isValid()) {
+            return new ArrayList<>();
+        }
+
+        if (_index != null && _config.isSearchInContent) {
+            _candidates = _config.isRegexQuery ? _index.queryRegex(_config.query) : _index.query(_config.query);
+        }
+
+        _executor = Executors.newFixedThreadPool(_threadCount);
+        try {
+            submit(() -> _walker.walk(_config.rootSearchDir, this::visit));
+            awaitTasks(progress);
+            if (isRanked() && _config.isSearchInContent) {
+                readRankedFiles();
+                awaitTasks(progress);
+            }
+        } catch (InterruptedException e) {
+            _isCanceled = true;
+            Thread.currentThread().interrupt();
+        } finally {
+            _executor.shutdownNow();
+        }
+        if (isRanked()) {
+            synchronized (_ranked) {
+                _result.addAll(_ranked);
+                _unpublished.addAll(_ranked);
+            }
+        }
+        publishResults();
+
+        final List<FileSearchEngine.FitFile> result = new ArrayList<>(_result);
+        Collections.sort(result, RESULT_ORDER);
+        return result;
+    }
+
+    private void awaitTasks(final GsCallback.a0 progress) throws InterruptedException {
+        long lastProgress = System.currentTimeMillis();
+        synchronized (_pendingTasks) {
+            while (_pendingTasks.get() > 0) {
+                _pendingTasks.wait(_resultListener != null ? RESULT_BATCH_INTERVAL_MS : PROGRESS_INTERVAL_MS);
+                publishResults();
+                if (progress != null && System.currentTimeMillis() - lastProgress >= PROGRESS_INTERVAL_MS) {
+                    lastProgress = System.currentTimeMillis();
+                    progress.callback();
+                }
+            }
+        }
+    }
+
+    // Read files with the best possible score first, files which cannot make it into the results are skipped
+    private void readRankedFiles() {
+        final List<RankedFile> files = new ArrayList<>(_rankedFiles);
+        Collections.sort(files, (a, b) -> a.maxScore != b.maxScore ? Double.compare(b.maxScore, a.maxScore) : comparePaths(a.path, b.path));
+        for (final RankedFile ranked : files) {
+            submit(() -> {
+                if (!canBeRanked(ranked.maxScore, ranked.path)) {
+                    return;
+                }
+                final List<FileSearchEngine.LineMatch> contentMatches = getContentMatches(ranked.file, _config.isOnlyFirstContentMatch);
+                if (!contentMatches.isEmpty()) {
+                    addResult(ranked.path, false, contentMatches, ranked.knownScore + getContentScore(ranked.file, contentMatches));
+                }
+            });
+        }
+    }
+
+    public boolean isRanked() {
+        return _config.maxRankedResults > 0;
+    }
+
+    // Whether a result would be kept, it has to come before the worst kept one in RESULT_ORDER. While there is space any is kept
+    private boolean canBeRanked(final double score, final String path) {
+        synchronized (_ranked) {
+            if (_ranked.size() < _config.maxRankedResults) {
+                return true;
+            }
+            final FileSearchEngine.FitFile worst = _ranked.peek();
+            return score != worst.score ? score > worst.score : comparePaths(path, worst.path) < 0;
+        }
+    }
+
+    private double getKnownScore(final File file, final boolean isNameMatch) {
+        double score = isNameMatch ? SCORE_NAME : 0;
+        final Long touched = _config.touchTimes != null ? _config.touchTimes.get(file.getAbsolutePath()) : null;
+        if (touched != null) {
+            final long age = Math.max(0, System.currentTimeMillis() - touched);
+            score += SCORE_RECENCY * Math.pow(0.5, (double) age / RECENCY_HALF_LIFE_MS);
+        }
+        return score;
+    }
+
+    // A match in the first line or a Markdown heading, and matching lines per size
+    private static double getContentScore(final File file, final List<FileSearchEngine.LineMatch> matches) {
+        double score = 0;
+        for (final FileSearchEngine.LineMatch match : matches) {
+            if (match.lineNumber == 0 || match.preview.startsWith("#")) {
+                score += SCORE_HEADING;
+                break;
+            }
+        }
+        return score + SCORE_DENSITY * getDensity(matches.size(), file.length());
+    }
+
+    private static double getDensity(final long matchCount, final long size) {
+        return Math.min(1, (double) matchCount * DENSITY_BYTES_PER_MATCH / Math.max(DENSITY_BYTES_PER_MATCH, size));
+    }
+
+    // Best content score a file of this size could reach. Each matching line holds the query and a line break,
+    // and text has at least one byte per char. Regular expressions may match empty, bounded by line count only
+    private double getMaxContentScore(final File file) {
+        final long size = file.length();
+        final long minLineBytes = (_config.isRegexQuery ? 0 : _config.query.length()) + 1;
+        final long maxMatchCount = _config.isOnlyFirstContentMatch ? 1 : (size + 1) / minLineBytes;
+        return SCORE_HEADING + SCORE_DENSITY * getDensity(maxMatchCount, size);
+    }
+
+    public void cancel() {
+        _isCanceled = true;
+        _walker.cancel();
+    }
+
+    public boolean isCanceled() {
+        return _isCanceled;
+    }
+
+    public int getCheckedFileCount() {
+        return _checkedFiles.get();
+    }
+
+    public int getReadFileCount() {
+        return _readFiles.get();
+    }
+
+    public int getResultCount() {
+        return _resultCount.get();
+    }
+
+    public int getPendingTaskCount() {
+        return _pendingTasks.get();
+    }
+
+    public int getCurrentDepth() {
+        return _maxDepth.get();
+    }
+
+    private void submit(final Runnable task) {
+        _pendingTasks.incrementAndGet();
+        try {
+            _executor.execute(() -> {
+                try {
+                    if (!_isCanceled) {
+                        task.run();
+                    }
+                } finally {
+                    taskDone();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            taskDone();
+        }
+    }
+
+    private void taskDone() {
+        if (_pendingTasks.decrementAndGet() == 0) {
+            synchronized (_pendingTasks) {
+                _pendingTasks.notifyAll();
+            }
+        }
+    }
+
+    private void addResult(final String path, final boolean isDirectory, final List<FileSearchEngine.LineMatch> matches, final double score) {
+        final FileSearchEngine.FitFile fitFile = new FileSearchEngine.FitFile(path, isDirectory, matches, score);
+        if (isRanked()) {
+            synchronized (_ranked) {
+                _ranked.add(fitFile);
+                if (_ranked.size() > _config.maxRankedResults) {
+                    _ranked.poll();
+                }
+            }
+            _resultCount.incrementAndGet();
+            return;
+        }
+        _result.add(fitFile);
+        final int count = _resultCount.incrementAndGet();
+        if (_resultListener != null) {
+            _unpublished.add(fitFile);
+            if (count == 1 || count % RESULT_BATCH_SIZE == 0) {
+                synchronized (_pendingTasks) {
+                    _pendingTasks.notifyAll();
+                }
+            }
+        }
+    }
+
+    // Hand over results found since the last batch, called by the searching thread only
+    private void publishResults() {
+        if (_resultListener == null || _unpublished.isEmpty()) {
+            return;
+        }
+        final List<FileSearchEngine.FitFile> batch = new ArrayList<>();
+        for (FileSearchEngine.FitFile fitFile; (fitFile = _unpublished.poll()) != null; ) {
+            batch.add(fitFile);
+        }
+        Collections.sort(batch, RESULT_ORDER);
+        _resultListener.callback(batch);
+    }
+
+    // Sub directories and files are handled by new tasks, the walker skips ignored names and links
+    private boolean visit(final File f, final String path, final int depth, final boolean isDirectory) {
+        _checkedFiles.incrementAndGet();
+        for (int max; depth > (max = _maxDepth.get()) && !_maxDepth.compareAndSet(max, depth); ) {
+            // Retry until depth is stored or smaller than the maximum
+        }
+
+        if (isDirectory) {
+            if (depth < _config.maxSearchDepth) {
+                submit(() -> _walker.walk(f, path, depth, this::visit));
+            }
+        } else if (_config.isSearchInContent && _isTextFile.callback(f) && (_candidates == null || _candidates.mayContain(f))) {
+            if (isRanked()) {
+                _rankedFiles.add(new RankedFile(f, path, getKnownScore(f, isNameMatch(f)), getMaxContentScore(f)));
+            } else {
+                submit(() -> {
+                    final List<FileSearchEngine.LineMatch> contentMatches = getContentMatches(f, _config.isOnlyFirstContentMatch);
+                    if (!contentMatches.isEmpty()) {
+                        addResult(path, false, contentMatches, 0);
+                    }
+                });
+            }
+        }
+
+        if (!_config.isSearchInContent && isNameMatch(f) && f.canRead()) {
+            addResult(path, isDirectory, null, isRanked() ? getKnownScore(f, true) : 0);
+        }
+        return false;
+    }
+
+    private void splitRegexExactFiles(final List<String> list) {
+        for (String pattern : (list != null ? list : new ArrayList<String>())) {
+            if (pattern.isEmpty()) {
+                continue;
+            }
+            if (!_config.isCaseSensitiveQuery) {
+                pattern = pattern.toLowerCase();
+            }
+
+            if (pattern.startsWith("\"")) {
+                pattern = pattern.replace("\"", "");
+                if (pattern.isEmpty()) {
+                    continue;
+                }
+                _ignoredExactDirs.add(pattern);
+            } else {
+                pattern = pattern.replaceAll("(?<![.])[*]", ".*");
+                try {
+                    _ignoredRegexDirs.add(Pattern.compile(pattern));
+                } catch (Exception ex) {
+                    _invalidPatterns.add(pattern);
+                }
+            }
+        }
+    }
+
+    private boolean isNameMatch(final File file) {
+        final String fileName = _config.isCaseSensitiveQuery ? file.getName() : file.getName().toLowerCase();
+        return _config.isRegexQuery ? _regex.matcher(fileName).matches() : fileName.contains(_config.query);
+    }
+
+    private boolean isIgnored(String name) {
+        name = _config.isCaseSensitiveQuery ? name : name.toLowerCase();
+        for (final String pattern : _ignoredExactDirs) {
+            if (name.equals(pattern)) {
+                return true;
+            }
+        }
+
+        for (final Pattern pattern : _ignoredRegexDirs) {
+            if (pattern.matcher(name).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Match line and return preview string. Preview will be null if no match found
+    private String matchLine(final String line) {
+        final String preparedLine = _config.isCaseSensitiveQuery ? line : line.toLowerCase();
+
+        int start = -1, end = -1;
+        if (_config.isRegexQuery) {
+            final Matcher match = _regex.matcher(preparedLine);
+            if (match.find()) {
+                start = match.start();
+                end = match.end();
+            }
+        } else {
+            start = preparedLine.indexOf(_config.query);
+            if (start >= 0) {
+                end = start + _config.query.length();
+            }
+        }
+
+        // Preview is based on original line
+        if (start >= 0 && end <= line.length()) {
+            if (!_config.isShowMatchPreview) {
+                return "";
+            }
+            if (line.length() < FileSearchEngine.maxPreviewLength) {
+                return line;
+            } else {
+                int offset = (FileSearchEngine.maxPreviewLength - (end - start)) / 2;
+                int subStart = Math.max(start - offset, 0);
+                int subEnd = Math.min(end + offset, line.length());
+                return String.format("… %s …", line.substring(subStart, subEnd));
+            }
+        }
+        return null;
+    }
+
+    private List<FileSearchEngine.LineMatch> getContentMatches(final File file, final boolean isFirstMatchOnly) {
+        final List<FileSearchEngine.LineMatch> ret = new ArrayList<>();
+
+        if (!file.canRead() || file.isDirectory()) {
+            return ret;
+        }
+        _readFiles.incrementAndGet();
+
+        if (_byteMatcher != null && !isEncryptedFile(file) && file.length() <= FileSearchEngine.MAX_READ_AT_ONCE_BYTES) {
+            try {
+                final byte[] data = GsFileUtils.readFileFully(file);
+                final boolean hasBom = data.length >= 3 && data[0] == (byte) 0xEF && data[1] == (byte) 0xBB && data[2] == (byte) 0xBF;
+                final int from = hasBom ? 3 : 0;
+                if (_byteMatcher.isSupportedFor(data, from, data.length)) {
+                    _byteMatcher.forEachMatchingLine(data, from, data.length, (lineNumber, start, end) -> {
+                        final String line = matchLine(new String(data, start, end - start, StandardCharsets.UTF_8));
+                        if (line != null) {
+                            ret.add(new FileSearchEngine.LineMatch(line, lineNumber));
+                        }
+                        return !_isCanceled && !(isFirstMatchOnly && line != null);
+                    });
+                    return ret;
+                }
+                return getContentMatches(new StringReader(new String(data, from, data.length - from, StandardCharsets.UTF_8)), isFirstMatchOnly);
+            } catch (Exception ignored) {
+                return ret;
+            }
+        }
+
+        try {
+            return getContentMatches(getReader(file), isFirstMatchOnly);
+        } catch (Exception ignored) {
+        }
+        return ret;
+    }
+
+    private List<FileSearchEngine.LineMatch> getContentMatches(final Reader reader, final boolean isFirstMatchOnly) {
+        final List<FileSearchEngine.LineMatch> ret = new ArrayList<>();
+        try (final BufferedReader br = new BufferedReader(reader)) {
+            int lineNumber = 0;
+            for (String line; (line = br.readLine()) != null; ) {
+                if (_isCanceled) {
+                    break;
+                }
+                line = matchLine(line);
+                if (line != null) {
+                    ret.add(new FileSearchEngine.LineMatch(line, lineNumber));
+                    if (isFirstMatchOnly) {
+                        break;
+                    }
+                }
+                lineNumber++;
+            }
+        } catch (Exception ignored) {
+        }
+
+        return ret;
+    }
+
+    // Files up to MAX_READ_AT_ONCE_BYTES are read at once, larger ones are streamed.
+    // Decrypted contents are kept in memory for the next search with the same password, until the file changes or the app gets locked
+    private Reader getReader(final File file) throws IOException {
+        if (isEncryptedFile(file)) {
+            final long modTime = file.lastModified(), size = file.length();
+            if (size > FileSearchEngine.MAX_READ_AT_ONCE_BYTES) {
+                return new InputStreamReader(JavaPasswordbasedCryption.getDecryptingStream(new FileInputStream(file), _config.password.clone()), StandardCharsets.UTF_8);
+            }
+            final DocumentCache cache = DocumentCache.getSearchCache();
+            final String passwordIdentity = DocumentCache.passwordIdentity(_config.password);
+            final DocumentCache.Entry cached = cache.get(file, modTime, size, passwordIdentity);
+            if (cached != null) {
+                return new StringReader(cached.content);
+            }
+            final StringBuilder content = new StringBuilder();
+            try (final Reader reader = new InputStreamReader(JavaPasswordbasedCryption.getDecryptingStream(new FileInputStream(file), _config.password.clone()), StandardCharsets.UTF_8)) {
+                final char[] buffer = new char[8192];
+                for (int length; (length = reader.read(buffer)) > 0; ) {
+                    content.append(buffer, 0, length);
+                }
+            }
+            return new StringReader(cache.put(file, modTime, size, content.toString(), null, 0, passwordIdentity).content);
+        } else if (file.length() <= FileSearchEngine.MAX_READ_AT_ONCE_BYTES) {
+            final GsFileUtils.FileInfo info = new GsFileUtils.FileInfo();
+            final String text = GsFileUtils.readTextFileFast(file, info);
+            if (info.ioError) {
+                throw new FileNotFoundException(file.getPath());
+            }
+            return new StringReader(text);
+        } else {
+            return new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8);
+        }
+    }
+
+    public static boolean isEncryptedFile(final File file) {
+        return file.getName().endsWith(JavaPasswordbasedCryption.DEFAULT_ENCRYPTION_EXTENSION) && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
+    }
+
+    /**
+     * Order of a breadth-first walk with directories listed by name:
+     * by depth, then by path with '/' before any other char.
+     */
+    public static final Comparator<FileSearchEngine.FitFile> BREADTH_FIRST_ORDER = (a, b) -> comparePaths(a.path, b.path);
+
+    /**
+     * Order of results: best score first, then {@link #BREADTH_FIRST_ORDER}. Unranked results all score 0.
+     */
+    public static final Comparator<FileSearchEngine.FitFile> RESULT_ORDER = (a, b) -> a.score != b.score ? Double.compare(b.score, a.score) : comparePaths(a.path, b.path);
+
+    public static int comparePaths(final String a, final String b) {
+        final int depthA = countSlashes(a), depthB = countSlashes(b);
+        if (depthA != depthB) {
+            return depthA < depthB ? -1 : 1;
+        }
+        for (int i = 0, length = Math.min(a.length(), b.length()); i < length; i++) {
+            final char ca = a.charAt(i), cb = b.charAt(i);
+            if (ca != cb) {
+                return ca == '/' ? -1 : (cb == '/' ? 1 : Character.compare(ca, cb));
+            }
+        }
+        return Integer.compare(a.length(), b.length());
+    }
+
+    private static int countSlashes(final String path) {
+        int count = 0;
+        for (int i = path.indexOf('/'); i >= 0; i = path.indexOf('/', i + 1)) {
+            count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,768 @@
+/*#######################################################
+ *
+ *   Maintained by Gregor Santner, 2017-
+ *   https://gsantner.net/
+ *
+ *   License of this file: Apache 2.0 (Commercial upon request)
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+#########################################################*/
+package net.gsantner.markor.frontend.filesearch;
+
+import net.gsantner.opoc.util.GsFileUtils;
+import net.gsantner.opoc.util.GsFileWalker;
+import net.gsantner.opoc.wrapper.GsCallback;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+
+import other.de.stanetz.jpencconverter.JavaPasswordbasedCryption;
+
+/**
+ * Inverted index of the text files of a directory tree, kept in memory and in a file.
+ * <p>
+ * Words are runs of letters and digits of a lowercased line, each word maps to the files and line numbers
+ * it occurs at. Each trigram (three chars of a lowercased line) maps to the files it occurs in, for regex
+ * queries see {@link TrigramQuery}. A query tells which files may contain a text or match a regex.
+ * Files which are not indexed, or changed since, always may. Matches still have to be verified against the file content.
+ * <p>
+ * Updates only read files whose modification time or size changed. Changed files get new ids,
+ * the old ids are left unused, and the changes are appended to the index file. The index is
+ * rewritten without unused ids once these outweigh the rest. Encrypted files are never indexed.
+ */
+public class FullTextIndex {
+    private static final int MAGIC = 0x4D4B4958; // "MKIX"
+    private static final int VERSION = 4;
+
+    // Files changed this recently are not indexed yet, as a change within the same
+    // modification time tick (up to 2 seconds on FAT) would not be noticed later
+    private static final long RECENTLY_MODIFIED_MS = 3000;
+
+    private static final ExecutorService WORKER = Executors.newSingleThreadExecutor(r -> {
+        final Thread thread = new Thread(r, "FullTextIndex");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+
+    private final File _rootDir;
+    private final String _rootPath;
+    private final File _indexFile;
+    private final GsCallback.b1<File> _isTextFile;
+    private final Object _updateLock = new Object();
+    private final AtomicBoolean _isUpdateQueued = new AtomicBoolean();
+    private volatile Snapshot _snapshot;
+
+    // Immutable state of the index, replaced as a whole by updates. Paths of unused ids are null
+    private static class Snapshot {
+        final String[] paths;
+        final long[] modTimes;
+        final long[] sizes;
+        final boolean[] indexed;
+        final Map<String, Integer> ids = new HashMap<>();
+        final TreeMap<String, byte[]> words; // Sorted, to find the words starting with a prefix
+        final Map<Long, byte[]> trigrams;
+        final long baseLength;   // Bytes of the index file up to the last rewrite, 0 if not stored
+        final long storedLength; // Bytes of the index file with the appended changes
+
+        Snapshot(final String[] a_paths, final long[] a_modTimes, final long[] a_sizes, final boolean[] a_indexed, final TreeMap<String, byte[]> a_words, final Map<Long, byte[]> a_trigrams, final long a_baseLength, final long a_storedLength) {
+            paths = a_paths;
+            modTimes = a_modTimes;
+            sizes = a_sizes;
+            indexed = a_indexed;
+            words = a_words;
+            trigrams = a_trigrams;
+            baseLength = a_baseLength;
+            storedLength = a_storedLength;
+            for (int i = 0; i < paths.length; i++) {
+                if (paths[i] != null) {
+                    ids.put(paths[i], i);
+                }
+            }
+        }
+
+        static Snapshot empty() {
+            return new Snapshot(new String[0], new long[0], new long[0], new boolean[0], new TreeMap<>(), new HashMap<>(), 0, 0);
+        }
+
+        Snapshot stored(final long a_baseLength, final long a_storedLength) {
+            return new Snapshot(paths, modTimes, sizes, indexed, words, trigrams, a_baseLength, a_storedLength);
+        }
+    }
+
+    // Files removed from and added to a snapshot. Added files get the next ids, in order
+    private static class Change {
+        final List<Integer> removed = new ArrayList<>();
+        final List<String> paths = new ArrayList<>();
+        final List<Long> modTimes = new ArrayList<>();
+        final List<Long> sizes = new ArrayList<>();
+        final List<Boolean> indexed = new ArrayList<>();
+        final Map<String, Postings> words = new HashMap<>();
+        final Map<Long, Postings> trigrams = new HashMap<>();
+
+        boolean isEmpty() {
+            return removed.isEmpty() && paths.isEmpty();
+        }
+    }
+
+    /**
+     * @param rootDir    directory tree to index
+     * @param indexFile  where the index is stored, a temporary file is written next to it
+     * @param isTextFile whether the content of a file is indexed
+     */
+    public FullTextIndex(final File rootDir, final File indexFile, final GsCallback.b1<File> isTextFile) {
+        _rootDir = rootDir.getAbsoluteFile();
+        _rootPath = _rootDir.getPath();
+        _indexFile = indexFile;
+        _isTextFile = isTextFile;
+    }
+
+    public File getRootDir() {
+        return _rootDir;
+    }
+
+    /**
+     * Number of files known to the index, indexed or not
+     */
+    public int getFileCount() {
+        return getSnapshot().ids.size();
+    }
+
+    /**
+     * Update the index on a background thread. Does nothing if an update is already waiting to run.
+     */
+    public void updateInBackground() {
+        if (_isUpdateQueued.compareAndSet(false, true)) {
+            WORKER.execute(() -> {
+                _isUpdateQueued.set(false);
+                update();
+            });
+        }
+    }
+
+    /**
+     * Walk the directory tree and index new and changed files, then store the changes if there are any.
+     *
+     * @return true if the index changed
+     */
+    public boolean update() {
+        synchronized (_updateLock) {
+            final Snapshot old = getSnapshot();
+            final long startTime = System.currentTimeMillis();
+            final List<String> paths = new ArrayList<>();
+            final List<File> files = new ArrayList<>();
+            walk(paths, files);
+
+            // Unchanged files keep their ids, changed ones are removed and added again
+            final Change change = new Change();
+            final boolean[] isKept = new boolean[old.paths.length];
+            for (int i = 0; i < paths.size(); i++) {
+                final Integer oldId = old.ids.get(paths.get(i));
+                final File file = files.get(i);
+                final long modTime = file.lastModified(), size = file.length();
+                if (oldId != null && old.modTimes[oldId] == modTime && old.sizes[oldId] == size) {
+                    isKept[oldId] = true;
+                } else if (modTime < startTime - RECENTLY_MODIFIED_MS) {
+                    // Files which can't be read now are left unknown and tried again next time
+                    final boolean isTooLarge = size > FileSearchEngine.MAX_READ_AT_ONCE_BYTES;
+                    final int id = old.paths.length + change.paths.size();
+                    if (isTooLarge || indexFile(file, id, change)) {
+                        change.paths.add(paths.get(i));
+                        change.modTimes.add(modTime);
+                        change.sizes.add(size);
+                        change.indexed.add(!isTooLarge);
+                    }
+                }
+            }
+            for (int oldId = 0; oldId < old.paths.length; oldId++) {
+                if (old.paths[oldId] != null && !isKept[oldId]) {
+                    change.removed.add(oldId);
+                }
+            }
+            if (change.isEmpty()) {
+                return false;
+            }
+
+            Snapshot snapshot = apply(old, change);
+            final int unused = snapshot.paths.length - snapshot.ids.size();
+            final long appended = snapshot.storedLength - snapshot.baseLength;
+            if (snapshot.storedLength == 0 || unused > snapshot.ids.size() || appended > snapshot.baseLength) {
+                snapshot = compact(snapshot);
+                final byte[] data = write(snapshot);
+                final boolean isStored = GsFileUtils.writeFileAtomic(_indexFile, data, null);
+                snapshot = snapshot.stored(isStored ? data.length : 0, isStored ? data.length : 0);
+            } else {
+                snapshot = snapshot.stored(snapshot.baseLength, append(snapshot.storedLength, change));
+            }
+            _snapshot = snapshot;
+            return true;
+        }
+    }
+
+    /**
+     * Files which may contain query on a line, compared like {@link String#toLowerCase()} does.
+     *
+     * @return candidates, or null if the query is shorter than a trigram and every file may contain it
+     */
+    public Candidates query(final String query) {
+        final String lower = normalize(query);
+        if (lower.length() < 3) {
+            return null;
+        }
+
+        // All trigrams of the query are in the file containing it
+        final Snapshot snapshot = getSnapshot();
+        BitSet files = null;
+        for (int i = 0; i + 3 <= lower.length() && (files == null || !files.isEmpty()); i++) {
+            final BitSet trigramFiles = filesWithTrigram(snapshot, TrigramQuery.trigram(lower, i));
+            if (files == null) {
+                files = trigramFiles;
+            } else {
+                files.and(trigramFiles);
+            }
+        }
+
+        // All words of the query are on the line containing it. Words inside the query are whole words
+        // of the line, the last one may be the start of a longer word. The first one may be the end
+        // of a longer word, which the index cannot look up
+        final List<List<byte[]>> wordLists = new ArrayList<>();
+        forEachWord(lower, (start, end) -> {
+            if (start > 0 && end < lower.length()) {
+                final byte[] list = snapshot.words.get(lower.substring(start, end));
+                wordLists.add(list != null ? Collections.singletonList(list) : Collections.emptyList());
+            } else if (start > 0 && end - start >= 3) {
+                final String prefix = lower.substring(start, end);
+                wordLists.add(new ArrayList<>(snapshot.words.subMap(prefix, true, prefix + Character.MAX_VALUE, false).values()));
+            }
+        });
+        if (!wordLists.isEmpty() && !files.isEmpty()) {
+            files = filesWithAllOnOneLine(files, wordLists);
+        }
+        return new Candidates(snapshot, files);
+    }
+
+    // Those of files with a line in each of the word lists, each word may have several lists of postings
+    private static BitSet filesWithAllOnOneLine(final BitSet files, final List<List<byte[]>> wordLists) {
+        Set<Long> lines = null;
+        for (final List<byte[]> lists : wordLists) {
+            final Set<Long> wordLines = new HashSet<>();
+            final Set<Long> previous = lines;
+            for (final byte[] list : lists) {
+                forEachPosting(list, (file, line) -> {
+                    final long fileLine = ((long) file << 32) | line;
+                    if (files.get(file) && (previous == null || previous.contains(fileLine))) {
+                        wordLines.add(fileLine);
+                    }
+                });
+            }
+            lines = wordLines;
+            if (lines.isEmpty()) {
+                break;
+            }
+        }
+        final BitSet result = new BitSet();
+        for (final long line : lines) {
+            result.set((int) (line >>> 32));
+        }
+        return result;
+    }
+
+    /**
+     * Files which may have a line matching regex with {@link java.util.regex.Matcher#find()}
+     *
+     * @return candidates, or null if the regex may match any line
+     */
+    public Candidates queryRegex(final String regex) {
+        final TrigramQuery query = TrigramQuery.fromRegex(regex);
+        if (query == null) {
+            return null;
+        }
+        final Snapshot snapshot = getSnapshot();
+        return new Candidates(snapshot, query.evaluate(trigram -> filesWithTrigram(snapshot, trigram)));
+    }
+
+    private static BitSet filesWithTrigram(final Snapshot snapshot, final long trigram) {
+        final BitSet files = new BitSet();
+        final byte[] list = snapshot.trigrams.get(trigram);
+        if (list != null) {
+            forEachFile(list, files::set);
+        }
+        return files;
+    }
+
+    public class Candidates {
+        private final Snapshot _candidateSnapshot;
+        private final BitSet _files;
+
+        private Candidates(final Snapshot snapshot, final BitSet files) {
+            _candidateSnapshot = snapshot;
+            _files = files;
+        }
+
+        /**
+         * False only if file is indexed, unchanged, and cannot contain the query
+         */
+        public boolean mayContain(final File file) {
+            final String path = file.getAbsolutePath();
+            if (!path.startsWith(_rootPath) || path.length() <= _rootPath.length() + 1 || path.charAt(_rootPath.length()) != '/') {
+                return true;
+            }
+            final Integer id = _candidateSnapshot.ids.get(path.substring(_rootPath.length() + 1));
+            if (id == null || !_candidateSnapshot.indexed[id] || _files.get(id)) {
+                return true;
+            }
+            return _candidateSnapshot.modTimes[id] != file.lastModified() || _candidateSnapshot.sizes[id] != file.length();
+        }
+    }
+
+    // Lowercase, with the final sigma like any other so that words match inside longer words
+    static String normalize(final String text) {
+        return text.toLowerCase().replace('ς', 'σ');
+    }
+
+    private interface WordCallback {
+        void callback(int start, int end);
+    }
+
+    // Words of lowercased text, runs of letters and digits
+    private static void forEachWord(final String lower, final WordCallback callback) {
+        int start = -1;
+        for (int i = 0; i <= lower.length(); i++) {
+            final boolean isWordChar = i < lower.length() && Character.isLetterOrDigit(lower.charAt(i));
+            if (isWordChar && start < 0) {
+                start = i;
+            } else if (!isWordChar && start >= 0) {
+                callback.callback(start, i);
+                start = -1;
+            }
+        }
+    }
+
+    // Add the words and trigrams of the lines of file to change, split like the search does. False if the file cannot be read
+    private static boolean indexFile(final File file, final int id, final Change change) {
+        final GsFileUtils.FileInfo info = new GsFileUtils.FileInfo();
+        final String text = GsFileUtils.readTextFileFast(file, info);
+        if (info.ioError) {
+            return false;
+        }
+        final Map<String, List<Integer>> wordLines = new HashMap<>();
+        final Set<Long> trigrams = new HashSet<>();
+        try (final BufferedReader reader = new BufferedReader(new StringReader(text))) {
+            int lineNumber = 0;
+            for (String line; (line = reader.readLine()) != null; lineNumber++) {
+                final String lower = normalize(line);
+                final int number = lineNumber;
+                forEachWord(lower, (start, end) -> {
+                    final String word = lower.substring(start, end);
+                    List<Integer> lines = wordLines.get(word);
+                    if (lines == null) {
+                        wordLines.put(word, lines = new ArrayList<>());
+                    }
+                    if (lines.isEmpty() || lines.get(lines.size() - 1) != number) {
+                        lines.add(number);
+                    }
+                });
+                for (int i = 0; i + 3 <= lower.length(); i++) {
+                    trigrams.add(TrigramQuery.trigram(lower, i));
+                }
+            }
+        } catch (IOException e) {
+            return false;
+        }
+
+        for (final Map.Entry<String, List<Integer>> entry : wordLines.entrySet()) {
+            Postings list = change.words.get(entry.getKey());
+            if (list == null) {
+                change.words.put(entry.getKey(), list = new Postings());
+            }
+            for (final int line : entry.getValue()) {
+                list.add(id, line);
+            }
+        }
+        for (final Long trigram : trigrams) {
+            Postings list = change.trigrams.get(trigram);
+            if (list == null) {
+                change.trigrams.put(trigram, list = new Postings());
+            }
+            list.addFile(id);
+        }
+        return true;
+    }
+
+    // Snapshot with change applied. Only the postings of words and trigrams in added files are rewritten
+    private static Snapshot apply(final Snapshot old, final Change change) {
+        final int count = old.paths.length + change.paths.size();
+        final String[] paths = Arrays.copyOf(old.paths, count);
+        final long[] modTimes = Arrays.copyOf(old.modTimes, count);
+        final long[] sizes = Arrays.copyOf(old.sizes, count);
+        final boolean[] indexed = Arrays.copyOf(old.indexed, count);
+        for (final int id : change.removed) {
+            paths[id] = null;
+            indexed[id] = false;
+        }
+        for (int i = 0, id = old.paths.length; id < count; i++, id++) {
+            paths[id] = change.paths.get(i);
+            modTimes[id] = change.modTimes.get(i);
+            sizes[id] = change.sizes.get(i);
+            indexed[id] = change.indexed.get(i);
+        }
+
+        final TreeMap<String, byte[]> words = new TreeMap<>(old.words);
+        for (final Map.Entry<String, Postings> entry : change.words.entrySet()) {
+            final byte[] list = old.words.get(entry.getKey());
+            final Postings appended = list != null ? Postings.ofLines(list) : new Postings();
+            forEachPosting(entry.getValue().toByteArray(), appended::add);
+            words.put(entry.getKey(), appended.toByteArray());
+        }
+        final Map<Long, byte[]> trigrams = new HashMap<>(old.trigrams);
+        for (final Map.Entry<Long, Postings> entry : change.trigrams.entrySet()) {
+            final byte[] list = old.trigrams.get(entry.getKey());
+            final Postings appended = list != null ? Postings.ofFiles(list) : new Postings();
+            forEachFile(entry.getValue().toByteArray(), appended::addFile);
+            trigrams.put(entry.getKey(), appended.toByteArray());
+        }
+        return new Snapshot(paths, modTimes, sizes, indexed, words, trigrams, old.baseLength, old.storedLength);
+    }
+
+    // Snapshot without unused ids
+    private static Snapshot compact(final Snapshot snapshot) {
+        final int count = snapshot.ids.size();
+        final String[] paths = new String[count];
+        final long[] modTimes = new long[count];
+        final long[] sizes = new long[count];
+        final boolean[] indexed = new boolean[count];
+        final int[] remap = new int[snapshot.paths.length];
+        for (int oldId = 0, id = 0; oldId < remap.length; oldId++) {
+            if (snapshot.paths[oldId] != null) {
+                paths[id] = snapshot.paths[oldId];
+                modTimes[id] = snapshot.modTimes[oldId];
+                sizes[id] = snapshot.sizes[oldId];
+                indexed[id] = snapshot.indexed[oldId];
+                remap[oldId] = id++;
+            } else {
+                remap[oldId] = -1;
+            }
+        }
+
+        final TreeMap<String, byte[]> words = new TreeMap<>();
+        for (final Map.Entry<String, byte[]> entry : snapshot.words.entrySet()) {
+            final Postings remapped = new Postings();
+            forEachPosting(entry.getValue(), (file, line) -> {
+                if (remap[file] >= 0) {
+                    remapped.add(remap[file], line);
+                }
+            });
+            if (remapped.length > 0) {
+                words.put(entry.getKey(), remapped.toByteArray());
+            }
+        }
+        final Map<Long, byte[]> trigrams = new HashMap<>(snapshot.trigrams.size());
+        for (final Map.Entry<Long, byte[]> entry : snapshot.trigrams.entrySet()) {
+            final Postings remapped = new Postings();
+            forEachFile(entry.getValue(), file -> {
+                if (remap[file] >= 0) {
+                    remapped.addFile(remap[file]);
+                }
+            });
+            if (remapped.length > 0) {
+                trigrams.put(entry.getKey(), remapped.toByteArray());
+            }
+        }
+        return new Snapshot(paths, modTimes, sizes, indexed, words, trigrams, 0, 0);
+    }
+
+    // Text files outside of hidden directories, encrypted ones are never indexed
+    private void walk(final List<String> paths, final List<File> files) {
+        new GsFileWalker()
+                .setIgnoredNames(name -> name.endsWith(JavaPasswordbasedCryption.DEFAULT_ENCRYPTION_EXTENSION))
+                .walk(_rootDir, (file, path, depth, isDirectory) -> {
+                    if (isDirectory) {
+                        return !file.getName().startsWith(".");
+                    } else if (file.canRead() && _isTextFile.callback(file)) {
+                        paths.add(path);
+                        files.add(file);
+                    }
+                    return false;
+                });
+    }
+
+    private Snapshot getSnapshot() {
+        Snapshot snapshot = _snapshot;
+        if (snapshot == null) {
+            synchronized (this) {
+                if ((snapshot = _snapshot) == null) {
+                    _snapshot = snapshot = load();
+                }
+            }
+        }
+        return snapshot;
+    }
+
+    // Format: magic, version, root path, then changes. The first one adds all files of a compacted snapshot.
+    // Each change is its length, removed ids, added files, word and trigram postings of the added files, and a CRC32 of it
+    private byte[] write(final Snapshot snapshot) {
+        final Change change = new Change();
+        for (int id = 0; id < snapshot.paths.length; id++) {
+            change.paths.add(snapshot.paths[id]);
+            change.modTimes.add(snapshot.modTimes[id]);
+            change.sizes.add(snapshot.sizes[id]);
+            change.indexed.add(snapshot.indexed[id]);
+        }
+        try {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final DataOutputStream output = new DataOutputStream(bytes);
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeUTF(_rootPath);
+            writeChange(output, change, snapshot.words, snapshot.trigrams);
+            output.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Append change at offset of the index file, dropping anything after it. New length, or 0 if it failed
+    private long append(final long offset, final Change change) {
+        final Map<String, byte[]> words = new HashMap<>(change.words.size());
+        for (final Map.Entry<String, Postings> entry : change.words.entrySet()) {
+            words.put(entry.getKey(), entry.getValue().toByteArray());
+        }
+        final Map<Long, byte[]> trigrams = new HashMap<>(change.trigrams.size());
+        for (final Map.Entry<Long, Postings> entry : change.trigrams.entrySet()) {
+            trigrams.put(entry.getKey(), entry.getValue().toByteArray());
+        }
+        try (final RandomAccessFile file = new RandomAccessFile(_indexFile, "rw")) {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            writeChange(new DataOutputStream(bytes), change, words, trigrams);
+            file.seek(offset);
+            file.write(bytes.toByteArray());
+            file.setLength(offset + bytes.size());
+            return offset + bytes.size();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return 0;
+        }
+    }
+
+    private static void writeChange(final DataOutputStream output, final Change change, final Map<String, byte[]> words, final Map<Long, byte[]> trigrams) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream data = new DataOutputStream(bytes);
+        data.writeInt(change.removed.size());
+        for (final int id : change.removed) {
+            data.writeInt(id);
+        }
+        data.writeInt(change.paths.size());
+        for (int i = 0; i < change.paths.size(); i++) {
+            data.writeUTF(change.paths.get(i));
+            data.writeLong(change.modTimes.get(i));
+            data.writeLong(change.sizes.get(i));
+            data.writeBoolean(change.indexed.get(i));
+        }
+        data.writeInt(words.size());
+        for (final Map.Entry<String, byte[]> entry : words.entrySet()) {
+            data.writeUTF(entry.getKey());
+            data.writeInt(entry.getValue().length);
+            data.write(entry.getValue());
+        }
+        data.writeInt(trigrams.size());
+        for (final Map.Entry<Long, byte[]> entry : trigrams.entrySet()) {
+            data.writeLong(entry.getKey());
+            data.writeInt(entry.getValue().length);
+            data.write(entry.getValue());
+        }
+        data.flush();
+
+        final CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray(), 0, bytes.size());
+        output.writeInt(bytes.size());
+        bytes.writeTo(output);
+        output.writeLong(crc.getValue());
+    }
+
+    // Empty if the file is missing, damaged, of another version or another directory.
+    // Changes after a damaged one are dropped, their files are unknown until the next update
+    private Snapshot load() {
+        if (!_indexFile.isFile()) {
+            return Snapshot.empty();
+        }
+        final byte[] data = GsFileUtils.readBinaryFile(_indexFile);
+        final ByteArrayInputStream bytes = new ByteArrayInputStream(data);
+        try (final DataInputStream input = new DataInputStream(bytes)) {
+            if (input.readInt() != MAGIC || input.readInt() != VERSION || !input.readUTF().equals(_rootPath)) {
+                return Snapshot.empty();
+            }
+            Snapshot snapshot = null;
+            while (bytes.available() >= 4) {
+                final int length = input.readInt();
+                if (length < 0 || length + 8 > bytes.available()) {
+                    break;
+                }
+                final byte[] changeData = new byte[length];
+                input.readFully(changeData);
+                final CRC32 crc = new CRC32();
+                crc.update(changeData, 0, length);
+                if (input.readLong() != crc.getValue()) {
+                    break;
+                }
+                final long storedLength = data.length - bytes.available();
+                snapshot = apply(snapshot != null ? snapshot : Snapshot.empty(), readChange(changeData))
+                        .stored(snapshot != null ? snapshot.baseLength : storedLength, storedLength);
+            }
+            return snapshot != null ? snapshot : Snapshot.empty();
+        } catch (Exception e) {
+            return Snapshot.empty();
+        }
+    }
+
+    private static Change readChange(final byte[] changeData) throws IOException {
+        final Change change = new Change();
+        final DataInputStream input = new DataInputStream(new ByteArrayInputStream(changeData));
+        for (int i = input.readInt(); i > 0; i--) {
+            change.removed.add(input.readInt());
+        }
+        for (int i = input.readInt(); i > 0; i--) {
+            change.paths.add(input.readUTF());
+            change.modTimes.add(input.readLong());
+            change.sizes.add(input.readLong());
+            change.indexed.add(input.readBoolean());
+        }
+        for (int i = input.readInt(); i > 0; i--) {
+            final String word = input.readUTF();
+            final byte[] list = new byte[input.readInt()];
+            input.readFully(list);
+            change.words.put(word, Postings.ofLines(list));
+        }
+        for (int i = input.readInt(); i > 0; i--) {
+            final long trigram = input.readLong();
+            final byte[] list = new byte[input.readInt()];
+            input.readFully(list);
+            change.trigrams.put(trigram, Postings.ofFiles(list));
+        }
+        return change;
+    }
+
+    private interface FileCallback {
+        void callback(int file);
+    }
+
+    private interface PostingCallback {
+        void callback(int file, int line);
+    }
+
+    // File ids in ascending order, as varints relative to the previous one. For words each file id
+    // is followed by the line number, relative to the previous one of the same file
+    private static class Postings {
+        private byte[] data = new byte[8];
+        private int length, lastFile, lastLine;
+
+        // Postings of files to append to, from their bytes
+        static Postings ofFiles(final byte[] list) {
+            final Postings postings = of(list);
+            forEachFile(list, file -> postings.lastFile = file);
+            return postings;
+        }
+
+        // Postings of lines to append to, from their bytes
+        static Postings ofLines(final byte[] list) {
+            final Postings postings = of(list);
+            forEachPosting(list, (file, line) -> {
+                postings.lastFile = file;
+                postings.lastLine = line;
+            });
+            return postings;
+        }
+
+        private static Postings of(final byte[] list) {
+            final Postings postings = new Postings();
+            postings.data = Arrays.copyOf(list, list.length + 8);
+            postings.length = list.length;
+            return postings;
+        }
+
+        void add(final int file, final int line) {
+            writeVarint(file - lastFile);
+            writeVarint(file == lastFile ? line - lastLine : line);
+            lastFile = file;
+            lastLine = line;
+        }
+
+        void addFile(final int file) {
+            writeVarint(file - lastFile);
+            lastFile = file;
+        }
+
+        private void writeVarint(int value) {
+            if (length + 5 > data.length) {
+                final byte[] grown = new byte[data.length * 2];
+                System.arraycopy(data, 0, grown, 0, length);
+                data = grown;
+            }
+            while ((value & ~0x7F) != 0) {
+                data[length++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            data[length++] = (byte) value;
+        }
+
+        byte[] toByteArray() {
+            final byte[] result = new byte[length];
+            System.arraycopy(data, 0, result, 0, length);
+            return result;
+        }
+    }
+
+    private static void forEachPosting(final byte[] data, final PostingCallback callback) {
+        int file = 0, line = 0;
+        for (int i = 0, value = 0, shift = 0, fileDelta = -1; i < data.length; i++) {
+            value |= (data[i] & 0x7F) << shift;
+            shift += 7;
+            if (data[i] < 0) {
+                continue;
+            }
+            if (fileDelta < 0) {
+                fileDelta = value;
+            } else {
+                line = fileDelta == 0 ? line + value : value;
+                file += fileDelta;
+                callback.callback(file, line);
+                fileDelta = -1;
+            }
+            value = shift = 0;
+        }
+    }
+
+    private static void forEachFile(final byte[] data, final FileCallback callback) {
+        int file = 0;
+        for (int i = 0, value = 0, shift = 0; i < data.length; i++) {
+            value |= (data[i] & 0x7F) << shift;
+            shift += 7;
+            if (data[i] >= 0) {
+                file += value;
+                callback.callback(file);
+                value = shift = 0;
+            }
+        }
+    }
+}
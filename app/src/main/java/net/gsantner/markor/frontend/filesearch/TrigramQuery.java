@@ -0,0 +1,486 @@
+/*#######################################################
+ *
+ *   Maintained by Gregor Santner, 2017-
+ *   https://gsantner.net/
+ *
+ *   License of this file: Apache 2.0 (Commercial upon request)
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+#########################################################*/
+package net.gsantner.markor.frontend.filesearch;
+
+import net.gsantner.opoc.wrapper.GsCallback;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Boolean query of trigrams (three char substrings) which every line matching a regex contains.
+ * <p>
+ * The regex is analyzed like Google Code Search does: for each part, the set of exact strings it
+ * matches is tracked while small, otherwise the possible prefixes and suffixes and a query for the
+ * inside. Anything not understood matches any text. Trigrams are lowercased, like {@link FullTextIndex} stores them.
+ */
+public final class TrigramQuery {
+    private static final int MAX_EXACT = 16;   // Exact strings of a part, more are turned into prefix and suffix
+    private static final int MAX_SET = 64;     // Prefixes or suffixes of a part, more are treated as unknown
+    private static final int MAX_CLASS = 8;    // Chars of a character class which are still tracked
+
+    private final String _op;                  // "and", "or", or null for a trigram
+    private final long _trigram;
+    private final List<TrigramQuery> _subs;
+
+    private TrigramQuery(final String op, final long trigram, final List<TrigramQuery> subs) {
+        _op = op;
+        _trigram = trigram;
+        _subs = subs;
+    }
+
+    /**
+     * Trigram query for a regex, which is matched with {@link java.util.regex.Matcher#find()} on single lines.
+     *
+     * @return query, or null if any line may match
+     */
+    public static TrigramQuery fromRegex(final String regex) {
+        try {
+            final Parser parser = new Parser(regex);
+            final Info info = parser.parseAlternation();
+            return parser.pos == regex.length() ? info.toInexact().match : null;
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param filesWithTrigram files which contain a trigram
+     * @return files which match the query
+     */
+    public BitSet evaluate(final GsCallback.r1<BitSet, Long> filesWithTrigram) {
+        if (_op == null) {
+            return (BitSet) filesWithTrigram.callback(_trigram).clone();
+        }
+        final BitSet result = _subs.get(0).evaluate(filesWithTrigram);
+        for (int i = 1; i < _subs.size(); i++) {
+            if ("and".equals(_op)) {
+                result.and(_subs.get(i).evaluate(filesWithTrigram));
+            } else {
+                result.or(_subs.get(i).evaluate(filesWithTrigram));
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        if (_op == null) {
+            return new String(new char[]{(char) (_trigram >>> 32), (char) (_trigram >>> 16), (char) _trigram});
+        }
+        final StringBuilder sb = new StringBuilder(_op).append('(');
+        for (int i = 0; i < _subs.size(); i++) {
+            sb.append(i > 0 ? " " : "").append(_subs.get(i));
+        }
+        return sb.append(')').toString();
+    }
+
+    /**
+     * Trigram of text at index, packed into a long
+     */
+    public static long trigram(final CharSequence text, final int index) {
+        return ((long) text.charAt(index) << 32) | ((long) text.charAt(index + 1) << 16) | text.charAt(index + 2);
+    }
+
+    // Queries, null means any text matches
+
+    private static TrigramQuery and(final TrigramQuery a, final TrigramQuery b) {
+        return combine("and", a, b);
+    }
+
+    private static TrigramQuery or(final TrigramQuery a, final TrigramQuery b) {
+        return (a == null || b == null) ? null : combine("or", a, b);
+    }
+
+    private static TrigramQuery combine(final String op, final TrigramQuery a, final TrigramQuery b) {
+        if (a == null || b == null) {
+            return a == null ? b : a;
+        }
+        final List<TrigramQuery> subs = new ArrayList<>();
+        for (final TrigramQuery q : new TrigramQuery[]{a, b}) {
+            if (op.equals(q._op)) {
+                subs.addAll(q._subs);
+            } else {
+                subs.add(q);
+            }
+        }
+        return new TrigramQuery(op, 0, Collections.unmodifiableList(subs));
+    }
+
+    private static TrigramQuery ofString(final String text) {
+        TrigramQuery result = null;
+        for (int i = 0; i + 3 <= text.length(); i++) {
+            result = and(result, new TrigramQuery(null, trigram(text, i), null));
+        }
+        return result;
+    }
+
+    // Any of the strings, null if the set is unknown
+    private static TrigramQuery ofStrings(final Set<String> strings) {
+        if (strings == null || strings.isEmpty()) {
+            return null;
+        }
+        TrigramQuery result = null;
+        boolean first = true;
+        for (final String text : strings) {
+            final TrigramQuery query = ofString(text);
+            if (query == null) {
+                return null;
+            }
+            result = first ? query : or(result, query);
+            first = false;
+        }
+        return result;
+    }
+
+    // Analysis of a part of the regex
+    private static class Info {
+        Set<String> exact;          // All strings matched, null if unknown
+        Set<String> prefix;         // Possible starts of matches, if exact is null
+        Set<String> suffix;         // Possible ends of matches, if exact is null
+        TrigramQuery match;         // Every match contains these trigrams
+
+        static Info exact(final Set<String> strings) {
+            final Info info = new Info();
+            info.exact = strings;
+            return info;
+        }
+
+        static Info literal(final String text) {
+            return exact(Collections.singleton(FullTextIndex.normalize(text)));
+        }
+
+        static Info empty() {
+            return exact(Collections.singleton(""));
+        }
+
+        static Info any() {
+            final Info info = new Info();
+            info.prefix = Collections.singleton("");
+            info.suffix = Collections.singleton("");
+            return info;
+        }
+
+        Info toInexact() {
+            if (exact == null) {
+                return this;
+            }
+            final Info info = new Info();
+            info.match = and(match, ofStrings(exact));
+            info.prefix = trim(exact, true);
+            info.suffix = trim(exact, false);
+            return info;
+        }
+
+        // Only the last two chars of a prefix can form a trigram with what follows
+        Info trimmed() {
+            match = and(match, and(ofStrings(prefix), ofStrings(suffix)));
+            prefix = trim(prefix, true);
+            suffix = trim(suffix, false);
+            return this;
+        }
+
+        static Set<String> trim(final Set<String> strings, final boolean isPrefix) {
+            if (strings == null) {
+                return Collections.singleton("");
+            }
+            final Set<String> result = new HashSet<>();
+            for (final String s : strings) {
+                result.add(s.length() <= 2 ? s : (isPrefix ? s.substring(0, 2) : s.substring(s.length() - 2)));
+            }
+            return result;
+        }
+    }
+
+    private static Set<String> cross(final Set<String> a, final Set<String> b, final int max) {
+        if (a.size() * b.size() > max) {
+            return null;
+        }
+        final Set<String> result = new HashSet<>();
+        for (final String x : a) {
+            for (final String y : b) {
+                result.add(x + y);
+            }
+        }
+        return result;
+    }
+
+    private static Set<String> union(final Set<String> a, final Set<String> b, final int max) {
+        final Set<String> result = new HashSet<>(a);
+        result.addAll(b);
+        return result.size() > max ? null : result;
+    }
+
+    private static Info concat(final Info x, final Info y) {
+        if (x.exact != null && y.exact != null) {
+            final Set<String> exact = cross(x.exact, y.exact, MAX_EXACT);
+            if (exact != null) {
+                return Info.exact(exact);
+            }
+        }
+
+        final Info xi = x.toInexact(), yi = y.toInexact();
+        final Info info = new Info();
+        info.match = and(and(xi.match, yi.match), ofStrings(cross(xi.suffix, yi.prefix, MAX_SET)));
+        info.prefix = x.exact != null ? cross(x.exact, yi.prefix, MAX_SET) : xi.prefix;
+        info.suffix = y.exact != null ? cross(xi.suffix, y.exact, MAX_SET) : yi.suffix;
+        return info.trimmed();
+    }
+
+    private static Info alternate(final Info x, final Info y) {
+        if (x.exact != null && y.exact != null) {
+            final Set<String> exact = union(x.exact, y.exact, MAX_EXACT);
+            if (exact != null) {
+                return Info.exact(exact);
+            }
+        }
+
+        final Info xi = x.toInexact(), yi = y.toInexact();
+        final Info info = new Info();
+        info.match = or(xi.match, yi.match);
+        info.prefix = union(xi.prefix, yi.prefix, MAX_SET);
+        info.suffix = union(xi.suffix, yi.suffix, MAX_SET);
+        return info.trimmed();
+    }
+
+    // Recursive descent over the java.util.regex syntax, throws on anything not understood
+    private static class Parser {
+        final String regex;
+        int pos;
+
+        Parser(final String a_regex) {
+            regex = a_regex;
+        }
+
+        char next() {
+            return regex.charAt(pos++);
+        }
+
+        boolean peek(final String chars) {
+            return pos < regex.length() && chars.indexOf(regex.charAt(pos)) >= 0;
+        }
+
+        boolean consume(final String text) {
+            if (regex.startsWith(text, pos)) {
+                pos += text.length();
+                return true;
+            }
+            return false;
+        }
+
+        Info parseAlternation() {
+            Info info = parseConcat();
+            while (consume("|")) {
+                info = alternate(info, parseConcat());
+            }
+            return info;
+        }
+
+        Info parseConcat() {
+            Info info = Info.empty();
+            while (pos < regex.length() && !peek("|)")) {
+                info = concat(info, parseQuantifier(parseAtom()));
+            }
+            return info;
+        }
+
+        Info parseQuantifier(Info atom) {
+            while (peek("*+?{")) {
+                final char c = next();
+                int min = c == '+' ? 1 : 0;
+                if (c == '{') {
+                    final int end = regex.indexOf('}', pos);
+                    final String bounds = regex.substring(pos, end);
+                    min = Integer.parseInt(bounds.split(",", -1)[0].trim());
+                    pos = end + 1;
+                }
+                consume("?");
+                consume("+");
+
+                if (min > 0) {
+                    atom = concat(atom, Info.any());
+                } else if (c == '?' && atom.exact != null) {
+                    final Set<String> exact = union(atom.exact, Collections.singleton(""), MAX_EXACT);
+                    atom = exact != null ? Info.exact(exact) : Info.any();
+                } else {
+                    atom = Info.any();
+                }
+            }
+            return atom;
+        }
+
+        Info parseAtom() {
+            final char c = next();
+            switch (c) {
+                case '(':
+                    return parseGroup();
+                case '[':
+                    return parseClass();
+                case '.':
+                    return Info.any();
+                case '^':
+                case '$':
+                    return Info.empty();
+                case '\\':
+                    return parseEscape();
+                default:
+                    return Info.literal(String.valueOf(c));
+            }
+        }
+
+        Info parseGroup() {
+            boolean isLookaround = false;
+            if (consume("?")) {
+                if (consume("=") || consume("!") || consume("<=") || consume("<!")) {
+                    isLookaround = true;
+                } else if (consume("<")) {
+                    pos = regex.indexOf('>', pos) + 1;
+                } else if (!consume(":") && !consume(">")) {
+                    // Inline flags, (?x) changes how the regex is parsed
+                    final int end = Math.min(indexOrLength(')'), indexOrLength(':'));
+                    if (regex.substring(pos, end).contains("x")) {
+                        throw new IllegalArgumentException("Comments mode");
+                    }
+                    pos = end;
+                    if (consume(")")) {
+                        return Info.empty();
+                    }
+                    next();
+                }
+            }
+            final Info info = parseAlternation();
+            if (!consume(")")) {
+                throw new IllegalArgumentException("Unclosed group");
+            }
+            return isLookaround ? Info.empty() : info;
+        }
+
+        int indexOrLength(final char c) {
+            final int index = regex.indexOf(c, pos);
+            return index < 0 ? regex.length() : index;
+        }
+
+        Info parseEscape() {
+            final char c = next();
+            switch (c) {
+                case 'Q': {
+                    final int end = regex.indexOf("\\E", pos);
+                    final String text = regex.substring(pos, end < 0 ? regex.length() : end);
+                    pos = end < 0 ? regex.length() : end + 2;
+                    return Info.literal(text);
+                }
+                case 'b':
+                case 'B':
+                case 'A':
+                case 'z':
+                case 'Z':
+                case 'G':
+                    return Info.empty();
+                case 't':
+                    return Info.literal("\t");
+                case 'f':
+                    return Info.literal("\f");
+                case 'a':
+                    return Info.literal("\u0007");
+                case 'e':
+                    return Info.literal("\u001B");
+                case 'x':
+                case 'p':
+                case 'P':
+                case 'N':
+                    // Hex code, property or name, with or without braces
+                    if (consume("{")) {
+                        pos = regex.indexOf('}', pos) + 1;
+                    } else {
+                        pos += c == 'x' ? 2 : 1;
+                    }
+                    return Info.any();
+                case 'u':
+                    pos += 4;
+                    return Info.any();
+                case 'c':
+                    pos++;
+                    return Info.any();
+                case 'k':
+                    pos = regex.indexOf('>', pos) + 1;
+                    return Info.any();
+                default:
+                    if (Character.isLetterOrDigit(c)) {
+                        // Predefined classes, back references, octal codes
+                        while (Character.isDigit(c) && peek("0123456789")) {
+                            pos++;
+                        }
+                        return Info.any();
+                    }
+                    return Info.literal(String.valueOf(c));
+            }
+        }
+
+        // Small classes of plain chars are tracked, anything else matches any char
+        Info parseClass() {
+            final Set<String> chars = new HashSet<>();
+            boolean simple = !consume("^");
+            for (boolean first = true; first || !consume("]"); first = false) {
+                char c = next();
+                if (c == '[') {
+                    parseClass();
+                    simple = false;
+                    continue;
+                } else if (c == '&' && consume("&")) {
+                    simple = false;
+                    continue;
+                } else if (c == '\\') {
+                    c = next();
+                    if (c == 'Q') {
+                        final int end = regex.indexOf("\\E", pos);
+                        pos = end < 0 ? regex.length() : end + 2;
+                        simple = false;
+                        continue;
+                    } else if (c == 'p' || c == 'P' || c == 'x' || c == 'N') {
+                        pos = consume("{") ? regex.indexOf('}', pos) + 1 : pos + (c == 'x' ? 2 : 1);
+                        simple = false;
+                        continue;
+                    } else if (c == 'u') {
+                        pos += 4;
+                        simple = false;
+                        continue;
+                    } else if (c == 'c') {
+                        pos++;
+                        simple = false;
+                        continue;
+                    } else if (Character.isLetterOrDigit(c)) {
+                        simple = simple && c == 't';
+                        c = '\t';
+                    }
+                }
+
+                if (peek("-") && pos + 1 < regex.length() && regex.charAt(pos + 1) != ']') {
+                    pos++;
+                    char to = next();
+                    if (to == '\\') {
+                        to = next();
+                        simple = simple && !Character.isLetterOrDigit(to);
+                    }
+                    for (char r = c; simple && r <= to; r++) {
+                        chars.add(FullTextIndex.normalize(String.valueOf(r)));
+                        simple = chars.size() <= MAX_CLASS;
+                    }
+                } else {
+                    chars.add(FullTextIndex.normalize(String.valueOf(c)));
+                }
+            }
+            return simple && !chars.isEmpty() && chars.size() <= MAX_CLASS ? Info.exact(chars) : Info.any();
+        }
+    }
+}
@@ -0,0 +1,219 @@
+/*#######################################################
+ *
+ *   Maintained by Gregor Santner, 2017-
+ *   https://gsantner.net/
+ *
+ *   License of this file: Apache 2.0 (Commercial upon request)
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+#########################################################*/
+package net.gsantner.markor.frontend.textview;
+
+import android.text.Editable;
+import android.text.NoCopySpan;
+import android.text.Spannable;
+import android.text.Spanned;
+import android.text.TextWatcher;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tracks whether a text was modified since a baseline (last load or save), without hashing the
+ * whole text on every check.
+ * <p>
+ * The baseline is split into fixed size chunks, each with its own hash. Edits are recorded as
+ * dirty ranges. A text with a different length than the baseline is modified, otherwise
+ * only the chunks below dirty ranges are hashed and compared. Ranges found unchanged
+ * (e.g. after typing and undoing) are dropped again.
+ * <p>
+ * Attached to a text as span like {@link LineIndex}, see {@link #attach(Spannable)} and {@link #get(CharSequence)}.
+ */
+public class DocumentChangeTracker implements TextWatcher, NoCopySpan {
+
+    private static final int CHUNK_SIZE = 4096;
+    private static final int MAX_RANGES = 64;
+    private static final long CHAR_FACTOR = 0x100000001b3L;
+    private static final long CHUNK_FACTOR = 0x9E3779B97F4A7C15L;
+    private static final int PRIORITY = 200; // Above TextView's ChangeWatcher (100)
+
+    private long[] _chunkHashes = new long[0]; // Chunk hashes of the baseline
+    private long _baselineHash;
+    private int _baselineLength;
+    private int _length;                        // Length of the tracked text
+
+    // Edited ranges in current coordinates, sorted and disjoint.
+    // Each is {start, end, delta}, with delta the change of length by edits within the range.
+    private final List<int[]> _ranges = new ArrayList<>();
+    private int _delta;
+
+    public DocumentChangeTracker(final CharSequence text) {
+        markUnmodified(text);
+    }
+
+    /**
+     * Tracker of text, if one is attached and valid. Null otherwise.
+     */
+    public static DocumentChangeTracker get(final CharSequence text) {
+        if (text instanceof Spanned) {
+            final DocumentChangeTracker[] trackers = ((Spanned) text).getSpans(0, 0, DocumentChangeTracker.class);
+            if (trackers != null && trackers.length > 0 && trackers[0]._length == text.length()) {
+                return trackers[0];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Attach a tracker to text, with the current text as baseline.
+     * Returns the already attached tracker if there is one.
+     */
+    public static DocumentChangeTracker attach(final Spannable text) {
+        final DocumentChangeTracker[] trackers = text.getSpans(0, 0, DocumentChangeTracker.class);
+        if (trackers != null && trackers.length > 0) {
+            if (trackers[0]._length != text.length()) {
+                trackers[0].markUnmodified(text);
+            }
+            return trackers[0];
+        }
+
+        final DocumentChangeTracker tracker = new DocumentChangeTracker(text);
+        text.setSpan(tracker, 0, text.length(), Spanned.SPAN_INCLUSIVE_INCLUSIVE | (PRIORITY << Spanned.SPAN_PRIORITY_SHIFT));
+        return tracker;
+    }
+
+    /**
+     * Hash of a whole text. Equal to {@link #getBaselineHash()} of a tracker with this text as baseline.
+     */
+    public static long hash(final CharSequence text) {
+        final int length = text.length();
+        long hash = length;
+        for (int start = 0; start < length; start += CHUNK_SIZE) {
+            hash = hash * CHUNK_FACTOR + chunkHash(text, start, Math.min(length, start + CHUNK_SIZE));
+        }
+        return hash;
+    }
+
+    private static long chunkHash(final CharSequence text, final int start, final int end) {
+        long hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = hash * CHAR_FACTOR + text.charAt(i);
+        }
+        return hash;
+    }
+
+    /**
+     * Set text as new baseline, O(length). Call after the text was loaded or saved.
+     */
+    public void markUnmodified(final CharSequence text) {
+        _length = _baselineLength = text.length();
+        final int count = (_length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        if (_chunkHashes.length != count) {
+            _chunkHashes = new long[count];
+        }
+        long hash = _length;
+        for (int i = 0; i < count; i++) {
+            final int start = i * CHUNK_SIZE;
+            _chunkHashes[i] = chunkHash(text, start, Math.min(_length, start + CHUNK_SIZE));
+            hash = hash * CHUNK_FACTOR + _chunkHashes[i];
+        }
+        _baselineHash = hash;
+        _ranges.clear();
+        _delta = 0;
+    }
+
+    public long getBaselineHash() {
+        return _baselineHash;
+    }
+
+    public int getBaselineLength() {
+        return _baselineLength;
+    }
+
+    /**
+     * Whether text differs from the baseline, O(dirty chunks).
+     * Text must be the tracked text.
+     */
+    public boolean isModified(final CharSequence text) {
+        if (text.length() != _length || _delta != 0) {
+            return true;
+        }
+
+        // Text outside of regions with zero length change at their ends is equal to the baseline
+        // at the same position, so regions are compared chunk by chunk
+        int offset = 0, first = 0;
+        for (int i = 0; i < _ranges.size(); i++) {
+            if (offset == 0) {
+                first = i;
+            }
+            offset += _ranges.get(i)[2];
+            if (offset == 0) {
+                if (!isSame(text, _ranges.get(first)[0], _ranges.get(i)[1])) {
+                    return true;
+                }
+                for (int j = first; j <= i; j++) {
+                    _ranges.remove(first);
+                }
+                i = first - 1;
+            }
+        }
+        return !_ranges.isEmpty();
+    }
+
+    private boolean isSame(final CharSequence text, final int start, final int end) {
+        for (int chunk = start / CHUNK_SIZE; chunk * CHUNK_SIZE < end; chunk++) {
+            final int chunkStart = chunk * CHUNK_SIZE;
+            if (_chunkHashes[chunk] != chunkHash(text, chunkStart, Math.min(_length, chunkStart + CHUNK_SIZE))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Updates
+    // ---------------------------------------------------------------------------------------------
+
+    @Override
+    public void beforeTextChanged(final CharSequence s, final int start, final int count, final int after) {
+    }
+
+    @Override
+    public void onTextChanged(final CharSequence s, final int start, final int before, final int count) {
+        if (_length + count - before != s.length()) {
+            _length = -1; // Edits out of order, invalid until the next baseline
+            return;
+        }
+        _length = s.length();
+
+        // Merge all ranges touching the edit, shift the ones after it
+        final int change = count - before;
+        int mergedStart = start, mergedEnd = start + count, mergedDelta = change;
+        int i = 0;
+        while (i < _ranges.size() && _ranges.get(i)[1] < start) {
+            i++;
+        }
+        final int insertAt = i;
+        while (i < _ranges.size() && _ranges.get(i)[0] <= start + before) {
+            final int[] range = _ranges.remove(i);
+            mergedStart = Math.min(mergedStart, range[0]);
+            mergedEnd = Math.max(mergedEnd, range[1] + change);
+            mergedDelta += range[2];
+        }
+        for (int j = i; j < _ranges.size(); j++) {
+            _ranges.get(j)[0] += change;
+            _ranges.get(j)[1] += change;
+        }
+        _ranges.add(insertAt, new int[]{mergedStart, mergedEnd, mergedDelta});
+        _delta += change;
+
+        if (_ranges.size() > MAX_RANGES) {
+            final int[] all = {_ranges.get(0)[0], _ranges.get(_ranges.size() - 1)[1], _delta};
+            _ranges.clear();
+            _ranges.add(all);
+        }
+    }
+
+    @Override
+    public void afterTextChanged(final Editable s) {
+    }
+}
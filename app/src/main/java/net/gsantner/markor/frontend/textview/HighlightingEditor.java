@@ -39,6 +39,7 @@ public class HighlightingEditor extends AppCompatEditText {
 
     final static int HIGHLIGHT_SHIFT_LINES = 8;              // Lines to scroll before hl updated
     final static float HIGHLIGHT_REGION_SIZE = 0.75f;        // Minimum extra screens to highlight (should be > 0.5 to cover screen)
+    final static int PIECE_TABLE_MIN_LENGTH = 1024 * 1024;   // Longer texts are edited in a piece table
 
     public final static String PLACE_CURSOR_HERE_TOKEN = "%%PLACE_CURSOR_HERE%%";
 
@@ -51,6 +52,7 @@ public class HighlightingEditor extends AppCompatEditText {
     private final Rect _oldHlRect;        // Rect highlighting was previously applied to
     private final Rect _hlRect;           // Current rect
     private int _hlShiftThreshold = -1;   // How much to scroll before re-apply highlight
+    private final int _hlFullTextMaxLength; // Longer texts are highlighted in windows around the visible region
     private InputFilter _autoFormatFilter;
     private TextWatcher _autoFormatModifier;
     private boolean _autoFormatEnabled;
@@ -63,11 +65,20 @@ public class HighlightingEditor extends AppCompatEditText {
         setAutoFormatters(null, null);
 
         _isSpellingRedUnderline = !as.isDisableSpellingRedUnderline();
+        _hlFullTextMaxLength = as.getHighlightingFullTextMaxLength();
 
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
             setFallbackLineSpacing(false);
         }
 
+        // Very long texts are kept in a piece table, see PieceTableEditable
+        setEditableFactory(new Editable.Factory() {
+            @Override
+            public Editable newEditable(final CharSequence source) {
+                return source.length() >= PIECE_TABLE_MIN_LENGTH ? new PieceTableEditable(source) : super.newEditable(source);
+            }
+        });
+
         _hlEnabled = false;
         _oldHlRect = new Rect();
         _hlRect = new Rect();
@@ -111,18 +122,30 @@ public class HighlightingEditor extends AppCompatEditText {
             final boolean visible = getLocalVisibleRect(_hlRect);
 
             // Don't highlight unless shifted sufficiently or a recompute is required
-            if (recompute || (visible && _hl.hasSpans() && isScrollSignificant())) {
-
-                final int[] newHlRegion = hlRegion(_hlRect); // Compute this _before_ clear
-                _hl.clearDynamic();
-                if (recompute) {
-                    _hl.clearStatic().recompute().applyStatic();
-                }
-                _hl.applyDynamic(newHlRegion);
+            if (recompute) {
+                // Spans are computed in the background, dynamic spans are re-applied once done
+                _hl.setWindowed(length() > _hlFullTextMaxLength);
+                _hl.recomputeAsync(hlRegion(_hlRect), this::applyDynamicHighlighting);
+            } else if (visible && _hl.isWindowed() && isScrollSignificant()) {
+                // Spans of the scrolled to region might have to be computed first
+                _oldHlRect.set(_hlRect);
+                _hl.recomputeAsync(hlRegion(_hlRect), this::applyDynamicHighlighting);
+            } else if (visible && _hl.hasSpans() && isScrollSignificant()) {
+                applyDynamicHighlighting();
             }
         }
     }
 
+    // Apply dynamic spans to the currently visible region
+    private void applyDynamicHighlighting() {
+        if (_hlEnabled && _hl != null && getLayout() != null) {
+            getLocalVisibleRect(_hlRect);
+            final int[] newHlRegion = hlRegion(_hlRect); // Compute this _before_ clear
+            _hl.clearDynamic().applyDynamic(newHlRegion);
+            _oldHlRect.set(_hlRect);
+        }
+    }
+
     public void setDynamicHighlightingEnabled(final boolean enable) {
         _isDynamicHighlightingEnabled = enable;
     }
@@ -237,6 +260,11 @@ public class HighlightingEditor extends AppCompatEditText {
     @Override
     public void setText(final CharSequence text, final BufferType type) {
         super.setText(text, type);
+        final Editable editable = getText();
+        if (editable != null) {
+            LineIndex.attach(editable);
+            DocumentChangeTracker.attach(editable);
+        }
         initHighlighter();
         if (_hlDebounced != null) {
             _hlDebounced.run();
@@ -407,6 +435,14 @@ public class HighlightingEditor extends AppCompatEditText {
         return sel[0];
     }
 
+    /**
+     * Index of the lines of the text, for fast conversion between lines and offsets.
+     * It is attached to the text, so {@link TextViewUtils} line helpers use it too.
+     */
+    public LineIndex getLineIndex() {
+        return LineIndex.attach(getText());
+    }
+
     public boolean indexesValid(int... indexes) {
         return TextViewUtils.inRange(0, length(), indexes);
     }
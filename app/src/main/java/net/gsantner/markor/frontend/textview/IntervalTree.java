@@ -0,0 +1,378 @@
+/*#######################################################
+ *
+ *   Maintained by Gregor Santner, 2017-
+ *   https://gsantner.net/
+ *
+ *   License of this file: Apache 2.0 (Commercial upon request)
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+#########################################################*/
+package net.gsantner.markor.frontend.textview;
+
+import net.gsantner.opoc.wrapper.GsCallback;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Interval tree of [start, end) regions, ordered by start.
+ * Implemented as a treap which is augmented with the maximum end of each subtree.
+ * <p>
+ * Shifting all intervals after a position is O(log n), as offsets are applied lazily to whole subtrees.
+ * Querying intervals which intersect a region is O(log n + k).
+ * Nodes know their parent, so a single node can be looked up or removed in O(log n).
+ * <p>
+ * Intervals are the nodes themselves - derive from {@link Node} to attach data.
+ * The start and end of a node are only valid while it is visited, or when it is not in a tree.
+ * Use {@link #getStart(Node)} and {@link #getEnd(Node)} for a node in the tree.
+ * Not thread safe.
+ */
+@SuppressWarnings({"unchecked", "WeakerAccess"})
+public class IntervalTree<N extends IntervalTree.Node> {
+
+    public static class Node {
+        int start, end;
+
+        Node left, right, parent;
+        int priority;
+        int maxEnd;
+        int offset; // Pending offset for children
+
+        public Node(final int start, final int end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        public int getStart() {
+            return start;
+        }
+
+        public int getEnd() {
+            return end;
+        }
+    }
+
+    private Node _root = null;
+    private int _size = 0;
+    private int _seed = 0x2545F491;
+
+    // Split results
+    private Node _left, _right;
+
+    public int size() {
+        return _size;
+    }
+
+    public boolean isEmpty() {
+        return _size == 0;
+    }
+
+    public void clear() {
+        _root = null;
+        _size = 0;
+    }
+
+    /**
+     * Start of a node in this tree, O(log n)
+     */
+    public int getStart(final N node) {
+        return node.start + pendingOffset(node);
+    }
+
+    /**
+     * End of a node in this tree, O(log n)
+     */
+    public int getEnd(final N node) {
+        return node.end + pendingOffset(node);
+    }
+
+    /**
+     * Remove a node of this tree in O(log n). Its start and end are valid afterwards.
+     */
+    public void remove(final N node) {
+        pushPath(node);
+        final Node parent = node.parent, replacement = merge(node.left, node.right);
+        if (parent == null) {
+            setRoot(replacement);
+        } else {
+            if (parent.left == node) {
+                parent.left = replacement;
+            } else {
+                parent.right = replacement;
+            }
+            for (Node n = parent; n != null; n = n.parent) {
+                update(n);
+            }
+        }
+        node.left = node.right = node.parent = null;
+        _size--;
+    }
+
+    public void add(final N node) {
+        node.left = node.right = null;
+        node.offset = 0;
+        node.priority = nextPriority();
+        update(node);
+
+        // Nodes with same start are kept in insertion order
+        splitLess(_root, node.start + 1);
+        final Node right = _right;
+        setRoot(merge(merge(_left, node), right));
+        _size++;
+    }
+
+    /**
+     * Shift all intervals starting after 'after' by delta.
+     * When delta is negative, intervals starting in the removed region (after + delta, after]
+     * are moved to its start, so the order of all intervals is kept.
+     *
+     * @param after Shift intervals with start > after
+     * @param delta Amount to shift
+     */
+    public void shift(final int after, final int delta) {
+        if (_root == null || delta == 0) {
+            return;
+        }
+
+        splitLess(_root, after + 1);
+        final Node left = _left, right = _right;
+        apply(right, delta);
+
+        if (delta > 0) {
+            setRoot(merge(left, right));
+        } else {
+            final int removedStart = after + delta;
+            splitLess(left, removedStart + 1);
+            final Node kept = _left, removed = _right;
+            collapse(removed, removedStart, after, delta);
+            setRoot(merge(merge(kept, removed), right));
+        }
+    }
+
+    /**
+     * Replace all intervals starting in [from, to) by the given intervals.
+     *
+     * @param from     Start of region (inclusive)
+     * @param to       End of region (exclusive)
+     * @param replaced Nodes to insert. Must be sorted by start, all starting in [from, to)
+     * @return Removed nodes, sorted by start
+     */
+    public List<N> replace(final int from, final int to, final List<N> replaced) {
+        splitLess(_root, from);
+        final Node left = _left;
+        splitLess(_right, to);
+        final Node middle = _left, right = _right;
+
+        final List<N> removed = new ArrayList<>();
+        collect(middle, removed);
+        _size -= removed.size();
+
+        setRoot(merge(merge(left, build(replaced)), right));
+        _size += replaced.size();
+
+        return removed;
+    }
+
+    // Replace all intervals. Nodes must be sorted by start.
+    public void replaceAll(final List<N> nodes) {
+        clear();
+        setRoot(build(nodes));
+        _size = nodes.size();
+    }
+
+    /**
+     * Visit all intervals intersecting [start, end) in order of start
+     *
+     * @param visitor Return false to stop visiting
+     */
+    public void forEachIntersecting(final int start, final int end, final GsCallback.b1<N> visitor) {
+        forEachIntersecting(_root, start, end, visitor);
+    }
+
+    // Visit all intervals in order of start. Return false from visitor to stop.
+    public void forEach(final GsCallback.b1<N> visitor) {
+        forEachIntersecting(_root, Integer.MIN_VALUE, Integer.MAX_VALUE, visitor);
+    }
+
+    public List<N> toList() {
+        final List<N> list = new ArrayList<>(_size);
+        collect(_root, list);
+        return list;
+    }
+
+    // Internals
+    // ---------------------------------------------------------------------------------------------
+
+    private void setRoot(final Node root) {
+        _root = root;
+        if (root != null) {
+            root.parent = null;
+        }
+    }
+
+    // Offsets of the ancestors of node, which are not yet applied to it
+    private static int pendingOffset(final Node node) {
+        int offset = 0;
+        for (Node n = node.parent; n != null; n = n.parent) {
+            offset += n.offset;
+        }
+        return offset;
+    }
+
+    // Apply all offsets from the root down to node, including its own
+    private static void pushPath(final Node node) {
+        if (node.parent != null) {
+            pushPath(node.parent);
+        }
+        push(node);
+    }
+
+    private boolean forEachIntersecting(final Node node, final int start, final int end, final GsCallback.b1<N> visitor) {
+        if (node == null || node.maxEnd <= start) {
+            return true;
+        }
+
+        push(node);
+        if (!forEachIntersecting(node.left, start, end, visitor)) {
+            return false;
+        }
+
+        if (node.start >= end) {
+            return true; // Everything to the right starts after end
+        }
+
+        if (node.end > start && !visitor.callback((N) node)) {
+            return false;
+        }
+
+        return forEachIntersecting(node.right, start, end, visitor);
+    }
+
+    private void collect(final Node node, final List<N> list) {
+        if (node != null) {
+            push(node);
+            collect(node.left, list);
+            list.add((N) node);
+            collect(node.right, list);
+        }
+    }
+
+    // Move all intervals in subtree which start in (to + delta, to] to (to + delta)
+    private void collapse(final Node node, final int start, final int to, final int delta) {
+        if (node != null) {
+            push(node);
+            collapse(node.left, start, to, delta);
+            collapse(node.right, start, to, delta);
+            node.start = start;
+            node.end = node.end > to ? node.end + delta : Math.max(start, node.end + delta);
+            update(node);
+        }
+    }
+
+    // Build a treap from sorted nodes in O(n)
+    private Node build(final List<N> nodes) {
+        final Node[] stack = new Node[nodes.size()];
+        int top = 0;
+        for (final Node node : nodes) {
+            node.left = node.right = null;
+            node.offset = 0;
+            node.priority = nextPriority();
+
+            Node last = null;
+            while (top > 0 && stack[top - 1].priority < node.priority) {
+                last = stack[--top];
+                update(last);
+            }
+            node.left = last;
+            if (top > 0) {
+                stack[top - 1].right = node;
+            }
+            stack[top++] = node;
+        }
+
+        final Node root = top > 0 ? stack[0] : null;
+        while (top > 0) {
+            update(stack[--top]);
+        }
+        return root;
+    }
+
+    // Split into nodes with start < key (_left) and start >= key (_right)
+    private void splitLess(final Node node, final int key) {
+        if (node == null) {
+            _left = _right = null;
+            return;
+        }
+
+        push(node);
+        if (node.start < key) {
+            splitLess(node.right, key);
+            node.right = _left;
+            update(node);
+            _left = node;
+        } else {
+            splitLess(node.left, key);
+            node.left = _right;
+            update(node);
+            _right = node;
+        }
+    }
+
+    // Merge two treaps, where all of a are before all of b
+    private Node merge(final Node a, final Node b) {
+        if (a == null) {
+            return b;
+        } else if (b == null) {
+            return a;
+        } else if (a.priority >= b.priority) {
+            push(a);
+            a.right = merge(a.right, b);
+            update(a);
+            return a;
+        } else {
+            push(b);
+            b.left = merge(a, b.left);
+            update(b);
+            return b;
+        }
+    }
+
+    private static void apply(final Node node, final int delta) {
+        if (node != null) {
+            node.start += delta;
+            node.end += delta;
+            node.maxEnd += delta;
+            node.offset += delta;
+        }
+    }
+
+    private static void push(final Node node) {
+        if (node.offset != 0) {
+            apply(node.left, node.offset);
+            apply(node.right, node.offset);
+            node.offset = 0;
+        }
+    }
+
+    // Recompute maxEnd and link the children to node
+    private static void update(final Node node) {
+        int max = node.end;
+        if (node.left != null) {
+            max = Math.max(max, node.left.maxEnd);
+            node.left.parent = node;
+        }
+        if (node.right != null) {
+            max = Math.max(max, node.right.maxEnd);
+            node.right.parent = node;
+        }
+        node.maxEnd = max;
+    }
+
+    // Xorshift, good enough for balancing
+    private int nextPriority() {
+        _seed ^= _seed << 13;
+        _seed ^= _seed >>> 17;
+        _seed ^= _seed << 5;
+        return _seed;
+    }
+}
@@ -0,0 +1,344 @@
+/*#######################################################
+ *
+ *   Maintained by Gregor Santner, 2017-
+ *   https://gsantner.net/
+ *
+ *   License of this file: Apache 2.0 (Commercial upon request)
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+#########################################################*/
+package net.gsantner.markor.frontend.textview;
+
+import android.text.Editable;
+import android.text.NoCopySpan;
+import android.text.Spannable;
+import android.text.Spanned;
+import android.text.TextWatcher;
+
+import java.util.Arrays;
+
+/**
+ * Index of line starts of a text, for O(log n) conversion between lines and offsets.
+ * <p>
+ * Line lengths (including the line break) are kept in a treap ordered by line, augmented with
+ * the length and line count of each subtree. Edits are O(log n + k) for k lines added or removed.
+ * Nodes are kept in int arrays, as there is one for every line of a possibly long text.
+ * <p>
+ * The index is attached to a text as span, see {@link #attach(Spannable)}, and updated
+ * as text watcher. Its priority is higher than the one of TextView's watchers, so it is
+ * up to date when text change listeners of the view are called. Use {@link #get(CharSequence)}
+ * to get a valid index of a text.
+ */
+public class LineIndex implements TextWatcher, NoCopySpan {
+
+    private static final int PRIORITY = 200; // Above TextView's ChangeWatcher (100)
+
+    // Nodes, 0 is none. Free nodes are linked by _left
+    private int[] _left = new int[16], _right = new int[16], _priority = new int[16];
+    private int[] _length = new int[16]; // Length of the line, including '\n'
+    private int[] _sum = new int[16];    // Length of the lines of the subtree
+    private int[] _count = new int[16];  // Lines of the subtree
+    private int _root, _nodes, _free;
+    private int _seed = 0x2545F491;
+    private int _textLength;             // Length of the indexed text
+
+    // Split results
+    private int _splitLeft, _splitRight;
+
+    // Lines touched by the current edit, from beforeTextChanged
+    private int _editStart = -1, _editBefore, _editFirstLine, _editLastLine;
+
+    public LineIndex(final CharSequence text) {
+        reset(text);
+    }
+
+    /**
+     * Index of text, if one is attached and valid. Null otherwise.
+     */
+    public static LineIndex get(final CharSequence text) {
+        if (text instanceof Spanned) {
+            final LineIndex[] indices = ((Spanned) text).getSpans(0, 0, LineIndex.class);
+            if (indices != null && indices.length > 0 && indices[0]._textLength == text.length()) {
+                return indices[0];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Attach an index to text, which is kept up to date as the text changes.
+     * Returns the already attached index if there is one.
+     */
+    public static LineIndex attach(final Spannable text) {
+        final LineIndex[] indices = text.getSpans(0, 0, LineIndex.class);
+        if (indices != null && indices.length > 0) {
+            if (indices[0]._textLength != text.length()) {
+                indices[0].reset(text);
+            }
+            return indices[0];
+        }
+
+        final LineIndex index = new LineIndex(text);
+        text.setSpan(index, 0, text.length(), Spanned.SPAN_INCLUSIVE_INCLUSIVE | (PRIORITY << Spanned.SPAN_PRIORITY_SHIFT));
+        return index;
+    }
+
+    /**
+     * Rebuild the index for text, O(length)
+     */
+    public void reset(final CharSequence text) {
+        _textLength = text.length();
+        _root = _free = 0;
+        _nodes = 1;
+
+        final IntArray lengths = new IntArray();
+        int lineStart = 0;
+        for (int i = 0; i < _textLength; i++) {
+            if (text.charAt(i) == '\n') {
+                lengths.add(i + 1 - lineStart);
+                lineStart = i + 1;
+            }
+        }
+        lengths.add(_textLength - lineStart);
+        _root = build(lengths.values, lengths.size);
+        _editStart = -1;
+    }
+
+    public int getLineCount() {
+        return _count[_root];
+    }
+
+    /**
+     * Line containing offset. An offset after a line break belongs to the next line.
+     */
+    public int getLineForOffset(final int offset) {
+        int node = _root, line = 0, remaining = offset;
+        while (node != 0) {
+            final int left = _left[node];
+            if (remaining < _sum[left]) {
+                node = left;
+            } else {
+                remaining -= _sum[left];
+                line += _count[left];
+                if (remaining < _length[node]) {
+                    return line;
+                }
+                remaining -= _length[node];
+                line++;
+                node = _right[node];
+            }
+        }
+        return Math.max(0, Math.min(line, getLineCount() - 1));
+    }
+
+    /**
+     * Offset of the first char of line
+     */
+    public int getLineStart(final int line) {
+        int node = _root, sum = 0, remaining = line;
+        while (node != 0) {
+            final int left = _left[node];
+            if (remaining <= _count[left]) {
+                node = left;
+            } else {
+                remaining -= _count[left] + 1;
+                sum += _sum[left] + _length[node];
+                node = _right[node];
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Offset of the line break ending line, or the text length for the last line
+     */
+    public int getLineEnd(final int line) {
+        final int end = getLineStart(line + 1);
+        return line < getLineCount() - 1 ? end - 1 : end;
+    }
+
+    // Updates
+    // ---------------------------------------------------------------------------------------------
+
+    @Override
+    public void beforeTextChanged(final CharSequence s, final int start, final int count, final int after) {
+        if (_textLength == s.length()) {
+            _editStart = start;
+            _editBefore = count;
+            _editFirstLine = getLineForOffset(start);
+            _editLastLine = getLineForOffset(start + count);
+        } else {
+            _editStart = -1;
+        }
+    }
+
+    @Override
+    public void onTextChanged(final CharSequence s, final int start, final int before, final int count) {
+        if (_editStart != start || _editBefore != before || _textLength + count - before != s.length()) {
+            reset(s); // Edits out of order
+            return;
+        }
+        _editStart = -1;
+
+        final int first = _editFirstLine, last = _editLastLine;
+        final int prefix = start - getLineStart(first);
+        final int suffix = getLineStart(last + 1) - (start + before);
+
+        // Lengths of the lines replacing first..last
+        int added = 0;
+        for (int i = start; i < start + count; i++) {
+            if (s.charAt(i) == '\n') {
+                added++;
+            }
+        }
+        final int[] lengths = new int[added + 1];
+        int line = 0, lineStart = start - prefix;
+        for (int i = start; i < start + count; i++) {
+            if (s.charAt(i) == '\n') {
+                lengths[line++] = i + 1 - lineStart;
+                lineStart = i + 1;
+            }
+        }
+        lengths[line] = start + count + suffix - lineStart;
+
+        _textLength = s.length();
+        splice(first, last + 1, lengths);
+    }
+
+    @Override
+    public void afterTextChanged(final Editable s) {
+    }
+
+    // Treap
+    // ---------------------------------------------------------------------------------------------
+
+    // Replace lines [from, to) by lines of the given lengths
+    private void splice(final int from, final int to, final int[] lengths) {
+        split(_root, to);
+        final int right = _splitRight;
+        split(_splitLeft, from);
+        final int left = _splitLeft;
+        free(_splitRight);
+        _root = merge(merge(left, build(lengths, lengths.length)), right);
+    }
+
+    // Split into the first count lines (_splitLeft) and the rest (_splitRight)
+    private void split(final int node, final int count) {
+        if (node == 0) {
+            _splitLeft = _splitRight = 0;
+        } else if (_count[_left[node]] < count) {
+            split(_right[node], count - _count[_left[node]] - 1);
+            _right[node] = _splitLeft;
+            update(node);
+            _splitLeft = node;
+        } else {
+            split(_left[node], count);
+            _left[node] = _splitRight;
+            update(node);
+            _splitRight = node;
+        }
+    }
+
+    // Merge two treaps, where all lines of a are before all of b
+    private int merge(final int a, final int b) {
+        if (a == 0) {
+            return b;
+        } else if (b == 0) {
+            return a;
+        } else if (_priority[a] >= _priority[b]) {
+            _right[a] = merge(_right[a], b);
+            update(a);
+            return a;
+        } else {
+            _left[b] = merge(a, _left[b]);
+            update(b);
+            return b;
+        }
+    }
+
+    // Build a treap of lines with the given lengths in O(n)
+    private int build(final int[] lengths, final int n) {
+        final int[] stack = new int[n];
+        int top = 0;
+        for (int i = 0; i < n; i++) {
+            final int node = allocate(lengths[i]);
+            int last = 0;
+            while (top > 0 && _priority[stack[top - 1]] < _priority[node]) {
+                last = stack[--top];
+                update(last);
+            }
+            _left[node] = last;
+            if (top > 0) {
+                _right[stack[top - 1]] = node;
+            }
+            stack[top++] = node;
+        }
+
+        final int root = top > 0 ? stack[0] : 0;
+        while (top > 0) {
+            update(stack[--top]);
+        }
+        return root;
+    }
+
+    private void update(final int node) {
+        _sum[node] = _sum[_left[node]] + _length[node] + _sum[_right[node]];
+        _count[node] = _count[_left[node]] + 1 + _count[_right[node]];
+    }
+
+    private int allocate(final int length) {
+        final int node;
+        if (_free != 0) {
+            node = _free;
+            _free = _left[node];
+        } else {
+            if (_nodes == _left.length) {
+                final int capacity = 2 * _nodes;
+                _left = Arrays.copyOf(_left, capacity);
+                _right = Arrays.copyOf(_right, capacity);
+                _priority = Arrays.copyOf(_priority, capacity);
+                _length = Arrays.copyOf(_length, capacity);
+                _sum = Arrays.copyOf(_sum, capacity);
+                _count = Arrays.copyOf(_count, capacity);
+            }
+            node = _nodes++;
+        }
+        _left[node] = _right[node] = 0;
+        _length[node] = _sum[node] = length;
+        _count[node] = 1;
+        _priority[node] = nextPriority();
+        return node;
+    }
+
+    // Free all nodes of a subtree
+    private void free(final int node) {
+        if (node != 0) {
+            free(_right[node]);
+            final int left = _left[node];
+            _left[node] = _free;
+            _free = node;
+            free(left);
+        }
+    }
+
+    // Xorshift, good enough for balancing
+    private int nextPriority() {
+        _seed ^= _seed << 13;
+        _seed ^= _seed >>> 17;
+        _seed ^= _seed << 5;
+        return _seed;
+    }
+
+    // Growing list of line lengths
+    private static class IntArray {
+        int[] values = new int[16];
+        int size = 0;
+
+        void add(final int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, 2 * size);
+            }
+            values[size++] = value;
+        }
+    }
+}
@@ -0,0 +1,828 @@
+/*#######################################################
+ *
+ *   Maintained by Gregor Santner, 2017-
+ *   https://gsantner.net/
+ *
+ *   License of this file: Apache 2.0 (Commercial upon request)
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+#########################################################*/
+package net.gsantner.markor.frontend.textview;
+
+import android.text.Editable;
+import android.text.GetChars;
+import android.text.InputFilter;
+import android.text.NoCopySpan;
+import android.text.Selection;
+import android.text.SpanWatcher;
+import android.text.Spanned;
+import android.text.TextWatcher;
+
+import androidx.annotation.NonNull;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Editable for very long texts, backed by a piece table.
+ * <p>
+ * The text is a sequence of pieces, each a range of an immutable buffer: the original text or
+ * blocks of inserted text. Pieces are kept in a treap ordered by position, so replacing text is
+ * O(log n) and never copies the text. Nodes are never modified, which makes {@link #snapshot()} O(1).
+ * Snapshots can be read on any thread.
+ * <p>
+ * Spans behave as with SpannableStringBuilder: point / mark flags, removal of exclusive-exclusive
+ * spans which became empty, span and text watchers, input filters and keeping the selection in
+ * replaced text. Paragraph spans are not moved to the next paragraph boundary on edit.
+ * Spans are kept in an {@link IntervalTree}, so queries are O(log n + k) for k spans found,
+ * and spans after an edit are moved in O(log n). Span watchers are still told about every moved span.
+ * Not thread safe, except for snapshots.
+ */
+@SuppressWarnings({"unchecked", "WeakerAccess"})
+public class PieceTableEditable implements Editable, GetChars {
+
+    private static final int BLOCK_SIZE = 16 * 1024; // Inserted text is appended to blocks of this size
+
+    // Point / mark flags of span start and end, as in SpannableStringBuilder
+    private static final int MARK = 1, POINT = 2, PARAGRAPH = 3;
+    private static final int START_MASK = 0xF0, END_MASK = 0x0F, START_SHIFT = 4;
+
+    private static final InputFilter[] NO_FILTERS = new InputFilter[0];
+
+    // A span in the tree of spans
+    private static final class SpanNode extends IntervalTree.Node {
+        final Object span;
+        final long order; // Order of insertion
+        int flags;
+
+        SpanNode(final Object span, final long order) {
+            super(0, 0);
+            this.span = span;
+            this.order = order;
+        }
+    }
+
+    private static final class Node {
+        final char[] buffer;
+        final int offset, length;
+        final int priority;
+        final Node left, right;
+        final int size; // Length of the text of this subtree
+
+        Node(final char[] buffer, final int offset, final int length, final int priority, final Node left, final Node right) {
+            this.buffer = buffer;
+            this.offset = offset;
+            this.length = length;
+            this.priority = priority;
+            this.left = left;
+            this.right = right;
+            size = size(left) + length + size(right);
+        }
+
+        Node with(final Node left, final Node right) {
+            return (left == this.left && right == this.right) ? this : new Node(buffer, offset, length, priority, left, right);
+        }
+    }
+
+    // Immutable text of a tree
+    private static final class Text implements CharSequence, GetChars {
+        private final Node _root;
+
+        // Last accessed piece, makes sequential access O(1)
+        private Node _piece = null;
+        private int _pieceStart = 0;
+
+        private Text(final Node root) {
+            _root = root;
+        }
+
+        @Override
+        public int length() {
+            return size(_root);
+        }
+
+        @Override
+        public char charAt(final int index) {
+            Node piece = _piece;
+            if (piece == null || index < _pieceStart || index >= _pieceStart + piece.length) {
+                if (index < 0 || index >= length()) {
+                    throw new IndexOutOfBoundsException("charAt: " + index + " not in [0, " + length() + ")");
+                }
+                Node node = _root;
+                int start = 0;
+                while (true) {
+                    final int pieceStart = start + size(node.left);
+                    if (index < pieceStart) {
+                        node = node.left;
+                    } else if (index >= pieceStart + node.length) {
+                        start = pieceStart + node.length;
+                        node = node.right;
+                    } else {
+                        start = pieceStart;
+                        break;
+                    }
+                }
+                _piece = piece = node;
+                _pieceStart = start;
+            }
+            return piece.buffer[piece.offset + index - _pieceStart];
+        }
+
+        @Override
+        public void getChars(final int start, final int end, final char[] dest, final int destoff) {
+            if (start < 0 || end > length() || start > end) {
+                throw new IndexOutOfBoundsException("getChars: [" + start + ", " + end + ") not in [0, " + length() + ")");
+            }
+            copy(_root, 0, start, end, dest, destoff - start);
+        }
+
+        // Copy chars of [start, end) of the subtree at node (which starts at nodeStart) to dest[i + shift]
+        private static void copy(Node node, int nodeStart, final int start, final int end, final char[] dest, final int shift) {
+            while (node != null) {
+                final int pieceStart = nodeStart + size(node.left), pieceEnd = pieceStart + node.length;
+                if (start < pieceStart) {
+                    copy(node.left, nodeStart, start, end, dest, shift);
+                }
+                final int from = Math.max(start, pieceStart), to = Math.min(end, pieceEnd);
+                if (from < to) {
+                    System.arraycopy(node.buffer, node.offset + from - pieceStart, dest, from + shift, to - from);
+                }
+                if (end <= pieceEnd) {
+                    return;
+                }
+                nodeStart = pieceEnd;
+                node = node.right;
+            }
+        }
+
+        @NonNull
+        @Override
+        public CharSequence subSequence(final int start, final int end) {
+            final char[] chars = new char[end - start];
+            getChars(start, end, chars, 0);
+            return new String(chars);
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return subSequence(0, length()).toString();
+        }
+    }
+
+    // Text
+    private Text _text;
+    private char[] _block = null; // Block inserted text is appended to
+    private int _blockUsed = 0;
+    private int _seed = 0x2545F491;
+
+    // Split results
+    private Node _left, _right;
+
+    // Spans by position, and by identity
+    private final IntervalTree<SpanNode> _spans = new IntervalTree<>();
+    private final Map<Object, SpanNode> _spanNodes = new IdentityHashMap<>();
+    private long _spanOrder = 0;
+    private final List<Object> _watchers = new ArrayList<>(); // Text and span watchers, in order of insertion
+
+    private InputFilter[] _filters = NO_FILTERS;
+
+    public PieceTableEditable() {
+        this("");
+    }
+
+    public PieceTableEditable(final CharSequence source) {
+        this(source, 0, source.length());
+    }
+
+    /**
+     * Copy of source in [start, end), with its spans.
+     * Nothing is copied if source is a PieceTableEditable.
+     */
+    public PieceTableEditable(final CharSequence source, final int start, final int end) {
+        _text = new Text(treeOf(source, start, end));
+
+        if (source instanceof Spanned) {
+            final Spanned sp = (Spanned) source;
+            for (final Object span : sp.getSpans(start, end, Object.class)) {
+                if (span instanceof NoCopySpan) {
+                    continue;
+                }
+                final int st = Math.max(0, Math.min(sp.getSpanStart(span) - start, end - start));
+                final int en = Math.max(0, Math.min(sp.getSpanEnd(span) - start, end - start));
+                putSpan(span, st, en, sp.getSpanFlags(span));
+            }
+        }
+    }
+
+    private PieceTableEditable(final Node root) {
+        _text = new Text(root);
+    }
+
+    /**
+     * Copy of the text of source, without spans.
+     * Nothing is copied if source is a PieceTableEditable or a snapshot of one.
+     */
+    public static PieceTableEditable textOf(final CharSequence source) {
+        if (source instanceof PieceTableEditable) {
+            return new PieceTableEditable(((PieceTableEditable) source)._text._root);
+        } else if (source instanceof Text) {
+            return new PieceTableEditable(((Text) source)._root);
+        }
+        final PieceTableEditable result = new PieceTableEditable((Node) null);
+        result._text = new Text(result.treeOf(source, 0, source.length()));
+        return result;
+    }
+
+    // Tree of source in [start, end)
+    private Node treeOf(final CharSequence source, final int start, final int end) {
+        final Node root = source instanceof PieceTableEditable ? ((PieceTableEditable) source)._text._root : (source instanceof Text ? ((Text) source)._root : null);
+        if (root != null) {
+            split(root, end);
+            split(_left, start);
+            return _right;
+        } else if (start < end) {
+            final char[] buffer = new char[end - start];
+            getChars(source, start, end, buffer, 0);
+            return new Node(buffer, 0, buffer.length, nextPriority(), null, null);
+        }
+        return null;
+    }
+
+    /**
+     * Immutable copy of the current text, in O(1). Can be read on any thread.
+     */
+    public CharSequence snapshot() {
+        return new Text(_text._root);
+    }
+
+    // Text
+    // ---------------------------------------------------------------------------------------------
+
+    @Override
+    public int length() {
+        return _text.length();
+    }
+
+    @Override
+    public char charAt(final int index) {
+        return _text.charAt(index);
+    }
+
+    @Override
+    public void getChars(final int start, final int end, final char[] dest, final int destoff) {
+        _text.getChars(start, end, dest, destoff);
+    }
+
+    @NonNull
+    @Override
+    public CharSequence subSequence(final int start, final int end) {
+        checkRange("subSequence", start, end);
+        return new PieceTableEditable(this, start, end);
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return _text.toString();
+    }
+
+    // All functions which edit the text alias this routine
+    @Override
+    public Editable replace(final int st, final int en, CharSequence source, int start, int end) {
+        checkRange("replace", st, en);
+
+        for (final InputFilter filter : _filters) {
+            final CharSequence filtered = filter.filter(source, start, end, this, st, en);
+            if (filtered != null) {
+                source = filtered;
+                start = 0;
+                end = filtered.length();
+            }
+        }
+
+        final int before = en - st, count = end - start;
+        if (before == 0 && count == 0 && !(source instanceof Spanned)) {
+            return this;
+        }
+        if (source == this) {
+            source = subSequence(start, end);
+            start = 0;
+            end = count;
+        }
+
+        final TextWatcher[] textWatchers = getSpans(st, st + before, TextWatcher.class);
+        for (final TextWatcher watcher : textWatchers) {
+            watcher.beforeTextChanged(this, st, before, count);
+        }
+
+        // Keep the selection at the same relative position in replaced text
+        final boolean adjustSelection = before != 0 && count != 0 && !_spanNodes.isEmpty();
+        final int selectionStart = adjustSelection ? getSpanStart(Selection.SELECTION_START) : -1;
+        final int selectionEnd = adjustSelection ? getSpanEnd(Selection.SELECTION_END) : -1;
+
+        final List<Object> changed = new ArrayList<>(), added = new ArrayList<>();
+        final List<int[]> changedFrom = new ArrayList<>();
+        change(st, en, source, start, end, changed, changedFrom, added);
+
+        if (adjustSelection) {
+            if (selectionStart > st && selectionStart < en) {
+                final int selection = st + (int) ((long) (selectionStart - st) * count / before);
+                putSpan(Selection.SELECTION_START, selection, selection, Spanned.SPAN_POINT_POINT);
+            }
+            if (selectionEnd > st && selectionEnd < en) {
+                final int selection = st + (int) ((long) (selectionEnd - st) * count / before);
+                putSpan(Selection.SELECTION_END, selection, selection, Spanned.SPAN_POINT_POINT);
+            }
+        }
+
+        for (final TextWatcher watcher : textWatchers) {
+            watcher.onTextChanged(this, st, before, count);
+        }
+        for (final TextWatcher watcher : textWatchers) {
+            watcher.afterTextChanged(this);
+        }
+
+        // Span watchers are called after text watchers, which may update the layout
+        for (int i = 0; i < changed.size(); i++) {
+            final Object span = changed.get(i);
+            final int spanStart = getSpanStart(span);
+            if (spanStart >= 0) {
+                sendSpanChanged(span, changedFrom.get(i)[0], changedFrom.get(i)[1], spanStart, getSpanEnd(span));
+            }
+        }
+        for (final Object span : added) {
+            final int spanStart = getSpanStart(span);
+            if (spanStart >= 0) {
+                sendSpanAdded(span, spanStart, getSpanEnd(span));
+            }
+        }
+        return this;
+    }
+
+    // Replace [st, en) by source[start, end), update span positions and collect changed and added spans
+    private void change(final int st, final int en, final CharSequence source, final int start, final int end,
+                        final List<Object> changed, final List<int[]> changedFrom, final List<Object> added) {
+        final int length = length(), count = end - start;
+
+        // Exclusive-exclusive spans in replaced text would become empty
+        if (en > st) {
+            final List<SpanNode> removed = new ArrayList<>();
+            _spans.forEachIntersecting(st, en, node -> {
+                if ((node.flags & Spanned.SPAN_EXCLUSIVE_EXCLUSIVE) == Spanned.SPAN_EXCLUSIVE_EXCLUSIVE
+                        && node.start >= st && node.end <= en && (count == 0 || node.start > st || node.end < en)) {
+                    removed.add(node);
+                }
+                return true;
+            });
+            sortByOrder(removed);
+            for (final SpanNode node : removed) {
+                removeSpan(node.span);
+            }
+        }
+
+        // Text
+        split(_text._root, en);
+        final Node right = _right;
+        split(_left, st);
+        _text = new Text(merge(insert(_left, source, start, end), right));
+
+        // Span positions. Spans touching [st, en] are taken out and put back at their new position,
+        // spans after en are shifted all at once
+        final boolean atEnd = en == length;
+        final int delta = count - (en - st);
+        final List<SpanNode> touching = new ArrayList<>();
+        _spans.forEachIntersecting(st - 1, en + 1, node -> {
+            touching.add(node);
+            return true;
+        });
+        for (final SpanNode node : touching) {
+            _spans.remove(node);
+        }
+        _spans.shift(en, delta);
+
+        final List<SpanNode> moved = new ArrayList<>();
+        final Map<SpanNode, int[]> movedFrom = new IdentityHashMap<>();
+        if (delta != 0 && hasSpanWatchers()) {
+            _spans.forEachIntersecting(st + count, Integer.MAX_VALUE, node -> {
+                moved.add(node);
+                movedFrom.put(node, new int[]{node.start - delta, node.end - delta});
+                return true;
+            });
+        }
+        for (final SpanNode node : touching) {
+            final int spanStart = node.start, spanEnd = node.end;
+            node.start = updatedPosition(spanStart, st, en, count, (node.flags & START_MASK) >> START_SHIFT, atEnd);
+            node.end = Math.max(node.start, updatedPosition(spanEnd, st, en, count, node.flags & END_MASK, atEnd));
+            _spans.add(node);
+            if (node.start != spanStart || node.end != spanEnd) {
+                moved.add(node);
+                movedFrom.put(node, new int[]{spanStart, spanEnd});
+            }
+        }
+        sortByOrder(moved);
+        for (final SpanNode node : moved) {
+            changed.add(node.span);
+            changedFrom.add(movedFrom.get(node));
+        }
+
+        // Spans of the inserted text
+        if (source instanceof Spanned) {
+            final Spanned sp = (Spanned) source;
+            for (final Object span : sp.getSpans(start, end, Object.class)) {
+                if (getSpanStart(span) < 0) {
+                    final int spanStart = Math.max(sp.getSpanStart(span), start) - start + st;
+                    final int spanEnd = Math.min(sp.getSpanEnd(span), end) - start + st;
+                    if (putSpan(span, spanStart, Math.max(spanStart, spanEnd), sp.getSpanFlags(span))) {
+                        added.add(span);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * New position of a span start or end at pos, when [st, en) is replaced by count chars.
+     * In inserted text, points move to the end and marks to the start, except for a mark at en.
+     * A point at st stays there if text is replaced (not just removed).
+     */
+    private static int updatedPosition(final int pos, final int st, final int en, final int count, final int flag, final boolean atEnd) {
+        if (pos < st) {
+            return pos;
+        } else if (pos > en) {
+            return pos + count - (en - st);
+        } else if (st == en) {
+            return (flag == POINT || (flag == PARAGRAPH && atEnd)) ? st + count : st;
+        } else if (flag == POINT) {
+            return (count == 0 || pos > st) ? st + count : st;
+        } else if (flag == PARAGRAPH) {
+            return atEnd ? st + count : Math.min(pos, st + count);
+        } else {
+            return pos == en ? st + count : st;
+        }
+    }
+
+    // Convenience functions for replace ^. All these are just aliases
+    // ---------------------------------------------------------------------------------------------
+
+    @Override
+    public Editable replace(final int st, final int en, final CharSequence text) {
+        return replace(st, en, text, 0, text.length());
+    }
+
+    @Override
+    public Editable insert(final int where, final CharSequence text, final int start, final int end) {
+        return replace(where, where, text, start, end);
+    }
+
+    @Override
+    public Editable insert(final int where, final CharSequence text) {
+        return replace(where, where, text, 0, text.length());
+    }
+
+    @Override
+    public Editable delete(final int st, final int en) {
+        return replace(st, en, "", 0, 0);
+    }
+
+    @NonNull
+    @Override
+    public Editable append(final CharSequence text) {
+        return replace(length(), length(), text, 0, text.length());
+    }
+
+    @NonNull
+    @Override
+    public Editable append(final CharSequence text, final int start, final int end) {
+        return replace(length(), length(), text, start, end);
+    }
+
+    @NonNull
+    @Override
+    public Editable append(final char text) {
+        return append(String.valueOf(text));
+    }
+
+    @Override
+    public void clear() {
+        replace(0, length(), "", 0, 0);
+    }
+
+    @Override
+    public void setFilters(final InputFilter[] filters) {
+        if (filters == null) {
+            throw new IllegalArgumentException();
+        }
+        _filters = filters;
+    }
+
+    @Override
+    public InputFilter[] getFilters() {
+        return _filters;
+    }
+
+    // Spans
+    // ---------------------------------------------------------------------------------------------
+
+    @Override
+    public void setSpan(final Object what, final int start, final int end, final int flags) {
+        checkRange("setSpan", start, end);
+        if ((flags & START_MASK) >> START_SHIFT == PARAGRAPH && !isParagraphBoundary(start)) {
+            throw new RuntimeException("PARAGRAPH span must start at paragraph boundary");
+        }
+        if ((flags & END_MASK) == PARAGRAPH && !isParagraphBoundary(end)) {
+            throw new RuntimeException("PARAGRAPH span must end at paragraph boundary");
+        }
+
+        final int oldStart = getSpanStart(what), oldEnd = getSpanEnd(what);
+        if (putSpan(what, start, end, flags)) {
+            if (oldStart >= 0) {
+                sendSpanChanged(what, oldStart, oldEnd, start, end);
+            } else {
+                sendSpanAdded(what, start, end);
+            }
+        }
+    }
+
+    // Add or move span without notifying watchers. Returns false if the span is not allowed
+    private boolean putSpan(final Object what, final int start, final int end, final int flags) {
+        if ((flags & START_MASK) >> START_SHIFT == POINT && (flags & END_MASK) == MARK && start == end) {
+            return false; // Exclusive-exclusive spans cannot be empty
+        }
+
+        SpanNode node = _spanNodes.get(what);
+        if (node != null) {
+            _spans.remove(node);
+        } else {
+            node = new SpanNode(what, _spanOrder++);
+            _spanNodes.put(what, node);
+            if (what instanceof TextWatcher || what instanceof SpanWatcher) {
+                _watchers.add(what);
+            }
+        }
+        node.start = start;
+        node.end = end;
+        node.flags = flags;
+        _spans.add(node);
+        return true;
+    }
+
+    @Override
+    public void removeSpan(final Object what) {
+        final SpanNode node = _spanNodes.remove(what);
+        if (node != null) {
+            _spans.remove(node);
+            if (what instanceof TextWatcher || what instanceof SpanWatcher) {
+                _watchers.remove(what);
+            }
+            sendSpanRemoved(what, node.start, node.end);
+        }
+    }
+
+    @Override
+    public void clearSpans() {
+        final List<SpanNode> nodes = _spans.toList();
+        sortByOrder(nodes);
+        for (int i = nodes.size() - 1; i >= 0; i--) {
+            removeSpan(nodes.get(i).span);
+        }
+    }
+
+    @Override
+    public int getSpanStart(final Object what) {
+        final SpanNode node = _spanNodes.get(what);
+        return node != null ? _spans.getStart(node) : -1;
+    }
+
+    @Override
+    public int getSpanEnd(final Object what) {
+        final SpanNode node = _spanNodes.get(what);
+        return node != null ? _spans.getEnd(node) : -1;
+    }
+
+    @Override
+    public int getSpanFlags(final Object what) {
+        final SpanNode node = _spanNodes.get(what);
+        return node != null ? node.flags : 0;
+    }
+
+    /**
+     * Spans of type kind intersecting [start, end), ordered by priority and insertion.
+     * Empty spans or queries intersect if they touch.
+     */
+    @Override
+    public <T> T[] getSpans(final int start, final int end, final Class<T> kind) {
+        if (kind == null) {
+            return (T[]) new Object[0];
+        }
+
+        final List<SpanNode> found = new ArrayList<>();
+        if (TextWatcher.class.isAssignableFrom(kind) || SpanWatcher.class.isAssignableFrom(kind)) {
+            // Only watchers can be watchers, this keeps edits with many spans fast
+            for (final Object watcher : _watchers) {
+                final SpanNode node = _spanNodes.get(watcher);
+                if (kind.isInstance(watcher) && intersects(_spans.getStart(node), _spans.getEnd(node), start, end)) {
+                    found.add(node);
+                }
+            }
+        } else {
+            // Touching spans are visited too
+            _spans.forEachIntersecting(start == Integer.MIN_VALUE ? start : start - 1, end == Integer.MAX_VALUE ? end : end + 1, node -> {
+                if (kind.isInstance(node.span) && intersects(node.start, node.end, start, end)) {
+                    found.add(node);
+                }
+                return true;
+            });
+            sortByOrder(found);
+        }
+
+        // Stable, i.e. insertion order is kept for equal priority
+        Collections.sort(found, (a, b) -> Integer.compare(b.flags & Spanned.SPAN_PRIORITY, a.flags & Spanned.SPAN_PRIORITY));
+
+        final T[] result = (T[]) Array.newInstance(kind, found.size());
+        for (int i = 0; i < result.length; i++) {
+            result[i] = (T) found.get(i).span;
+        }
+        return result;
+    }
+
+    private static boolean intersects(final int spanStart, final int spanEnd, final int start, final int end) {
+        if (spanStart > end || spanEnd < start) {
+            return false;
+        }
+        return spanStart == spanEnd || start == end || (spanStart != end && spanEnd != start);
+    }
+
+    @Override
+    public int nextSpanTransition(final int start, final int limit, Class kind) {
+        final Class spanKind = kind != null ? kind : Object.class;
+        final int[] next = {limit};
+        // Visited in order of start, nothing after the next transition can come before it
+        _spans.forEachIntersecting(start, limit, node -> {
+            if (node.start >= next[0]) {
+                return false;
+            }
+            if (spanKind.isInstance(node.span)) {
+                if (node.start > start) {
+                    next[0] = node.start;
+                } else if (node.end < next[0]) {
+                    next[0] = node.end;
+                }
+            }
+            return true;
+        });
+        return next[0];
+    }
+
+    private void sendSpanAdded(final Object what, final int start, final int end) {
+        for (final SpanWatcher watcher : getSpans(start, end, SpanWatcher.class)) {
+            watcher.onSpanAdded(this, what, start, end);
+        }
+    }
+
+    private void sendSpanRemoved(final Object what, final int start, final int end) {
+        for (final SpanWatcher watcher : getSpans(start, end, SpanWatcher.class)) {
+            watcher.onSpanRemoved(this, what, start, end);
+        }
+    }
+
+    private void sendSpanChanged(final Object what, final int oldStart, final int oldEnd, final int start, final int end) {
+        final int from = Math.min(oldStart, start), to = Math.min(Math.max(oldEnd, end), length());
+        for (final SpanWatcher watcher : getSpans(from, to, SpanWatcher.class)) {
+            watcher.onSpanChanged(this, what, oldStart, oldEnd, start, end);
+        }
+    }
+
+    // Tree
+    // ---------------------------------------------------------------------------------------------
+
+    // Append source[start, end) to the tree left
+    private Node insert(final Node left, final CharSequence source, final int start, final int end) {
+        final int count = end - start;
+        if (count <= 0) {
+            return left;
+        } else if (count >= BLOCK_SIZE / 2) {
+            final char[] buffer = new char[count];
+            getChars(source, start, end, buffer, 0);
+            return merge(left, new Node(buffer, 0, count, nextPriority(), null, null));
+        }
+
+        if (_block == null || _block.length - _blockUsed < count) {
+            _block = new char[BLOCK_SIZE];
+            _blockUsed = 0;
+        }
+        getChars(source, start, end, _block, _blockUsed);
+
+        // Typing continues the last piece
+        Node last = left;
+        while (last != null && last.right != null) {
+            last = last.right;
+        }
+        final Node result;
+        if (last != null && last.buffer == _block && last.offset + last.length == _blockUsed) {
+            result = extendLast(left, count);
+        } else {
+            result = merge(left, new Node(_block, _blockUsed, count, nextPriority(), null, null));
+        }
+        _blockUsed += count;
+        return result;
+    }
+
+    private static Node extendLast(final Node node, final int count) {
+        if (node.right == null) {
+            return new Node(node.buffer, node.offset, node.length + count, node.priority, node.left, null);
+        }
+        return node.with(node.left, extendLast(node.right, count));
+    }
+
+    // Split into _left (text before pos) and _right. Nodes are copied, never modified
+    private void split(final Node node, final int pos) {
+        if (node == null) {
+            _left = _right = null;
+            return;
+        }
+
+        final int pieceStart = size(node.left), pieceEnd = pieceStart + node.length;
+        if (pos <= pieceStart) {
+            split(node.left, pos);
+            _right = node.with(_right, node.right);
+        } else if (pos >= pieceEnd) {
+            split(node.right, pos - pieceEnd);
+            _left = node.with(node.left, _left);
+        } else {
+            final int cut = pos - pieceStart;
+            _right = merge(new Node(node.buffer, node.offset + cut, node.length - cut, nextPriority(), null, null), node.right);
+            _left = new Node(node.buffer, node.offset, cut, node.priority, node.left, null);
+        }
+    }
+
+    private static Node merge(final Node a, final Node b) {
+        if (a == null) {
+            return b;
+        } else if (b == null) {
+            return a;
+        } else if (a.priority > b.priority) {
+            return a.with(a.left, merge(a.right, b));
+        } else {
+            return b.with(merge(a, b.left), b.right);
+        }
+    }
+
+    private static int size(final Node node) {
+        return node != null ? node.size : 0;
+    }
+
+    private int nextPriority() {
+        _seed ^= _seed << 13;
+        _seed ^= _seed >>> 17;
+        _seed ^= _seed << 5;
+        return _seed;
+    }
+
+    // Helpers
+    // ---------------------------------------------------------------------------------------------
+
+    private static void getChars(final CharSequence source, final int start, final int end, final char[] dest, final int destoff) {
+        if (source instanceof String) {
+            ((String) source).getChars(start, end, dest, destoff);
+        } else if (source instanceof StringBuilder) {
+            ((StringBuilder) source).getChars(start, end, dest, destoff);
+        } else if (source instanceof GetChars) {
+            ((GetChars) source).getChars(start, end, dest, destoff);
+        } else {
+            for (int i = start; i < end; i++) {
+                dest[destoff + i - start] = source.charAt(i);
+            }
+        }
+    }
+
+    private static void sortByOrder(final List<SpanNode> nodes) {
+        Collections.sort(nodes, (a, b) -> Long.compare(a.order, b.order));
+    }
+
+    private boolean hasSpanWatchers() {
+        for (final Object watcher : _watchers) {
+            if (watcher instanceof SpanWatcher) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isParagraphBoundary(final int pos) {
+        return pos == 0 || pos == length() || charAt(pos - 1) == '\n';
+    }
+
+    private void checkRange(final String operation, final int start, final int end) {
+        final int length = length();
+        if (end < start) {
+            throw new IndexOutOfBoundsException(operation + " (" + start + " ... " + end + ") has end before start");
+        } else if (start < 0 || end > length) {
+            throw new IndexOutOfBoundsException(operation + " (" + start + " ... " + end + ") not in [0, " + length + "]");
+        }
+    }
+}
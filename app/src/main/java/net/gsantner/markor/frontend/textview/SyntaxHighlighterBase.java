@@ -13,6 +13,8 @@ import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Typeface;
+import android.os.Handler;
+import android.os.Looper;
 import android.text.Spannable;
 import android.text.Spanned;
 import android.text.TextPaint;
@@ -40,10 +42,11 @@ import net.gsantner.opoc.wrapper.GsCallback;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
-import java.util.NavigableSet;
-import java.util.TreeSet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -53,6 +56,18 @@ public abstract class SyntaxHighlighterBase {
 
     private static final Pattern PATTERN_TAB = Pattern.compile("\t");
 
+    // Windowed highlighting, see setWindowed
+    private static final int WINDOW_MARGIN = 5000;         // Chars computed around a requested window, so scrolling a bit needs no computation
+    private static final int WINDOW_CACHE_SIZE = 200000;   // Computed windows are kept up to this many chars in total
+    private static final int WINDOW_CONTEXT = 1000;        // Chars copied around a window for lookarounds and anchors
+
+    // Span computation runs here, results are applied on the main thread
+    private static final Executor WORKER = Executors.newSingleThreadExecutor(r -> {
+        final Thread thread = new Thread(r, "SyntaxHighlighter");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     protected static SyntaxHighlighterBase getDefaultHighlighter(final AppSettings as) {
         return new PlaintextSyntaxHighlighter(as);
     }
@@ -64,6 +79,26 @@ public abstract class SyntaxHighlighterBase {
     // All exceptions will be caught and handled
     protected abstract void generateSpans();
 
+    /**
+     * Derived classes can override this to support recomputing only the edited parts of the text.
+     * See {@link #recomputeDirty()}, {@link #paragraphRegion} and {@link #lineRegion}.
+     *
+     * @param text  Text which is highlighted
+     * @param dirty Region edited since the last recompute
+     * @return Region which has to be recomputed, or null if a full recompute is required
+     */
+    protected int[] getRecomputeRegion(final CharSequence text, final int[] dirty) {
+        return null;
+    }
+
+    /**
+     * Derived classes can override this to name markers of constructs which may span many paragraphs,
+     * like fences of code blocks. Edits of regions containing one of them require a full recompute.
+     */
+    protected String[] getBlockDelimiters() {
+        return new String[0];
+    }
+
     public int getHighlightingDelay() {
         return _delay;
     }
@@ -88,6 +123,7 @@ public abstract class SyntaxHighlighterBase {
      * @return Highlighter
      */
     public SyntaxHighlighterBase configure(@Nullable final Paint paint) {
+        _recomputeRequired = true;
         _isDarkMode = GsContextUtils.instance.isDarkModeEnabled(_appSettings.getContext());
         _fontFamily = _appSettings.getFontFamily();
         _textColor = _appSettings.getEditorForegroundColor();
@@ -104,48 +140,60 @@ public abstract class SyntaxHighlighterBase {
     /**
      * A class representing any span
      */
-    public static class SpanGroup implements Comparable<SpanGroup> {
-        int start, end;
+    public static class SpanGroup extends IntervalTree.Node {
         final Object span;
         final boolean isStatic;
+        boolean isApplied = false; // Whether applied as dynamic span
 
         SpanGroup(Object o, int s, int e) {
+            super(s, e);
             span = o;
-            start = s;
-            end = e;
             isStatic = o instanceof UpdateLayout;
         }
-
-        @Override
-        public int compareTo(final SpanGroup o) {
-            return start - o.start;
-        }
     }
 
+    private static final Comparator<SpanGroup> START_ORDER = (a, b) -> Integer.compare(a.start, b.start);
+
     private static class ForceUpdateLayout implements UpdateLayout {
         // Empty class - just implements UpdateLayout
     }
 
     private final ForceUpdateLayout _layoutUpdater;
 
-    private final List<SpanGroup> _groups;
-    private final NavigableSet<Integer> _appliedDynamic;
+    private final IntervalTree<SpanGroup> _groups;
+    private final List<SpanGroup> _appliedDynamic;
     private boolean _staticApplied = false;
+    private boolean _recomputeRequired = true; // Whether spans must be computed for the whole text
+    private int[] _dirty = null;               // Region edited since last recompute, null if none
+    private volatile int _generation = 0;      // Incremented on every text change
+    private volatile Job _job = null;          // Latest requested async computation
+    private boolean _windowed = false;         // Whether spans are only computed for windows of the text
+    private final List<int[]> _windows;        // Computed windows, sorted and not overlapping
+
+    // Generation state - only valid during generateSpans, guarded by _generateLock
+    private final Object _generateLock = new Object();
+    private int[] _region = null;              // Region spans are generated for, null for whole text
+    private List<SpanGroup> _target = null;    // Generated groups are added here
+    private Job _generating = null;            // Async computation being run, null if synchronous
+    protected CharSequence _text;              // Text spans are generated for. Use this in generateSpans, not _spannable
 
     protected Spannable _spannable;
     protected final AppSettings _appSettings;
 
     public SyntaxHighlighterBase(final AppSettings as) {
         _appSettings = as;
-        _groups = new ArrayList<>();
-        _appliedDynamic = new TreeSet<>();
+        _groups = new IntervalTree<>();
+        _appliedDynamic = new ArrayList<>();
+        _windows = new ArrayList<>();
 
         _layoutUpdater = new ForceUpdateLayout();
     }
 
     // ---------------------------------------------------------------------------------------------
 
-    public SyntaxHighlighterBase clearAll() {
+    // Also drops results of pending async computations
+    public synchronized SyntaxHighlighterBase clearAll() {
+        _job = null;
         return clearDynamic().clearStatic();
     }
 
@@ -159,9 +207,10 @@ public abstract class SyntaxHighlighterBase {
             return this;
         }
 
-        final Iterator<Integer> it = _appliedDynamic.descendingIterator();
-        while (it.hasNext()) {
-            _spannable.removeSpan(_groups.get(it.next()).span);
+        for (int i = _appliedDynamic.size() - 1; i >= 0; i--) {
+            final SpanGroup group = _appliedDynamic.get(i);
+            _spannable.removeSpan(group.span);
+            group.isApplied = false;
         }
         _appliedDynamic.clear();
 
@@ -178,12 +227,12 @@ public abstract class SyntaxHighlighterBase {
             return this;
         }
 
-        for (int i = _groups.size() - 1; i >= 0; i--) {
-            final SpanGroup group = _groups.get(i);
+        _groups.forEach(group -> {
             if (group.isStatic) {
                 _spannable.removeSpan(group.span);
             }
-        }
+            return true;
+        });
 
         _staticApplied = false;
 
@@ -200,8 +249,13 @@ public abstract class SyntaxHighlighterBase {
     public synchronized SyntaxHighlighterBase setSpannable(@Nullable final Spannable spannable) {
         if (spannable != _spannable) {
             _groups.clear();
-            _appliedDynamic.clear();
+            _windows.clear();
+            clearAppliedDynamic();
             _spannable = spannable;
+            _recomputeRequired = true;
+            _dirty = null;
+            _generation++;
+            _job = null;
         }
 
         return this;
@@ -213,16 +267,61 @@ public abstract class SyntaxHighlighterBase {
     }
 
     public boolean hasSpans() {
-        return _spannable != null && _groups.size() > 0;
+        return _spannable != null && !_groups.isEmpty();
+    }
+
+    /**
+     * In windowed mode, spans are only computed for the windows of the text passed to {@link #recomputeAsync(int[], GsCallback.a0)}.
+     * Computed windows are cached, windows far from the last requested one are evicted.
+     * This keeps the cost of highlighting bounded for texts of any length.
+     * <p>
+     * Constructs reaching over the boundary of a window may not be highlighted exactly.
+     */
+    public synchronized SyntaxHighlighterBase setWindowed(final boolean windowed) {
+        if (windowed != _windowed) {
+            _windowed = windowed;
+            _recomputeRequired = true;
+        }
+        return this;
+    }
+
+    public boolean isWindowed() {
+        return _windowed;
+    }
+
+    // Forget about applied dynamic spans without removing them
+    private void clearAppliedDynamic() {
+        for (final SpanGroup group : _appliedDynamic) {
+            group.isApplied = false;
+        }
+        _appliedDynamic.clear();
     }
 
     /**
      * Helper to change spans in 'onTextChanged'
+     * Also tracks the edited region for {@link #recomputeDirty()}
      */
-    public SyntaxHighlighterBase fixup(final int start, final int before, final int count) {
+    public synchronized SyntaxHighlighterBase fixup(final int start, final int before, final int count) {
+        _generation++;
+        final int delta = count - before;
+        if (_dirty == null) {
+            _dirty = new int[]{start, start + count};
+        } else {
+            _dirty[0] = Math.min(shiftIndex(_dirty[0], start, start + before, delta), start);
+            _dirty[1] = Math.max(shiftIndex(_dirty[1], start, start + before, delta), start + count);
+        }
+        for (final int[] window : _windows) {
+            window[0] = shiftIndex(window[0], start, start + before, delta);
+            window[1] = shiftIndex(window[1], start, start + before, delta);
+        }
         return fixup(start + before, count - before);
     }
 
+    // Move an index to where it is after [start, end) was replaced by (end - start + delta) chars
+    private static int shiftIndex(final int index, final int start, final int end, final int delta) {
+        return index <= start ? index : (index >= end ? index + delta : start);
+    }
+
     // Adjust all spans after a change in the text
 
     /**
@@ -233,17 +332,9 @@ public abstract class SyntaxHighlighterBase {
      * @return this
      */
     public synchronized SyntaxHighlighterBase fixup(final int after, final int delta) {
-        for (int i = _groups.size() - 1; i >= 0; i--) {
-            final SpanGroup group = _groups.get(i);
-            // Very simple fixup. If the group is entirely after 'after', adjust it's region
-            if (group.start <= after) {
-                // We iterate backwards. As groups are sorted, if start is before after, can break out
-                break;
-            } else {
-                group.start += delta;
-                group.end += delta;
-            }
-        }
+        // Very simple fixup. If the group is entirely after 'after', adjust it's region
+        // Groups starting in a removed region are moved to its start
+        _groups.shift(after, delta);
         return this;
     }
 
@@ -270,24 +361,15 @@ public abstract class SyntaxHighlighterBase {
             return this;
         }
 
-        for (int i = 0; i < _groups.size(); i++) {
-            final SpanGroup group = _groups.get(i);
-
-            if (group.isStatic) {
-                continue;
-            }
-
-            if (group.start >= range[1]) {
-                // As we are sorted on start, we can break out after the first group.start > end
-                break;
-            }
-
-            final boolean valid = group.start >= 0 && group.end > range[0] && group.end <= length;
-            if (valid && !_appliedDynamic.contains(i)) {
+        _groups.forEachIntersecting(range[0], range[1], group -> {
+            final boolean valid = group.start >= 0 && group.end > group.start && group.end <= length;
+            if (valid && !group.isStatic && !group.isApplied) {
                 _spannable.setSpan(group.span, group.start, group.end, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-                _appliedDynamic.add(i);
+                group.isApplied = true;
+                _appliedDynamic.add(group);
             }
-        }
+            return true;
+        });
 
         return this;
     }
@@ -297,12 +379,12 @@ public abstract class SyntaxHighlighterBase {
             return this;
         }
 
-        for (int i = 0; i < _groups.size(); i++) {
-            final SpanGroup group = _groups.get(i);
+        _groups.forEach(group -> {
             if (group.isStatic) {
                 _spannable.setSpan(group.span, group.start, group.end, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
             }
-        }
+            return true;
+        });
 
         _staticApplied = true;
 
@@ -329,34 +411,489 @@ public abstract class SyntaxHighlighterBase {
      * @return this
      */
     public synchronized final SyntaxHighlighterBase recompute() {
+        _job = null;
         _groups.clear();
-        _appliedDynamic.clear();
+        _windows.clear();
+        clearAppliedDynamic();
         _staticApplied = false;
+        _recomputeRequired = false;
+        _dirty = null;
 
         if (TextUtils.isEmpty(_spannable)) {
             return this;
         }
 
-        // Highlighting cannot generate exceptions!
-        try {
-            generateSpans();
-            Collections.sort(_groups); // Dramatically improves performance
-        } catch (Exception ex) {
-            Log.w(getClass().getName(), ex);
-        } catch (Error er) {
-            Log.w(getClass().getName(), er);
-        }
+        final List<SpanGroup> computed = new ArrayList<>();
+        generate(_spannable, null, computed, null);
+        Collections.sort(computed, START_ORDER);
+        _groups.replaceAll(computed);
 
         return this;
     }
 
+    /**
+     * Recompute spans only for the region edited since the last recompute, as widened by
+     * {@link #getRecomputeRegion}. Spans outside of this region are kept.
+     * Dynamic spans are cleared, caller is responsible for applying them again.
+     * <p>
+     * Not possible if the highlighter does not support it, nothing was computed yet,
+     * the region touches a span which reaches outside of it (i.e. a construct spanning many lines),
+     * contains one of the {@link #getBlockDelimiters()} or a span computed for it reaches its boundary.
+     *
+     * @return false if a full recompute is required
+     */
+    public synchronized final boolean recomputeDirty() {
+        if (_recomputeRequired || _spannable == null) {
+            return false;
+        } else if (_dirty == null) {
+            return true; // Nothing changed
+        }
+
+        final int[] region = findRecomputeRegion();
+        if (region == null) {
+            return false;
+        }
+
+        _job = null;
+        final List<SpanGroup> computed = new ArrayList<>();
+        generate(_spannable, region, computed, null);
+        if (reachesOutside(_spannable, region, computed)) {
+            return false;
+        }
+        mergeGroups(region, computed);
+
+        return true;
+    }
+
+    /**
+     * Recompute spans on a background thread, working on an immutable copy of the text.
+     * Only the region edited since the last recompute is computed if possible, see {@link #recomputeDirty()}.
+     * <p>
+     * Results are applied on the main thread, but only if the text has not changed in the meantime
+     * and no other computation was requested. Otherwise they are dropped - the change which made them
+     * stale is expected to request a new computation. Computations which turn stale are stopped early.
+     * <p>
+     * Dynamic spans are cleared when results are applied, static spans are applied.
+     *
+     * @param onApplied Called on the main thread after results were applied. Use to apply dynamic spans.
+     */
+    public void recomputeAsync(@Nullable final GsCallback.a0 onApplied) {
+        recomputeAsync(null, onApplied);
+    }
+
+    /**
+     * Like {@link #recomputeAsync(GsCallback.a0)}, but in windowed mode only spans for window
+     * (extended by a margin) are computed, if not already cached. See {@link #setWindowed}.
+     *
+     * @param window Region of the text which should be highlighted, i.e. the visible region. Ignored if not windowed.
+     */
+    public synchronized void recomputeAsync(@Nullable final int[] window, @Nullable final GsCallback.a0 onApplied) {
+        if (_spannable == null) {
+            return;
+        }
+
+        final Job job;
+        if (_windowed && window != null) {
+            job = createWindowJob(window, onApplied);
+        } else if (!_recomputeRequired && _dirty == null) {
+            job = null; // Nothing changed
+        } else {
+            job = new Job(_generation, snapshot(), _recomputeRequired ? null : findRecomputeRegion(), onApplied);
+        }
+
+        _job = job;
+        if (job != null) {
+            WORKER.execute(job);
+        } else if (onApplied != null) {
+            onApplied.callback();
+        }
+    }
+
+    // Job computing the parts of window (and edited regions in it) which are not computed yet, null if there are none
+    private Job createWindowJob(final int[] window, @Nullable final GsCallback.a0 onApplied) {
+        final int length = _spannable.length();
+        final int[] want = {Math.max(0, window[0] - WINDOW_MARGIN), Math.min(length, window[1] + WINDOW_MARGIN)};
+        if (want[0] >= want[1]) {
+            return null;
+        } else if (_recomputeRequired) {
+            return windowJob(windowRegion(want), onApplied, true);
+        }
+
+        int[] region = null;
+        if (_dirty != null) {
+            final int[] edited = windowRegion(_dirty);
+            if (edited[0] < want[1] && edited[1] > want[0]) {
+                region = edited;
+            } else {
+                // Out of sight, computed when scrolled to
+                removeWindows(edited);
+            }
+        }
+
+        // Hull of the parts of want not covered by windows
+        int first = -1, last = -1, pos = want[0];
+        for (final int[] w : _windows) {
+            if (w[1] <= pos || w[0] >= want[1]) {
+                continue;
+            }
+            if (w[0] > pos) {
+                first = first < 0 ? pos : first;
+                last = w[0];
+            }
+            pos = Math.max(pos, w[1]);
+        }
+        if (pos < want[1]) {
+            first = first < 0 ? pos : first;
+            last = want[1];
+        }
+
+        if (first >= 0) {
+            final int[] uncovered = windowRegion(new int[]{first, last});
+            region = region == null ? uncovered : new int[]{Math.min(region[0], uncovered[0]), Math.max(region[1], uncovered[1])};
+        }
+
+        if (region == null) {
+            _dirty = null; // Everything handled
+            return null;
+        }
+
+        // Groups are replaced by start, so none may cross the boundary. Otherwise start over with this window
+        final int[] widened = widenOverGroups(region);
+        return widened != null ? windowJob(widened, onApplied, false) : windowJob(windowRegion(want), onApplied, true);
+    }
+
+    // Widen region until no group crosses its boundary, null if it grows beyond the window cache size
+    private int[] widenOverGroups(int[] region) {
+        while (true) {
+            final int[] hull = region.clone();
+            _groups.forEachIntersecting(region[0], region[1], group -> {
+                hull[0] = Math.min(hull[0], group.start);
+                hull[1] = Math.max(hull[1], group.end);
+                return true;
+            });
+            if (hull[0] == region[0] && hull[1] == region[1]) {
+                return region;
+            } else if (hull[1] - hull[0] > WINDOW_CACHE_SIZE) {
+                return null;
+            }
+            region = windowRegion(hull);
+        }
+    }
+
+    // Job for a window, working on a copy of the text around it only. O(1) for piece tables, which copy nothing
+    private Job windowJob(final int[] region, @Nullable final GsCallback.a0 onApplied, final boolean isReset) {
+        if (_spannable instanceof PieceTableEditable) {
+            return new Job(_generation, snapshot(), 0, region, onApplied, isReset);
+        }
+        final int start = Math.max(0, region[0] - WINDOW_CONTEXT), end = Math.min(_spannable.length(), region[1] + WINDOW_CONTEXT);
+        return new Job(_generation, TextViewUtils.toString(_spannable, start, end), start, region, onApplied, isReset);
+    }
+
+    // Immutable copy of the text for jobs. O(1) for piece tables
+    private CharSequence snapshot() {
+        return _spannable instanceof PieceTableEditable ? ((PieceTableEditable) _spannable).snapshot() : _spannable.toString();
+    }
+
+    // Range widened to a region which can be computed on its own
+    private int[] windowRegion(final int[] range) {
+        final int[] region = getRecomputeRegion(_spannable, range);
+        return TextViewUtils.checkRange(_spannable.length(), region) ? region : lineRegion(_spannable, range);
+    }
+
+    // Add a computed region to the windows, merging it with overlapping or adjacent ones
+    private void addWindow(final int[] region) {
+        final int[] merged = region.clone();
+        int insertAt = 0;
+        for (int i = 0; i < _windows.size(); i++) {
+            final int[] w = _windows.get(i);
+            if (w[1] < merged[0]) {
+                insertAt = i + 1;
+            } else if (w[0] <= merged[1]) {
+                merged[0] = Math.min(merged[0], w[0]);
+                merged[1] = Math.max(merged[1], w[1]);
+                _windows.remove(i--);
+            }
+        }
+        _windows.add(insertAt, merged);
+    }
+
+    // Evict windows farthest from keep, until the cache size is within limits
+    private void evictWindows(final int[] keep) {
+        int size = 0;
+        for (final int[] w : _windows) {
+            size += w[1] - w[0];
+        }
+
+        while (size > WINDOW_CACHE_SIZE && _windows.size() > 1) {
+            int farthest = -1, maxDistance = 0;
+            for (int i = 0; i < _windows.size(); i++) {
+                final int[] w = _windows.get(i);
+                final int distance = Math.max(w[0] - keep[1], keep[0] - w[1]);
+                if (distance > maxDistance) {
+                    farthest = i;
+                    maxDistance = distance;
+                }
+            }
+            if (farthest < 0) {
+                break; // All windows touch keep
+            }
+            final int[] w = _windows.get(farthest);
+            size -= w[1] - w[0];
+            removeWindows(w);
+        }
+    }
+
+    // Remove windows intersecting region together with their groups
+    private void removeWindows(final int[] region) {
+        boolean removedApplied = false;
+        for (int i = _windows.size() - 1; i >= 0; i--) {
+            final int[] w = _windows.get(i);
+            if (w[0] < region[1] && w[1] > region[0]) {
+                _windows.remove(i);
+                for (final SpanGroup group : _groups.replace(w[0], w[1], Collections.emptyList())) {
+                    _spannable.removeSpan(group.span);
+                    removedApplied |= group.isApplied;
+                    group.isApplied = false;
+                }
+            }
+        }
+
+        if (removedApplied) {
+            final Iterator<SpanGroup> it = _appliedDynamic.iterator();
+            while (it.hasNext()) {
+                if (!it.next().isApplied) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    // Region which has to be recomputed to cover the dirty region, null if a full recompute is required
+    private int[] findRecomputeRegion() {
+        final int length = _spannable.length();
+        final int[] region = getRecomputeRegion(_spannable, _dirty);
+        if (region == null || !TextViewUtils.checkRange(length, region) || (region[1] - region[0]) > length / 2) {
+            return null; // Full recompute is required or cheaper
+        }
+
+        final boolean[] crossing = {false};
+        _groups.forEachIntersecting(region[0], region[1], group -> {
+            crossing[0] = group.start < region[0] || group.end > region[1];
+            return !crossing[0];
+        });
+
+        return crossing[0] || containsBlockDelimiter(_spannable, region) ? null : region;
+    }
+
+    // Whether a delimiter of a construct which may span many paragraphs is in region of text
+    private boolean containsBlockDelimiter(final CharSequence text, final int[] region) {
+        final String[] delimiters = getBlockDelimiters();
+        if (delimiters.length == 0) {
+            return false;
+        }
+        final String regionText = TextViewUtils.toString(text, region[0], region[1]);
+        for (final String delimiter : delimiters) {
+            if (regionText.contains(delimiter)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Whether a group computed for region spans several lines and reaches its boundary.
+     * Such a construct may have been cut by the region, or may have continued outside of it,
+     * so the region is not enough to recompute it.
+     */
+    private static boolean reachesOutside(final CharSequence text, final int[] region, final List<SpanGroup> computed) {
+        final int length = text.length();
+        for (final SpanGroup group : computed) {
+            final boolean touches = (region[0] > 0 && group.start <= region[0]) || (region[1] < length && group.end >= region[1]);
+            if (touches && TextUtils.indexOf(text, '\n', group.start + 1, Math.max(group.start + 1, group.end - 1)) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Replace all groups in region by computed groups. Computed groups must be from the current text.
+     * Replaces all groups if region is null. In that case all static spans are cleared and
+     * caller is responsible for applying static spans again.
+     */
+    private void mergeGroups(@Nullable final int[] region, final List<SpanGroup> computed) {
+        clearDynamic();
+        Collections.sort(computed, START_ORDER);
+
+        if (region == null) {
+            clearStatic();
+            _groups.replaceAll(computed);
+        } else {
+            // No group crosses the region boundary, see findRecomputeRegion and widenOverGroups
+            for (final SpanGroup group : _groups.replace(region[0], region[1], computed)) {
+                if (_staticApplied && group.isStatic) {
+                    _spannable.removeSpan(group.span);
+                }
+            }
+
+            for (final SpanGroup group : computed) {
+                if (_staticApplied && group.isStatic) {
+                    _spannable.setSpan(group.span, group.start, group.end, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                }
+            }
+        }
+
+        _recomputeRequired = false;
+        _dirty = null;
+    }
+
+    // Generate spans for text in region (or the whole text if region is null) into target
+    private void generate(final CharSequence text, @Nullable final int[] region, final List<SpanGroup> target, @Nullable final Job job) {
+        if (TextUtils.isEmpty(text)) {
+            return;
+        }
+
+        synchronized (_generateLock) {
+            _text = text;
+            _region = region;
+            _target = target;
+            _generating = job;
+
+            // Highlighting cannot generate exceptions!
+            try {
+                generateSpans();
+            } catch (Exception ex) {
+                Log.w(getClass().getName(), ex);
+            } catch (Error er) {
+                Log.w(getClass().getName(), er);
+            } finally {
+                _text = null;
+                _region = null;
+                _target = null;
+                _generating = null;
+            }
+        }
+    }
+
+    // Whether spans currently generated will be thrown away anyway. Check this in long running generateSpans
+    protected final boolean isGenerateCancelled() {
+        return _generating != null && _generating.isStale();
+    }
+
+    // A computation of spans from a snapshot of the text
+    private class Job implements Runnable {
+        final int generation;
+        final CharSequence text;
+        final int offset;         // Of text in the highlighted text
+        final int[] region;
+        final GsCallback.a0 onApplied;
+        final boolean isWindow;   // Computes a window in windowed mode
+        boolean isReset;          // Replaces all spans and windows, set when a region turns out not to be enough
+        final List<SpanGroup> computed = new ArrayList<>();
+
+        Job(final int generation, final CharSequence text, final int[] region, final GsCallback.a0 onApplied) {
+            this(generation, text, 0, region, onApplied, false, region == null);
+        }
+
+        Job(final int generation, final CharSequence text, final int offset, final int[] window, final GsCallback.a0 onApplied, final boolean isReset) {
+            this(generation, text, offset, window, onApplied, true, isReset);
+        }
+
+        private Job(final int generation, final CharSequence text, final int offset, final int[] region, final GsCallback.a0 onApplied, final boolean isWindow, final boolean isReset) {
+            this.generation = generation;
+            this.text = text;
+            this.offset = offset;
+            this.region = region;
+            this.onApplied = onApplied;
+            this.isWindow = isWindow;
+            this.isReset = isReset;
+        }
+
+        boolean isStale() {
+            return _job != this || _generation != generation;
+        }
+
+        @Override
+        public void run() {
+            if (!isStale()) {
+                generate(text, region != null ? new int[]{region[0] - offset, region[1] - offset} : null, computed, this);
+                if (offset != 0) {
+                    for (final SpanGroup group : computed) {
+                        group.start += offset;
+                        group.end += offset;
+                    }
+                }
+                if (!isWindow && region != null && !isStale() && reachesOutside(text, region, computed)) {
+                    computed.clear();
+                    isReset = true;
+                    generate(text, null, computed, this);
+                }
+                if (!isStale()) {
+                    new Handler(Looper.getMainLooper()).post(this::apply);
+                }
+            }
+        }
+
+        // Main thread
+        private void apply() {
+            synchronized (SyntaxHighlighterBase.this) {
+                if (isStale()) {
+                    return;
+                }
+                _job = null;
+                mergeGroups(isReset ? null : region, computed);
+                if (isWindow) {
+                    if (isReset) {
+                        _windows.clear();
+                    }
+                    addWindow(region);
+                    evictWindows(region);
+                }
+                applyStatic();
+            }
+
+            if (onApplied != null) {
+                onApplied.callback();
+            }
+        }
+    }
+
+    // Helpers for getRecomputeRegion
+    // ---------------------------------------------------------------------------------------------
+
+    // Region of all paragraphs (blocks separated by empty lines) touched by dirty
+    protected static int[] paragraphRegion(final CharSequence text, final int[] dirty) {
+        final int length = text.length();
+        final int start = TextViewUtils.getParagraphStart(text, Math.min(Math.max(dirty[0], 0), length));
+        final int end = TextViewUtils.getParagraphEnd(text, Math.min(Math.max(dirty[1], 0), length));
+        return withSurroundingNewlines(length, start, end);
+    }
+
+    // Region of all lines touched by dirty
+    protected static int[] lineRegion(final CharSequence text, final int[] dirty) {
+        final int length = text.length();
+        final int start = TextViewUtils.getLineStart(text, Math.min(Math.max(dirty[0], 0), length));
+        final int end = TextViewUtils.getLineEnd(text, Math.min(Math.max(dirty[1], 0), length));
+        return withSurroundingNewlines(length, start, end);
+    }
+
+    // Include the newlines around a region, so patterns matching '(\n|^)' or a trailing '\n' work as on the whole text
+    private static int[] withSurroundingNewlines(final int length, final int start, final int end) {
+        return new int[]{Math.max(start - 1, 0), Math.min(end + 1, length)};
+    }
+
     //
     // Helpers for creating spans
     //
 
+    // Region of _text spans are generated for. Spans must start and end within it
+    protected final int[] getGenerateRegion() {
+        return _region != null ? _region : new int[]{0, _text.length()};
+    }
+
     protected final void addSpanGroup(final Object span, final int start, final int end) {
         if (end > start && span != null) {
-            _groups.add(new SpanGroup(span, start, end));
+            _target.add(new SpanGroup(span, start, end));
         }
     }
 
@@ -364,9 +901,13 @@ public abstract class SyntaxHighlighterBase {
         if (groupsToMatch == null || groupsToMatch.length < 1) {
             groupsToMatch = new int[]{0};
         }
-        final Matcher m = pattern.matcher(_spannable);
+        final Matcher m = pattern.matcher(_text);
+        if (_region != null) {
+            // Lookarounds and anchors see beyond the region, so matches are the same as on the whole text
+            m.region(_region[0], _region[1]).useTransparentBounds(true).useAnchoringBounds(false);
+        }
 
-        while (m.find()) {
+        while (!isGenerateCancelled() && m.find()) {
             final Object span = creator.callback(m);
             if (span != null) {
                 for (final int g : groupsToMatch) {
@@ -405,7 +946,12 @@ public abstract class SyntaxHighlighterBase {
     }
 
     protected final void createReplacementSpanForMatches(final Pattern pattern, final int charWidth, int... groupsToMatch) {
-        createSpanForMatches(pattern, matcher -> new ReplacementSpan() {
+        createSpanForMatches(pattern, matcher -> createBlankSpan(charWidth), groupsToMatch);
+    }
+
+    // Span which shows text as blank space of the given width
+    protected static ReplacementSpan createBlankSpan(final int charWidth) {
+        return new ReplacementSpan() {
             @Override
             public int getSize(@NonNull Paint paint, CharSequence text, int start, int end, Paint.FontMetricsInt fm) {
                 return charWidth;
@@ -414,7 +960,7 @@ public abstract class SyntaxHighlighterBase {
             @Override
             public void draw(@NonNull Canvas canvas, CharSequence text, int start, int end, float x, int top, int y, int bottom, @NonNull Paint paint) {
             }
-        }, groupsToMatch);
+        };
     }
 
     protected final void createMonospaceSpanForMatches(final Pattern pattern, int... groupsToMatch) {
@@ -444,7 +990,11 @@ public abstract class SyntaxHighlighterBase {
     }
 
     protected final void createSmallBlueLinkSpans() {
-        createSpanForMatches(Patterns.WEB_URL, new HighlightSpan().setForeColor(0xff1ea3fd).setItalic(true).setTextSize(_textSize * 0.85f));
+        createSpanForMatches(Patterns.WEB_URL, createSmallBlueLinkSpan());
+    }
+
+    protected final HighlightSpan createSmallBlueLinkSpan() {
+        return new HighlightSpan().setForeColor(0xff1ea3fd).setItalic(true).setTextSize(_textSize * 0.85f);
     }
 
     protected final void createUnderlineHexColorsSpans() {
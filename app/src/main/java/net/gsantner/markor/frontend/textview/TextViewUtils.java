@@ -64,6 +64,10 @@ public final class TextViewUtils extends GsTextUtils {
     public static int getLineStart(CharSequence s, int start, int minRange) {
         int i = start;
         if (isValidIndex(s, start - 1, minRange)) {
+            final LineIndex index = LineIndex.get(s);
+            if (index != null) {
+                return Math.max(minRange, index.getLineStart(index.getLineForOffset(start)));
+            }
             for (; i > minRange; i--) {
                 if (s.charAt(i - 1) == '\n') {
                     break;
@@ -81,6 +85,10 @@ public final class TextViewUtils extends GsTextUtils {
     public static int getLineEnd(CharSequence s, int start, int maxRange) {
         int i = start;
         if (isValidIndex(s, start, maxRange - 1)) {
+            final LineIndex index = LineIndex.get(s);
+            if (index != null) {
+                return Math.min(maxRange, index.getLineEnd(index.getLineForOffset(start)));
+            }
             for (; i < maxRange; i++) {
                 if (s.charAt(i) == '\n') {
                     break;
@@ -91,6 +99,25 @@ public final class TextViewUtils extends GsTextUtils {
         return i;
     }
 
+    // Start of the paragraph (block of lines separated by empty lines) containing start
+    public static int getParagraphStart(final CharSequence s, final int start) {
+        int i = getLineStart(s, start);
+        while (i > 1 && s.charAt(i - 2) != '\n') {
+            i = getLineStart(s, i - 1);
+        }
+        return i;
+    }
+
+    // End of the paragraph (block of lines separated by empty lines) containing end
+    public static int getParagraphEnd(final CharSequence s, final int end) {
+        final int length = s.length();
+        int i = getLineEnd(s, end);
+        while (i < length - 1 && s.charAt(i + 1) != '\n') {
+            i = getLineEnd(s, i + 1);
+        }
+        return i;
+    }
+
     public static int getLastNonWhitespace(final CharSequence s, final int start) {
         for (int i = Math.min(s.length() - 1, start); i >= 0; i--) {
             char c = s.charAt(i);
@@ -157,7 +184,8 @@ public final class TextViewUtils extends GsTextUtils {
      */
     public static int[] getLineOffsetFromIndex(final CharSequence s, int p) {
         p = Math.min(Math.max(p, 0), s.length());
-        final int line = countChars(s, 0, p, '\n')[0];
+        final LineIndex index = LineIndex.get(s);
+        final int line = index != null ? index.getLineForOffset(p) : countChars(s, 0, p, '\n')[0];
         final int offset = getLineEnd(s, p) - p;
 
         return new int[]{line, offset};
@@ -176,6 +204,15 @@ public final class TextViewUtils extends GsTextUtils {
      * @return index in s
      */
     public static int getIndexFromLineOffset(final CharSequence s, final int l, final int e) {
+        final LineIndex index = LineIndex.get(s);
+        if (index != null && l >= 0) {
+            if (l >= index.getLineCount()) {
+                return s.length();
+            }
+            final int start = index.getLineStart(l), end = index.getLineEnd(l);
+            return end - Math.min(e, end - start);
+        }
+
         int i = 0, count = 0;
         if (s != null) {
             if (l > 0) {
@@ -431,7 +468,7 @@ public final class TextViewUtils extends GsTextUtils {
     public static class ChunkedEditable implements Editable {
 
         private final Editable original;
-        private StringBuilder copy;
+        private PieceTableEditable copy;
         private int _startSkip = 0;
         private int _endSkip = 0;
 
@@ -467,7 +504,8 @@ public final class TextViewUtils extends GsTextUtils {
                 if (copy == null) {
                     // All operations will now run on copy
                     // SpannableStringBuilder maintains spans etc
-                    copy = new StringBuilder(original);
+                    // The copy shares the text with original if it is a piece table
+                    copy = PieceTableEditable.textOf(original);
                     _startSkip = _endSkip = copy.length();
                 }
                 _startSkip = Math.min(_startSkip, diff[0]);
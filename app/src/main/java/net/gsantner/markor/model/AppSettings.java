@@ -21,6 +21,7 @@ import androidx.annotation.IdRes;
 import androidx.annotation.RequiresApi;
 import androidx.annotation.StringRes;
 
+import net.gsantner.markor.ApplicationObject;
 import net.gsantner.markor.BuildConfig;
 import net.gsantner.markor.R;
 import net.gsantner.markor.format.FormatRegistry;
@@ -125,6 +126,10 @@ public class AppSettings extends GsSharedPreferencesPropertyBackend {
         return new File(getNotebookDirectory(), ".app/snippets");
     }
 
+    public File getUndoHistoryDirectory() {
+        return new File(_context.getFilesDir(), "undo");
+    }
+
     public String getFontFamily() {
         return getString(R.string.pref_key__font_family, rstr(R.string.default_font_family));
     }
@@ -154,6 +159,10 @@ public class AppSettings extends GsSharedPreferencesPropertyBackend {
         return getBool(R.string.pref_key__markdown__highlight_lineending_two_or_more_space, false);
     }
 
+    public boolean isMarkdownHighlightSinglePassLexer() {
+        return getBool(R.string.pref_key__markdown__highlight_single_pass_lexer, false);
+    }
+
     public boolean isHighlightCodeMonospaceFont() {
         return getBool(R.string.pref_key__highlight_code_monospace_font, false);
     }
@@ -489,8 +498,12 @@ public class AppSettings extends GsSharedPreferencesPropertyBackend {
     }
 
     public boolean getDocumentHighlightState(final String path, final CharSequence chars) {
-        final boolean lengthOk = chars != null && chars.length() < (_isDeviceGoodHardware ? 100000 : 35000);
-        return getBool(PREF_PREFIX_HIGHLIGHT_STATE + path, lengthOk && isHighlightingEnabled());
+        return getBool(PREF_PREFIX_HIGHLIGHT_STATE + path, chars != null && isHighlightingEnabled());
+    }
+
+    // Longer documents are only highlighted around the visible region
+    public int getHighlightingFullTextMaxLength() {
+        return _isDeviceGoodHardware ? 100000 : 35000;
     }
 
     public int getLastViewPositionX(File file) {
@@ -639,6 +652,14 @@ public class AppSettings extends GsSharedPreferencesPropertyBackend {
         setBool(R.string.pref_key__is_only_first_content_match, isOnlyFirstContentMatch);
     }
 
+    public boolean isSearchRanked() {
+        return getBool(R.string.pref_key__is_search_ranked, false);
+    }
+
+    public void setSearchRanked(final boolean isSearchRanked) {
+        setBool(R.string.pref_key__is_search_ranked, isSearchRanked);
+    }
+
     public int getSearchMaxDepth() {
         int depth = getIntOfStringPref(R.string.pref_key__max_search_depth, Integer.MAX_VALUE);
 
@@ -834,6 +855,12 @@ public class AppSettings extends GsSharedPreferencesPropertyBackend {
     @RequiresApi(api = Build.VERSION_CODES.M)
     public void setDefaultPassword(String password) {
         new PasswordStore(getContext()).storeKey(password, R.string.pref_key__default_encryption_password);
+        ApplicationObject.clearDecryptedData();
+    }
+
+    // Segmented files can't be read by older app versions, existing ones are read anyway
+    public boolean isEncryptionSegmented() {
+        return getBool(R.string.pref_key__is_encryption_segmented, false);
     }
 
     public boolean getNewFileDialogLastUsedEncryption() {
@@ -28,6 +28,7 @@ import net.gsantner.markor.R;
 import net.gsantner.markor.activity.MainActivity;
 import net.gsantner.markor.format.FormatRegistry;
 import net.gsantner.markor.format.markdown.MarkdownTextConverter;
+import net.gsantner.markor.frontend.textview.DocumentChangeTracker;
 import net.gsantner.markor.util.MarkorContextUtils;
 import net.gsantner.opoc.util.GsContextUtils;
 import net.gsantner.opoc.util.GsFileUtils;
@@ -41,7 +42,9 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.security.SecureRandom;
+import java.util.HashMap;
 import java.util.Locale;
+import java.util.Map;
 
 import other.de.stanetz.jpencconverter.JavaPasswordbasedCryption;
 
@@ -116,6 +119,19 @@ public class Document implements Serializable {
         }
     }
 
+    /**
+     * When files were last loaded or saved by a document, by absolute path
+     */
+    public static Map<String, Long> getTouchTimes(final Context context) {
+        final Map<String, Long> times = new HashMap<>();
+        for (final Map.Entry<String, ?> entry : context.getSharedPreferences(MOD_PREF_NAME, Context.MODE_PRIVATE).getAll().entrySet()) {
+            if (entry.getValue() instanceof Long) {
+                times.put(entry.getKey(), (Long) entry.getValue());
+            }
+        }
+        return times;
+    }
+
     private long getGlobalTouchTime() {
         initModTimePref();
         return _modTimePref.getLong(_file.getAbsolutePath(), 0);
@@ -207,33 +223,62 @@ public class Document implements Serializable {
     }
 
     private void setContentHash(final CharSequence s) {
+        final DocumentChangeTracker tracker = DocumentChangeTracker.get(s);
+        if (tracker != null) {
+            tracker.markUnmodified(s);
+        }
         _lastLength = s != null ? s.length() : 0;
-        _lastHash = s != null ? GsFileUtils.crc32(s) : 0;
+        _lastHash = tracker != null ? tracker.getBaselineHash() : (s != null ? DocumentChangeTracker.hash(s) : 0);
     }
 
     public boolean isContentSame(final CharSequence s) {
-        return s != null && s.length() == _lastLength && _lastHash == GsFileUtils.crc32(s);
+        if (s == null || s.length() != _lastLength) {
+            return false;
+        }
+        // Only changed chunks are compared if the text tracks changes since our last load / save
+        final DocumentChangeTracker tracker = DocumentChangeTracker.get(s);
+        if (tracker != null && tracker.getBaselineHash() == _lastHash && tracker.getBaselineLength() == _lastLength) {
+            return !tracker.isModified(s);
+        }
+        return _lastHash == DocumentChangeTracker.hash(s);
     }
 
     public synchronized @Nullable
     String loadContent(final Context context) {
+        // Unchanged files are taken from the cache, without reading and decrypting them again.
+        // Decrypted contents only if they were decrypted with the current password
+        final long modTime = fileModTime(), size = fileBytes();
+        final boolean isTextEncrypted = !isBinaryFileNoTextLoading() && isEncrypted();
+        final char[] pw = isTextEncrypted ? getPasswordWithWarning(context) : null;
+        final String passwordIdentity = pw != null ? DocumentCache.passwordIdentity(pw) : null;
+        final DocumentCache.Entry cached = isBinaryFileNoTextLoading() || (isTextEncrypted && pw == null) ? null : DocumentCache.get().get(_file, modTime, size, passwordIdentity);
+        if (cached != null) {
+            _fileInfo = cached.fileInfo;
+            _lastLength = cached.content.length();
+            _lastHash = cached.contentHash;
+            _modTime = modTime;
+            setGlobalTouchTime();
+            return cached.content;
+        }
+
         String content;
-        final char[] pw;
+        boolean cacheable = false;
 
         if (isBinaryFileNoTextLoading()) {
             content = "";
-        } else if (isEncrypted() && (pw = getPasswordWithWarning(context)) != null) {
+        } else if (pw != null) {
             try {
-                final byte[] encryptedContext = GsFileUtils.readCloseStreamWithSize(new FileInputStream(_file), (int) _file.length());
-                if (encryptedContext.length > JavaPasswordbasedCryption.Version.NAME_LENGTH) {
-                    content = JavaPasswordbasedCryption.getDecryptedText(encryptedContext, pw);
+                // Decrypted while reading, segmented files are not kept in memory encrypted
+                if (_file.length() > JavaPasswordbasedCryption.Version.NAME_LENGTH) {
+                    content = JavaPasswordbasedCryption.getDecryptedText(new FileInputStream(_file), pw);
                 } else {
-                    content = new String(encryptedContext, StandardCharsets.UTF_8);
+                    content = new String(GsFileUtils.readCloseStreamWithSize(new FileInputStream(_file), (int) _file.length()), StandardCharsets.UTF_8);
                 }
+                cacheable = true;
             } catch (FileNotFoundException e) {
                 Log.e(Document.class.getName(), "loadDocument:  File " + _file + " not found.");
                 content = "";
-            } catch (JavaPasswordbasedCryption.EncryptionFailedException | IllegalArgumentException e) {
+            } catch (IOException | JavaPasswordbasedCryption.EncryptionFailedException | IllegalArgumentException e) {
                 Toast.makeText(context, R.string.could_not_decrypt_file_content_wrong_password_or_is_the_file_maybe_not_encrypted, Toast.LENGTH_LONG).show();
                 Log.e(Document.class.getName(), "loadDocument:  decrypt failed for File " + _file + ". " + e.getMessage(), e);
                 content = "";
@@ -247,6 +292,7 @@ public class Document implements Serializable {
             }
             content = result.first;
             _fileInfo = result.second;
+            cacheable = !isEncrypted();
         }
 
         if (MainActivity.IS_DEBUG_ENABLED) {
@@ -270,10 +316,22 @@ public class Document implements Serializable {
             setContentHash(content);
             _modTime = fileModTime();
             setGlobalTouchTime();
+            if (cacheable) {
+                DocumentCache.get().put(_file, modTime, size, content, _fileInfo, _lastHash, passwordIdentity);
+            }
             return content;
         }
     }
 
+    // Salt of the file when it is saved again, the key derived for it is cached. Null for new files
+    private byte[] readEncryptionSalt() {
+        try (final FileInputStream in = new FileInputStream(_file)) {
+            return JavaPasswordbasedCryption.readSalt(in);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
     @RequiresApi(api = Build.VERSION_CODES.M)
     private static char[] getPasswordWithWarning(final Context context) {
         final char[] pw = ApplicationObject.settings().getDefaultPassword();
@@ -324,12 +382,14 @@ public class Document implements Serializable {
 
         boolean success;
         try {
+            // Plain text is encoded while writing, without a copy of the content in memory
             final char[] pw;
-            final byte[] contentAsBytes;
+            final byte[] encrypted;
             if (isEncrypted() && (pw = getPasswordWithWarning(context)) != null) {
-                contentAsBytes = new JavaPasswordbasedCryption(Build.VERSION.SDK_INT, new SecureRandom()).encrypt(content.toString(), pw);
+                encrypted = new JavaPasswordbasedCryption(Build.VERSION.SDK_INT, ApplicationObject.settings().isEncryptionSegmented(), new SecureRandom())
+                        .setSalt(readEncryptionSalt()).encrypt(content.toString(), pw);
             } else {
-                contentAsBytes = content.toString().getBytes();
+                encrypted = null;
             }
 
             cu = cu != null ? cu : new MarkorContextUtils(context);
@@ -342,11 +402,15 @@ public class Document implements Serializable {
                             fos.write(0xBB);
                             fos.write(0xBF);
                         }
-                        fos.write(contentAsBytes);
+                        if (encrypted != null) {
+                            fos.write(encrypted);
+                        } else {
+                            GsFileUtils.writeUtf8(content, fos);
+                        }
 
                         // Also overwrite content resolver proxy file in addition to writing back to the origin
                         if (isContentResolverProxyFile) {
-                            GsFileUtils.writeFile(_file, contentAsBytes, _fileInfo);
+                            writeFileAtomic(content, encrypted);
                         }
                     } catch (Exception e) {
                         Log.i(Document.class.toString(), e.getMessage());
@@ -354,17 +418,15 @@ public class Document implements Serializable {
                 });
                 success = true;
             } else {
-                // Try write 2x
-                success = GsFileUtils.writeFile(_file, contentAsBytes, _fileInfo);
-                if (!success || fileBytes() < contentAsBytes.length) {
-                    success = GsFileUtils.writeFile(_file, contentAsBytes, _fileInfo);
-                }
+                // Written to a temporary file and renamed, the file is never left half written
+                success = writeFileAtomic(content, encrypted);
             }
 
-            final long size = fileBytes();
-            if (fileBytes() < contentAsBytes.length) {
+            // Each char is at least one byte in UTF-8
+            final long size = fileBytes(), minSize = encrypted != null ? encrypted.length : content.length();
+            if (size < minSize) {
                 success = false;
-                Log.i(Document.class.getName(), "File write failed; size = " + size + "; length = " + contentAsBytes.length + "; file=" + _file);
+                Log.i(Document.class.getName(), "File write failed; size = " + size + "; length = " + minSize + "; file=" + _file);
             }
 
         } catch (JavaPasswordbasedCryption.EncryptionFailedException e) {
@@ -374,6 +436,7 @@ public class Document implements Serializable {
         }
 
         if (success) {
+            DocumentCache.get().remove(_file);
             setContentHash(content);
             _modTime = fileModTime();
             setGlobalTouchTime();
@@ -384,6 +447,38 @@ public class Document implements Serializable {
         return success;
     }
 
+    /**
+     * Append separator and text to the end of the document, after removing its trailing line breaks.
+     * Plain text files are appended to in place, without loading or rewriting the existing content.
+     * Encrypted files and files of the storage access framework are loaded, modified and saved.
+     */
+    public synchronized boolean appendContent(final Activity context, final String separator, final CharSequence text) {
+        if (isBinaryFileNoTextLoading() || !testCreateParent()) {
+            return false;
+        }
+
+        final MarkorContextUtils cu = new MarkorContextUtils(context);
+        if (isEncrypted() || cu.isUnderStorageAccessFolder(context, _file, false) || cu.isContentResolverProxyFile(_file)) {
+            final String oldContent = loadContent(context);
+            if (oldContent == null) {
+                return false;
+            }
+            final String content = oldContent.replaceAll("[\\r\\n]+$", "");
+            return saveContent(context, content + (content.isEmpty() ? separator.replaceAll("^[\\r\\n]+", "") : separator) + text);
+        }
+
+        final boolean success = GsFileUtils.appendToTextFile(_file, separator, text);
+        if (success) {
+            DocumentCache.get().remove(_file);
+            setGlobalTouchTime();
+        }
+        return success;
+    }
+
+    private boolean writeFileAtomic(final CharSequence content, final byte[] encrypted) {
+        return encrypted != null ? GsFileUtils.writeFileAtomic(_file, encrypted, _fileInfo) : GsFileUtils.writeFileAtomic(_file, content, _fileInfo);
+    }
+
     public static String getMaskedContent(final String text) {
         final String httpToken = "§$§$§$§$";
         return text
@@ -0,0 +1,226 @@
+/*#######################################################
+ *
+ *   Maintained by Gregor Santner, 2017-
+ *   https://gsantner.net/
+ *
+ *   License of this file: Apache 2.0 (Commercial upon request)
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+#########################################################*/
+package net.gsantner.markor.model;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import net.gsantner.opoc.util.GsFileUtils;
+import net.gsantner.opoc.wrapper.GsCallback;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import other.de.stanetz.jpencconverter.DerivedKeyCache;
+
+/**
+ * Process-wide LRU cache of loaded document contents, so unchanged files are not read
+ * (and decrypted) again when switching between documents or recreating the editor.
+ * <p>
+ * Entries are keyed by canonical path, and for decrypted contents by the {@link #passwordIdentity} too.
+ * They are only returned while the file's modification time and size are unchanged.
+ * The cache is bounded by the total number of chars of all contents.
+ * Contents of encrypted files must be removed with {@link #clearEncrypted()} when the app is hidden.
+ * <p>
+ * Decrypted contents read by search are kept in {@link #getSearchCache()}, so a search does not evict
+ * the documents being edited. It is emptied {@link #SEARCH_IDLE_MILLIS} after the last access.
+ */
+public class DocumentCache {
+
+    public static final int DEFAULT_CHAR_BUDGET = 8 * 1024 * 1024;
+
+    public static final int SEARCH_CHAR_BUDGET = 4 * 1024 * 1024;
+    public static final long SEARCH_IDLE_MILLIS = 10 * 60 * 1000;
+
+    private static final DocumentCache INSTANCE = new DocumentCache(DEFAULT_CHAR_BUDGET);
+    private static final DocumentCache SEARCH_INSTANCE = new DocumentCache(SEARCH_CHAR_BUDGET, SEARCH_IDLE_MILLIS, System::currentTimeMillis,
+            (clear, delay) -> new Handler(Looper.getMainLooper()).postDelayed(clear, delay));
+
+    public static DocumentCache get() {
+        return INSTANCE;
+    }
+
+    public static DocumentCache getSearchCache() {
+        return SEARCH_INSTANCE;
+    }
+
+    /**
+     * Identifies the password contents were decrypted with, without revealing it
+     */
+    public static String passwordIdentity(final char[] password) {
+        return DerivedKeyCache.getInstance().passwordIdentity(DocumentCache.class.getName(), password);
+    }
+
+    public static class Entry {
+        public final String content;
+        public final GsFileUtils.FileInfo fileInfo;
+        public final long contentHash;
+        private final String _path;
+        private final long _modTime, _size;
+        private final boolean _encrypted;
+
+        private Entry(final String path, final String content, final GsFileUtils.FileInfo fileInfo, final long contentHash, final long modTime, final long size, final boolean encrypted) {
+            this.content = content;
+            this.fileInfo = fileInfo;
+            this.contentHash = contentHash;
+            _path = path;
+            _modTime = modTime;
+            _size = size;
+            _encrypted = encrypted;
+        }
+    }
+
+    private final LinkedHashMap<String, Entry> _entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final int _charBudget;
+    private final long _idleMillis;
+    private final GsCallback.r0<Long> _clock;
+    private final GsCallback.a2<Runnable, Long> _scheduler;
+    private final Runnable _idleCheck = this::clearIfIdle;
+    private long _lastAccess;
+    private boolean _isIdleCheckScheduled;
+    private int _chars;
+
+    public DocumentCache(final int charBudget) {
+        this(charBudget, 0, null, null);
+    }
+
+    /**
+     * @param idleMillis all entries are removed this long after the last access, 0 to keep them
+     * @param clock      source of the current time in milliseconds
+     * @param scheduler  runs a runnable after a delay in milliseconds, like {@link Handler#postDelayed}
+     */
+    public DocumentCache(final int charBudget, final long idleMillis, final GsCallback.r0<Long> clock, final GsCallback.a2<Runnable, Long> scheduler) {
+        _charBudget = charBudget;
+        _idleMillis = idleMillis;
+        _clock = clock;
+        _scheduler = scheduler;
+    }
+
+    // Push the idle clear back, called on every access. Only one check is scheduled at a time
+    private void touch() {
+        if (_idleMillis > 0) {
+            _lastAccess = _clock.callback();
+            if (!_isIdleCheckScheduled) {
+                _isIdleCheckScheduled = true;
+                _scheduler.callback(_idleCheck, _idleMillis);
+            }
+        }
+    }
+
+    private synchronized void clearIfIdle() {
+        final long idle = _clock.callback() - _lastAccess;
+        if (idle >= _idleMillis) {
+            _isIdleCheckScheduled = false;
+            clear();
+        } else {
+            _scheduler.callback(_idleCheck, _idleMillis - idle);
+        }
+    }
+
+    private static String key(final String path, final String passwordIdentity) {
+        return passwordIdentity == null ? path : path + '\0' + passwordIdentity;
+    }
+
+    private static String path(final File file) {
+        try {
+            return file.getCanonicalPath();
+        } catch (IOException e) {
+            return file.getAbsolutePath();
+        }
+    }
+
+    /**
+     * Cached content of file, if the file has not changed since. Null otherwise.
+     *
+     * @param passwordIdentity identity of the password for decrypted contents, null otherwise
+     */
+    public synchronized Entry get(final File file, final long modTime, final long size, final String passwordIdentity) {
+        touch();
+        final String key = key(path(file), passwordIdentity);
+        final Entry entry = _entries.get(key);
+        if (entry != null && (entry._modTime != modTime || entry._size != size)) {
+            remove(key);
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Cache content of file, as read when the file had the given modification time and size.
+     * Replaces contents of the file decrypted with other passwords. Contents larger than a quarter of the budget are not cached.
+     *
+     * @param passwordIdentity identity of the password for decrypted contents, null otherwise
+     */
+    public synchronized Entry put(final File file, final long modTime, final long size, final String content, final GsFileUtils.FileInfo fileInfo, final long contentHash, final String passwordIdentity) {
+        touch();
+        final String path = path(file);
+        removePath(path);
+        final String key = key(path, passwordIdentity);
+        final Entry entry = new Entry(path, content, fileInfo, contentHash, modTime, size, passwordIdentity != null);
+        if (content.length() <= _charBudget / 4) {
+            _entries.put(key, entry);
+            _chars += content.length();
+
+            // Evict least recently used
+            for (final Iterator<Entry> iterator = _entries.values().iterator(); _chars > _charBudget && iterator.hasNext(); ) {
+                _chars -= iterator.next().content.length();
+                iterator.remove();
+            }
+        }
+        return entry;
+    }
+
+    public synchronized void remove(final File file) {
+        removePath(path(file));
+    }
+
+    private void remove(final String key) {
+        final Entry entry = _entries.remove(key);
+        if (entry != null) {
+            _chars -= entry.content.length();
+        }
+    }
+
+    // Entries of path, with any password
+    private void removePath(final String path) {
+        for (final Iterator<Entry> iterator = _entries.values().iterator(); iterator.hasNext(); ) {
+            final Entry entry = iterator.next();
+            if (entry._path.equals(path)) {
+                _chars -= entry.content.length();
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Remove contents of encrypted files
+     */
+    public synchronized void clearEncrypted() {
+        for (final Iterator<Map.Entry<String, Entry>> iterator = _entries.entrySet().iterator(); iterator.hasNext(); ) {
+            final Entry entry = iterator.next().getValue();
+            if (entry._encrypted) {
+                _chars -= entry.content.length();
+                iterator.remove();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        _entries.clear();
+        _chars = 0;
+    }
+
+    public synchronized int getCharCount() {
+        return _chars;
+    }
+}
@@ -0,0 +1,296 @@
+/*#######################################################
+ *
+ *   Maintained by Gregor Santner, 2017-
+ *   https://gsantner.net/
+ *
+ *   License of this file: Apache 2.0 (Commercial upon request)
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+#########################################################*/
+package net.gsantner.markor.model;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Read-only view of a (huge) UTF-8 text file, which is memory-mapped instead of loaded to the heap.
+ * <p>
+ * The file is split into pages of up to {@link #LINES_PER_PAGE} lines and {@link #MAX_PAGE_BYTES} bytes.
+ * Page starts are a sparse line index, built with {@link #indexPages()} (usually on a background thread).
+ * Pages end after a line break, only a single line longer than {@link #MAX_PAGE_BYTES} is split
+ * into several pages, at UTF-8 character boundaries. Pages are decoded on demand.
+ * Pages can be queried while indexing is in progress, {@link #getPageCount()} grows as the file is indexed.
+ */
+public class MappedTextFile implements Closeable {
+
+    public static final int LINES_PER_PAGE = 100;
+    public static final int MAX_PAGE_BYTES = 64 * 1024;
+    private static final long SEGMENT_SIZE = 1 << 30; // Max size of one mapping
+
+    private final RandomAccessFile _file;
+    private final MappedByteBuffer[] _segments;
+    private final long _length;
+
+    // Sparse line index: start offset and first line of each page
+    private long[] _pageStarts = new long[64];
+    private long[] _pageLines = new long[64];
+    private volatile int _pageCount;
+    private volatile boolean _indexed;
+    private volatile boolean _closed;
+
+    public MappedTextFile(final File file) throws IOException {
+        _file = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel channel = _file.getChannel();
+            _length = channel.size();
+            _segments = new MappedByteBuffer[(int) ((_length + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+            for (int i = 0; i < _segments.length; i++) {
+                final long start = i * SEGMENT_SIZE;
+                _segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, _length - start));
+            }
+        } catch (IOException e) {
+            _file.close();
+            throw e;
+        }
+        addPage(skipBom(), 0);
+    }
+
+    public long length() {
+        return _length;
+    }
+
+    private byte get(final long offset) {
+        return _segments[(int) (offset / SEGMENT_SIZE)].get((int) (offset % SEGMENT_SIZE));
+    }
+
+    private long skipBom() {
+        return _length >= 3 && get(0) == (byte) 0xEF && get(1) == (byte) 0xBB && get(2) == (byte) 0xBF ? 3 : 0;
+    }
+
+    // UTF-8 continuation bytes are 10xxxxxx
+    private long toCharBoundary(long offset) {
+        while (offset < _length && (get(offset) & 0xC0) == 0x80) {
+            offset++;
+        }
+        return offset;
+    }
+
+    // Line index
+    // ---------------------------------------------------------------------------------------------
+
+    private synchronized void addPage(final long start, final long line) {
+        if (_pageCount == _pageStarts.length) {
+            _pageStarts = Arrays.copyOf(_pageStarts, 2 * _pageCount);
+            _pageLines = Arrays.copyOf(_pageLines, 2 * _pageCount);
+        }
+        _pageStarts[_pageCount] = start;
+        _pageLines[_pageCount] = line;
+        _pageCount++;
+    }
+
+    /**
+     * Scan the file for page starts. Returns early if closed, see {@link #isIndexed()}.
+     */
+    public void indexPages() {
+        if (_indexed) {
+            return;
+        }
+        long pageStart = _pageStarts[_pageCount - 1], line = _pageLines[_pageCount - 1];
+        long lineStart = pageStart; // Start of the last line of the page
+        int pageLines = 0;
+        for (long offset = pageStart; offset < _length && !_closed; ) {
+            // Scan a segment at once, absolute get of the buffer is much faster than get(offset)
+            final MappedByteBuffer segment = _segments[(int) (offset / SEGMENT_SIZE)];
+            final long segmentStart = offset - offset % SEGMENT_SIZE;
+            final int end = segment.limit();
+            int i = (int) (offset - segmentStart);
+            for (; i < end; i++) {
+                if (segment.get(i) == '\n') {
+                    line++;
+                    lineStart = segmentStart + i + 1;
+                    if (++pageLines == LINES_PER_PAGE) {
+                        pageStart = lineStart;
+                        pageLines = 0;
+                        addPage(pageStart, line);
+                    }
+                } else if (segmentStart + i - pageStart >= MAX_PAGE_BYTES) {
+                    if (lineStart > pageStart) {
+                        // End the page before the line which does not fit anymore
+                        pageStart = lineStart;
+                    } else {
+                        // A single line longer than a page
+                        i = (int) (toCharBoundary(segmentStart + i) - segmentStart) - 1;
+                        pageStart = lineStart = segmentStart + i + 1;
+                    }
+                    pageLines = 0;
+                    addPage(pageStart, line);
+                }
+            }
+            offset = segmentStart + i;
+        }
+        if (!_closed) {
+            // Drop a trailing empty page (file ending with a line break at a page boundary)
+            if (_pageCount > 1 && _pageStarts[_pageCount - 1] >= _length) {
+                _pageCount--;
+            }
+            _indexed = true;
+        }
+    }
+
+    public boolean isIndexed() {
+        return _indexed;
+    }
+
+    /**
+     * Number of pages indexed so far. While indexing, only complete pages are counted.
+     */
+    public int getPageCount() {
+        return _indexed ? _pageCount : _pageCount - 1;
+    }
+
+    public synchronized long getPageStart(final int page) {
+        return _pageStarts[page];
+    }
+
+    public synchronized long getPageEnd(final int page) {
+        return page + 1 < _pageCount ? _pageStarts[page + 1] : _length;
+    }
+
+    /**
+     * First line (0-based) of page
+     */
+    public synchronized long getPageFirstLine(final int page) {
+        return _pageLines[page];
+    }
+
+    /**
+     * Page containing offset, or -1 if not indexed yet
+     */
+    public synchronized int getPageForOffset(final long offset) {
+        if (!_indexed && (offset >= _pageStarts[_pageCount - 1] || _pageCount < 2)) {
+            return -1;
+        }
+        final int index = Arrays.binarySearch(_pageStarts, 0, _pageCount, offset);
+        return Math.max(0, index >= 0 ? index : -index - 2);
+    }
+
+    /**
+     * Page containing line (0-based), or -1 if not indexed yet
+     */
+    public synchronized int getPageForLine(final long line) {
+        if (!_indexed && (line >= _pageLines[_pageCount - 1] || _pageCount < 2)) {
+            return -1;
+        }
+        final int index = Arrays.binarySearch(_pageLines, 0, _pageCount, line);
+        int page = Math.max(0, index >= 0 ? index : -index - 2);
+        while (index >= 0 && page > 0 && _pageLines[page - 1] == line) {
+            page--; // Pages split within a long line share the first line
+        }
+        return page;
+    }
+
+    /**
+     * Line (0-based) containing offset, or -1 if not indexed yet
+     */
+    public long getLineForOffset(final long offset) {
+        final int page = getPageForOffset(offset);
+        if (page < 0) {
+            return -1;
+        }
+        long line = getPageFirstLine(page);
+        for (long i = getPageStart(page); i < offset; i++) {
+            if (get(i) == '\n') {
+                line++;
+            }
+        }
+        return line;
+    }
+
+    // Content
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Decode bytes [start, end), both moved forward to character boundaries
+     */
+    public String decode(long start, long end) {
+        start = toCharBoundary(Math.max(0, start));
+        end = toCharBoundary(Math.min(_length, end));
+        if (end <= start) {
+            return "";
+        }
+        final byte[] bytes = new byte[(int) (end - start)];
+        for (int done = 0; done < bytes.length; ) {
+            final long offset = start + done;
+            final MappedByteBuffer segment = _segments[(int) (offset / SEGMENT_SIZE)];
+            final int position = (int) (offset % SEGMENT_SIZE);
+            final int count = Math.min(bytes.length - done, segment.limit() - position);
+            final ByteBuffer view = segment.duplicate();
+            view.position(position);
+            view.get(bytes, done, count);
+            done += count;
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public String getPage(final int page) {
+        return decode(getPageStart(page), getPageEnd(page));
+    }
+
+    // Search
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Offset of the next occurrence of query at or after from, or -1. Streams through the mapping.
+     * Case is ignored for ASCII letters only if ignoreCase.
+     */
+    public long find(final String query, final long from, final boolean ignoreCase) {
+        final byte[] pattern = query.getBytes(StandardCharsets.UTF_8);
+        if (pattern.length == 0) {
+            return -1;
+        }
+        for (int i = 0; i < pattern.length; i++) {
+            pattern[i] = lower(pattern[i], ignoreCase);
+        }
+        final byte first = pattern[0];
+        final long last = _length - pattern.length;
+        for (long offset = Math.max(0, from); offset <= last && !_closed; ) {
+            final MappedByteBuffer segment = _segments[(int) (offset / SEGMENT_SIZE)];
+            final long segmentStart = offset - offset % SEGMENT_SIZE;
+            final int end = (int) Math.min(segment.limit() - 1, last - segmentStart);
+            int i = (int) (offset - segmentStart);
+            for (; i <= end; i++) {
+                if (lower(segment.get(i), ignoreCase) == first && matches(pattern, segmentStart + i, ignoreCase)) {
+                    return segmentStart + i;
+                }
+            }
+            offset = segmentStart + i;
+        }
+        return -1;
+    }
+
+    private boolean matches(final byte[] pattern, final long offset, final boolean ignoreCase) {
+        for (int i = 1; i < pattern.length; i++) {
+            if (lower(get(offset + i), ignoreCase) != pattern[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte lower(final byte b, final boolean ignoreCase) {
+        return ignoreCase && b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+    }
+
+    @Override
+    public void close() throws IOException {
+        _closed = true;
+        _file.close();
+    }
+}
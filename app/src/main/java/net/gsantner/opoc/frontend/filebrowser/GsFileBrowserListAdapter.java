@@ -36,6 +36,7 @@ import androidx.recyclerview.widget.RecyclerView;
 import net.gsantner.markor.R;
 import net.gsantner.opoc.util.GsContextUtils;
 import net.gsantner.opoc.util.GsFileUtils;
+import net.gsantner.opoc.util.GsFileWalker;
 
 import java.io.File;
 import java.io.FilenameFilter;
@@ -477,7 +478,17 @@ public class GsFileBrowserListAdapter extends RecyclerView.Adapter<GsFileBrowser
                     File[] files = null;
 
                     if (_currentFolder.isDirectory()) {
-                        files = _currentFolder.listFiles(GsFileBrowserListAdapter.this);
+                        // Whether entries are directories is read once, hidden ones are skipped by name
+                        final ArrayList<File> listed = new ArrayList<>();
+                        new GsFileWalker().setMaxDepth(1).setFollowLinks(true)
+                                .setIgnoredNames(name -> !_dopt.filterShowDotFiles && name.startsWith("."))
+                                .walk(folder, (f, path, depth, isDirectory) -> {
+                                    if (accept(folder, f, isDirectory)) {
+                                        listed.add(f);
+                                    }
+                                    return false;
+                                });
+                        files = listed.toArray(new File[0]);
                     } else if (_currentFolder.equals(VIRTUAL_STORAGE_RECENTS)) {
                         files = _dopt.recentFiles.toArray(new File[0]);
                     } else if (_currentFolder.equals(VIRTUAL_STORAGE_POPULAR)) {
@@ -587,14 +598,19 @@ public class GsFileBrowserListAdapter extends RecyclerView.Adapter<GsFileBrowser
     @Override
     public boolean accept(File dir, String filename) {
         final File f = new File(dir, filename);
-        final boolean filterYes = f.isDirectory() || _dopt.fileOverallFilter == null || _dopt.fileOverallFilter.callback(_context, f);
-        final boolean dotYes = _dopt.filterShowDotFiles || !filename.startsWith(".") && !isAccessoryFolder(dir, filename, f);
-        final boolean selFileYes = _dopt.doSelectFile || f.isDirectory();
+        return accept(dir, f, f.isDirectory());
+    }
+
+    private boolean accept(final File dir, final File f, final boolean isDirectory) {
+        final String filename = f.getName();
+        final boolean filterYes = isDirectory || _dopt.fileOverallFilter == null || _dopt.fileOverallFilter.callback(_context, f);
+        final boolean dotYes = _dopt.filterShowDotFiles || !filename.startsWith(".") && !isAccessoryFolder(dir, filename, isDirectory);
+        final boolean selFileYes = _dopt.doSelectFile || isDirectory;
         return filterYes && dotYes && selFileYes;
     }
 
-    private boolean isAccessoryFolder(File dir, String filename, File file) {
-        return file.isDirectory() &&
+    private boolean isAccessoryFolder(File dir, String filename, boolean isDirectory) {
+        return isDirectory &&
                 ((filename.endsWith("_files") && new File(dir, filename.replaceFirst("_files$", ".html")).isFile()) ||
                         (filename.endsWith(".assets") && new File(dir, filename.replaceFirst("\\.assets$", ".md")).isFile()));
     }
@@ -37,8 +37,6 @@ public class MainActivity extends AppCompatActivity {
 
 package net.gsantner.opoc.frontend.textview;
 
-import android.content.SharedPreferences;
-import android.content.SharedPreferences.Editor;
 import android.text.Editable;
 import android.text.Selection;
 import android.text.TextWatcher;
@@ -48,7 +46,7 @@ import android.widget.TextView;
 import net.gsantner.markor.frontend.textview.TextViewUtils;
 
 import java.io.File;
-import java.util.LinkedList;
+import java.util.Arrays;
 
 /**
  * A generic undo/redo implementation for TextViews.
@@ -77,6 +75,11 @@ public class TextViewUndoRedo {
      */
     private TextView mTextView;
 
+    /**
+     * The persistent log of the history, may be null.
+     */
+    private UndoHistoryLog mLog;
+
     // =================================================================== //
 
     /**
@@ -97,10 +100,6 @@ public class TextViewUndoRedo {
         mTextView.addTextChangedListener(mChangeListener);
     }
 
-    public String undoRedoPrefKeyForFile(File file) {
-        return "file-" + file.getAbsolutePath().replace("/", "-");
-    }
-
     // =================================================================== //
 
     /**
@@ -113,11 +112,11 @@ public class TextViewUndoRedo {
     }
 
     /**
-     * Set the maximum history size. If size is negative, then history size is
-     * only limited by the device memory.
+     * Set the maximum memory used by the history, in bytes. If negative, then
+     * history size is only limited by the device memory.
      */
-    public void setMaxHistorySize(int maxHistorySize) {
-        mEditHistory.setMaxHistorySize(maxHistorySize);
+    public void setMaxHistoryBytes(long maxHistoryBytes) {
+        mEditHistory.setMaxHistoryBytes(maxHistoryBytes);
     }
 
     /**
@@ -125,6 +124,9 @@ public class TextViewUndoRedo {
      */
     public void clearHistory() {
         mEditHistory.clear();
+        if (mLog != null) {
+            mLog.rewrite(mEditHistory, null);
+        }
     }
 
     /**
@@ -159,13 +161,17 @@ public class TextViewUndoRedo {
 
         Selection.setSelection(text, edit.mmBefore == null ? start
                 : (start + edit.mmBefore.length()));
+
+        if (mLog != null) {
+            mLog.onPositionChanged(mEditHistory);
+        }
     }
 
     /**
      * Can redo be performed?
      */
     public boolean getCanRedo() {
-        return (mEditHistory.mmPosition < mEditHistory.mmHistory.size());
+        return (mEditHistory.mmPosition < mEditHistory.mmSize);
     }
 
     /**
@@ -193,158 +199,274 @@ public class TextViewUndoRedo {
 
         Selection.setSelection(text, edit.mmAfter == null ? start
                 : (start + edit.mmAfter.length()));
-    }
-
-    /**
-     * Store preferences.
-     */
-    public void storePersistentState(Editor editor, String prefix) {
-        // Store hash code of text in the editor so that we can check if the
-        // editor contents has changed.
-        editor.putString(prefix + ".hash",
-                String.valueOf(mTextView.getText().toString().hashCode()));
-        editor.putInt(prefix + ".maxSize", mEditHistory.mmMaxHistorySize);
-        editor.putInt(prefix + ".position", mEditHistory.mmPosition);
-        editor.putInt(prefix + ".size", mEditHistory.mmHistory.size());
-
-        int i = 0;
-        for (EditItem ei : mEditHistory.mmHistory) {
-            String pre = prefix + "." + i;
-
-            editor.putInt(pre + ".start", ei.mmStart);
-            editor.putString(pre + ".before", ei.mmBefore.toString());
-            editor.putString(pre + ".after", ei.mmAfter.toString());
 
-            i++;
+        if (mLog != null) {
+            mLog.onPositionChanged(mEditHistory);
         }
     }
 
     /**
-     * Restore preferences.
+     * Keep the history of this text view in a binary log file, so it survives closing the document.
+     * The history stored in the file is restored if it belongs to the current text.
+     * Edits are appended to the file as they happen.
      *
-     * @param prefix The preference key prefix used when state was stored.
-     * @return did restore succeed? If this is false, the undo history will be
-     * empty.
+     * @param file         Log file, null to stop logging
+     * @param documentPath Path of the document, the log is only restored for the same path
+     * @return Whether history was restored from the file
      */
-    public boolean restorePersistentState(SharedPreferences sp, String prefix)
-            throws IllegalStateException {
-
-        boolean ok = doRestorePersistentState(sp, prefix);
-        if (!ok) {
-            mEditHistory.clear();
+    public boolean setPersistentLog(File file, String documentPath) {
+        if (mLog != null) {
+            mLog.close();
+            mLog = null;
         }
-
-        return ok;
-    }
-
-    private boolean doRestorePersistentState(SharedPreferences sp, String prefix) {
-
-        String hash = sp.getString(prefix + ".hash", null);
-        if (hash == null) {
-            // No state to be restored.
-            return true;
+        if (file == null) {
+            return false;
         }
-
-        if (Integer.valueOf(hash) != mTextView.getText().toString().hashCode()) {
+        final File dir = file.getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
             return false;
         }
+        mLog = new UndoHistoryLog(file, documentPath);
+        return mLog.load(mEditHistory, mTextView.getText());
+    }
 
-        mEditHistory.clear();
-        mEditHistory.mmMaxHistorySize = sp.getInt(prefix + ".maxSize", -1);
-
-        int count = sp.getInt(prefix + ".size", -1);
-        if (count == -1) {
-            return false;
+    /**
+     * Write everything logged so far, and mark the history as belonging to the current text.
+     * Call this whenever the document is saved.
+     */
+    public void flushPersistentLog() {
+        if (mLog != null) {
+            mLog.checkpoint(mEditHistory, mTextView.getText());
         }
+    }
 
-        for (int i = 0; i < count; i++) {
-            String pre = prefix + "." + i;
+    /**
+     * Stop logging and remove the log file.
+     */
+    public void deletePersistentLog() {
+        if (mLog != null) {
+            mLog.delete();
+            mLog = null;
+        }
+    }
 
-            int start = sp.getInt(pre + ".start", -1);
-            String before = sp.getString(pre + ".before", null);
-            String after = sp.getString(pre + ".after", null);
+    /**
+     * Log file for document in directory dir.
+     */
+    public static File getPersistentLogFile(File dir, File document) {
+        return UndoHistoryLog.getLogFile(dir, document);
+    }
 
-            if (start == -1 || before == null || after == null) {
-                return false;
-            }
-            mEditHistory.add(new EditItem(start, before, after));
-        }
+    /**
+     * Remove the log of a document which was deleted, moved or renamed.
+     * Logs belong to a path, so the history does not follow the document.
+     */
+    public static void deletePersistentLog(File dir, File document) {
+        //noinspection ResultOfMethodCallIgnored
+        UndoHistoryLog.getLogFile(dir, document).delete();
+    }
 
-        mEditHistory.mmPosition = sp.getInt(prefix + ".position", -1);
-        return mEditHistory.mmPosition != -1;
+    /**
+     * Remove logs in dir whose documents do not exist anymore, e.g. deleted by other apps.
+     * Reads every log header, so call this off the UI thread.
+     */
+    public static void prunePersistentLogs(File dir) {
+        UndoHistoryLog.prune(dir);
     }
 
     // =================================================================== //
 
     /**
      * Keeps track of all the edit history of a text.
+     * <p>
+     * Edits are kept in a ring buffer, so adding, undoing and redoing is O(1).
+     * Consecutive typing or deleting of single characters is coalesced into one
+     * item per word, or until a pause. The oldest items are dropped once the
+     * history uses more memory than allowed.
      */
-    private final class EditHistory {
+    static final class EditHistory {
+
+        /**
+         * Default maximum memory used by the history.
+         */
+        static final long DEFAULT_MAX_HISTORY_BYTES = 2 * 1024 * 1024;
+
+        /**
+         * Single character edits further apart than this are not coalesced.
+         */
+        static final long COALESCE_PAUSE_MILLIS = 1000;
 
         /**
          * The position from which an EditItem will be retrieved when getNext()
          * is called. If getPrevious() has not been called, this has the same
-         * value as mmHistory.size().
+         * value as mmSize.
+         */
+        int mmPosition = 0;
+
+        /**
+         * Number of edits in the history.
+         */
+        int mmSize = 0;
+
+        /**
+         * Maximum memory used by the history, negative for no limit.
          */
-        private int mmPosition = 0;
+        long mmMaxHistoryBytes = DEFAULT_MAX_HISTORY_BYTES;
 
         /**
-         * Maximum undo history size.
+         * Approximate memory used by all edits.
          */
-        private int mmMaxHistorySize = -1;
+        private long mmBytes = 0;
 
         /**
-         * The list of edits in chronological order.
+         * Ring buffer of edits in chronological order, starting at mmFirst.
+         * Length is always a power of two.
          */
-        private final LinkedList<EditItem> mmHistory = new LinkedList<EditItem>();
+        private EditItem[] mmItems = new EditItem[16];
+        private int mmFirst = 0;
+
+        /**
+         * Whether the next edit may be coalesced with the last one.
+         * Not after undo / redo, as the last item is not what was typed last.
+         */
+        private boolean mmCanCoalesce = false;
 
         /**
          * Clear history.
          */
-        private void clear() {
+        void clear() {
+            Arrays.fill(mmItems, null);
+            mmFirst = 0;
+            mmSize = 0;
             mmPosition = 0;
-            mmHistory.clear();
+            mmBytes = 0;
+            mmCanCoalesce = false;
+        }
+
+        /**
+         * Edit at index i, 0 being the oldest one.
+         */
+        EditItem get(int i) {
+            return mmItems[(mmFirst + i) & (mmItems.length - 1)];
+        }
+
+        private void set(int i, EditItem item) {
+            mmItems[(mmFirst + i) & (mmItems.length - 1)] = item;
         }
 
         /**
          * Adds a new edit operation to the history at the current position. If
          * executed after a call to getPrevious() removes all the future history
          * (elements with positions >= current history position).
+         * Single character edits are coalesced with the previous edit if possible.
+         *
+         * @return Whether item was coalesced with the previous edit
          */
-        private void add(EditItem item) {
-            while (mmHistory.size() > mmPosition) {
-                mmHistory.removeLast();
+        boolean add(EditItem item) {
+            truncate();
+
+            final EditItem last = mmSize > 0 && mmCanCoalesce ? get(mmSize - 1) : null;
+            final EditItem merged = last != null ? last.coalesce(item) : null;
+            if (merged != null) {
+                mmBytes += merged.bytes() - last.bytes();
+                set(mmSize - 1, merged);
+            } else {
+                append(item);
             }
-            mmHistory.add(item);
-            mmPosition++;
+            mmCanCoalesce = true;
 
-            if (mmMaxHistorySize >= 0) {
-                trimHistory();
+            trimHistory();
+            return merged != null;
+        }
+
+        /**
+         * Adds a new edit operation to the history at the current position, without coalescing.
+         */
+        void addWithoutCoalescing(EditItem item) {
+            truncate();
+            append(item);
+            mmCanCoalesce = false;
+            trimHistory();
+        }
+
+        /**
+         * Replace the newest edit, e.g. by a coalesced one.
+         */
+        void replaceLast(EditItem item) {
+            if (mmSize == 0) {
+                append(item);
+            } else {
+                mmBytes += item.bytes() - get(mmSize - 1).bytes();
+                set(mmSize - 1, item);
             }
+            mmCanCoalesce = false;
+            trimHistory();
         }
 
         /**
-         * Set the maximum history size. If size is negative, then history size
-         * is only limited by the device memory.
+         * Set the position of undo / redo, clamped to the history.
          */
-        private void setMaxHistorySize(int maxHistorySize) {
-            mmMaxHistorySize = maxHistorySize;
-            if (mmMaxHistorySize >= 0) {
-                trimHistory();
+        void setPosition(int position) {
+            mmPosition = Math.max(0, Math.min(position, mmSize));
+            mmCanCoalesce = false;
+        }
+
+        /**
+         * Approximate memory used by all edits.
+         */
+        long getBytes() {
+            return mmBytes;
+        }
+
+        /**
+         * Adds an edit operation to the end of the history, without coalescing.
+         */
+        void append(EditItem item) {
+            if (mmSize == mmItems.length) {
+                final EditItem[] items = new EditItem[2 * mmItems.length];
+                for (int i = 0; i < mmSize; i++) {
+                    items[i] = get(i);
+                }
+                mmItems = items;
+                mmFirst = 0;
             }
+            set(mmSize, item);
+            mmSize++;
+            mmPosition = mmSize;
+            mmBytes += item.bytes();
         }
 
         /**
-         * Trim history when it exceeds max history size.
+         * Remove all edits after the current position.
          */
-        private void trimHistory() {
-            while (mmHistory.size() > mmMaxHistorySize) {
-                mmHistory.removeFirst();
-                mmPosition--;
+        private void truncate() {
+            while (mmSize > mmPosition) {
+                mmSize--;
+                mmBytes -= get(mmSize).bytes();
+                set(mmSize, null);
             }
+        }
 
-            if (mmPosition < 0) {
-                mmPosition = 0;
+        /**
+         * Set the maximum memory used by the history. If negative, then history
+         * size is only limited by the device memory.
+         */
+        void setMaxHistoryBytes(long maxHistoryBytes) {
+            mmMaxHistoryBytes = maxHistoryBytes;
+            trimHistory();
+        }
+
+        /**
+         * Drop the oldest edits when the history uses more memory than allowed.
+         * The newest edit is always kept.
+         */
+        private void trimHistory() {
+            while (mmMaxHistoryBytes >= 0 && mmBytes > mmMaxHistoryBytes && mmSize > 1) {
+                mmBytes -= get(0).bytes();
+                set(0, null);
+                mmFirst = (mmFirst + 1) & (mmItems.length - 1);
+                mmSize--;
+                mmPosition = Math.max(mmPosition - 1, 0);
             }
         }
 
@@ -352,24 +474,26 @@ public class TextViewUndoRedo {
          * Traverses the history backward by one position, returns and item at
          * that position.
          */
-        private EditItem getPrevious() {
+        EditItem getPrevious() {
             if (mmPosition == 0) {
                 return null;
             }
+            mmCanCoalesce = false;
             mmPosition--;
-            return mmHistory.get(mmPosition);
+            return get(mmPosition);
         }
 
         /**
          * Traverses the history forward by one position, returns and item at
          * that position.
          */
-        private EditItem getNext() {
-            if (mmPosition >= mmHistory.size()) {
+        EditItem getNext() {
+            if (mmPosition >= mmSize) {
                 return null;
             }
 
-            EditItem item = mmHistory.get(mmPosition);
+            mmCanCoalesce = false;
+            EditItem item = get(mmPosition);
             mmPosition++;
             return item;
         }
@@ -378,19 +502,66 @@ public class TextViewUndoRedo {
     /**
      * Represents the changes performed by a single edit operation.
      */
-    private final class EditItem {
-        private final int mmStart;
-        private final CharSequence mmBefore;
-        private final CharSequence mmAfter;
+    static final class EditItem {
+        final int mmStart;
+        final CharSequence mmBefore;
+        final CharSequence mmAfter;
+        final long mmTime;
 
         /**
          * Constructs EditItem of a modification that was applied at position
          * start and replaced CharSequence before with CharSequence after.
          */
         public EditItem(int start, CharSequence before, CharSequence after) {
+            this(start, before, after, System.currentTimeMillis());
+        }
+
+        EditItem(int start, CharSequence before, CharSequence after, long time) {
             mmStart = start;
-            mmBefore = before;
-            mmAfter = after;
+            mmBefore = before != null ? before : "";
+            mmAfter = after != null ? after : "";
+            mmTime = time;
+        }
+
+        /**
+         * Approximate memory used by this item.
+         */
+        long bytes() {
+            return 64 + 2L * (mmBefore.length() + mmAfter.length());
+        }
+
+        /**
+         * Combine this edit with a following single character insertion or deletion.
+         *
+         * @return Combined edit, or null if next does not continue this edit
+         */
+        EditItem coalesce(EditItem next) {
+            if (next.mmTime - mmTime > EditHistory.COALESCE_PAUSE_MILLIS || next.mmTime < mmTime) {
+                return null;
+            }
+
+            final boolean isInsert = mmBefore.length() == 0 && next.mmBefore.length() == 0 && next.mmAfter.length() == 1;
+            final boolean isDelete = mmAfter.length() == 0 && next.mmAfter.length() == 0 && next.mmBefore.length() == 1;
+
+            if (isInsert && mmAfter.length() > 0 && next.mmStart == mmStart + mmAfter.length()) {
+                // Typing
+                return isWordBreak(mmAfter, next.mmAfter) ? null : new EditItem(mmStart, "", mmAfter.toString() + next.mmAfter, next.mmTime);
+            } else if (isDelete && mmBefore.length() > 0 && next.mmStart == mmStart - 1) {
+                // Backspace
+                return isWordBreak(next.mmBefore, mmBefore) ? null : new EditItem(next.mmStart, next.mmBefore.toString() + mmBefore, "", next.mmTime);
+            } else if (isDelete && mmBefore.length() > 0 && next.mmStart == mmStart) {
+                // Forward delete
+                return isWordBreak(mmBefore, next.mmBefore) ? null : new EditItem(mmStart, mmBefore.toString() + next.mmBefore, "", next.mmTime);
+            }
+            return null;
+        }
+
+        /**
+         * Whether a new word starts between left and right.
+         * Whitespace following a word stays with the word.
+         */
+        private static boolean isWordBreak(CharSequence left, CharSequence right) {
+            return Character.isWhitespace(left.charAt(left.length() - 1)) && !Character.isWhitespace(right.charAt(0));
         }
     }
 
@@ -425,7 +596,11 @@ public class TextViewUndoRedo {
             }
 
             mAfterChange = TextViewUtils.toString(s, start, start + count);
-            mEditHistory.add(new EditItem(start, mBeforeChange, mAfterChange));
+            final EditItem item = new EditItem(start, mBeforeChange, mAfterChange);
+            final boolean coalesced = mEditHistory.add(item);
+            if (mLog != null) {
+                mLog.onAdded(item, coalesced);
+            }
         }
 
         public void afterTextChanged(Editable s) {
@@ -0,0 +1,318 @@
+/*
+ * THIS CLASS IS PROVIDED TO THE PUBLIC DOMAIN FOR FREE WITHOUT ANY
+ * RESTRICTIONS OR ANY WARRANTY.
+ */
+package net.gsantner.opoc.frontend.textview;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Persistent undo history of one document, stored as binary log file.
+ * <p>
+ * The log is a header followed by length-prefixed records. Changes of the history are
+ * appended as they happen, a checkpoint records which text the history belongs to.
+ * On load, the records are replayed. The history is only restored if the log ends with
+ * a checkpoint matching the current text.
+ */
+class UndoHistoryLog implements Closeable {
+
+    private static final int MAGIC = 0x554e444f; // "UNDO"
+    private static final int VERSION = 1;
+
+    private static final byte RECORD_ADD = 1;          // Edit added to the history
+    private static final byte RECORD_REPLACE_LAST = 2; // Last edit replaced, i.e. coalesced
+    private static final byte RECORD_POSITION = 3;     // Undo / redo
+    private static final byte RECORD_CHECKPOINT = 4;   // Length and hash of the text
+    private static final byte RECORD_COALESCE = 5;     // Edit coalesced with the last one
+
+    /**
+     * Log is rewritten on checkpoint if it is this much larger than the history.
+     */
+    private static final long COMPACT_THRESHOLD_BYTES = 64 * 1024;
+
+    private final File mmFile;
+    private final String mmDocumentPath;
+    private DataOutputStream mmOut;
+
+    UndoHistoryLog(File file, String documentPath) {
+        mmFile = file;
+        mmDocumentPath = documentPath;
+    }
+
+    /**
+     * Log file for a document in directory dir.
+     */
+    static File getLogFile(File dir, File document) {
+        return new File(dir, "undo-" + Integer.toHexString(document.getAbsolutePath().hashCode()) + ".log");
+    }
+
+    /**
+     * Replay the log into history, if it belongs to text.
+     * Otherwise the history is cleared and the log is started anew.
+     *
+     * @return Whether the history was restored
+     */
+    boolean load(TextViewUndoRedo.EditHistory history, CharSequence text) {
+        close();
+        history.clear();
+        boolean restored = false;
+        if (mmFile.isFile()) {
+            try (final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mmFile)))) {
+                restored = replay(in, mmFile.length(), history, text);
+            } catch (IOException | RuntimeException ignored) {
+                restored = false;
+            }
+        }
+
+        if (!restored) {
+            history.clear();
+        }
+        rewrite(history, restored ? text : null);
+        return restored;
+    }
+
+    private boolean replay(DataInputStream in, long fileLength, TextViewUndoRedo.EditHistory history, CharSequence text) throws IOException {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION || !mmDocumentPath.equals(readString(in, fileLength))) {
+            return false;
+        }
+
+        boolean matches = false;
+        while (true) {
+            final byte type;
+            try {
+                type = in.readByte();
+            } catch (EOFException ignored) {
+                return matches;
+            }
+
+            switch (type) {
+                case RECORD_ADD: {
+                    history.addWithoutCoalescing(readItem(in, fileLength));
+                    break;
+                }
+                case RECORD_REPLACE_LAST: {
+                    history.replaceLast(readItem(in, fileLength));
+                    break;
+                }
+                case RECORD_COALESCE: {
+                    final TextViewUndoRedo.EditItem next = readItem(in, fileLength);
+                    final TextViewUndoRedo.EditItem merged = history.mmSize > 0 ? history.get(history.mmSize - 1).coalesce(next) : null;
+                    if (merged == null) {
+                        return false;
+                    }
+                    history.replaceLast(merged);
+                    break;
+                }
+                case RECORD_POSITION: {
+                    history.setPosition(in.readInt());
+                    break;
+                }
+                case RECORD_CHECKPOINT: {
+                    final int length = in.readInt(), hash = in.readInt();
+                    matches = length == text.length() && hash == hash(text);
+                    continue;
+                }
+                default: {
+                    return false;
+                }
+            }
+            matches = false;
+        }
+    }
+
+    /**
+     * Record that an edit was added to history.
+     * Only the edit itself is written, a coalesced edit is coalesced again on replay.
+     *
+     * @param item      The edit as passed to history
+     * @param coalesced Whether the edit was coalesced with the last one
+     */
+    void onAdded(TextViewUndoRedo.EditItem item, boolean coalesced) {
+        write(coalesced ? RECORD_COALESCE : RECORD_ADD, item, 0);
+    }
+
+    /**
+     * Record an undo / redo.
+     */
+    void onPositionChanged(TextViewUndoRedo.EditHistory history) {
+        write(RECORD_POSITION, null, history.mmPosition);
+    }
+
+    /**
+     * Record that history belongs to text, and write everything to the file.
+     * The log is compacted if it is much larger than the history.
+     */
+    void checkpoint(TextViewUndoRedo.EditHistory history, CharSequence text) {
+        if (mmFile.length() > 2 * history.getBytes() + COMPACT_THRESHOLD_BYTES) {
+            rewrite(history, text);
+        } else {
+            try {
+                final DataOutputStream out = out();
+                out.writeByte(RECORD_CHECKPOINT);
+                out.writeInt(text.length());
+                out.writeInt(hash(text));
+                out.flush();
+            } catch (IOException ignored) {
+                close();
+            }
+        }
+    }
+
+    /**
+     * Replace the log by the current state of history.
+     *
+     * @param text Text to write a checkpoint for, null for none
+     */
+    void rewrite(TextViewUndoRedo.EditHistory history, CharSequence text) {
+        close();
+        final File temp = new File(mmFile.getPath() + ".tmp");
+        try (final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeString(out, mmDocumentPath);
+            for (int i = 0; i < history.mmSize; i++) {
+                out.writeByte(RECORD_ADD);
+                writeItem(out, history.get(i));
+            }
+            out.writeByte(RECORD_POSITION);
+            out.writeInt(history.mmPosition);
+            if (text != null) {
+                out.writeByte(RECORD_CHECKPOINT);
+                out.writeInt(text.length());
+                out.writeInt(hash(text));
+            }
+        } catch (IOException ignored) {
+            temp.delete();
+            return;
+        }
+
+        if (!temp.renameTo(mmFile)) {
+            mmFile.delete();
+            temp.renameTo(mmFile);
+        }
+    }
+
+    /**
+     * Remove the log file.
+     */
+    void delete() {
+        close();
+        mmFile.delete();
+    }
+
+    /**
+     * Path of the document a log file belongs to, null if it is no valid log.
+     */
+    static String readDocumentPath(File file) {
+        try (final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() == MAGIC && in.readInt() == VERSION) {
+                return readString(in, file.length());
+            }
+        } catch (IOException | RuntimeException ignored) {
+        }
+        return null;
+    }
+
+    /**
+     * Remove log files in dir which are invalid or belong to documents that do not exist anymore.
+     */
+    static void prune(File dir) {
+        final File[] files = dir.listFiles();
+        for (final File file : (files != null ? files : new File[0])) {
+            final String name = file.getName();
+            if (name.startsWith("undo-") && name.endsWith(".log")) {
+                final String path = readDocumentPath(file);
+                if (path == null || !new File(path).isFile()) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        if (mmOut != null) {
+            try {
+                mmOut.close();
+            } catch (IOException ignored) {
+            }
+            mmOut = null;
+        }
+    }
+
+    // Helpers
+    // ---------------------------------------------------------------------------------------------
+
+    private DataOutputStream out() throws IOException {
+        if (mmOut == null) {
+            mmOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mmFile, true)));
+        }
+        return mmOut;
+    }
+
+    private void write(byte type, TextViewUndoRedo.EditItem item, int position) {
+        try {
+            final DataOutputStream out = out();
+            out.writeByte(type);
+            if (item != null) {
+                writeItem(out, item);
+            } else {
+                out.writeInt(position);
+            }
+        } catch (IOException ignored) {
+            close();
+        }
+    }
+
+    private static void writeItem(DataOutputStream out, TextViewUndoRedo.EditItem item) throws IOException {
+        out.writeInt(item.mmStart);
+        out.writeLong(item.mmTime);
+        writeString(out, item.mmBefore);
+        writeString(out, item.mmAfter);
+    }
+
+    private static TextViewUndoRedo.EditItem readItem(DataInputStream in, long maxLength) throws IOException {
+        final int start = in.readInt();
+        final long time = in.readLong();
+        final String before = readString(in, maxLength);
+        final String after = readString(in, maxLength);
+        return new TextViewUndoRedo.EditItem(start, before, after, time);
+    }
+
+    // Length-prefixed UTF-8
+    private static void writeString(DataOutputStream out, CharSequence s) throws IOException {
+        final byte[] bytes = s.toString().getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    // A corrupt length is rejected before allocating, no string can be longer than the file
+    private static String readString(DataInputStream in, long maxLength) throws IOException {
+        final int length = in.readInt();
+        if (length < 0 || length > maxLength) {
+            throw new IOException("Invalid length");
+        }
+        final byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Same as String.hashCode, without copying the text
+    private static int hash(CharSequence text) {
+        int h = 0;
+        for (int i = 0; i < text.length(); i++) {
+            h = 31 * h + text.charAt(i);
+        }
+        return h;
+    }
+}
@@ -0,0 +1,223 @@
+/*#######################################################
+ *
+ * SPDX-FileCopyrightText: 2017-2022 Gregor Santner <https://gsantner.net/>
+ * SPDX-License-Identifier: Unlicense OR CC0-1.0
+ *
+ * Written 2017-2022 by Gregor Santner <https://gsantner.net/>
+ * To the extent possible under law, the author(s) have dedicated all copyright and related and neighboring rights to this software to the public domain worldwide. This software is distributed without any warranty.
+ * You should have received a copy of the CC0 Public Domain Dedication along with this software. If not, see <http://creativecommons.org/publicdomain/zero/1.0/>.
+#########################################################*/
+package net.gsantner.opoc.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Find text in UTF-8 bytes with Boyer-Moore-Horspool, without decoding. Matches like
+ * {@code line.contains(needle)}, or {@code line.toLowerCase(locale).contains(needle)} if case is ignored,
+ * on each line split like {@link java.io.BufferedReader#readLine()} does.
+ * <p>
+ * Case is folded for ASCII only. If that would give other results than {@link String#toLowerCase(Locale)},
+ * {@link #isSupported()} or {@link #isSupportedFor} are false and the decoded text has to be searched instead.
+ */
+public class GsByteMatcher {
+    // Per locale: chars above ASCII which become ASCII when lowercased, like the Kelvin sign
+    private static final Map<Locale, List<String>> FOLDING_TO_ASCII = new HashMap<>();
+
+    private final byte[] _needle;
+    private final byte[] _fold = new byte[256];
+    private final int[] _shift = new int[256];
+    private final List<byte[]> _unsupportedSequences = new ArrayList<>();
+    private final boolean _isSupported;
+
+    public interface LineCallback {
+        /**
+         * @param lineNumber 0 based line number
+         * @param start      start of the line in bytes
+         * @param end        end of the line in bytes, exclusive, without line break
+         * @return false to stop
+         */
+        boolean callback(int lineNumber, int start, int end);
+    }
+
+    /**
+     * @param needle     text to find, lowercase if case is ignored
+     * @param ignoreCase whether to fold case like {@link String#toLowerCase(Locale)} does
+     */
+    public GsByteMatcher(final String needle, final boolean ignoreCase, final Locale locale) {
+        _needle = needle.getBytes(StandardCharsets.UTF_8);
+        for (int b = 0; b < 256; b++) {
+            _fold[b] = (byte) (ignoreCase && b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b);
+        }
+
+        // Lines never contain line breaks, and replacement chars or lone surrogates do not survive the round trip
+        boolean supported = !needle.isEmpty() && needle.indexOf('\n') < 0 && needle.indexOf('\r') < 0
+                && new String(_needle, StandardCharsets.UTF_8).equals(needle) && needle.indexOf('�') < 0;
+        if (supported && ignoreCase) {
+            supported = isAsciiFolding(locale) && needle.equals(needle.toLowerCase(locale));
+            for (int i = 0; supported && i < needle.length(); i++) {
+                supported = needle.charAt(i) < 0x80;
+            }
+            for (final String c : supported ? getFoldingToAscii(locale) : new ArrayList<String>()) {
+                if (containsAny(c.toLowerCase(locale), needle)) {
+                    _unsupportedSequences.add(c.getBytes(StandardCharsets.UTF_8));
+                }
+            }
+        }
+        _isSupported = supported;
+
+        final int m = _needle.length;
+        for (int b = 0; b < 256; b++) {
+            _shift[b] = m;
+        }
+        for (int i = 0; i < m - 1; i++) {
+            _shift[_needle[i] & 0xFF] = m - 1 - i;
+        }
+    }
+
+    /**
+     * False if the needle cannot be searched in bytes at all
+     */
+    public boolean isSupported() {
+        return _isSupported;
+    }
+
+    /**
+     * False if the bytes contain chars which are folded into the needle only by lowercasing the decoded text
+     */
+    public boolean isSupportedFor(final byte[] data, final int from, final int to) {
+        if (!_isSupported) {
+            return false;
+        }
+        for (final byte[] sequence : _unsupportedSequences) {
+            if (indexOf(data, from, to, sequence) >= 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return first position of the needle in data between from and to, or -1
+     */
+    public int indexOf(final byte[] data, final int from, final int to) {
+        final byte[] needle = _needle;
+        final byte[] fold = _fold;
+        final int last = needle.length - 1;
+        for (int i = from; i + last < to; i += _shift[fold[data[i + last] & 0xFF] & 0xFF]) {
+            int j = last;
+            while (fold[data[i + j] & 0xFF] == needle[j]) {
+                if (j-- == 0) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Call back for each line which contains the needle, line numbers are only counted up to matches
+     */
+    public void forEachMatchingLine(final byte[] data, final int from, final int to, final LineCallback callback) {
+        int lineNumber = 0;
+        int counted = from;
+        for (int pos = indexOf(data, from, to); pos >= 0; ) {
+            final int start = lineStart(data, from, pos);
+            lineNumber += countLineBreaks(data, counted, start);
+            counted = start;
+            final int end = lineEnd(data, pos + _needle.length, to);
+            if (!callback.callback(lineNumber, start, end)) {
+                return;
+            }
+            pos = indexOf(data, end, to);
+        }
+    }
+
+    /**
+     * Start of the line containing pos
+     */
+    public static int lineStart(final byte[] data, final int from, int pos) {
+        while (pos > from && data[pos - 1] != '\n' && data[pos - 1] != '\r') {
+            pos--;
+        }
+        return pos;
+    }
+
+    /**
+     * End of the line containing pos, exclusive
+     */
+    public static int lineEnd(final byte[] data, int pos, final int to) {
+        while (pos < to && data[pos] != '\n' && data[pos] != '\r') {
+            pos++;
+        }
+        return pos;
+    }
+
+    /**
+     * Number of line breaks between from and to, "\r\n" counts once
+     */
+    public static int countLineBreaks(final byte[] data, final int from, final int to) {
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            if (data[i] == '\r' || (data[i] == '\n' && (i == 0 || data[i - 1] != '\r'))) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static int indexOf(final byte[] data, final int from, final int to, final byte[] sequence) {
+        outer:
+        for (int i = from; i + sequence.length <= to; i++) {
+            for (int j = 0; j < sequence.length; j++) {
+                if (data[i + j] != sequence[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private static boolean containsAny(final String text, final String chars) {
+        for (int i = 0; i < chars.length(); i++) {
+            if (text.indexOf(chars.charAt(i)) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Whether lowercasing ASCII in locale is the same as folding A-Z
+    private static boolean isAsciiFolding(final Locale locale) {
+        for (char c = 0; c < 0x80; c++) {
+            final char expected = (char) (c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c);
+            if (!String.valueOf(c).toLowerCase(locale).equals(String.valueOf(expected))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static synchronized List<String> getFoldingToAscii(final Locale locale) {
+        List<String> chars = FOLDING_TO_ASCII.get(locale);
+        if (chars == null) {
+            chars = new ArrayList<>();
+            for (char c = 0x80; c != 0; c++) {
+                final String lower = String.valueOf(c).toLowerCase(locale);
+                for (int i = 0; !Character.isSurrogate(c) && i < lower.length(); i++) {
+                    if (lower.charAt(i) < 0x80) {
+                        chars.add(String.valueOf(c));
+                        break;
+                    }
+                }
+            }
+            FOLDING_TO_ASCII.put(locale, chars);
+        }
+        return chars;
+    }
+}
@@ -2263,6 +2263,13 @@ public class GsContextUtils {
             if (fileOutputStream != null) {
                 try {
                     fileOutputStream.flush();
+                    if (fileOutputStream instanceof FileOutputStream) {
+                        try {
+                            ((FileOutputStream) fileOutputStream).getFD().sync();
+                        } catch (IOException ignored) {
+                            // Not supported by all providers
+                        }
+                    }
                     fileOutputStream.close();
                 } catch (Exception ignored) {
                 }
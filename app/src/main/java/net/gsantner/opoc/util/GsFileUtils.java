@@ -11,6 +11,8 @@ package net.gsantner.opoc.util;
 
 import android.annotation.SuppressLint;
 import android.os.Build;
+import android.system.Os;
+import android.text.GetChars;
 import android.text.TextUtils;
 import android.util.Pair;
 
@@ -22,6 +24,7 @@ import net.gsantner.opoc.wrapper.GsFileWithMetadataCache;
 import net.gsantner.opoc.wrapper.GsHashMap;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
@@ -34,8 +37,17 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.io.Serializable;
 import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -70,33 +82,48 @@ public class GsFileUtils {
     public static class FileInfo implements Serializable {
         public boolean hasBom = false;
         public boolean ioError = false;
+        public long malformedInputOffset = -1; // Byte offset of first invalid UTF-8 input, -1 if none
     }
 
     public static Pair<String, FileInfo> readTextFileFast(final File file) {
         final FileInfo info = new FileInfo();
+        final String text = readTextFileFast(file, info);
+        return new Pair<>(text, info);
+    }
 
-        try (final FileInputStream inputStream = new FileInputStream(file)) {
-            final ByteArrayOutputStream result = new ByteArrayOutputStream();
-
-            final byte[] bomBuffer = new byte[3];
-            final int bomReadLength = inputStream.read(bomBuffer);
-            info.hasBom = bomReadLength == 3 &&
-                    bomBuffer[0] == (byte) 0xEF &&
-                    bomBuffer[1] == (byte) 0xBB &&
-                    bomBuffer[2] == (byte) 0xBF;
-
-            if (!info.hasBom && bomReadLength > 0) {
-                result.write(bomBuffer, 0, bomReadLength);
-            }
-            if (bomReadLength < 3) {
-                return new Pair<>(result.toString("UTF-8"), info);
+    /**
+     * Read an UTF-8 text file. The buffer is sized from the file length, bytes are read
+     * through a {@link FileChannel} into it and decoded from there.
+     * A BOM is skipped and reported in info, as is the byte offset of the first malformed input (replaced by U+FFFD).
+     */
+    public static String readTextFileFast(final File file, final FileInfo info) {
+        try {
+            final ByteBuffer bytes = ByteBuffer.wrap(readFileFully(file));
+
+            info.hasBom = bytes.remaining() >= 3 &&
+                    bytes.get(0) == (byte) 0xEF &&
+                    bytes.get(1) == (byte) 0xBB &&
+                    bytes.get(2) == (byte) 0xBF;
+            if (info.hasBom) {
+                bytes.position(3);
             }
 
-            final byte[] buffer = new byte[1024];
-            for (int length; (length = inputStream.read(buffer)) != -1; ) {
-                result.write(buffer, 0, length);
+            // Decoded straight from the read buffer. Only if there are replacement chars,
+            // the bytes are decoded again to find the position of malformed input
+            final int offset = bytes.position();
+            final String text = new String(bytes.array(), offset, bytes.remaining(), StandardCharsets.UTF_8);
+            if (text.indexOf('\uFFFD') >= 0) {
+                final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                        .onMalformedInput(CodingErrorAction.REPORT)
+                        .onUnmappableCharacter(CodingErrorAction.REPORT);
+                // An UTF-8 byte sequence never decodes to more chars than bytes
+                final CharBuffer chars = CharBuffer.allocate(bytes.remaining());
+                final CoderResult result = decoder.decode(bytes, chars, true);
+                if (result.isError()) {
+                    info.malformedInputOffset = bytes.position();
+                }
             }
-            return new Pair<>(result.toString("UTF-8"), info);
+            return text;
         } catch (FileNotFoundException e) {
             System.err.println("readTextFileFast: File " + file + " not found.");
         } catch (IOException e) {
@@ -104,7 +131,24 @@ public class GsFileUtils {
             info.ioError = true;
         }
 
-        return new Pair<>("", info);
+        return "";
+    }
+
+    /**
+     * Read all bytes of a file through a {@link FileChannel}, into an array sized from the file length
+     */
+    public static byte[] readFileFully(final File file) throws IOException {
+        try (final FileInputStream inputStream = new FileInputStream(file); final FileChannel channel = inputStream.getChannel()) {
+            final long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("File too large: " + size);
+            }
+            final ByteBuffer bytes = ByteBuffer.allocate((int) size);
+            while (bytes.hasRemaining() && channel.read(bytes) >= 0) {
+                // Read until full or end of file
+            }
+            return bytes.position() == bytes.capacity() ? bytes.array() : Arrays.copyOf(bytes.array(), bytes.position());
+        }
     }
 
     public static byte[] readCloseStreamWithSize(final InputStream stream, int size) {
@@ -244,6 +288,242 @@ public class GsFileUtils {
         return writeFile(file, data.getBytes(), options);
     }
 
+    /**
+     * Write text to file as UTF-8, crash-safe. The text is encoded directly into a temporary file
+     * next to file, which is synced to disk and then renamed over file. The file is either
+     * completely written or left untouched. Each write has its own temporary file, so concurrent
+     * writers of the same file do not mix their contents, the last rename wins.
+     * Links are kept: for a symlink the file it points to is replaced, files with hard links
+     * and files in folders which are not writable are written in place.
+     * Where renaming is not supported the temporary file is copied over file, which is not atomic.
+     */
+    public static boolean writeFileAtomic(final File file, final CharSequence data, final FileInfo options) {
+        return writeFileAtomic(file, output -> writeUtf8(data, output), options);
+    }
+
+    public static boolean writeFileAtomic(final File file, final byte[] data, final FileInfo options) {
+        return writeFileAtomic(file, output -> output.write(data), options);
+    }
+
+    private interface ContentWriter {
+        void write(FileOutputStream output) throws IOException;
+    }
+
+    private static boolean writeFileAtomic(final File file, final ContentWriter writer, final FileInfo options) {
+        File target;
+        try {
+            target = file.getCanonicalFile();
+        } catch (IOException e) {
+            target = file.getAbsoluteFile();
+        }
+        if (getLinkCount(target) > 1) {
+            return writeFileInPlace(target, writer, options);
+        }
+
+        final File temp;
+        try {
+            temp = File.createTempFile(getAtomicTempPrefix(target), ATOMIC_TEMP_SUFFIX, target.getParentFile());
+        } catch (IOException | SecurityException ex) {
+            // No temporary file possible next to an existing file
+            return target.isFile() && target.canWrite() && writeFileInPlace(target, writer, options);
+        }
+        try {
+            try (final FileOutputStream output = new FileOutputStream(temp, false)) {
+                writeContent(output, writer, options);
+            }
+            // Rename is atomic on the same filesystem. Write over file if not supported, not atomic
+            if (temp.renameTo(target) || copyFile(temp, target)) {
+                //noinspection ResultOfMethodCallIgnored
+                temp.delete();
+                deleteStaleAtomicTempFiles(target);
+                return true;
+            }
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        }
+        //noinspection ResultOfMethodCallIgnored
+        temp.delete();
+        return false;
+    }
+
+    // Temporary files of file are named ".<name>.<random>.tmp"
+    private static String getAtomicTempPrefix(final File file) {
+        return "." + file.getName() + ".";
+    }
+
+    // Left over by writes which crashed before the rename. Recent ones may belong to a running write
+    private static void deleteStaleAtomicTempFiles(final File file) {
+        final String prefix = getAtomicTempPrefix(file);
+        final File[] stale = file.getParentFile().listFiles((dir, name) -> name.startsWith(prefix) && name.endsWith(ATOMIC_TEMP_SUFFIX));
+        if (stale != null) {
+            final long staleBefore = System.currentTimeMillis() - ATOMIC_TEMP_STALE_MS;
+            for (final File temp : stale) {
+                if (temp.lastModified() < staleBefore) {
+                    //noinspection ResultOfMethodCallIgnored
+                    temp.delete();
+                }
+            }
+        }
+    }
+
+    // Not crash-safe, but the file stays the same (inode)
+    private static boolean writeFileInPlace(final File file, final ContentWriter writer, final FileInfo options) {
+        try (final FileOutputStream output = new FileOutputStream(file, false)) {
+            writeContent(output, writer, options);
+            return true;
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            return false;
+        }
+    }
+
+    private static void writeContent(final FileOutputStream output, final ContentWriter writer, final FileInfo options) throws IOException {
+        if (options != null && options.hasBom) {
+            output.write(UTF8_BOM);
+        }
+        writer.write(output);
+        output.flush();
+        output.getFD().sync();
+    }
+
+    // Number of hard links to file, 1 if unknown
+    private static int getLinkCount(final File file) {
+        try {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+                return ((Number) Files.getAttribute(file.toPath(), "unix:nlink")).intValue();
+            } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                return (int) Os.stat(file.getPath()).st_nlink;
+            }
+        } catch (Exception ignored) {
+        }
+        return 1;
+    }
+
+    /**
+     * Append separator and text to the end of file as UTF-8, creating the file if needed.
+     * Line breaks at the end of file are removed before, the separator's leading line breaks are
+     * skipped if file has no content. Only the last bytes of file are read, the existing content is never rewritten.
+     */
+    public static boolean appendToTextFile(final File file, final CharSequence separator, final CharSequence text) {
+        try {
+            boolean empty = true;
+            if (file.exists()) {
+                try (final RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                    final long size = raf.length();
+                    long end = size;
+                    final byte[] tail = new byte[(int) Math.min(size, APPEND_TAIL_SIZE)];
+                    while (end > 0) {
+                        final int length = (int) Math.min(end, tail.length);
+                        raf.seek(end - length);
+                        raf.readFully(tail, 0, length);
+                        int i = length;
+                        while (i > 0 && (tail[i - 1] == '\n' || tail[i - 1] == '\r')) {
+                            i--;
+                        }
+                        end -= length - i;
+                        if (i > 0) {
+                            break;
+                        }
+                    }
+                    if (end < size) {
+                        raf.setLength(end);
+                    }
+                    empty = end == 0 || (end == UTF8_BOM.length && isBomAt(raf));
+                }
+            }
+
+            int start = 0;
+            while (empty && start < separator.length() && (separator.charAt(start) == '\n' || separator.charAt(start) == '\r')) {
+                start++;
+            }
+
+            // Opened in append mode, writes always go to the end of file
+            try (final FileOutputStream output = new FileOutputStream(file, true)) {
+                final BufferedOutputStream buffered = new BufferedOutputStream(output);
+                writeUtf8(separator.subSequence(start, separator.length()), buffered);
+                writeUtf8(text, buffered);
+                buffered.flush();
+                output.getFD().sync();
+            }
+            return true;
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            return false;
+        }
+    }
+
+    private static boolean isBomAt(final RandomAccessFile raf) throws IOException {
+        final byte[] start = new byte[UTF8_BOM.length];
+        raf.seek(0);
+        raf.readFully(start);
+        return Arrays.equals(start, UTF8_BOM);
+    }
+
+    private static final int APPEND_TAIL_SIZE = 64;
+    private static final byte[] UTF8_BOM = {(byte) 0xEF, (byte) 0xBB, (byte) 0xBF};
+    private static final String ATOMIC_TEMP_SUFFIX = ".tmp";
+    private static final long ATOMIC_TEMP_STALE_MS = 60 * 60 * 1000;
+    private static final int ENCODE_CHUNK_SIZE = 8192;
+    private static final ThreadLocal<CharsetEncoder> UTF8_ENCODER = new ThreadLocal<CharsetEncoder>() {
+        @Override
+        protected CharsetEncoder initialValue() {
+            return StandardCharsets.UTF_8.newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+    };
+
+    /**
+     * Encode text as UTF-8 to output in chunks, without creating a copy of the whole text.
+     * Unpaired surrogates are replaced by '?', like {@link String#getBytes()} does.
+     */
+    public static void writeUtf8(final CharSequence data, final OutputStream output) throws IOException {
+        final CharsetEncoder encoder = UTF8_ENCODER.get();
+        encoder.reset();
+        final char[] chars = new char[ENCODE_CHUNK_SIZE];
+        final CharBuffer in = CharBuffer.wrap(chars);
+        final ByteBuffer out = ByteBuffer.allocate((int) (ENCODE_CHUNK_SIZE * encoder.maxBytesPerChar()));
+        in.limit(0);
+
+        final int length = data.length();
+        int position = 0;
+        boolean endOfInput = false;
+        while (!endOfInput || in.hasRemaining()) {
+            // Refill behind what was not encoded yet (e.g. the high half of a surrogate pair)
+            in.compact();
+            final int count = Math.min(in.remaining(), length - position);
+            getChars(data, position, position + count, chars, in.position());
+            in.position(in.position() + count);
+            in.flip();
+            position += count;
+            endOfInput = position == length;
+
+            final CoderResult result = encoder.encode(in, out, endOfInput);
+            output.write(out.array(), 0, out.position());
+            out.clear();
+            if (endOfInput && result.isUnderflow() && !in.hasRemaining()) {
+                break;
+            }
+        }
+        while (encoder.flush(out).isOverflow()) {
+            output.write(out.array(), 0, out.position());
+            out.clear();
+        }
+        output.write(out.array(), 0, out.position());
+    }
+
+    private static void getChars(final CharSequence s, final int start, final int end, final char[] dest, final int offset) {
+        if (s instanceof String) {
+            ((String) s).getChars(start, end, dest, offset);
+        } else if (s instanceof GetChars) {
+            ((GetChars) s).getChars(start, end, dest, offset);
+        } else {
+            for (int i = start; i < end; i++) {
+                dest[offset + i - start] = s.charAt(i);
+            }
+        }
+    }
+
     public static boolean copyFile(final File src, final File dst) {
         // Just touch file if src is empty
         if (src.length() == 0) {
@@ -299,25 +579,45 @@ public class GsFileUtils {
         }
     }
 
-    // Returns -1 if the file did not contain any of the needles, otherwise,
-    // the index of which needle was found in the contents of the file.
-    //
-    // Needless MUST be in lower-case.
+    /**
+     * Find the needle which occurs first in the file, line by line and ignoring case.
+     * Needles must be lowercase, on equal lines the lowest index wins.
+     * The file is read in chunks of whole lines, until a chunk contains a needle.
+     *
+     * @return index of the needle, or -1 if none is found
+     */
     public static int fileContains(File file, String... needles) {
-        try {
-            FileInputStream in = new FileInputStream(file);
-
-            int i;
-            String line;
-            BufferedReader reader = new BufferedReader(new InputStreamReader(in));
-            while ((line = reader.readLine()) != null) {
-                for (i = 0; i != needles.length; ++i)
-                    if (line.toLowerCase(Locale.ROOT).contains(needles[i])) {
-                        return i;
+        final GsByteMatcher[] matchers = new GsByteMatcher[needles.length];
+        for (int i = 0; i != needles.length; ++i) {
+            matchers[i] = new GsByteMatcher(needles[i], true, Locale.ROOT);
+        }
+        try (final InputStream in = new FileInputStream(file)) {
+            byte[] buffer = new byte[64 * 1024];
+            int length = 0;
+            for (boolean isEnd = false; !isEnd; ) {
+                final int read = in.read(buffer, length, buffer.length - length);
+                isEnd = read < 0;
+                length += Math.max(read, 0);
+
+                // Up to the last line break, so that neither lines nor chars are split
+                int end = length;
+                while (!isEnd && end > 0 && buffer[end - 1] != '\n' && buffer[end - 1] != '\r') {
+                    end--;
+                }
+                if (end == 0) {
+                    if (length == buffer.length) {
+                        buffer = Arrays.copyOf(buffer, buffer.length * 2);
                     }
-            }
+                    continue;
+                }
 
-            in.close();
+                final int found = firstNeedleInLines(buffer, end, needles, matchers);
+                if (found >= 0) {
+                    return found;
+                }
+                System.arraycopy(buffer, end, buffer, 0, length - end);
+                length -= end;
+            }
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -325,6 +625,34 @@ public class GsFileUtils {
         return -1;
     }
 
+    // Index of the needle on the first line of data up to end containing any of them, or -1
+    private static int firstNeedleInLines(final byte[] data, final int end, final String[] needles, final GsByteMatcher[] matchers) {
+        int found = -1, foundLine = Integer.MAX_VALUE;
+        String[] lines = null;
+        for (int i = 0; i != needles.length; ++i) {
+            final int[] line = {-1};
+            if (matchers[i].isSupportedFor(data, 0, end)) {
+                matchers[i].forEachMatchingLine(data, 0, end, (lineNumber, start, lineEnd) -> {
+                    line[0] = lineNumber;
+                    return false;
+                });
+            } else {
+                // Decoded only if needed, case folding beyond ASCII
+                if (lines == null) {
+                    lines = new String(data, 0, end, StandardCharsets.UTF_8).toLowerCase(Locale.ROOT).split("\\r\\n|\\r|\\n", -1);
+                }
+                for (int l = 0; l < lines.length && line[0] < 0; l++) {
+                    line[0] = lines[l].contains(needles[i]) ? l : -1;
+                }
+            }
+            if (line[0] >= 0 && line[0] < foundLine) {
+                found = i;
+                foundLine = line[0];
+            }
+        }
+        return found;
+    }
+
     public static boolean deleteRecursive(final File file) {
         boolean ok = true;
         if (file.exists()) {
@@ -0,0 +1,245 @@
+/*#######################################################
+ *
+ * SPDX-FileCopyrightText: 2017-2022 Gregor Santner <https://gsantner.net/>
+ * SPDX-License-Identifier: Unlicense OR CC0-1.0
+ *
+ * Written 2017-2022 by Gregor Santner <https://gsantner.net/>
+ * To the extent possible under law, the author(s) have dedicated all copyright and related and neighboring rights to this software to the public domain worldwide. This software is distributed without any warranty.
+ * You should have received a copy of the CC0 Public Domain Dedication along with this software. If not, see <http://creativecommons.org/publicdomain/zero/1.0/>.
+#########################################################*/
+package net.gsantner.opoc.util;
+
+import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructStat;
+
+import androidx.annotation.RequiresApi;
+
+import net.gsantner.opoc.wrapper.GsCallback;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Walk a directory tree without resolving canonical paths for every entry.
+ * <p>
+ * Entries are filtered by name before anything else is read about them, depth is counted while walking,
+ * and directories already walked are recognized by device and inode, so links and mounts cannot loop.
+ * Uses a {@link DirectoryStream} from Android 8, {@link Os#lstat} from Android 5, and {@link File#list()} below.
+ * <p>
+ * Each directory is walked once per walker. A walker can be shared by threads, each walking other directories.
+ */
+public class GsFileWalker {
+    static final int MODE_LIST = 0;
+    static final int MODE_LSTAT = 1;
+    static final int MODE_NIO = 2;
+
+    public interface Visitor {
+        /**
+         * @param file        the entry
+         * @param path        path relative to the walked root, separated by '/'
+         * @param depth       1 for entries of the root
+         * @param isDirectory whether it is a directory, links to directories are only reported if followed
+         * @return true to walk into the directory right away, with this visitor
+         */
+        boolean visit(File file, String path, int depth, boolean isDirectory);
+    }
+
+    private final Set<Object> _walked = Collections.newSetFromMap(new ConcurrentHashMap<Object, Boolean>());
+    private GsCallback.b1<String> _isIgnoredName;
+    private int _maxDepth = Integer.MAX_VALUE;
+    private boolean _isFollowLinks = false;
+    private int _mode = -1;
+    private volatile boolean _isCanceled = false;
+
+    /**
+     * Entries up to this depth are visited, 1 for the entries of the root only
+     */
+    public GsFileWalker setMaxDepth(final int maxDepth) {
+        _maxDepth = maxDepth;
+        return this;
+    }
+
+    /**
+     * Skip entries by name, before it is known whether they are files or directories
+     */
+    public GsFileWalker setIgnoredNames(final GsCallback.b1<String> isIgnoredName) {
+        _isIgnoredName = isIgnoredName;
+        return this;
+    }
+
+    /**
+     * Follow links to directories, by default they are skipped. Links to files are always visited
+     */
+    public GsFileWalker setFollowLinks(final boolean followLinks) {
+        _isFollowLinks = followLinks;
+        return this;
+    }
+
+    GsFileWalker setMode(final int mode) {
+        _mode = mode;
+        return this;
+    }
+
+    /**
+     * Stop walking, directories being listed are left after the current entry
+     */
+    public void cancel() {
+        _isCanceled = true;
+    }
+
+    public void walk(final File root, final Visitor visitor) {
+        walk(root, "", 0, visitor);
+    }
+
+    /**
+     * Walk a directory which was visited before, to walk directories on other threads
+     *
+     * @param path  path of the directory relative to the root
+     * @param depth depth of the directory, 0 for the root
+     */
+    public void walk(final File dir, final String path, final int depth, final Visitor visitor) {
+        if (_isCanceled || depth >= _maxDepth) {
+            return;
+        }
+        if (_mode < 0) {
+            _mode = Build.VERSION.SDK_INT >= Build.VERSION_CODES.O ? MODE_NIO : (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ? MODE_LSTAT : MODE_LIST);
+        }
+
+        if (_mode == MODE_NIO) {
+            Nio.walk(this, dir, path, depth, visitor);
+        } else if (markWalked(dir)) {
+            final String[] names = dir.list();
+            for (final String name : (names != null ? names : new String[0])) {
+                if (_isCanceled) {
+                    return;
+                }
+                if (!isIgnored(name)) {
+                    final File file = new File(dir, name);
+                    final int type = _mode == MODE_LSTAT ? getTypeLstat(file) : getTypeList(file, dir);
+                    visit(file, path, name, depth, type, visitor);
+                }
+            }
+        }
+    }
+
+    private boolean isIgnored(final String name) {
+        return _isIgnoredName != null && _isIgnoredName.callback(name);
+    }
+
+    // type: 1 directory, 0 file, -1 skipped
+    private void visit(final File file, final String path, final String name, final int depth, final int type, final Visitor visitor) {
+        if (type >= 0) {
+            final String childPath = path.isEmpty() ? name : path + "/" + name;
+            if (visitor.visit(file, childPath, depth + 1, type == 1) && type == 1) {
+                walk(file, childPath, depth + 1, visitor);
+            }
+        }
+    }
+
+    // Only the first walk of a directory is allowed
+    private boolean markWalked(final File dir) {
+        try {
+            final Object key;
+            if (_mode == MODE_LSTAT) {
+                final StructStat stat = Os.stat(dir.getPath());
+                key = stat.st_dev + ":" + stat.st_ino;
+            } else {
+                key = dir.getCanonicalPath();
+            }
+            return _walked.add(key);
+        } catch (ErrnoException | IOException e) {
+            return false;
+        }
+    }
+
+    private int getTypeLstat(final File file) {
+        try {
+            int mode = Os.lstat(file.getPath()).st_mode;
+            if (OsConstants.S_ISLNK(mode)) {
+                try {
+                    mode = Os.stat(file.getPath()).st_mode;
+                } catch (ErrnoException e) {
+                    return 0; // Broken link
+                }
+                if (OsConstants.S_ISDIR(mode) && !_isFollowLinks) {
+                    return -1;
+                }
+            }
+            return OsConstants.S_ISDIR(mode) ? 1 : 0;
+        } catch (ErrnoException e) {
+            return -1;
+        }
+    }
+
+    private int getTypeList(final File file, final File dir) {
+        if (!file.isDirectory()) {
+            return 0;
+        }
+        if (!_isFollowLinks) {
+            try {
+                final File realParent = file.getCanonicalFile().getParentFile();
+                if (realParent == null || !dir.getCanonicalPath().equals(realParent.getPath())) {
+                    return -1;
+                }
+            } catch (IOException e) {
+                return -1;
+            }
+        }
+        return 1;
+    }
+
+    @RequiresApi(Build.VERSION_CODES.O)
+    private static class Nio {
+        private static void walk(final GsFileWalker walker, final File dir, final String path, final int depth, final Visitor visitor) {
+            final Path dirPath = dir.toPath();
+            try {
+                final Object key = Files.readAttributes(dirPath, BasicFileAttributes.class).fileKey();
+                if (!walker._walked.add(key != null ? key : dir.getCanonicalPath())) {
+                    return;
+                }
+            } catch (IOException e) {
+                return;
+            }
+
+            try (final DirectoryStream<Path> stream = Files.newDirectoryStream(dirPath)) {
+                for (final Path entry : stream) {
+                    if (walker._isCanceled) {
+                        return;
+                    }
+                    final String name = entry.getFileName().toString();
+                    if (!walker.isIgnored(name)) {
+                        walker.visit(new File(dir, name), path, name, depth, getType(walker, entry), visitor);
+                    }
+                }
+            } catch (IOException | RuntimeException ignored) {
+                // Not readable, or changed while listing
+            }
+        }
+
+        private static int getType(final GsFileWalker walker, final Path entry) {
+            try {
+                final BasicFileAttributes attributes = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                if (attributes.isSymbolicLink()) {
+                    if (Files.isDirectory(entry)) {
+                        return walker._isFollowLinks ? 1 : -1;
+                    }
+                    return 0;
+                }
+                return attributes.isDirectory() ? 1 : 0;
+            } catch (IOException e) {
+                return -1;
+            }
+        }
+    }
+}
@@ -25,5 +25,18 @@ public class TextViewUtilsTest {
         assertThat(TextViewUtils.findDiff("aaaaa", "aaa", 0, 0)).isEqualTo(new int[]{3, 5, 3});
         assertThat(TextViewUtils.findDiff("aaa", "aaaaa", 0, 0)).isEqualTo(new int[]{3, 3, 5});
     }
-}
 
+    @Test
+    public void paragraphBoundsTest() {
+        final String text = "ab\ncd\n\nef\n\n\ngh";
+        assertThat(TextViewUtils.getParagraphStart(text, 0)).isEqualTo(0);
+        assertThat(TextViewUtils.getParagraphStart(text, 4)).isEqualTo(0);
+        assertThat(TextViewUtils.getParagraphEnd(text, 1)).isEqualTo(5);
+        assertThat(TextViewUtils.getParagraphStart(text, 8)).isEqualTo(7);
+        assertThat(TextViewUtils.getParagraphEnd(text, 7)).isEqualTo(9);
+        assertThat(TextViewUtils.getParagraphStart(text, 12)).isEqualTo(12);
+        assertThat(TextViewUtils.getParagraphEnd(text, 12)).isEqualTo(14);
+        assertThat(TextViewUtils.getParagraphStart("", 0)).isEqualTo(0);
+        assertThat(TextViewUtils.getParagraphEnd("", 0)).isEqualTo(0);
+    }
+}
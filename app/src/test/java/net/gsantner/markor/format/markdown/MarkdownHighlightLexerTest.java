@@ -0,0 +1,295 @@
+/*#######################################################
+ *
+ *   Maintained by Gregor Santner, 2018-
+ *   https://gsantner.net/
+ *
+ *   License of this file: Apache 2.0 (Commercial upon request)
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+#########################################################*/
+package net.gsantner.markor.format.markdown;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import android.util.Patterns;
+
+import net.gsantner.markor.format.general.ColorUnderlineSpan;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class MarkdownHighlightLexerTest {
+
+    // Pattern per lexer category, in order of categories. There is none for fenced code
+    private static Pattern[] patterns(final boolean simpleHeadings) {
+        return new Pattern[]{
+                simpleHeadings ? MarkdownSyntaxHighlighter.HEADING_SIMPLE : MarkdownSyntaxHighlighter.HEADING,
+                MarkdownSyntaxHighlighter.LINK,
+                MarkdownSyntaxHighlighter.LIST_UNORDERED,
+                MarkdownSyntaxHighlighter.LIST_ORDERED,
+                MarkdownSyntaxHighlighter.DOUBLESPACE_LINE_ENDING,
+                MarkdownSyntaxHighlighter.BOLD,
+                MarkdownSyntaxHighlighter.ITALICS,
+                MarkdownSyntaxHighlighter.QUOTATION,
+                MarkdownSyntaxHighlighter.STRIKETHROUGH,
+                MarkdownSyntaxHighlighter.CODE,
+                Pattern.compile("\t"),
+                ColorUnderlineSpan.HEX_CODE_UNDERLINE_PATTERN,
+                Patterns.WEB_URL,
+        };
+    }
+
+    // Group of the pattern which is highlighted
+    private static int group(final int category) {
+        return category == MarkdownHighlightLexer.HEX_COLOR ? 1 : 0;
+    }
+
+    // Matches as found by SyntaxHighlighterBase.createSpanForMatches
+    private static List<String> patternMatches(final Pattern pattern, final String text, final int from, final int to) {
+        return patternMatches(pattern, 0, text, from, to);
+    }
+
+    private static List<String> patternMatches(final Pattern pattern, final int group, final String text, final int from, final int to) {
+        final List<String> result = new ArrayList<>();
+        final Matcher m = pattern.matcher(text).region(from, to).useTransparentBounds(true).useAnchoringBounds(false);
+        while (m.find()) {
+            if (m.end(group) > m.start(group)) {
+                result.add(m.start(group) + "-" + m.end(group));
+            }
+        }
+        return result;
+    }
+
+    private static List<String> lexerMatches(final MarkdownHighlightLexer lexer, final int category) {
+        final List<String> result = new ArrayList<>();
+        for (int i = 0; i < lexer.getCount(category); i++) {
+            result.add(lexer.getStart(category, i) + "-" + lexer.getEnd(category, i));
+        }
+        return result;
+    }
+
+    /**
+     * Text between fenced code blocks is lexed like a region of its own, so matches there are the same as
+     * of the patterns on each of these regions. In blocks, only tabs are found (and quote markers, see fencedCode)
+     */
+    private static void assertSameAsPatterns(final String text, final int from, final int to) {
+        for (final boolean simpleHeadings : new boolean[]{false, true}) {
+            final MarkdownHighlightLexer lexer = new MarkdownHighlightLexer().setSimpleHeadings(simpleHeadings);
+            lexer.lex(text, from, to, null);
+            final Pattern[] patterns = patterns(simpleHeadings);
+            for (int category = 0; category < patterns.length; category++) {
+                final List<String> expected = new ArrayList<>();
+                int segment = from;
+                for (int i = 0; i <= lexer.getCount(MarkdownHighlightLexer.FENCED_CODE); i++) {
+                    final boolean last = i == lexer.getCount(MarkdownHighlightLexer.FENCED_CODE);
+                    final int start = last ? to : lexer.getStart(MarkdownHighlightLexer.FENCED_CODE, i);
+                    expected.addAll(patternMatches(patterns[category], group(category), text, segment, start));
+                    if (!last) {
+                        segment = lexer.getEnd(MarkdownHighlightLexer.FENCED_CODE, i);
+                        if (category == MarkdownHighlightLexer.TAB) {
+                            expected.addAll(patternMatches(patterns[category], text, start, segment));
+                        }
+                    }
+                }
+
+                final List<String> actual = lexerMatches(lexer, category);
+                if (category == MarkdownHighlightLexer.QUOTATION) {
+                    actual.removeIf(match -> isInFence(lexer, Integer.parseInt(match.split("-")[1]) - 1));
+                }
+                assertThat(actual)
+                        .as("Pattern %s on [%d, %d) of text:\n%s", patterns[category], from, to, text)
+                        .containsExactlyElementsOf(expected);
+            }
+        }
+    }
+
+    private static boolean isInFence(final MarkdownHighlightLexer lexer, final int index) {
+        for (int i = 0; i < lexer.getCount(MarkdownHighlightLexer.FENCED_CODE); i++) {
+            if (index >= lexer.getStart(MarkdownHighlightLexer.FENCED_CODE, i) && index < lexer.getEnd(MarkdownHighlightLexer.FENCED_CODE, i)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static List<String> loadSamples() throws Exception {
+        File dir = new File("../samples");
+        if (!dir.isDirectory()) {
+            dir = new File("samples");
+        }
+
+        final List<String> samples = new ArrayList<>();
+        final File[] files = dir.listFiles();
+        if (files != null) {
+            for (final File file : files) {
+                if (file.isFile()) {
+                    samples.add(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+                }
+            }
+        }
+        return samples;
+    }
+
+    private static String concat(final List<String> samples, final int times) {
+        final StringBuilder all = new StringBuilder();
+        for (int i = 0; i < times; i++) {
+            for (final String sample : samples) {
+                all.append(sample).append("\n\n");
+            }
+        }
+        return all.toString();
+    }
+
+    @Test
+    public void sameAsPatternsOnSamples() throws Exception {
+        final List<String> samples = loadSamples();
+        assertThat(samples).isNotEmpty();
+        for (final String sample : samples) {
+            assertSameAsPatterns(sample, 0, sample.length());
+        }
+        final String all = concat(samples, 3);
+        assertSameAsPatterns(all, 0, all.length());
+    }
+
+    @Test
+    public void sameAsPatternsOnRegions() throws Exception {
+        final Random random = new Random(42);
+        final String all = concat(loadSamples(), 1);
+        for (int i = 0; i < 200; i++) {
+            final int from = random.nextInt(all.length()), to = Math.min(all.length(), from + random.nextInt(500));
+            assertSameAsPatterns(all, from, to);
+        }
+    }
+
+    @Test
+    public void sameAsPatternsOnGeneratedText() {
+        final String[] fragments = {
+                "\n", "\n", "\n", " ", " ", "  ", "    ", "\t", "\r\n", "a", "word", "Heading", "x.", ",", ")",
+                "#", "## ", "###### ", "####### ", "---", "===", "--", "-", "- ", "* ", "+ ", " [x]", " [ ]", "[",
+                "]", "(", "](", "[link](url)", "1. ", "23) ", "4:. ", "*", "**", "***", "_", "__", "~~", "~", "`",
+                "``", ">", "> ", "{", "  \n", "```", "~~~", "\n```\n", "\n> ```\n", "\n   ~~~~", "```a`", "#a1b2c3",
+                "#12345678", " #abcdef ", "#abcdefa#123456", "\u2028", "a.b", "www.x.org", "http://a.io/p?q=1", "ä.ö", ".",
+        };
+        final Random random = new Random(7);
+        for (int i = 0; i < 3000; i++) {
+            final StringBuilder text = new StringBuilder();
+            final int count = 1 + random.nextInt(30);
+            for (int j = 0; j < count; j++) {
+                text.append(fragments[random.nextInt(fragments.length)]);
+            }
+            final String generated = text.toString();
+            final int from = random.nextInt(generated.length() + 1);
+            final int to = from + random.nextInt(generated.length() - from + 1);
+            assertSameAsPatterns(generated, 0, generated.length());
+            assertSameAsPatterns(generated, from, to);
+        }
+    }
+
+    @Test
+    public void fencedCode() {
+        final MarkdownHighlightLexer lexer = new MarkdownHighlightLexer();
+        lexer.lex("a\n```\n**b**\n```\n*c*");
+        assertThat(lexerMatches(lexer, MarkdownHighlightLexer.FENCED_CODE)).containsExactly("2-15");
+        assertThat(lexerMatches(lexer, MarkdownHighlightLexer.BOLD)).isEmpty();
+        assertThat(lexerMatches(lexer, MarkdownHighlightLexer.ITALICS)).containsExactly("16-19");
+
+        // Not closed
+        lexer.lex("```\n# x");
+        assertThat(lexerMatches(lexer, MarkdownHighlightLexer.FENCED_CODE)).containsExactly("0-7");
+        assertThat(lexerMatches(lexer, MarkdownHighlightLexer.HEADING)).isEmpty();
+
+        // Closed by at least as many of the same char
+        lexer.lex("~~~~\n~~~\n```\n~~~~~\n~~x~~");
+        assertThat(lexerMatches(lexer, MarkdownHighlightLexer.FENCED_CODE)).containsExactly("0-18");
+        assertThat(lexerMatches(lexer, MarkdownHighlightLexer.STRIKETHROUGH)).containsExactly("19-24");
+
+        // No fences
+        lexer.lex("``` a`b\n    ```\n**x**");
+        assertThat(lexerMatches(lexer, MarkdownHighlightLexer.FENCED_CODE)).isEmpty();
+        assertThat(lexerMatches(lexer, MarkdownHighlightLexer.CODE)).containsExactly("2-6", "8-15");
+        assertThat(lexerMatches(lexer, MarkdownHighlightLexer.BOLD)).containsExactly("16-21");
+
+        // Tabs are still found
+        lexer.lex("```\n\tx\n```");
+        assertThat(lexerMatches(lexer, MarkdownHighlightLexer.TAB)).containsExactly("4-5");
+    }
+
+    @Test
+    public void fencedCodeInQuotes() {
+        final MarkdownHighlightLexer lexer = new MarkdownHighlightLexer();
+        lexer.lex("> ```\n> *a*\n> ```\n*b*");
+        assertThat(lexerMatches(lexer, MarkdownHighlightLexer.FENCED_CODE)).containsExactly("0-17");
+        assertThat(lexerMatches(lexer, MarkdownHighlightLexer.QUOTATION)).containsExactly("0-1", "5-7", "11-13");
+        assertThat(lexerMatches(lexer, MarkdownHighlightLexer.ITALICS)).containsExactly("18-21");
+
+        // The block ends with the quote
+        lexer.lex("> ```\n> *a*\n*b*");
+        assertThat(lexerMatches(lexer, MarkdownHighlightLexer.FENCED_CODE)).containsExactly("0-11");
+        assertThat(lexerMatches(lexer, MarkdownHighlightLexer.ITALICS)).containsExactly("12-15");
+
+        // Quote markers in a block outside of quotes are code
+        lexer.lex("```\n> *a*\n```");
+        assertThat(lexerMatches(lexer, MarkdownHighlightLexer.QUOTATION)).isEmpty();
+    }
+
+    @Test
+    public void regionInFencedCode() {
+        final MarkdownHighlightLexer lexer = new MarkdownHighlightLexer();
+        lexer.lex("```\n*a*\n```\n*b*", 4, 15, null);
+        assertThat(lexerMatches(lexer, MarkdownHighlightLexer.FENCED_CODE)).containsExactly("4-11");
+        assertThat(lexerMatches(lexer, MarkdownHighlightLexer.ITALICS)).containsExactly("12-15");
+    }
+
+    @Test
+    public void simpleCases() {
+        final MarkdownHighlightLexer lexer = new MarkdownHighlightLexer();
+        lexer.lex("# Title\nSome **bold** and *italic* text with `code`\n- item\n> quote");
+        assertThat(lexerMatches(lexer, MarkdownHighlightLexer.HEADING)).containsExactly("0-7");
+        assertThat(lexerMatches(lexer, MarkdownHighlightLexer.BOLD)).containsExactly("13-21");
+        assertThat(lexerMatches(lexer, MarkdownHighlightLexer.ITALICS)).containsExactly("26-34");
+        assertThat(lexerMatches(lexer, MarkdownHighlightLexer.CODE)).containsExactly("45-51");
+        assertThat(lexerMatches(lexer, MarkdownHighlightLexer.LIST_UNORDERED)).containsExactly("51-53");
+        assertThat(lexerMatches(lexer, MarkdownHighlightLexer.QUOTATION)).containsExactly("58-60");
+    }
+
+    @Test
+    public void benchmark() throws Exception {
+        Assume.assumeTrue(Boolean.getBoolean("benchmark"));
+        final String text = concat(loadSamples(), 50);
+        final Pattern[] patterns = patterns(false);
+        final MarkdownHighlightLexer lexer = new MarkdownHighlightLexer();
+
+        long patternsTime = Long.MAX_VALUE, lexerTime = Long.MAX_VALUE;
+        int patternsCount = 0, lexerCount = 0;
+        for (int run = 0; run < 5; run++) {
+            long start = System.nanoTime();
+            patternsCount = 0;
+            for (final Pattern pattern : patterns) {
+                patternsCount += patternMatches(pattern, text, 0, text.length()).size();
+            }
+            patternsTime = Math.min(patternsTime, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            lexer.lex(text);
+            lexerCount = 0;
+            for (int category = 0; category < MarkdownHighlightLexer.CATEGORY_COUNT; category++) {
+                lexerCount += lexer.getCount(category);
+            }
+            lexerTime = Math.min(lexerTime, System.nanoTime() - start);
+        }
+
+        assertThat(lexerCount).isPositive();
+        assertThat(patternsCount).isPositive();
+        assertThat(lexerTime).as("Markdown highlighting of %d chars: patterns %.1f ms, lexer %.1f ms",
+                text.length(), patternsTime / 1e6, lexerTime / 1e6).isLessThan(patternsTime);
+    }
+}
@@ -0,0 +1,251 @@
+/*#######################################################
+ *
+ *   Maintained by Gregor Santner, 2017-
+ *   https://gsantner.net/
+ *
+ *   License of this file: Apache 2.0 (Commercial upon request)
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+#########################################################*/
+package net.gsantner.markor.frontend.filesearch;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+public class FileSearcherTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static FileSearchEngine.SearchOptions options(final File root, final String query, final boolean inContent) {
+        final FileSearchEngine.SearchOptions options = new FileSearchEngine.SearchOptions();
+        options.rootSearchDir = root;
+        options.query = query;
+        options.isSearchInContent = inContent;
+        options.maxSearchDepth = 10;
+        options.ignoredDirectories = new ArrayList<>(Collections.singletonList("\"ignored"));
+        return options;
+    }
+
+    private static List<FileSearchEngine.FitFile> search(final FileSearchEngine.SearchOptions options, final int threads) {
+        return new FileSearcher(options, file -> file.getName().endsWith(".md"), threads).search(null);
+    }
+
+    private static List<String> paths(final List<FileSearchEngine.FitFile> files) {
+        final List<String> paths = new ArrayList<>();
+        for (final FileSearchEngine.FitFile file : files) {
+            paths.add(file.path);
+        }
+        return paths;
+    }
+
+    private void write(final String path, final String content) throws IOException {
+        final File file = new File(folder.getRoot(), path);
+        //noinspection ResultOfMethodCallIgnored
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void resultsAreInBreadthFirstOrder() throws IOException {
+        write("b/note.md", "Some Text\nmore text");
+        write("a/z/note.md", "text");
+        write("a/note.md", "nothing");
+        write("note.md", "first\nTEXT");
+        write("a-b/note.md", "text");
+        write("ignored/note.md", "text");
+        write("a/image.png", "text");
+
+        for (final int threads : new int[]{1, 4}) {
+            final List<FileSearchEngine.FitFile> result = search(options(folder.getRoot(), "Text", true), threads);
+            assertThat(paths(result)).containsExactly("note.md", "a-b/note.md", "b/note.md", "a/z/note.md");
+            assertThat(result.get(0).matchesWithLineNumberAndLineText).hasSize(1);
+            assertThat(result.get(0).matchesWithLineNumberAndLineText.get(0).lineNumber).isEqualTo(1);
+            assertThat(result.get(2).matchesWithLineNumberAndLineText.get(1).preview).isEqualTo("more text");
+        }
+
+        // Names, with directories, up to max depth
+        final FileSearchEngine.SearchOptions names = options(folder.getRoot(), "NOTE", false);
+        names.maxSearchDepth = 2;
+        assertThat(paths(search(names, 4))).containsExactly("note.md", "a/note.md", "a-b/note.md", "b/note.md");
+        final FileSearchEngine.SearchOptions regex = options(folder.getRoot(), "a*", false);
+        regex.isRegexQuery = true;
+        assertThat(paths(search(regex, 4))).containsExactly("a", "a-b");
+    }
+
+    @Test
+    public void invalidRegexIsReported() {
+        final FileSearchEngine.SearchOptions options = options(folder.getRoot(), "a[", true);
+        options.isRegexQuery = true;
+        final FileSearcher searcher = new FileSearcher(options, file -> true);
+        assertThat(searcher.isValid()).isFalse();
+        assertThat(searcher.getInvalidPatterns()).containsExactly("a[");
+        assertThat(searcher.search(null)).isEmpty();
+    }
+
+    @Test
+    public void canceledSearchStops() throws IOException {
+        for (int i = 0; i < 200; i++) {
+            write("dir" + i + "/note.md", "text");
+        }
+        final FileSearcher searcher = new FileSearcher(options(folder.getRoot(), "text", true), file -> true, 2);
+        searcher.cancel();
+        assertThat(searcher.search(null)).isEmpty();
+        assertThat(searcher.getCheckedFileCount()).isLessThan(200);
+    }
+
+    @Test
+    public void resultsAreStreamedInBatches() throws IOException {
+        for (int i = 0; i < 100; i++) {
+            write("dir" + (i % 10) + "/note" + i + ".md", i % 2 == 0 ? "text" : "other");
+        }
+
+        final List<List<FileSearchEngine.FitFile>> batches = new ArrayList<>();
+        final List<FileSearchEngine.FitFile> result = new FileSearcher(options(folder.getRoot(), "text", true), file -> true, 2)
+                .setResultListener(batches::add).search(null);
+        final List<FileSearchEngine.FitFile> streamed = new ArrayList<>();
+        for (final List<FileSearchEngine.FitFile> batch : batches) {
+            assertThat(batch).isSortedAccordingTo(FileSearcher.BREADTH_FIRST_ORDER).isNotEmpty();
+            streamed.addAll(batch);
+        }
+        streamed.sort(FileSearcher.BREADTH_FIRST_ORDER);
+        assertThat(paths(streamed)).isEqualTo(paths(result)).hasSize(50);
+
+        // Stop after the first result was seen
+        for (int i = 100; i < 2000; i++) {
+            write("dir" + (i % 10) + "/note" + i + ".md", i % 2 == 0 ? "text" : "other");
+        }
+        final FileSearcher searcher = new FileSearcher(options(folder.getRoot(), "text", true), file -> true, 1);
+        final List<FileSearchEngine.FitFile> first = new ArrayList<>();
+        searcher.setResultListener(batch -> {
+            first.addAll(batch);
+            searcher.cancel();
+        });
+        final List<FileSearchEngine.FitFile> stopped = searcher.search(null);
+        first.sort(FileSearcher.BREADTH_FIRST_ORDER);
+        assertThat(paths(stopped)).isEqualTo(paths(first)).isNotEmpty().hasSizeLessThan(1000);
+    }
+
+    @Test
+    public void rankedSearchReadsOnlyFilesWhichCanMakeIt() throws IOException {
+        // Many notes mention the needle in passing, few are about it
+        final String filler = new String(new char[100]).replace("\0", "lorem ipsum\n");
+        for (int i = 0; i < 200; i++) {
+            write("notes/note" + i + ".md", "some text\nwith a needle somewhere\n" + filler);
+        }
+        write("notes/needle-facts.md", "# Needle\nneedle needle");
+        write("b/needle.md", "needle");
+        write("recent.md", "a needle\n" + filler);
+
+        final FileSearchEngine.SearchOptions ranked = options(folder.getRoot(), "needle", true);
+        ranked.maxRankedResults = 3;
+        ranked.touchTimes = new HashMap<>();
+        ranked.touchTimes.put(new File(folder.getRoot(), "recent.md").getAbsolutePath(), System.currentTimeMillis());
+        final List<FileSearchEngine.FitFile> result = search(ranked, 2);
+        assertThat(paths(result)).containsExactly("b/needle.md", "notes/needle-facts.md", "recent.md");
+        assertThat(result).isSortedAccordingTo(FileSearcher.RESULT_ORDER);
+        assertThat(result.get(1).score).isGreaterThan(result.get(2).score);
+
+        // On one thread files are read strictly by best possible score, the other notes cannot beat the recent one
+        final FileSearcher searcher = new FileSearcher(ranked, file -> true, 1);
+        assertThat(paths(searcher.search(null))).isEqualTo(paths(result));
+        assertThat(searcher.getReadFileCount()).isEqualTo(3);
+
+        assertThat(search(options(folder.getRoot(), "needle", true), 2)).hasSize(203).allMatch(f -> f.score == 0);
+    }
+
+    @Test
+    public void rankedSearchBoundsDensityBySize() throws IOException {
+        final String filler = new String(new char[100]).replace("\0", "lorem ipsum\n");
+        for (int i = 0; i < 5; i++) {
+            write("long" + i + ".md", "# needle\n" + filler);
+        }
+        write("short.md", "# needle");
+
+        // With one match per file, long files cannot reach the density of the short one
+        final FileSearchEngine.SearchOptions ranked = options(folder.getRoot(), "needle", true);
+        ranked.maxRankedResults = 1;
+        ranked.isOnlyFirstContentMatch = true;
+        final FileSearcher searcher = new FileSearcher(ranked, file -> true, 1);
+        assertThat(paths(searcher.search(null))).containsExactly("short.md");
+        assertThat(searcher.getReadFileCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void rankedSearchKeepsTiesInResultOrder() throws IOException {
+        // The recent file is read first, then the heading reaches the same score and comes first by path
+        write("b/recent.md", "text\nneedle");
+        write("a.md", "# needle");
+
+        final FileSearchEngine.SearchOptions ranked = options(folder.getRoot(), "needle", true);
+        ranked.touchTimes = new HashMap<>();
+        ranked.touchTimes.put(new File(folder.getRoot(), "b/recent.md").getAbsolutePath(), Long.MAX_VALUE);
+        ranked.maxRankedResults = 2;
+        final List<FileSearchEngine.FitFile> all = new FileSearcher(ranked, file -> true, 1).search(null);
+        assertThat(paths(all)).containsExactly("a.md", "b/recent.md");
+        assertThat(all.get(0).score).isEqualTo(all.get(1).score);
+
+        ranked.maxRankedResults = 1;
+        final FileSearcher searcher = new FileSearcher(ranked, file -> true, 1);
+        assertThat(paths(searcher.search(null))).containsExactly("a.md");
+        assertThat(searcher.getReadFileCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void benchmarkParallelSearch() throws IOException {
+        Assume.assumeTrue(Boolean.getBoolean("benchmark"));
+        // Notebook of 20 folders with 10 sub folders with 100 notes each
+        final Random random = new Random(1);
+        final String[] words = {"lorem", "ipsum", "dolor", "sit", "amet", "markor", "note", "todo", "list", "the"};
+        final StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+            for (int j = 0; j < 10; j++) {
+                for (int k = 0; k < 100; k++) {
+                    text.setLength(0);
+                    for (int w = 0; w < 300; w++) {
+                        text.append(words[random.nextInt(words.length)]).append(w % 12 == 11 ? '\n' : ' ');
+                    }
+                    if (random.nextInt(50) == 0) {
+                        text.append("needle\n");
+                    }
+                    write("folder" + i + "/sub" + j + "/note" + k + ".md", text.toString());
+                }
+            }
+        }
+
+        final List<FileSearchEngine.FitFile> serial = search(options(folder.getRoot(), "needle", true), 1);
+        final List<FileSearchEngine.FitFile> parallel = search(options(folder.getRoot(), "needle", true), FileSearcher.DEFAULT_THREAD_COUNT);
+        assertThat(paths(parallel)).isEqualTo(paths(serial)).isNotEmpty();
+
+        final int runs = 3;
+        long start = System.nanoTime();
+        for (int i = 0; i < runs; i++) {
+            search(options(folder.getRoot(), "needle", true), 1);
+        }
+        final long serialTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < runs; i++) {
+            search(options(folder.getRoot(), "needle", true), FileSearcher.DEFAULT_THREAD_COUNT);
+        }
+        final long parallelTime = System.nanoTime() - start;
+
+        // Threads only pay off with more than one core
+        assertThat(parallelTime).as("Search 20000 files: 1 thread %.1f ms, %d threads %.1f ms", serialTime / 1e6 / runs, FileSearcher.DEFAULT_THREAD_COUNT, parallelTime / 1e6 / runs)
+                .isLessThan(Runtime.getRuntime().availableProcessors() > 1 ? serialTime : 2 * serialTime);
+    }
+}
@@ -0,0 +1,219 @@
+/*#######################################################
+ *
+ *   Maintained by Gregor Santner, 2017-
+ *   https://gsantner.net/
+ *
+ *   License of this file: Apache 2.0 (Commercial upon request)
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+#########################################################*/
+package net.gsantner.markor.frontend.filesearch;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+public class FullTextIndexTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File root() {
+        return new File(folder.getRoot(), "notebook");
+    }
+
+    private File indexFile() {
+        return new File(folder.getRoot(), "index.bin");
+    }
+
+    private FullTextIndex newIndex() {
+        return new FullTextIndex(root(), indexFile(), file -> file.getName().endsWith(".md"));
+    }
+
+    // Written in the past, files changed within the last seconds are not indexed
+    private File write(final String path, final String content) throws IOException {
+        final File file = new File(root(), path);
+        //noinspection ResultOfMethodCallIgnored
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        //noinspection ResultOfMethodCallIgnored
+        file.setLastModified(System.currentTimeMillis() - 60000);
+        return file;
+    }
+
+    private List<String> candidates(final FullTextIndex index, final String query, final File... files) {
+        final FullTextIndex.Candidates candidates = index.query(query);
+        final List<String> names = new ArrayList<>();
+        for (final File file : files) {
+            if (candidates == null || candidates.mayContain(file)) {
+                names.add(file.getName());
+            }
+        }
+        return names;
+    }
+
+    @Test
+    public void queryReturnsFilesWhichMayContainText() throws IOException {
+        final File a = write("a.md", "Hello World\nfoo-bar");
+        final File b = write("sub/b.md", "hello\nworld");
+        final File c = write("c.txt", "world");
+        final FullTextIndex index = newIndex();
+        assertThat(index.update()).isTrue();
+        assertThat(index.getFileCount()).isEqualTo(2);
+
+        assertThat(candidates(index, "WORLD", a, b, c)).containsExactly("a.md", "b.md", "c.txt");
+        assertThat(candidates(index, "orl", a, b)).containsExactly("a.md", "b.md");
+        assertThat(candidates(index, "lo wo", a, b)).containsExactly("a.md");
+        assertThat(candidates(index, "o-b", a, b)).containsExactly("a.md");
+        assertThat(candidates(index, "missing", a, b)).isEmpty();
+        assertThat(candidates(index, "ΟΔΟΣ", a, b)).isEmpty();
+        assertThat(index.query("->")).isNull();
+
+        // Changed and new files may always contain the text
+        Files.write(b.toPath(), "missing".getBytes(StandardCharsets.UTF_8));
+        final File d = new File(root(), "d.md");
+        assertThat(candidates(index, "missing", a, b, d)).containsExactly("b.md", "d.md");
+    }
+
+    @Test
+    public void wordsOfQueryAreOnOneLine() throws IOException {
+        final File a = write("a.md", "dog small talk\na big smallest");
+        final File b = write("b.md", "a big small world");
+        final FullTextIndex index = newIndex();
+        assertThat(index.update()).isTrue();
+
+        // All trigrams are in a.md, but not the whole words on one line
+        assertThat(candidates(index, " big small ", a, b)).containsExactly("b.md");
+        assertThat(candidates(index, "a big sma", a, b)).containsExactly("a.md", "b.md");
+        assertThat(candidates(index, "a big smallest", a, b)).containsExactly("a.md");
+        assertThat(candidates(index, "g small t", a, b)).containsExactly("a.md");
+
+        // Words of changed files are stored too
+        write("c.md", "big\nsmall ");
+        final File c = write("d.md", "one big small one");
+        assertThat(index.update()).isTrue();
+        final FullTextIndex loaded = newIndex();
+        assertThat(candidates(loaded, " big small ", a, b, c)).containsExactly("b.md", "d.md");
+        assertThat(candidates(loaded, "big smallest", a, b, c)).containsExactly("a.md");
+    }
+
+    @Test
+    public void updateIsIncrementalAndStored() throws IOException {
+        final File a = write("a.md", "alpha");
+        final File b = write("b.md", "beta");
+        final File recent = write("recent.md", "gamma");
+        //noinspection ResultOfMethodCallIgnored
+        recent.setLastModified(System.currentTimeMillis());
+        final FullTextIndex index = newIndex();
+        assertThat(index.update()).isTrue();
+        assertThat(index.update()).isFalse();
+        assertThat(index.getFileCount()).isEqualTo(2);
+        assertThat(candidates(index, "gamma", a, b, recent)).containsExactly("recent.md");
+
+        //noinspection ResultOfMethodCallIgnored
+        recent.setLastModified(System.currentTimeMillis() - 60000);
+        assertThat(index.update()).isTrue();
+        assertThat(index.update()).isFalse();
+
+        write("b.md", "delta delta");
+        assertThat(new File(root(), "a.md").delete()).isTrue();
+        assertThat(index.update()).isTrue();
+        assertThat(index.getFileCount()).isEqualTo(2);
+        assertThat(candidates(index, "delta", b, recent)).containsExactly("b.md");
+        assertThat(candidates(index, "beta", b, recent)).isEmpty();
+
+        // Loaded from file by a new instance
+        final FullTextIndex loaded = newIndex();
+        assertThat(loaded.getFileCount()).isEqualTo(2);
+        assertThat(candidates(loaded, "gamma", b, recent)).containsExactly("recent.md");
+        assertThat(loaded.update()).isFalse();
+
+        // Damaged changes at the end are dropped, and stored again by the next update
+        try (final RandomAccessFile raf = new RandomAccessFile(indexFile(), "rw")) {
+            raf.setLength(raf.length() - 3);
+        }
+        final FullTextIndex damaged = newIndex();
+        assertThat(candidates(damaged, "delta", b, recent)).contains("b.md");
+        assertThat(candidates(damaged, "gamma", b, recent)).contains("recent.md");
+        assertThat(damaged.update()).isTrue();
+        assertThat(candidates(newIndex(), "delta", b, recent)).containsExactly("b.md");
+
+        // A damaged header drops everything
+        try (final RandomAccessFile raf = new RandomAccessFile(indexFile(), "rw")) {
+            raf.write(0);
+        }
+        assertThat(newIndex().getFileCount()).isZero();
+    }
+
+    @Test
+    public void changesAreAppendedUntilCompacted() throws IOException {
+        final File[] files = new File[10];
+        for (int i = 0; i < files.length; i++) {
+            files[i] = write("note" + i + ".md", "note number " + i);
+        }
+        final FullTextIndex index = newIndex();
+        assertThat(index.update()).isTrue();
+        final byte[] base = Files.readAllBytes(indexFile().toPath());
+
+        // One changed file adds a change, the rest is not rewritten
+        write("note3.md", "changed note");
+        assertThat(index.update()).isTrue();
+        final byte[] changed = Files.readAllBytes(indexFile().toPath());
+        assertThat(changed.length).isGreaterThan(base.length);
+        assertThat(Arrays.copyOf(changed, base.length)).isEqualTo(base);
+        assertThat(candidates(index, "changed", files)).containsExactly("note3.md");
+        assertThat(candidates(newIndex(), "changed", files)).containsExactly("note3.md");
+        assertThat(candidates(newIndex(), "number 3", files)).isEmpty();
+
+        // Rewritten once changed files outweigh the others
+        for (int i = 0; i < files.length; i++) {
+            write("note" + i + ".md", "again " + i);
+            assertThat(index.update()).isTrue();
+        }
+        assertThat(Arrays.copyOf(Files.readAllBytes(indexFile().toPath()), base.length)).isNotEqualTo(base);
+        final FullTextIndex loaded = newIndex();
+        assertThat(loaded.getFileCount()).isEqualTo(files.length);
+        assertThat(candidates(loaded, "again 7", files)).containsExactly("note7.md");
+        assertThat(candidates(loaded, "number", files)).isEmpty();
+        assertThat(loaded.update()).isFalse();
+    }
+
+    @Test
+    public void searchWithIndexFindsSameAsWithout() throws IOException {
+        for (int i = 0; i < 50; i++) {
+            write("dir" + (i % 5) + "/note" + i + ".md", "line one\nnote number " + i + "\n" + (i % 7 == 0 ? "Needle in line three" : "hay"));
+        }
+        final FullTextIndex index = newIndex();
+        index.update();
+        write("dir1/note1.md", "changed needle, not in the index yet");
+
+        final List<String> queries = Arrays.asList("needle", "NUMBER 4", "e in l", "er 1", "-", "in line t", " number 4", "/needle.*three", "/num(ber|eral) 4\\d", "/er [0-9]$");
+        for (final String query : queries) {
+            // Regex queries start with '/'
+            final String text = query.replaceFirst("^/", "");
+            final FileSearchEngine.SearchOptions options = new FileSearchEngine.SearchOptions();
+            options.rootSearchDir = root();
+            options.isRegexQuery = query.startsWith("/");
+            options.query = text;
+            options.isSearchInContent = true;
+            options.maxSearchDepth = 10;
+            final List<FileSearchEngine.FitFile> expected = new FileSearcher(options, file -> true, 1).search(null);
+
+            options.query = text;
+            final List<FileSearchEngine.FitFile> indexed = new FileSearcher(options, file -> true, 1).setIndex(index).search(null);
+            assertThat(indexed).extracting(f -> f.path).isEqualTo(expected.stream().map(f -> f.path).collect(Collectors.toList()));
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/*#######################################################
+ *
+ *   Maintained by Gregor Santner, 2017-
+ *   https://gsantner.net/
+ *
+ *   License of this file: Apache 2.0 (Commercial upon request)
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+#########################################################*/
+package net.gsantner.markor.frontend.filesearch;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.Test;
+
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+public class TrigramQueryTest {
+
+    // Whether a line passes the query, the line counts as one file
+    private static boolean passes(final String regex, final String line) {
+        final TrigramQuery query = TrigramQuery.fromRegex(regex);
+        if (query == null) {
+            return true;
+        }
+        final String lower = FullTextIndex.normalize(line);
+        final Set<Long> trigrams = new HashSet<>();
+        for (int i = 0; i + 3 <= lower.length(); i++) {
+            trigrams.add(TrigramQuery.trigram(lower, i));
+        }
+        return query.evaluate(trigram -> {
+            final BitSet files = new BitSet();
+            files.set(0, trigrams.contains(trigram));
+            return files;
+        }).get(0);
+    }
+
+    @Test
+    public void everyMatchingLinePasses() {
+        final String[] regexes = {
+                "hello", "hel+o", "hel*o", "he(llo|lp)", "(?i)HELLO", "[hj]ello", "h[a-f]llo", "\\bworld\\b",
+                "wor?ld", "abc|world", "hello.*world", "(?:x|y)zz", "\\Qa.b\\E", "[^a]bc", "a{2,}b", "\\d+ tasks",
+                "(?<name>todo):", "(?=todo)todo", "x\\.y", "[.]md$", "^- \\[x\\]", "hello\\s+world", "ab(c|d)?ef",
+        };
+        final String[] lines = {
+                "hello world", "HELLO", "help", "jello", "hallo", "heo", "wold", "world", "abc", "xzz yzz",
+                "a.b", "xbc", "aab", "12 tasks", "todo: buy milk", "x.y", "note.md", "- [x] done", "hello   world",
+                "abef", "abcef", "abdef", "",
+        };
+        for (final String regex : regexes) {
+            final Pattern pattern = Pattern.compile(regex);
+            for (final String line : lines) {
+                if (pattern.matcher(line).find()) {
+                    assertThat(passes(regex, line)).as(regex + " on " + line).isTrue();
+                }
+            }
+        }
+    }
+
+    @Test
+    public void queryIsSelective() {
+        assertThat(passes("hello.*world", "hello there")).isFalse();
+        assertThat(passes("hello.*world", "say hello to the world")).isTrue();
+        assertThat(passes("he(llo|lp)", "hello")).isTrue();
+        assertThat(passes("he(llo|lp)", "help")).isTrue();
+        assertThat(passes("he(llo|lp)", "helm")).isFalse();
+        assertThat(passes("[hj]ello", "mellow")).isFalse();
+        assertThat(passes("\\d+ tasks", "open tasks")).isTrue();
+        assertThat(passes("\\d+ tasks", "open task")).isFalse();
+        assertThat(passes("(?<name>todo):", "todo list")).isFalse();
+    }
+
+    @Test
+    public void unknownRegexMatchesAnything() {
+        for (final String regex : new String[]{".*", "ab", "a|.", "(?x)abc", "[^a]b", "\\p{L}+", "(a)\\1", "[a-z]{3}"}) {
+            assertThat(TrigramQuery.fromRegex(regex)).as(regex).isNull();
+        }
+        assertThat(TrigramQuery.fromRegex("abc")).hasToString("abc");
+        assertThat(TrigramQuery.fromRegex("abcd")).hasToString("and(abc bcd)");
+    }
+}
@@ -0,0 +1,95 @@
+/*#######################################################
+ *
+ *   Maintained by Gregor Santner, 2017-
+ *   https://gsantner.net/
+ *
+ *   License of this file: Apache 2.0 (Commercial upon request)
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+#########################################################*/
+package net.gsantner.markor.frontend.textview;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.util.Random;
+
+public class DocumentChangeTrackerTest {
+
+    private static final String ALPHABET = "ab \n";
+
+    // Random edits and their reverts, the tracker agrees with comparing the whole text
+    @Test
+    public void modifiedMatchesComparison() {
+        final Random random = new Random(11);
+        final String baseline = RandomText.generate(random, 20000, ALPHABET);
+        final PieceTableEditable text = new PieceTableEditable(baseline);
+        final DocumentChangeTracker tracker = DocumentChangeTracker.attach(text);
+        assertThat(tracker.getBaselineHash()).isEqualTo(DocumentChangeTracker.hash(baseline));
+
+        for (int i = 0; i < 3000; i++) {
+            final int start = random.nextInt(text.length() + 1);
+            final int end = Math.min(text.length(), start + random.nextInt(5));
+            final String removed = text.subSequence(start, end).toString();
+            final String inserted = RandomText.generate(random, random.nextInt(3), ALPHABET);
+            text.replace(start, end, inserted);
+
+            if (random.nextInt(3) == 0) {
+                text.replace(start, start + inserted.length(), removed);
+            }
+            if (random.nextInt(50) == 0) {
+                text.replace(0, text.length(), baseline);
+            }
+
+            assertThat(DocumentChangeTracker.get(text)).isSameAs(tracker);
+            assertThat(tracker.isModified(text)).isEqualTo(!text.toString().equals(baseline));
+        }
+
+        tracker.markUnmodified(text);
+        assertThat(tracker.isModified(text)).isFalse();
+        assertThat(tracker.getBaselineHash()).isEqualTo(DocumentChangeTracker.hash(text.toString()));
+    }
+
+    @Test
+    public void editsFarApartAreReverted() {
+        final String baseline = RandomText.generate(new Random(1), 100000, ALPHABET);
+        final PieceTableEditable text = new PieceTableEditable(baseline);
+        final DocumentChangeTracker tracker = DocumentChangeTracker.attach(text);
+
+        text.insert(10, "x");
+        text.delete(90000, 90001);
+        assertThat(tracker.isModified(text)).isTrue();
+
+        text.insert(90000, baseline.substring(90000, 90001));
+        text.delete(10, 11);
+        assertThat(tracker.isModified(text)).isFalse();
+    }
+
+    @Test
+    public void benchmark() {
+        Assume.assumeTrue(Boolean.getBoolean("benchmark"));
+        final Random random = new Random(5);
+        final PieceTableEditable text = new PieceTableEditable(RandomText.generate(random, 10 << 20, ALPHABET));
+        final DocumentChangeTracker tracker = DocumentChangeTracker.attach(text);
+        final int checks = 200;
+
+        long start = System.nanoTime();
+        for (int i = 0; i < checks; i++) {
+            final int pos = random.nextInt(text.length());
+            text.replace(pos, pos + 1, "c");
+            tracker.isModified(text);
+        }
+        final long trackerTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < 5; i++) {
+            DocumentChangeTracker.hash(text);
+        }
+        final long hashTime = System.nanoTime() - start;
+
+        assertThat(trackerTime / checks).as("Modified check on 10 MB: tracker %.2f us, full hash %.2f us", trackerTime / 1e3 / checks, hashTime / 1e3 / 5)
+                .isLessThan(hashTime / 5);
+    }
+}
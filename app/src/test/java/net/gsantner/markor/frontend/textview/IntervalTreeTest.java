@@ -0,0 +1,394 @@
+/*#######################################################
+ *
+ *   Maintained by Gregor Santner, 2017-
+ *   https://gsantner.net/
+ *
+ *   License of this file: Apache 2.0 (Commercial upon request)
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+#########################################################*/
+package net.gsantner.markor.frontend.textview;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import net.gsantner.markor.format.markdown.MarkdownSyntaxHighlighter;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class IntervalTreeTest {
+
+    private static final Pattern[] PATTERNS = {
+            MarkdownSyntaxHighlighter.BOLD, MarkdownSyntaxHighlighter.ITALICS, MarkdownSyntaxHighlighter.HEADING,
+            MarkdownSyntaxHighlighter.LINK, MarkdownSyntaxHighlighter.LIST_UNORDERED, MarkdownSyntaxHighlighter.LIST_ORDERED,
+            MarkdownSyntaxHighlighter.QUOTATION, MarkdownSyntaxHighlighter.STRIKETHROUGH, MarkdownSyntaxHighlighter.CODE,
+    };
+
+    private static class Span extends IntervalTree.Node {
+        Span(final int start, final int end) {
+            super(start, end);
+        }
+    }
+
+    /**
+     * The list based implementation previously used by SyntaxHighlighterBase, ported verbatim.
+     * Groups are copies of the spans in the tree, so both can be moved independently.
+     */
+    private static class SortedSpanList {
+        static class SpanGroup implements Comparable<SpanGroup> {
+            int start, end;
+            final Span span;
+
+            SpanGroup(final Span o, final int s, final int e) {
+                span = o;
+                start = s;
+                end = e;
+            }
+
+            @Override
+            public int compareTo(final SpanGroup o) {
+                return start - o.start;
+            }
+        }
+
+        final List<SpanGroup> _groups = new ArrayList<>();
+
+        private static List<SpanGroup> copy(final List<Span> spans) {
+            final List<SpanGroup> groups = new ArrayList<>();
+            for (final Span span : spans) {
+                groups.add(new SpanGroup(span, span.start, span.end));
+            }
+            return groups;
+        }
+
+        // recompute()
+        void replaceAll(final List<Span> computed) {
+            _groups.clear();
+            _groups.addAll(copy(computed));
+            Collections.sort(_groups); // Dramatically improves performance
+        }
+
+        // fixup(after, delta)
+        void fixup(final int after, final int delta) {
+            for (int i = _groups.size() - 1; i >= 0; i--) {
+                final SpanGroup group = _groups.get(i);
+                // Very simple fixup. If the group is entirely after 'after', adjust it's region
+                if (group.start <= after) {
+                    // We iterate backwards. As groups are sorted, if start is before after, can break out
+                    break;
+                } else {
+                    group.start += delta;
+                    group.end += delta;
+                }
+            }
+        }
+
+        // Groups applyDynamic(range) sets, as [start, end, identity of span]
+        List<int[]> applyDynamic(final int[] range, final int length) {
+            final List<int[]> applied = new ArrayList<>();
+            for (int i = 0; i < _groups.size(); i++) {
+                final SpanGroup group = _groups.get(i);
+
+                if (group.start >= range[1]) {
+                    // As we are sorted on start, we can break out after the first group.start > end
+                    break;
+                }
+
+                final boolean valid = group.start >= 0 && group.end > range[0] && group.end <= length;
+                if (valid) {
+                    applied.add(new int[]{group.start, group.end, System.identityHashCode(group.span)});
+                }
+            }
+            return applied;
+        }
+
+        // Crossing check of findRecomputeRegion()
+        boolean isRecomputable(final int[] region) {
+            for (final SpanGroup group : _groups) {
+                final boolean intersects = group.start < region[1] && group.end > region[0];
+                if (intersects && (group.start < region[0] || group.end > region[1])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // mergeGroups(region, computed), returns the removed spans
+        List<Span> mergeGroups(final int[] region, final List<Span> computed) {
+            final List<Span> removed = new ArrayList<>();
+            final Iterator<SpanGroup> it = _groups.iterator();
+            while (it.hasNext()) {
+                final SpanGroup group = it.next();
+                if (group.start < region[1] && group.end > region[0]) {
+                    removed.add(group.span);
+                    it.remove();
+                }
+            }
+
+            _groups.addAll(copy(computed));
+
+            Collections.sort(_groups); // Dramatically improves performance
+            return removed;
+        }
+
+        // Whether a group starts in (removedStart, after], the list did not move those on deletes
+        boolean startsIn(final int removedStart, final int after) {
+            for (final SpanGroup group : _groups) {
+                if (group.start > removedStart && group.start <= after) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        List<Span> spans() {
+            final List<Span> spans = new ArrayList<>();
+            for (final SpanGroup group : _groups) {
+                spans.add(group.span);
+            }
+            return spans;
+        }
+    }
+
+    // Groups SyntaxHighlighterBase.applyDynamic(range) sets, as [start, end, identity of span]
+    private static List<int[]> applyDynamic(final IntervalTree<Span> tree, final int[] range, final int length) {
+        final List<int[]> result = new ArrayList<>();
+        tree.forEachIntersecting(range[0], range[1], span -> {
+            if (span.start >= 0 && span.end > span.start && span.end <= length) {
+                result.add(new int[]{span.start, span.end, System.identityHashCode(span)});
+            }
+            return true;
+        });
+        return result;
+    }
+
+    private static List<int[]> intersecting(final IntervalTree<Span> tree, final int start, final int end) {
+        final List<int[]> result = new ArrayList<>();
+        tree.forEachIntersecting(start, end, span -> result.add(new int[]{span.start, span.end, System.identityHashCode(span)}));
+        return result;
+    }
+
+    private static List<Span> generateSpans(final CharSequence text, final int from, final int to) {
+        final List<Span> spans = new ArrayList<>();
+        for (final Pattern pattern : PATTERNS) {
+            final Matcher m = pattern.matcher(text).region(from, to);
+            while (m.find()) {
+                if (m.end() > m.start()) {
+                    spans.add(new Span(m.start(), m.end()));
+                }
+            }
+        }
+        Collections.sort(spans, (a, b) -> Integer.compare(a.start, b.start));
+        return spans;
+    }
+
+    private static List<String> loadSamples() throws Exception {
+        File dir = new File("../samples");
+        if (!dir.isDirectory()) {
+            dir = new File("samples");
+        }
+
+        final List<String> samples = new ArrayList<>();
+        final File[] files = dir.listFiles();
+        if (files != null) {
+            for (final File file : files) {
+                if (file.isFile()) {
+                    samples.add(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+                }
+            }
+        }
+
+        // Also a long document
+        final StringBuilder all = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+            for (final String sample : samples) {
+                all.append(sample).append("\n\n");
+            }
+        }
+        samples.add(all.toString());
+        return samples;
+    }
+
+    private static void assertSame(final IntervalTree<Span> tree, final SortedSpanList list, final int length) {
+        assertThat(tree.size()).isEqualTo(list._groups.size());
+        final int[] all = {0, length};
+        assertThat(applyDynamic(tree, all, length)).containsExactlyElementsOf(list.applyDynamic(all, length));
+        assertThat(tree.toList()).containsExactlyElementsOf(list.spans());
+    }
+
+    @Test
+    public void sameAsSortedListOnSamples() throws Exception {
+        final Random random = new Random(42);
+        final List<String> samples = loadSamples();
+        assertThat(samples).hasSizeGreaterThan(1);
+
+        for (final String sample : samples) {
+            final StringBuilder text = new StringBuilder(sample);
+            final IntervalTree<Span> tree = new IntervalTree<>();
+            final SortedSpanList list = new SortedSpanList();
+
+            final List<Span> spans = generateSpans(text, 0, text.length());
+            tree.replaceAll(spans);
+            list.replaceAll(spans);
+            assertSame(tree, list, text.length());
+
+            int replaced = 0, deleted = 0;
+            for (int i = 0; i < 300; i++) {
+                final int length = text.length();
+                final int a = random.nextInt(length + 1), b = Math.min(length, a + random.nextInt(200));
+                switch (random.nextInt(4)) {
+                    case 0: {
+                        // Visible region
+                        final int[] range = {a, b};
+                        assertThat(applyDynamic(tree, range, length)).containsExactlyElementsOf(list.applyDynamic(range, length));
+                        break;
+                    }
+                    case 1: {
+                        // Insert
+                        final String inserted = sample.substring(0, Math.min(sample.length(), random.nextInt(20)));
+                        text.insert(a, inserted);
+                        tree.shift(a, inserted.length());
+                        list.fixup(a, inserted.length());
+                        break;
+                    }
+                    case 2: {
+                        // Delete, the list left groups starting in the deleted region behind, see clampsGroupsInDeletedRegion
+                        if (!list.startsIn(a, b)) {
+                            text.delete(a, b);
+                            tree.shift(b, a - b);
+                            list.fixup(b, a - b);
+                            deleted++;
+                        }
+                        break;
+                    }
+                    default: {
+                        // Recompute a region, as done if no group crosses it
+                        final int[] region = {a, b};
+                        if (list.isRecomputable(region)) {
+                            final List<Span> computed = generateSpans(text, a, b);
+                            computed.removeIf(span -> span.start >= b || span.end > b);
+                            final List<Span> removed = list.mergeGroups(region, computed);
+                            assertThat(tree.replace(a, b, computed)).containsExactlyElementsOf(removed);
+                            replaced++;
+                        }
+                        break;
+                    }
+                }
+                assertSame(tree, list, text.length());
+            }
+            assertThat(replaced).isPositive();
+            assertThat(deleted).isPositive();
+        }
+    }
+
+    @Test
+    public void clampsGroupsInDeletedRegion() {
+        final IntervalTree<Span> tree = new IntervalTree<>();
+        final Span a = new Span(0, 4), b = new Span(6, 12), c = new Span(10, 14), d = new Span(20, 22);
+        tree.replaceAll(Arrays.asList(a, b, c, d));
+
+        // Delete [5, 10), the list kept b at 6 and c at 10, after d which moved to 15
+        tree.shift(10, -5);
+        assertThat(tree.toList()).containsExactly(a, b, c, d);
+        assertThat(intersecting(tree, 0, 100)).extracting(pos -> pos[0] + "-" + pos[1]).containsExactly("0-4", "5-7", "5-9", "15-17");
+    }
+
+    @Test
+    public void addKeepsOrder() {
+        final IntervalTree<Span> tree = new IntervalTree<>();
+        final List<Span> expected = new ArrayList<>();
+        final Random random = new Random(7);
+        for (int i = 0; i < 1000; i++) {
+            final int start = random.nextInt(100);
+            final Span span = new Span(start, start + 1 + random.nextInt(10));
+            tree.add(span);
+            expected.add(span);
+        }
+        Collections.sort(expected, (a, b) -> Integer.compare(a.start, b.start)); // Stable
+        assertThat(tree.toList()).containsExactlyElementsOf(expected);
+        assertThat(tree.size()).isEqualTo(1000);
+    }
+
+    @Test
+    public void shiftAndQuery() {
+        final IntervalTree<Span> tree = new IntervalTree<>();
+        final Span a = new Span(0, 5), b = new Span(10, 15), c = new Span(20, 30);
+        tree.add(c);
+        tree.add(a);
+        tree.add(b);
+
+        tree.shift(5, 3);
+        assertThat(intersecting(tree, 11, 13)).isEmpty();
+        assertThat(intersecting(tree, 13, 14)).hasSize(1);
+        assertThat(b.getStart()).isEqualTo(13);
+        assertThat(c.getEnd()).isEqualTo(33);
+
+        // Delete [12, 18) - b starts in deleted region and is moved to its start
+        tree.shift(18, -6);
+        tree.forEach(span -> true);
+        assertThat(b.getStart()).isEqualTo(12);
+        assertThat(b.getEnd()).isEqualTo(12);
+        assertThat(c.getStart()).isEqualTo(17);
+        assertThat(tree.toList()).containsExactly(a, b, c);
+    }
+
+    @Test
+    public void removeAndLookUpSingleNodes() {
+        final Random random = new Random(11);
+        final IntervalTree<Span> tree = new IntervalTree<>();
+        final List<Span> spans = new ArrayList<>();
+        final List<int[]> positions = new ArrayList<>();
+        for (int i = 0; i < 3000; i++) {
+            final int op = random.nextInt(4);
+            if (op == 0 && !spans.isEmpty()) {
+                final int index = random.nextInt(spans.size());
+                final Span span = spans.remove(index);
+                final int[] expected = positions.remove(index);
+                tree.remove(span);
+                assertThat(new int[]{span.getStart(), span.getEnd()}).containsExactly(expected);
+            } else if (op == 1) {
+                // Insert only, deletions clamp as tested above
+                final int after = random.nextInt(200), delta = 1 + random.nextInt(20);
+                tree.shift(after, delta);
+                for (final int[] pos : positions) {
+                    if (pos[0] > after) {
+                        pos[0] += delta;
+                        pos[1] += delta;
+                    }
+                }
+            } else {
+                final int start = random.nextInt(200);
+                final Span span = new Span(start, start + random.nextInt(30));
+                tree.add(span);
+                spans.add(span);
+                positions.add(new int[]{span.start, span.end});
+            }
+
+            assertThat(tree.size()).isEqualTo(spans.size());
+            final int index = spans.isEmpty() ? -1 : random.nextInt(spans.size());
+            if (index >= 0) {
+                assertThat(new int[]{tree.getStart(spans.get(index)), tree.getEnd(spans.get(index))}).containsExactly(positions.get(index));
+            }
+        }
+
+        // Queries still see the maximum end after removals
+        final List<String> expected = new ArrayList<>();
+        for (final int[] pos : positions) {
+            if (pos[1] > 100 && pos[0] < 120) {
+                expected.add(pos[0] + "-" + pos[1]);
+            }
+        }
+        assertThat(intersecting(tree, 100, 120)).extracting(pos -> pos[0] + "-" + pos[1]).containsExactlyInAnyOrderElementsOf(expected);
+    }
+}
@@ -0,0 +1,89 @@
+/*#######################################################
+ *
+ *   Maintained by Gregor Santner, 2017-
+ *   https://gsantner.net/
+ *
+ *   License of this file: Apache 2.0 (Commercial upon request)
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+#########################################################*/
+package net.gsantner.markor.frontend.textview;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.util.Random;
+
+public class LineIndexTest {
+
+    private static final String ALPHABET = "ab \n\n";
+
+    // The index is kept up to date by edits, and gives the same results as scanning the text
+    @Test
+    public void helpersMatchScanning() {
+        final Random random = new Random(3);
+        final PieceTableEditable text = new PieceTableEditable(RandomText.generate(random, 500, ALPHABET));
+        final LineIndex index = LineIndex.attach(text);
+
+        for (int i = 0; i < 3000; i++) {
+            final int start = random.nextInt(text.length() + 1);
+            final int end = Math.min(text.length(), start + random.nextInt(random.nextInt(10) == 0 ? 100 : 5));
+            text.replace(start, end, RandomText.generate(random, random.nextInt(random.nextInt(10) == 0 ? 100 : 3), ALPHABET));
+
+            assertThat(LineIndex.get(text)).isSameAs(index);
+            final String plain = text.toString();
+            assertThat(index.getLineCount()).isEqualTo(plain.split("\n", -1).length);
+
+            for (int j = 0; j < 5; j++) {
+                final int pos = random.nextInt(plain.length() + 1);
+                assertThat(TextViewUtils.getLineStart(text, pos)).isEqualTo(TextViewUtils.getLineStart(plain, pos));
+                assertThat(TextViewUtils.getLineEnd(text, pos)).isEqualTo(TextViewUtils.getLineEnd(plain, pos));
+                assertThat(TextViewUtils.getLineOffsetFromIndex(text, pos)).containsExactly(TextViewUtils.getLineOffsetFromIndex(plain, pos));
+
+                final int line = random.nextInt(index.getLineCount() + 2), offset = random.nextInt(5);
+                assertThat(TextViewUtils.getIndexFromLineOffset(text, line, offset)).isEqualTo(TextViewUtils.getIndexFromLineOffset(plain, line, offset));
+            }
+        }
+    }
+
+    @Test
+    public void linesAndOffsets() {
+        final LineIndex index = new LineIndex("ab\n\ncd\n");
+        assertThat(index.getLineCount()).isEqualTo(4);
+        assertThat(index.getLineForOffset(0)).isEqualTo(0);
+        assertThat(index.getLineForOffset(2)).isEqualTo(0);
+        assertThat(index.getLineForOffset(3)).isEqualTo(1);
+        assertThat(index.getLineForOffset(4)).isEqualTo(2);
+        assertThat(index.getLineForOffset(7)).isEqualTo(3);
+        assertThat(index.getLineStart(2)).isEqualTo(4);
+        assertThat(index.getLineEnd(2)).isEqualTo(6);
+        assertThat(index.getLineEnd(3)).isEqualTo(7);
+    }
+
+    @Test
+    public void benchmark() {
+        Assume.assumeTrue(Boolean.getBoolean("benchmark"));
+        final Random random = new Random(5);
+        final PieceTableEditable text = new PieceTableEditable(RandomText.generate(random, 10 << 20, ALPHABET));
+        final String plain = text.toString();
+        final LineIndex index = LineIndex.attach(text);
+        final int lookups = 2000;
+
+        long start = System.nanoTime();
+        for (int i = 0; i < lookups; i++) {
+            TextViewUtils.getIndexFromLineOffset(text, random.nextInt(index.getLineCount()), 0);
+        }
+        final long indexTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < 20; i++) {
+            TextViewUtils.getIndexFromLineOffset(plain, random.nextInt(index.getLineCount()), 0);
+        }
+        final long scanTime = System.nanoTime() - start;
+
+        assertThat(indexTime / lookups).as("Line to offset on 10 MB: index %.2f us, scanning %.2f us", indexTime / 1e3 / lookups, scanTime / 1e3 / 20)
+                .isLessThan(scanTime / 20);
+    }
+}
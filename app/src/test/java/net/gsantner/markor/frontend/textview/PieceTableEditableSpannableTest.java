@@ -0,0 +1,189 @@
+/*#######################################################
+ *
+ *   Maintained by Gregor Santner, 2017-
+ *   https://gsantner.net/
+ *
+ *   License of this file: Apache 2.0 (Commercial upon request)
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+#########################################################*/
+package net.gsantner.markor.frontend.textview;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import android.text.SpanWatcher;
+import android.text.Spannable;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Random edits and span changes, compared with a live SpannableStringBuilder.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PieceTableEditableSpannableTest {
+
+    private static final String ALPHABET = "abc \n#*_xyz";
+    private static final int[] FLAGS = {Spanned.SPAN_EXCLUSIVE_EXCLUSIVE, Spanned.SPAN_EXCLUSIVE_INCLUSIVE, Spanned.SPAN_INCLUSIVE_EXCLUSIVE, Spanned.SPAN_INCLUSIVE_INCLUSIVE};
+
+    private static class Tag {
+        final int id;
+
+        Tag(final int id) {
+            this.id = id;
+        }
+
+        @Override
+        public String toString() {
+            return getClass().getSimpleName() + id;
+        }
+    }
+
+    private static class Bold extends Tag {
+        Bold(final int id) {
+            super(id);
+        }
+    }
+
+    private static class Italic extends Tag {
+        Italic(final int id) {
+            super(id);
+        }
+    }
+
+    // Records span events of tags. Not compared are the order of events for different spans,
+    // and old positions of moved spans, which SpannableStringBuilder derives from the new ones
+    private static class Recorder implements SpanWatcher {
+        final List<String> events = new ArrayList<>();
+
+        @Override
+        public void onSpanAdded(Spannable text, Object what, int start, int end) {
+            if (what instanceof Tag) {
+                events.add("added " + what + " " + start + " " + end);
+            }
+        }
+
+        @Override
+        public void onSpanRemoved(Spannable text, Object what, int start, int end) {
+            if (what instanceof Tag) {
+                events.add("removed " + what + " " + start + " " + end);
+            }
+        }
+
+        @Override
+        public void onSpanChanged(Spannable text, Object what, int ostart, int oend, int nstart, int nend) {
+            if (what instanceof Tag) {
+                events.add("moved " + what + " " + nstart + " " + nend);
+            }
+        }
+
+        List<String> take() {
+            final List<String> taken = new ArrayList<>(events);
+            events.clear();
+            taken.sort(null);
+            return taken;
+        }
+    }
+
+    // SpannableStringBuilder.nextSpanTransition misses spans in right subtrees of its tree, computed from its spans instead
+    private static int nextSpanTransition(final Spanned text, final int start, int limit, final Class<?> kind) {
+        for (final Object span : text.getSpans(0, text.length(), kind)) {
+            for (final int transition : new int[]{text.getSpanStart(span), text.getSpanEnd(span)}) {
+                if (transition > start && transition < limit) {
+                    limit = transition;
+                }
+            }
+        }
+        return limit;
+    }
+
+    // Watchers of both texts are different objects
+    private static List<String> names(final Object[] spans) {
+        final List<String> names = new ArrayList<>();
+        for (final Object span : spans) {
+            names.add(span instanceof Tag ? span.toString() : "watcher");
+        }
+        return names;
+    }
+
+    private static String describe(final Spanned text, final Object[] spans) {
+        final StringBuilder sb = new StringBuilder();
+        for (final Object span : spans) {
+            sb.append(span).append('[').append(text.getSpanStart(span)).append(',').append(text.getSpanEnd(span))
+                    .append(',').append(text.getSpanFlags(span)).append("] ");
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void randomEditsMatchSpannableStringBuilder() {
+        final Random random = new Random(13);
+        final Tag[] tags = new Tag[40];
+        for (int i = 0; i < tags.length; i++) {
+            tags[i] = i % 2 == 0 ? new Bold(i) : new Italic(i);
+        }
+        final Class<?>[] kinds = {Object.class, Tag.class, Bold.class, Italic.class};
+
+        for (int round = 0; round < 20; round++) {
+            final String initial = RandomText.generate(random, 50 + random.nextInt(200), ALPHABET);
+            final SpannableStringBuilder expected = new SpannableStringBuilder(initial);
+            final PieceTableEditable actual = new PieceTableEditable(initial);
+            final Recorder expectedEvents = new Recorder(), actualEvents = new Recorder();
+            expected.setSpan(expectedEvents, 0, expected.length(), Spanned.SPAN_INCLUSIVE_INCLUSIVE);
+            actual.setSpan(actualEvents, 0, actual.length(), Spanned.SPAN_INCLUSIVE_INCLUSIVE);
+
+            for (int i = 0; i < 300; i++) {
+                final int length = expected.length();
+                final int a = random.nextInt(length + 1), b = Math.min(length, a + random.nextInt(12));
+                final String description;
+                switch (random.nextInt(4)) {
+                    case 0: {
+                        final Tag tag = tags[random.nextInt(tags.length)];
+                        final int flags = FLAGS[random.nextInt(FLAGS.length)] | (random.nextInt(4) == 0 ? random.nextInt(3) << Spanned.SPAN_PRIORITY_SHIFT : 0);
+                        if (a == b && (flags & Spanned.SPAN_POINT_MARK_MASK) == Spanned.SPAN_EXCLUSIVE_EXCLUSIVE) {
+                            continue; // Not allowed by SpannableStringBuilder
+                        }
+                        description = "set " + tag + " [" + a + ", " + b + ") " + flags;
+                        expected.setSpan(tag, a, b, flags);
+                        actual.setSpan(tag, a, b, flags);
+                        break;
+                    }
+                    case 1: {
+                        final Tag tag = tags[random.nextInt(tags.length)];
+                        description = "remove " + tag;
+                        expected.removeSpan(tag);
+                        actual.removeSpan(tag);
+                        break;
+                    }
+                    default: {
+                        final String replacement = RandomText.generate(random, random.nextInt(3) == 0 ? 0 : random.nextInt(8), ALPHABET);
+                        description = "replace [" + a + ", " + b + ") by '" + replacement + "'";
+                        expected.replace(a, b, replacement);
+                        actual.replace(a, b, replacement);
+                        break;
+                    }
+                }
+
+                assertThat(actual.toString()).as(description).isEqualTo(expected.toString());
+                assertThat(describe(actual, tags)).as(description).isEqualTo(describe(expected, tags));
+                assertThat(actualEvents.take()).as(description).isEqualTo(expectedEvents.take());
+
+                final int textLength = expected.length();
+                final int start = random.nextInt(textLength + 1), end = Math.min(textLength, start + random.nextInt(30));
+                for (final Class<?> kind : kinds) {
+                    assertThat(names(actual.getSpans(start, end, kind))).as(description + ", spans of %s in [%d, %d)", kind, start, end)
+                            .isEqualTo(names(expected.getSpans(start, end, kind)));
+                    assertThat(actual.nextSpanTransition(start, textLength, kind)).as(description + ", transition of %s after %d", kind, start)
+                            .isEqualTo(nextSpanTransition(expected, start, textLength, kind));
+                }
+            }
+        }
+    }
+}
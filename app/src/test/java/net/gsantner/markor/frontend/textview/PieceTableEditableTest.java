@@ -0,0 +1,247 @@
+/*#######################################################
+ *
+ *   Maintained by Gregor Santner, 2017-
+ *   https://gsantner.net/
+ *
+ *   License of this file: Apache 2.0 (Commercial upon request)
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+#########################################################*/
+package net.gsantner.markor.frontend.textview;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import android.text.Editable;
+import android.text.InputFilter;
+import android.text.SpanWatcher;
+import android.text.Spannable;
+import android.text.Spanned;
+import android.text.TextWatcher;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Runs without Robolectric, expected span positions below were recorded with SpannableStringBuilder.
+ * See {@link PieceTableEditableSpannableTest} for random edits compared with a live one.
+ */
+public class PieceTableEditableTest {
+
+    private static final String ALPHABET = "abc \n#*_xyz";
+
+    // Records events of text and span watchers
+    private static class Recorder implements TextWatcher, SpanWatcher {
+        final List<String> events = new ArrayList<>();
+
+        @Override
+        public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            events.add("before " + start + " " + count + " " + after);
+        }
+
+        @Override
+        public void onTextChanged(CharSequence s, int start, int before, int count) {
+            events.add("changed " + start + " " + before + " " + count + " " + s);
+        }
+
+        @Override
+        public void afterTextChanged(Editable s) {
+            events.add("after");
+        }
+
+        @Override
+        public void onSpanAdded(Spannable text, Object what, int start, int end) {
+            if (what != this) {
+                events.add("added " + what + " " + start + " " + end);
+            }
+        }
+
+        @Override
+        public void onSpanRemoved(Spannable text, Object what, int start, int end) {
+            if (what != this) {
+                events.add("removed " + what + " " + start + " " + end);
+            }
+        }
+
+        @Override
+        public void onSpanChanged(Spannable text, Object what, int ostart, int oend, int nstart, int nend) {
+            if (what != this) {
+                events.add("moved " + what + " " + ostart + " " + oend + " " + nstart + " " + nend);
+            }
+        }
+    }
+
+    @Test
+    public void randomEditsMatchStringBuilder() {
+        final Random random = new Random(42);
+        final StringBuilder expected = new StringBuilder(RandomText.generate(random, 1000, ALPHABET));
+        final PieceTableEditable text = new PieceTableEditable(expected);
+
+        final List<CharSequence> snapshots = new ArrayList<>();
+        final List<String> snapshotTexts = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            final int start = random.nextInt(expected.length() + 1);
+            final int end = Math.min(expected.length(), start + random.nextInt(20));
+            final String insert = RandomText.generate(random, random.nextInt(4) == 0 ? random.nextInt(20000) : random.nextInt(5), ALPHABET);
+            expected.replace(start, end, insert);
+            text.replace(start, end, insert);
+
+            if (i % 500 == 0) {
+                snapshots.add(text.snapshot());
+                snapshotTexts.add(expected.toString());
+            }
+            if (i % 50 == 0) {
+                assertThat(text.toString()).isEqualTo(expected.toString());
+            }
+            final int at = random.nextInt(expected.length());
+            assertThat(text.charAt(at)).isEqualTo(expected.charAt(at));
+        }
+        assertThat(text.length()).isEqualTo(expected.length());
+        assertThat(text.toString()).isEqualTo(expected.toString());
+        assertThat(text.subSequence(100, 300).toString()).isEqualTo(expected.substring(100, 300));
+
+        final char[] chars = new char[300];
+        text.getChars(1000, 1200, chars, 100);
+        assertThat(new String(chars, 100, 200)).isEqualTo(expected.substring(1000, 1200));
+
+        // Snapshots are not affected by later edits
+        for (int i = 0; i < snapshots.size(); i++) {
+            assertThat(snapshots.get(i).toString()).isEqualTo(snapshotTexts.get(i));
+        }
+        assertThat(PieceTableEditable.textOf(text).toString()).isEqualTo(expected.toString());
+    }
+
+    @Test
+    public void spanPositionsMatchSpannableStringBuilder() {
+        // Span flags, replace start, end and length of replacement, expected span start and end
+        final int[][] cases = {
+                {Spanned.SPAN_EXCLUSIVE_EXCLUSIVE, 3, 3, 2, 5, 8},
+                {Spanned.SPAN_EXCLUSIVE_EXCLUSIVE, 6, 6, 2, 3, 6},
+                {Spanned.SPAN_EXCLUSIVE_EXCLUSIVE, 4, 4, 2, 3, 8},
+                {Spanned.SPAN_EXCLUSIVE_EXCLUSIVE, 3, 6, 0, -1, -1},
+                {Spanned.SPAN_EXCLUSIVE_EXCLUSIVE, 3, 6, 2, 3, 5},
+                {Spanned.SPAN_EXCLUSIVE_EXCLUSIVE, 4, 5, 0, 3, 5},
+                {Spanned.SPAN_EXCLUSIVE_EXCLUSIVE, 2, 4, 1, 3, 5},
+                {Spanned.SPAN_EXCLUSIVE_EXCLUSIVE, 0, 10, 0, -1, -1},
+                {Spanned.SPAN_EXCLUSIVE_INCLUSIVE, 3, 3, 2, 5, 8},
+                {Spanned.SPAN_EXCLUSIVE_INCLUSIVE, 6, 6, 2, 3, 8},
+                {Spanned.SPAN_EXCLUSIVE_INCLUSIVE, 3, 6, 0, 3, 3},
+                {Spanned.SPAN_EXCLUSIVE_INCLUSIVE, 5, 7, 1, 3, 6},
+                {Spanned.SPAN_INCLUSIVE_EXCLUSIVE, 3, 3, 2, 3, 8},
+                {Spanned.SPAN_INCLUSIVE_EXCLUSIVE, 6, 6, 2, 3, 6},
+                {Spanned.SPAN_INCLUSIVE_EXCLUSIVE, 2, 4, 1, 2, 5},
+                {Spanned.SPAN_INCLUSIVE_EXCLUSIVE, 5, 7, 1, 3, 5},
+                {Spanned.SPAN_INCLUSIVE_INCLUSIVE, 3, 3, 2, 3, 8},
+                {Spanned.SPAN_INCLUSIVE_INCLUSIVE, 6, 6, 2, 3, 8},
+                {Spanned.SPAN_INCLUSIVE_INCLUSIVE, 4, 5, 3, 3, 8},
+                {Spanned.SPAN_INCLUSIVE_INCLUSIVE, 0, 10, 0, 0, 0},
+        };
+
+        for (final int[] c : cases) {
+            final PieceTableEditable text = new PieceTableEditable("0123456789");
+            final Object span = new Object();
+            text.setSpan(span, 3, 6, c[0]);
+            text.replace(c[1], c[2], "xyz".substring(0, c[3]));
+            assertThat(new int[]{text.getSpanStart(span), text.getSpanEnd(span)})
+                    .as("Flags %d, replace [%d, %d) by %d chars", c[0], c[1], c[2], c[3])
+                    .containsExactly(c[4], c[5]);
+        }
+    }
+
+    @Test
+    public void spansAreQueriedLikeSpannableStringBuilder() {
+        final PieceTableEditable text = new PieceTableEditable("0123456789");
+        text.setSpan("a", 2, 4, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        text.setSpan("b", 4, 6, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        text.setSpan("c", 5, 5, Spanned.SPAN_INCLUSIVE_INCLUSIVE);
+        text.setSpan("d", 0, 10, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE | (1 << Spanned.SPAN_PRIORITY_SHIFT));
+        text.setSpan(1, 0, 10, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+
+        // Touching spans only intersect if either is empty, higher priority first
+        assertThat(text.getSpans(4, 5, String.class)).containsExactly("d", "b", "c");
+        assertThat(text.getSpans(4, 4, String.class)).containsExactly("d", "a", "b");
+        assertThat(text.getSpans(0, 10, Integer.class)).containsExactly(1);
+        assertThat(text.nextSpanTransition(2, 10, String.class)).isEqualTo(4);
+        assertThat(text.nextSpanTransition(4, 10, String.class)).isEqualTo(5);
+        assertThat(text.nextSpanTransition(6, 9, String.class)).isEqualTo(9);
+
+        // Spans are copied with the text
+        final Spanned sub = (Spanned) text.subSequence(3, 8);
+        assertThat(sub.getSpans(0, sub.length(), String.class)).containsExactly("d", "a", "b", "c");
+        assertThat(new int[]{sub.getSpanStart("a"), sub.getSpanEnd("a")}).containsExactly(0, 1);
+
+        text.removeSpan("a");
+        assertThat(text.getSpanStart("a")).isEqualTo(-1);
+        text.clearSpans();
+        assertThat(text.getSpans(0, 10, Object.class)).isEmpty();
+    }
+
+    @Test
+    public void watchersAreNotified() {
+        final PieceTableEditable text = new PieceTableEditable("0123456789");
+        final Recorder recorder = new Recorder();
+        text.setSpan(recorder, 0, text.length(), Spanned.SPAN_INCLUSIVE_INCLUSIVE);
+        text.setSpan("a", 2, 4, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        text.setSpan("b", 6, 8, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        text.replace(2, 4, "");
+        text.insert(0, "x");
+
+        assertThat(recorder.events).containsExactly(
+                "added a 2 4",
+                "added b 6 8",
+                "before 2 2 0",
+                "removed a 2 4",
+                "changed 2 2 0 01456789",
+                "after",
+                "moved b 6 8 4 6",
+                "before 0 0 1",
+                "changed 0 0 1 x01456789",
+                "after",
+                "moved b 4 6 5 7");
+    }
+
+    @Test
+    public void filtersAreApplied() {
+        final PieceTableEditable text = new PieceTableEditable("abc");
+        text.setFilters(new InputFilter[]{(source, start, end, dest, dstart, dend) -> source.toString().toUpperCase()});
+        text.append("def");
+        assertThat(text.toString()).isEqualTo("abcDEF");
+    }
+
+    @Test
+    public void benchmark() {
+        Assume.assumeTrue(Boolean.getBoolean("benchmark"));
+        final Random random = new Random(7);
+        for (final int size : new int[]{1 << 20, 10 << 20, 50 << 20}) {
+            final String original = RandomText.generate(random, size, ALPHABET);
+            final PieceTableEditable text = new PieceTableEditable(original);
+            final StringBuilder builder = new StringBuilder(original);
+            final int edits = 10000, builderEdits = 200;
+
+            long start = System.nanoTime();
+            for (int i = 0; i < edits; i++) {
+                final int pos = random.nextInt(text.length() - 10);
+                text.replace(pos, pos + random.nextInt(10), "xy");
+            }
+            final long pieceTableTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < builderEdits; i++) {
+                final int pos = random.nextInt(builder.length() - 10);
+                builder.replace(pos, pos + random.nextInt(10), "xy");
+            }
+            final long builderTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            final CharSequence snapshot = text.snapshot();
+            final long snapshotTime = System.nanoTime() - start;
+
+            assertThat(snapshot.length()).isEqualTo(text.length());
+            assertThat(pieceTableTime / edits).as("Random edits on %d MB: piece table %.2f us/edit, StringBuilder %.2f us/edit, snapshot %.2f us",
+                    size >> 20, pieceTableTime / 1e3 / edits, builderTime / 1e3 / builderEdits, snapshotTime / 1e3).isLessThan(builderTime / builderEdits);
+        }
+    }
+}
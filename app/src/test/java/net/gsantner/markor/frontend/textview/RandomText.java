@@ -0,0 +1,34 @@
+/*#######################################################
+ *
+ *   Maintained by Gregor Santner, 2017-
+ *   https://gsantner.net/
+ *
+ *   License of this file: Apache 2.0 (Commercial upon request)
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+#########################################################*/
+package net.gsantner.markor.frontend.textview;
+
+import java.util.Random;
+
+/**
+ * Random texts for tests comparing text structures with plain strings.
+ */
+public final class RandomText {
+
+    private RandomText() {
+    }
+
+    /**
+     * Text of random code points of alphabet, at least length chars long.
+     * It is exactly length chars if alphabet has no surrogate pairs.
+     */
+    public static String generate(final Random random, final int length, final String alphabet) {
+        final int count = alphabet.codePointCount(0, alphabet.length());
+        final StringBuilder sb = new StringBuilder(length + 1);
+        while (sb.length() < length) {
+            sb.appendCodePoint(alphabet.codePointAt(alphabet.offsetByCodePoints(0, random.nextInt(count))));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,126 @@
+/*#######################################################
+ *
+ *   Maintained by Gregor Santner, 2017-
+ *   https://gsantner.net/
+ *
+ *   License of this file: Apache 2.0 (Commercial upon request)
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+#########################################################*/
+package net.gsantner.markor.model;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+public class DocumentCacheTest {
+
+    private static String text(final int length) {
+        return new String(new char[length]).replace('\0', 'a');
+    }
+
+    @Test
+    public void entriesAreValidForSameModTimeAndSize() {
+        final DocumentCache cache = new DocumentCache(1000);
+        final File file = new File("/tmp/notes/../notes/a.md");
+        cache.put(file, 10, 20, "content", null, 42, null);
+
+        final DocumentCache.Entry entry = cache.get(new File("/tmp/notes/a.md"), 10, 20, null);
+        assertThat(entry).isNotNull();
+        assertThat(entry.content).isEqualTo("content");
+        assertThat(entry.contentHash).isEqualTo(42);
+
+        // Changed on disk
+        assertThat(cache.get(file, 11, 20, null)).isNull();
+        assertThat(cache.get(file, 10, 20, null)).isNull();
+        assertThat(cache.getCharCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void leastRecentlyUsedAreEvictedAboveBudget() {
+        final DocumentCache cache = new DocumentCache(1000);
+        final File a = new File("/a"), b = new File("/b"), c = new File("/c"), big = new File("/big");
+        cache.put(a, 1, 1, text(200), null, 0, null);
+        cache.put(b, 1, 1, text(200), null, 0, null);
+        cache.put(c, 1, 1, text(200), null, 0, null);
+        assertThat(cache.get(a, 1, 1, null)).isNotNull();
+
+        // Too large to be cached
+        assertThat(cache.put(big, 1, 1, text(300), null, 0, null).content).hasSize(300);
+        assertThat(cache.get(big, 1, 1, null)).isNull();
+
+        cache.put(new File("/d"), 1, 1, text(250), null, 0, null);
+        cache.put(new File("/e"), 1, 1, text(250), null, 0, null);
+        assertThat(cache.get(b, 1, 1, null)).isNull();
+        assertThat(cache.get(a, 1, 1, null)).isNotNull();
+        assertThat(cache.getCharCount()).isLessThanOrEqualTo(1000);
+    }
+
+    @Test
+    public void encryptedEntriesAreCleared() {
+        final DocumentCache cache = new DocumentCache(1000);
+        final File plain = new File("/plain.md"), encrypted = new File("/secret.md.jenc");
+        cache.put(plain, 1, 1, "plain", null, 0, null);
+        cache.put(encrypted, 1, 1, "secret", null, 0, "pw");
+
+        cache.clearEncrypted();
+        assertThat(cache.get(encrypted, 1, 1, "pw")).isNull();
+        assertThat(cache.get(plain, 1, 1, null)).isNotNull();
+        assertThat(cache.getCharCount()).isEqualTo(5);
+    }
+
+    @Test
+    public void decryptedEntriesAreOnlyValidForSamePassword() {
+        final DocumentCache cache = new DocumentCache(1000);
+        final File file = new File("/secret.md.jenc");
+        cache.put(file, 1, 1, "secret", null, 0, DocumentCache.passwordIdentity("first".toCharArray()));
+
+        assertThat(cache.get(file, 1, 1, DocumentCache.passwordIdentity("first".toCharArray()))).isNotNull();
+        assertThat(cache.get(file, 1, 1, DocumentCache.passwordIdentity("second".toCharArray()))).isNull();
+        assertThat(cache.get(file, 1, 1, null)).isNull();
+
+        // Decrypted with another password replaces the entry
+        cache.put(file, 1, 1, "other", null, 0, DocumentCache.passwordIdentity("second".toCharArray()));
+        assertThat(cache.get(file, 1, 1, DocumentCache.passwordIdentity("first".toCharArray()))).isNull();
+        assertThat(cache.getCharCount()).isEqualTo(5);
+
+        cache.remove(file);
+        assertThat(cache.getCharCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void entriesAreClearedWhenIdle() {
+        final long[] now = {1000};
+        final List<Runnable> scheduled = new ArrayList<>();
+        final List<Long> delays = new ArrayList<>();
+        final DocumentCache cache = new DocumentCache(1000, 100, () -> now[0], (clear, delay) -> {
+            scheduled.add(clear);
+            delays.add(delay);
+        });
+        final File file = new File("/secret.md.jenc");
+        cache.put(file, 1, 1, "secret", null, 0, "pw");
+        assertThat(delays).containsExactly(100L);
+
+        // Accessed in between, the clear is postponed
+        now[0] += 60;
+        assertThat(cache.get(file, 1, 1, "pw")).isNotNull();
+        now[0] += 40;
+        scheduled.remove(0).run();
+        assertThat(delays).containsExactly(100L, 60L);
+        assertThat(cache.getCharCount()).isEqualTo(6);
+
+        // Cleared without further access
+        now[0] += 60;
+        scheduled.remove(0).run();
+        assertThat(scheduled).isEmpty();
+        assertThat(cache.getCharCount()).isEqualTo(0);
+
+        // Scheduled again on next access
+        cache.put(file, 1, 1, "secret", null, 0, "pw");
+        assertThat(delays).containsExactly(100L, 60L, 100L);
+    }
+}
@@ -0,0 +1,124 @@
+/*#######################################################
+ *
+ *   Maintained by Gregor Santner, 2017-
+ *   https://gsantner.net/
+ *
+ *   License of this file: Apache 2.0 (Commercial upon request)
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+#########################################################*/
+package net.gsantner.markor.model;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import net.gsantner.markor.frontend.textview.RandomText;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+
+public class MappedTextFileTest {
+
+    private static final String ALPHABET = "ab äö€😀\n";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File write(final String text) throws IOException {
+        final File file = folder.newFile();
+        Files.write(file.toPath(), text.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    @Test
+    public void pagesJoinToText() throws IOException {
+        final Random random = new Random(1);
+        final String text = RandomText.generate(random, 300000, ALPHABET) + "\n" + RandomText.generate(random, 1000, ALPHABET).replace("\n", "") + "€😀";
+        // Very long lines are split at character boundaries
+        final String longLine = text.replace("\n", " ");
+
+        for (final String expected : new String[]{text, longLine, "", "\n", "a\n"}) {
+            try (MappedTextFile mapped = new MappedTextFile(write(expected))) {
+                mapped.indexPages();
+                assertThat(mapped.isIndexed()).isTrue();
+
+                final StringBuilder joined = new StringBuilder();
+                for (int page = 0; page < mapped.getPageCount(); page++) {
+                    assertThat(mapped.getPageEnd(page) - mapped.getPageStart(page)).isLessThanOrEqualTo(MappedTextFile.MAX_PAGE_BYTES + 4);
+                    joined.append(mapped.getPage(page));
+                }
+                assertThat(joined.toString()).isEqualTo(expected);
+            }
+        }
+    }
+
+    @Test
+    public void pagesEndAtLineBreaks() throws IOException {
+        final Random random = new Random(2);
+        final StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 500; i++) {
+            // Lines of up to 2 KB, and a few longer than a page
+            final int length = i % 97 == 0 ? 3 * MappedTextFile.MAX_PAGE_BYTES : random.nextInt(2048);
+            text.append(RandomText.generate(random, length, ALPHABET).replace("\n", "")).append('\n');
+        }
+        try (MappedTextFile mapped = new MappedTextFile(write(text.toString()))) {
+            mapped.indexPages();
+            final StringBuilder joined = new StringBuilder();
+            for (int page = 0; page < mapped.getPageCount(); page++) {
+                final String content = mapped.getPage(page);
+                assertThat(mapped.getPageEnd(page) - mapped.getPageStart(page)).isLessThanOrEqualTo(MappedTextFile.MAX_PAGE_BYTES + 4);
+                if (!content.endsWith("\n")) {
+                    // Only where a single line is longer than a page
+                    assertThat(content).doesNotContain("\n");
+                }
+                assertThat(mapped.getPageFirstLine(page)).isEqualTo(mapped.getLineForOffset(mapped.getPageStart(page)));
+                joined.append(content);
+            }
+            assertThat(joined.toString()).isEqualTo(text.toString());
+        }
+    }
+
+    @Test
+    public void linesOfPagesAndOffsets() throws IOException {
+        final StringBuilder text = new StringBuilder("﻿");
+        for (int i = 0; i < 1000; i++) {
+            text.append("line ").append(i).append('\n');
+        }
+        try (MappedTextFile mapped = new MappedTextFile(write(text.toString()))) {
+            mapped.indexPages();
+            assertThat(mapped.getPageCount()).isEqualTo(1000 / MappedTextFile.LINES_PER_PAGE);
+            assertThat(mapped.getPage(0)).startsWith("line 0\n");
+            assertThat(mapped.getPage(3)).startsWith("line 300\n");
+            assertThat(mapped.getPageFirstLine(3)).isEqualTo(300);
+
+            final long offset = mapped.find("line 742", 0, false);
+            assertThat(mapped.getLineForOffset(offset)).isEqualTo(742);
+            assertThat(mapped.getPageForOffset(offset)).isEqualTo(7);
+            assertThat(mapped.getPageForLine(742)).isEqualTo(7);
+            assertThat(mapped.getPageForLine(700)).isEqualTo(7);
+            assertThat(mapped.getPageForLine(5000)).isEqualTo(9);
+        }
+    }
+
+    @Test
+    public void findStreamsThroughFile() throws IOException {
+        final String text = "Hello Wörld\nhello wörld\nHELLO";
+        try (MappedTextFile mapped = new MappedTextFile(write(text))) {
+            // Offsets are in bytes, "ö" is two
+            assertThat(mapped.find("hello", 0, false)).isEqualTo(13);
+            assertThat(mapped.find("hello", 0, true)).isEqualTo(0);
+            assertThat(mapped.find("hello", 1, true)).isEqualTo(13);
+            assertThat(mapped.find("hello", 14, true)).isEqualTo(text.getBytes(StandardCharsets.UTF_8).length - 5);
+            assertThat(mapped.find("wörld", 0, false)).isEqualTo(19);
+            assertThat(mapped.find("missing", 0, true)).isEqualTo(-1);
+            assertThat(mapped.decode(6, 12)).isEqualTo("Wörld");
+            assertThat(mapped.decode(8, 12)).isEqualTo("rld"); // Moved out of "ö"
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*#######################################################
+ *
+ *   Maintained by Gregor Santner, 2017-
+ *   https://gsantner.net/
+ *
+ *   License of this file: Apache 2.0 (Commercial upon request)
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+#########################################################*/
+package net.gsantner.opoc.frontend.textview;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.Test;
+
+public class TextViewUndoRedoTest {
+
+    // Type text one char at a time, starting at start
+    private static void type(final TextViewUndoRedo.EditHistory history, final String text, final int start, final long time) {
+        for (int i = 0; i < text.length(); i++) {
+            history.add(new TextViewUndoRedo.EditItem(start + i, "", text.substring(i, i + 1), time + i));
+        }
+    }
+
+    @Test
+    public void typingIsCoalescedPerWord() {
+        final TextViewUndoRedo.EditHistory history = new TextViewUndoRedo.EditHistory();
+        type(history, "hello world\nfoo", 0, 1000);
+
+        assertThat(history.mmSize).isEqualTo(3);
+        assertThat(history.get(0).mmAfter.toString()).isEqualTo("hello ");
+        assertThat(history.get(1).mmAfter.toString()).isEqualTo("world\n");
+        assertThat(history.get(2).mmAfter.toString()).isEqualTo("foo");
+        assertThat(history.get(2).mmStart).isEqualTo(12);
+    }
+
+    @Test
+    public void pauseAndJumpsEndCoalescing() {
+        final TextViewUndoRedo.EditHistory history = new TextViewUndoRedo.EditHistory();
+        type(history, "abc", 0, 1000);
+        type(history, "def", 3, 5000);  // After a pause
+        type(history, "xy", 0, 5010);   // Somewhere else
+        assertThat(history.mmSize).isEqualTo(3);
+    }
+
+    @Test
+    public void deletionsAreCoalesced() {
+        final TextViewUndoRedo.EditHistory history = new TextViewUndoRedo.EditHistory();
+        // Backspace over "ab cd" from the end
+        final String text = "ab cd";
+        for (int i = text.length() - 1; i >= 0; i--) {
+            history.add(new TextViewUndoRedo.EditItem(i, text.substring(i, i + 1), "", 1000 + text.length() - i));
+        }
+        assertThat(history.mmSize).isEqualTo(2);
+        assertThat(history.get(0).mmBefore.toString()).isEqualTo("cd");
+        assertThat(history.get(1).mmBefore.toString()).isEqualTo("ab ");
+        assertThat(history.get(1).mmStart).isEqualTo(0);
+
+        // Forward delete
+        history.clear();
+        for (int i = 0; i < 3; i++) {
+            history.add(new TextViewUndoRedo.EditItem(4, "xyz".substring(i, i + 1), "", 1000 + i));
+        }
+        assertThat(history.mmSize).isEqualTo(1);
+        assertThat(history.get(0).mmBefore.toString()).isEqualTo("xyz");
+    }
+
+    @Test
+    public void undoRedoAndTruncate() {
+        final TextViewUndoRedo.EditHistory history = new TextViewUndoRedo.EditHistory();
+        type(history, "one two three", 0, 1000);
+        assertThat(history.getPrevious().mmAfter.toString()).isEqualTo("three");
+        assertThat(history.getPrevious().mmAfter.toString()).isEqualTo("two ");
+        assertThat(history.getNext().mmAfter.toString()).isEqualTo("two ");
+        assertThat(history.mmPosition).isEqualTo(2);
+
+        // No coalescing with the item before the undone one, redo history is dropped
+        history.add(new TextViewUndoRedo.EditItem(8, "", "x", 1020));
+        assertThat(history.mmSize).isEqualTo(3);
+        assertThat(history.get(2).mmAfter.toString()).isEqualTo("x");
+        assertThat(history.getNext()).isNull();
+    }
+
+    @Test
+    public void memoryIsBounded() {
+        final TextViewUndoRedo.EditHistory history = new TextViewUndoRedo.EditHistory();
+        history.setMaxHistoryBytes(10000);
+        for (int i = 0; i < 100000; i++) {
+            history.add(new TextViewUndoRedo.EditItem(i, "", "word ", i * 10000L));
+        }
+        assertThat(history.mmSize).isLessThan(200).isGreaterThan(50);
+        assertThat(history.mmPosition).isEqualTo(history.mmSize);
+        assertThat(history.get(history.mmSize - 1).mmStart).isEqualTo(99999);
+
+        // Undo everything kept, in order
+        for (int i = history.mmSize - 1; i >= 0; i--) {
+            assertThat(history.getPrevious().mmStart).isEqualTo(100000 - history.mmSize + i);
+        }
+        assertThat(history.getPrevious()).isNull();
+    }
+}
@@ -0,0 +1,174 @@
+/*#######################################################
+ *
+ *   Maintained by Gregor Santner, 2017-
+ *   https://gsantner.net/
+ *
+ *   License of this file: Apache 2.0 (Commercial upon request)
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+#########################################################*/
+package net.gsantner.opoc.frontend.textview;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+
+public class UndoHistoryLogTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    // Type text one char at a time, logging every edit
+    private static void type(final TextViewUndoRedo.EditHistory history, final UndoHistoryLog log, final String text, final int start, final long time) {
+        for (int i = 0; i < text.length(); i++) {
+            final TextViewUndoRedo.EditItem item = new TextViewUndoRedo.EditItem(start + i, "", text.substring(i, i + 1), time + i);
+            log.onAdded(item, history.add(item));
+        }
+    }
+
+    private static String items(final TextViewUndoRedo.EditHistory history) {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < history.mmSize; i++) {
+            final TextViewUndoRedo.EditItem item = history.get(i);
+            sb.append(item.mmStart).append(':').append(item.mmBefore).append('>').append(item.mmAfter).append(';');
+        }
+        return sb.append(history.mmPosition).toString();
+    }
+
+    @Test
+    public void historyIsRestored() throws Exception {
+        final File file = new File(tempFolder.getRoot(), "undo.log");
+        final TextViewUndoRedo.EditHistory history = new TextViewUndoRedo.EditHistory();
+        final UndoHistoryLog log = new UndoHistoryLog(file, "/doc.md");
+        assertThat(log.load(history, "")).isFalse();
+
+        type(history, log, "hello world", 0, 1000);
+        history.getPrevious();
+        log.onPositionChanged(history);
+        log.checkpoint(history, "hello ");
+        log.close();
+
+        final TextViewUndoRedo.EditHistory restored = new TextViewUndoRedo.EditHistory();
+        assertThat(new UndoHistoryLog(file, "/doc.md").load(restored, "hello ")).isTrue();
+        assertThat(items(restored)).isEqualTo(items(history)).isEqualTo("0:>hello ;6:>world;1");
+    }
+
+    @Test
+    public void corruptLengthsAreRejected() throws Exception {
+        final File file = new File(tempFolder.getRoot(), "undo.log");
+        try (final DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+            out.writeInt(0x554e444f);
+            out.writeInt(1);
+            out.writeInt(7);
+            out.writeBytes("/doc.md");
+            out.writeByte(1); // Added edit
+            out.writeInt(0);
+            out.writeLong(1000);
+            out.writeInt(Integer.MAX_VALUE - 8);
+        }
+
+        final TextViewUndoRedo.EditHistory restored = new TextViewUndoRedo.EditHistory();
+        assertThat(new UndoHistoryLog(file, "/doc.md").load(restored, "")).isFalse();
+        assertThat(restored.mmSize).isZero();
+    }
+
+    @Test
+    public void historyIsDiscardedIfTextChanged() throws Exception {
+        final File file = new File(tempFolder.getRoot(), "undo.log");
+        final TextViewUndoRedo.EditHistory history = new TextViewUndoRedo.EditHistory();
+        final UndoHistoryLog log = new UndoHistoryLog(file, "/doc.md");
+        log.load(history, "");
+        type(history, log, "abc", 0, 1000);
+        log.checkpoint(history, "abc");
+
+        // Edits after the last checkpoint
+        type(history, log, "d", 3, 1003);
+        log.close();
+
+        final TextViewUndoRedo.EditHistory restored = new TextViewUndoRedo.EditHistory();
+        assertThat(new UndoHistoryLog(file, "/doc.md").load(restored, "abcd")).isFalse();
+        assertThat(restored.mmSize).isZero();
+        assertThat(new UndoHistoryLog(file, "/other.md").load(restored, "abc")).isFalse();
+    }
+
+    @Test
+    public void logIsCompacted() throws Exception {
+        final File file = new File(tempFolder.getRoot(), "undo.log");
+        final TextViewUndoRedo.EditHistory history = new TextViewUndoRedo.EditHistory();
+        history.setMaxHistoryBytes(10000);
+        final UndoHistoryLog log = new UndoHistoryLog(file, "/doc.md");
+        log.load(history, "");
+
+        final StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            final TextViewUndoRedo.EditItem item = new TextViewUndoRedo.EditItem(text.length(), "", "word ", i * 10000L);
+            log.onAdded(item, history.add(item));
+            text.append("word ");
+        }
+        log.checkpoint(history, text);
+        log.close();
+        assertThat(file.length()).isLessThan(2 * history.getBytes() + 64 * 1024);
+
+        final TextViewUndoRedo.EditHistory restored = new TextViewUndoRedo.EditHistory();
+        restored.setMaxHistoryBytes(10000);
+        assertThat(new UndoHistoryLog(file, "/doc.md").load(restored, text)).isTrue();
+        assertThat(items(restored)).isEqualTo(items(history));
+    }
+
+    @Test
+    public void coalescedEditsAreLoggedAsDeltas() throws Exception {
+        final File file = new File(tempFolder.getRoot(), "undo.log");
+        final TextViewUndoRedo.EditHistory history = new TextViewUndoRedo.EditHistory();
+        final UndoHistoryLog log = new UndoHistoryLog(file, "/doc.md");
+        log.load(history, "");
+        final long header = file.length();
+
+        final StringBuilder word = new StringBuilder();
+        for (int i = 0; i < 500; i++) {
+            word.append('a');
+        }
+        type(history, log, word.toString(), 0, 1000);
+        log.checkpoint(history, word);
+        log.close();
+
+        // Each keystroke is a record of constant size, not the whole word so far
+        assertThat(history.mmSize).isEqualTo(1);
+        assertThat(file.length() - header).isLessThan(500 * 40L);
+
+        final TextViewUndoRedo.EditHistory restored = new TextViewUndoRedo.EditHistory();
+        assertThat(new UndoHistoryLog(file, "/doc.md").load(restored, word)).isTrue();
+        assertThat(items(restored)).isEqualTo(items(history));
+    }
+
+    @Test
+    public void logsOfMissingDocumentsArePruned() throws Exception {
+        final File dir = tempFolder.newFolder("undo");
+        final File document = tempFolder.newFile("doc.md");
+        final File deleted = new File(tempFolder.getRoot(), "deleted.md");
+        for (final File doc : new File[]{document, deleted}) {
+            final UndoHistoryLog log = new UndoHistoryLog(UndoHistoryLog.getLogFile(dir, doc), doc.getAbsolutePath());
+            log.load(new TextViewUndoRedo.EditHistory(), "");
+            log.close();
+        }
+        final File invalid = new File(dir, "undo-0.log");
+        Files.write(invalid.toPath(), new byte[]{1, 2, 3});
+        final File other = new File(dir, "other.txt");
+        Files.write(other.toPath(), new byte[]{1, 2, 3});
+
+        TextViewUndoRedo.prunePersistentLogs(dir);
+        assertThat(UndoHistoryLog.getLogFile(dir, document)).exists();
+        assertThat(UndoHistoryLog.getLogFile(dir, deleted)).doesNotExist();
+        assertThat(invalid).doesNotExist();
+        assertThat(other).exists();
+
+        TextViewUndoRedo.deletePersistentLog(dir, document);
+        assertThat(UndoHistoryLog.getLogFile(dir, document)).doesNotExist();
+    }
+}
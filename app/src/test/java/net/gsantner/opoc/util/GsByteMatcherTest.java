@@ -0,0 +1,160 @@
+/*#######################################################
+ *
+ *   Maintained by Gregor Santner, 2017-
+ *   https://gsantner.net/
+ *
+ *   License of this file: Apache 2.0 (Commercial upon request)
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+#########################################################*/
+package net.gsantner.opoc.util;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+public class GsByteMatcherTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // Line numbers and lines which contain the needle, by decoding and reading lines
+    private static List<String> readLines(final byte[] data, final String needle, final boolean ignoreCase, final Locale locale) throws IOException {
+        final List<String> matches = new ArrayList<>();
+        try (final BufferedReader reader = new BufferedReader(new StringReader(new String(data, StandardCharsets.UTF_8)))) {
+            int lineNumber = 0;
+            for (String line; (line = reader.readLine()) != null; lineNumber++) {
+                if ((ignoreCase ? line.toLowerCase(locale) : line).contains(needle)) {
+                    matches.add(lineNumber + ":" + line);
+                }
+            }
+        }
+        return matches;
+    }
+
+    private static List<String> matchBytes(final byte[] data, final GsByteMatcher matcher) {
+        final List<String> matches = new ArrayList<>();
+        matcher.forEachMatchingLine(data, 0, data.length, (lineNumber, start, end) -> {
+            matches.add(lineNumber + ":" + new String(data, start, end - start, StandardCharsets.UTF_8));
+            return true;
+        });
+        return matches;
+    }
+
+    @Test
+    public void matchesLikeDecodedLines() throws IOException {
+        final Random random = new Random(3);
+        final String[] parts = {"a", "b", "A", "B", "k", "K", "K", "ä", "Ä", "€", "😀", " ", "\n", "\r", "\r\n", "İ", "i"};
+        final String[] needles = {"a", "ab", "ba a", "k", "ä", "€b", "😀", "i", "abK"};
+        for (int round = 0; round < 300; round++) {
+            final StringBuilder text = new StringBuilder();
+            for (int i = random.nextInt(60); i > 0; i--) {
+                text.append(parts[random.nextInt(parts.length)]);
+            }
+            final byte[] data = text.toString().getBytes(StandardCharsets.UTF_8);
+            for (final String needle : needles) {
+                for (final boolean ignoreCase : new boolean[]{false, true}) {
+                    final GsByteMatcher matcher = new GsByteMatcher(needle, ignoreCase, Locale.ROOT);
+                    final List<String> expected = readLines(data, needle, ignoreCase, Locale.ROOT);
+                    if (matcher.isSupportedFor(data, 0, data.length)) {
+                        assertThat(matchBytes(data, matcher)).as(needle + " in " + text).isEqualTo(expected);
+                    } else {
+                        // Only where case folding beyond ASCII could make a difference
+                        assertThat(ignoreCase && (!needle.matches("\\p{ASCII}+") || text.toString().matches("(?s).*[KİÄ].*"))).as(needle + " in " + text).isTrue();
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void unsupportedNeedlesAndText() {
+        assertThat(new GsByteMatcher("", false, Locale.ROOT).isSupported()).isFalse();
+        assertThat(new GsByteMatcher("a\nb", false, Locale.ROOT).isSupported()).isFalse();
+        assertThat(new GsByteMatcher("ä", true, Locale.ROOT).isSupported()).isFalse();
+        assertThat(new GsByteMatcher("ä", false, Locale.ROOT).isSupported()).isTrue();
+        assertThat(new GsByteMatcher("i", true, new Locale("tr")).isSupported()).isFalse();
+
+        final byte[] kelvin = "K".getBytes(StandardCharsets.UTF_8);
+        assertThat(new GsByteMatcher("k", true, Locale.ROOT).isSupportedFor(kelvin, 0, kelvin.length)).isFalse();
+        assertThat(new GsByteMatcher("a", true, Locale.ROOT).isSupportedFor(kelvin, 0, kelvin.length)).isTrue();
+        assertThat(new GsByteMatcher("k", false, Locale.ROOT).isSupportedFor(kelvin, 0, kelvin.length)).isTrue();
+    }
+
+    @Test
+    public void fileContainsFindsFirstNeedle() throws IOException {
+        final File file = folder.newFile();
+        Files.write(file.toPath(), "title\r\nSome TODO here\nKey done".getBytes(StandardCharsets.UTF_8));
+        assertThat(GsFileUtils.fileContains(file, "done", "todo")).isEqualTo(1);
+        assertThat(GsFileUtils.fileContains(file, "key", "missing")).isEqualTo(0);
+        assertThat(GsFileUtils.fileContains(file, "missing")).isEqualTo(-1);
+
+        // Read in chunks of lines, also lines longer than a chunk
+        final StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            text.append("line ").append(i).append(i % 2 == 0 ? "\r\n" : "\n");
+        }
+        final char[] longLine = new char[200 * 1024];
+        Arrays.fill(longLine, 'x');
+        text.append(longLine).append("Done Ä\nä todo\n");
+        Files.write(file.toPath(), text.toString().getBytes(StandardCharsets.UTF_8));
+        assertThat(GsFileUtils.fileContains(file, "todo", "done")).isEqualTo(1);
+        assertThat(GsFileUtils.fileContains(file, "todo", "ä")).isEqualTo(1);
+        assertThat(GsFileUtils.fileContains(file, "line 19999", "done")).isEqualTo(0);
+        assertThat(GsFileUtils.fileContains(file, "line 20000")).isEqualTo(-1);
+    }
+
+    @Test
+    public void benchmarkByteMatcher() throws IOException {
+        Assume.assumeTrue(Boolean.getBoolean("benchmark"));
+        final Random random = new Random(5);
+        final String[] words = {"lorem", "ipsum", "dolor", "sit", "amet", "markor", "note", "todo", "list", "the", "ä€"};
+        final StringBuilder text = new StringBuilder();
+        while (text.length() < 4 * 1024 * 1024) {
+            text.append(words[random.nextInt(words.length)]).append(random.nextInt(12) == 0 ? '\n' : ' ');
+            if (random.nextInt(20000) == 0) {
+                text.append("Needle ");
+            }
+        }
+        final byte[] data = text.toString().getBytes(StandardCharsets.UTF_8);
+        final GsByteMatcher matcher = new GsByteMatcher("needle", true, Locale.ROOT);
+        assertThat(matchBytes(data, matcher)).isEqualTo(readLines(data, "needle", true, Locale.ROOT)).isNotEmpty();
+
+        final int runs = 10;
+        for (int i = 0; i < runs; i++) {
+            matchBytes(data, matcher);
+            readLines(data, "needle", true, Locale.ROOT);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < runs; i++) {
+            matchBytes(data, matcher);
+        }
+        final long bytesTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < runs; i++) {
+            readLines(data, "needle", true, Locale.ROOT);
+        }
+        final long linesTime = System.nanoTime() - start;
+
+        final double megabytes = data.length / 1e6 * runs;
+        assertThat(bytesTime).as("Search %d KB: byte matcher %.0f MB/s, decoded lines %.0f MB/s", data.length / 1024, megabytes / (bytesTime / 1e9), megabytes / (linesTime / 1e9))
+                .isLessThan(linesTime);
+    }
+}
@@ -0,0 +1,65 @@
+/*#######################################################
+ *
+ *   Maintained by Gregor Santner, 2017-
+ *   https://gsantner.net/
+ *
+ *   License of this file: Apache 2.0 (Commercial upon request)
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+#########################################################*/
+package net.gsantner.opoc.util;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * Atomic writes through links. Runs with Robolectric, as links are detected depending on the Android version.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class GsFileUtilsLinkTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static String read(final File file) throws IOException {
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void symlinkPointsToWrittenFile() throws IOException {
+        final File dir = folder.newFolder("notes"), linkDir = folder.newFolder("links");
+        final File file = new File(dir, "note.md"), link = new File(linkDir, "note.md");
+        Files.write(file.toPath(), "old".getBytes(StandardCharsets.UTF_8));
+        Files.createSymbolicLink(link.toPath(), file.toPath());
+
+        assertThat(GsFileUtils.writeFileAtomic(link, "new", null)).isTrue();
+        assertThat(Files.isSymbolicLink(link.toPath())).isTrue();
+        assertThat(read(file)).isEqualTo("new");
+        assertThat(dir.list()).containsExactly("note.md");
+        assertThat(linkDir.list()).containsExactly("note.md");
+    }
+
+    @Test
+    public void hardLinkedFileIsWrittenInPlace() throws IOException {
+        final File file = folder.newFile("note.md"), link = new File(folder.getRoot(), "link.md");
+        Files.write(file.toPath(), "old".getBytes(StandardCharsets.UTF_8));
+        Files.createLink(link.toPath(), file.toPath());
+
+        assertThat(GsFileUtils.writeFileAtomic(file, "new", null)).isTrue();
+        assertThat(read(file)).isEqualTo("new");
+        assertThat(read(link)).isEqualTo("new");
+        assertThat(folder.getRoot().list()).containsExactlyInAnyOrder("note.md", "link.md");
+    }
+}
@@ -0,0 +1,195 @@
+/*#######################################################
+ *
+ *   Maintained by Gregor Santner, 2017-
+ *   https://gsantner.net/
+ *
+ *   License of this file: Apache 2.0 (Commercial upon request)
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+#########################################################*/
+package net.gsantner.opoc.util;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+public class GsFileUtilsTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void writeUtf8EncodesLikeString() throws IOException {
+        final Random random = new Random(3);
+        final String alphabet = "ab\nä€😀𐀀";
+        for (final int length : new int[]{0, 1, 8191, 8192, 8193, 50000}) {
+            final StringBuilder text = new StringBuilder();
+            while (text.length() < length) {
+                text.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            }
+            // Surrogate pair across the chunk boundary, and unpaired surrogates
+            if (length > 8192) {
+                text.setCharAt(8191, '\uD83D');
+                text.setCharAt(8192, '\uDE00');
+            }
+            text.append('\uD800');
+
+            final ByteArrayOutputStream output = new ByteArrayOutputStream();
+            GsFileUtils.writeUtf8(text, output);
+            assertThat(output.toByteArray()).isEqualTo(text.toString().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void writeFileAtomicReplacesFile() throws IOException {
+        final File file = folder.newFile("note.md");
+        Files.write(file.toPath(), "old content".getBytes(StandardCharsets.UTF_8));
+
+        final GsFileUtils.FileInfo info = new GsFileUtils.FileInfo();
+        info.hasBom = true;
+        assertThat(GsFileUtils.writeFileAtomic(file, new StringBuilder("new ä"), info)).isTrue();
+        assertThat(Files.readAllBytes(file.toPath())).isEqualTo("﻿new ä".getBytes(StandardCharsets.UTF_8));
+        assertThat(folder.getRoot().list()).containsExactly("note.md");
+
+        // Nothing written if the file cannot be created
+        final File missing = new File(new File(folder.getRoot(), "missing"), "note.md");
+        assertThat(GsFileUtils.writeFileAtomic(missing, "text", null)).isFalse();
+        assertThat(missing).doesNotExist();
+    }
+
+    @Test
+    public void concurrentAtomicWritesDoNotMix() throws Exception {
+        final File file = folder.newFile("note.md");
+        final String[] contents = new String[4];
+        final Thread[] writers = new Thread[contents.length];
+        for (int i = 0; i < contents.length; i++) {
+            contents[i] = new String(new char[200000]).replace('\0', (char) ('a' + i));
+            final String content = contents[i];
+            writers[i] = new Thread(() -> {
+                for (int round = 0; round < 10; round++) {
+                    assertThat(GsFileUtils.writeFileAtomic(file, content, null)).isTrue();
+                }
+            });
+            writers[i].start();
+        }
+        for (final Thread writer : writers) {
+            writer.join();
+        }
+        assertThat(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8)).isIn((Object[]) contents);
+        assertThat(folder.getRoot().list()).containsExactly("note.md");
+    }
+
+    @Test
+    public void staleAtomicTempFilesAreDeleted() throws IOException {
+        final File file = folder.newFile("note.md");
+        final File stale = folder.newFile(".note.md.123.tmp"), running = folder.newFile(".note.md.456.tmp"), other = folder.newFile(".other.md.789.tmp");
+        assertThat(stale.setLastModified(System.currentTimeMillis() - 2 * 60 * 60 * 1000)).isTrue();
+        assertThat(other.setLastModified(stale.lastModified())).isTrue();
+
+        assertThat(GsFileUtils.writeFileAtomic(file, "new", null)).isTrue();
+        assertThat(folder.getRoot().list()).containsExactlyInAnyOrder("note.md", running.getName(), other.getName());
+    }
+
+    @Test
+    public void appendToTextFileNormalizesLineBreaks() throws IOException {
+        final File file = new File(folder.getRoot(), "todo.txt");
+        assertThat(GsFileUtils.appendToTextFile(file, "\n2024-01-01 ", "first")).isTrue();
+        assertThat(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8)).isEqualTo("2024-01-01 first");
+
+        // Trailing line breaks, also more than the tail read at once, are replaced by the separator
+        Files.write(file.toPath(), ("ä\r\n" + new String(new char[100]).replace('\0', '\n')).getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+        assertThat(GsFileUtils.appendToTextFile(file, "\n", "€")).isTrue();
+        assertThat(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8)).isEqualTo("2024-01-01 firstä\n€");
+
+        // Only line breaks or a BOM count as empty
+        Files.write(file.toPath(), "﻿\n\n".getBytes(StandardCharsets.UTF_8));
+        assertThat(GsFileUtils.appendToTextFile(file, "\n\n", "text")).isTrue();
+        assertThat(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8)).isEqualTo("﻿text");
+    }
+
+    @Test
+    public void readTextFileFastDecodesAndReports() throws IOException {
+        final File file = folder.newFile();
+        final GsFileUtils.FileInfo info = new GsFileUtils.FileInfo();
+        assertThat(GsFileUtils.readTextFileFast(file, info)).isEmpty();
+        assertThat(info.hasBom).isFalse();
+
+        Files.write(file.toPath(), "﻿ä€😀\nx".getBytes(StandardCharsets.UTF_8));
+        assertThat(GsFileUtils.readTextFileFast(file, info)).isEqualTo("ä€😀\nx");
+        assertThat(info.hasBom).isTrue();
+        assertThat(info.malformedInputOffset).isEqualTo(-1);
+
+        // Invalid bytes are replaced, their position reported
+        final byte[] malformed = {'a', 'b', (byte) 0xC3, 'c', (byte) 0xFF};
+        Files.write(file.toPath(), malformed);
+        final GsFileUtils.FileInfo malformedInfo = new GsFileUtils.FileInfo();
+        assertThat(GsFileUtils.readTextFileFast(file, malformedInfo)).isEqualTo(new String(malformed, StandardCharsets.UTF_8));
+        assertThat(malformedInfo.malformedInputOffset).isEqualTo(2);
+        assertThat(malformedInfo.ioError).isFalse();
+    }
+
+    // The previous implementation of readTextFileFast, for comparison
+    private static String readThroughByteArrayStream(final File file) throws IOException {
+        try (final FileInputStream inputStream = new FileInputStream(file)) {
+            final ByteArrayOutputStream result = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[1024];
+            for (int length; (length = inputStream.read(buffer)) != -1; ) {
+                result.write(buffer, 0, length);
+            }
+            return result.toString("UTF-8");
+        }
+    }
+
+    @Test
+    public void benchmarkReadTextFileFast() throws IOException {
+        Assume.assumeTrue(Boolean.getBoolean("benchmark"));
+        final Random random = new Random(9);
+        final String alphabet = "abc def\nä€";
+        for (final int size : new int[]{10 * 1024, 1024 * 1024, 20 * 1024 * 1024}) {
+            final char[] chars = new char[size];
+            for (int i = 0; i < size; i++) {
+                chars[i] = alphabet.charAt(random.nextInt(alphabet.length()));
+            }
+            final File file = folder.newFile();
+            Files.write(file.toPath(), new String(chars).getBytes(StandardCharsets.UTF_8));
+            final int runs = size > 1024 * 1024 ? 5 : 50;
+
+            // Both give the same text
+            assertThat(GsFileUtils.readTextFileFast(file, new GsFileUtils.FileInfo())).isEqualTo(readThroughByteArrayStream(file));
+            for (int i = 0; i < runs; i++) {
+                GsFileUtils.readTextFileFast(file, new GsFileUtils.FileInfo());
+                readThroughByteArrayStream(file);
+            }
+
+            long start = System.nanoTime();
+            for (int i = 0; i < runs; i++) {
+                GsFileUtils.readTextFileFast(file, new GsFileUtils.FileInfo());
+            }
+            final long channelTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < runs; i++) {
+                readThroughByteArrayStream(file);
+            }
+            final long streamTime = System.nanoTime() - start;
+
+            // Times of small files are mostly opening the file
+            if (size > 1024 * 1024) {
+                assertThat(channelTime).as("Read %d KB: file channel %.2f ms, byte array stream %.2f ms", size / 1024, channelTime / 1e6 / runs, streamTime / 1e6 / runs)
+                        .isLessThan(streamTime);
+            }
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*#######################################################
+ *
+ *   Maintained by Gregor Santner, 2017-
+ *   https://gsantner.net/
+ *
+ *   License of this file: Apache 2.0 (Commercial upon request)
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+#########################################################*/
+package net.gsantner.opoc.util;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class GsFileWalkerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private void touch(final String path) throws IOException {
+        final File file = new File(folder.getRoot(), path);
+        //noinspection ResultOfMethodCallIgnored
+        file.getParentFile().mkdirs();
+        assertThat(file.createNewFile()).isTrue();
+    }
+
+    // Sorted paths with depth, directories end with '/'
+    private List<String> walk(final GsFileWalker walker) {
+        final List<String> paths = new ArrayList<>();
+        walker.walk(folder.getRoot(), (file, path, depth, isDirectory) -> {
+            assertThat(file).isEqualTo(new File(folder.getRoot(), path));
+            paths.add(depth + ":" + path + (isDirectory ? "/" : ""));
+            return isDirectory;
+        });
+        Collections.sort(paths);
+        return paths;
+    }
+
+    @Test
+    public void walksUpToDepthWithoutIgnoredNames() throws IOException {
+        touch("a.md");
+        touch("sub/b.md");
+        touch("sub/deep/c.md");
+        touch(".git/config");
+        for (final int mode : new int[]{GsFileWalker.MODE_LIST, GsFileWalker.MODE_NIO}) {
+            assertThat(walk(new GsFileWalker().setMode(mode))).containsExactly(
+                    "1:.git/", "1:a.md", "1:sub/", "2:.git/config", "2:sub/b.md", "2:sub/deep/", "3:sub/deep/c.md");
+            assertThat(walk(new GsFileWalker().setMode(mode).setMaxDepth(2).setIgnoredNames(name -> name.startsWith(".")))).containsExactly(
+                    "1:a.md", "1:sub/", "2:sub/b.md", "2:sub/deep/");
+        }
+    }
+
+    @Test
+    public void linksToDirectoriesAreWalkedOnce() throws IOException {
+        touch("sub/a.md");
+        Files.createSymbolicLink(new File(folder.getRoot(), "sub/loop").toPath(), folder.getRoot().toPath());
+        Files.createSymbolicLink(new File(folder.getRoot(), "link.md").toPath(), new File(folder.getRoot(), "sub/a.md").toPath());
+        for (final int mode : new int[]{GsFileWalker.MODE_LIST, GsFileWalker.MODE_NIO}) {
+            assertThat(walk(new GsFileWalker().setMode(mode))).containsExactly("1:link.md", "1:sub/", "2:sub/a.md");
+            assertThat(walk(new GsFileWalker().setMode(mode).setFollowLinks(true))).containsExactly("1:link.md", "1:sub/", "2:sub/a.md", "2:sub/loop/");
+        }
+    }
+}
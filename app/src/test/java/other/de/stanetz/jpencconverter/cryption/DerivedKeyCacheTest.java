@@ -0,0 +1,145 @@
+package other.de.stanetz.jpencconverter.cryption;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import other.de.stanetz.jpencconverter.DerivedKeyCache;
+import other.de.stanetz.jpencconverter.JavaPasswordbasedCryption;
+
+public class DerivedKeyCacheTest {
+
+    private long _now = 0;
+    private final List<byte[]> _derived = new ArrayList<>();
+
+    // The derived keys are the ones kept by the cache
+    private byte[] derive(final int value) {
+        final byte[] key = new byte[32];
+        Arrays.fill(key, (byte) value);
+        _derived.add(key);
+        return key;
+    }
+
+    @Test
+    public void keysExpireAndAreZeroed() {
+        final DerivedKeyCache cache = new DerivedKeyCache(4, 1000, () -> _now);
+        final String identity = cache.passwordIdentity("V001", "secret".toCharArray());
+        final byte[] salt = {1, 2, 3};
+
+        final byte[] key = cache.getKey(identity, salt, () -> derive(7));
+        assertThat(cache.getKey(identity, salt.clone(), () -> derive(8))).containsOnly(7).isNotSameAs(key);
+        assertThat(_derived).hasSize(1);
+
+        // Other password or salt derive their own key
+        assertThat(cache.getKey(cache.passwordIdentity("V001", "other".toCharArray()), salt, () -> derive(9))).containsOnly(9);
+        assertThat(cache.getKey(identity, new byte[]{1, 2, 4}, () -> derive(10))).containsOnly(10);
+        assertThat(_derived).hasSize(3);
+
+        _now = 1000;
+        assertThat(cache.getKey(identity, salt, () -> derive(11))).containsOnly(11);
+        assertThat(_derived.get(0)).containsOnly(0);
+        assertThat(key).containsOnly(7);
+        assertThat(cache.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void evictedAndClearedKeysAreZeroed() {
+        final DerivedKeyCache cache = new DerivedKeyCache(2, 1000, () -> _now);
+        final String identity = cache.passwordIdentity("V001", "secret".toCharArray());
+        cache.getKey(identity, new byte[]{1}, () -> derive(1));
+        cache.getKey(identity, new byte[]{2}, () -> derive(2));
+        cache.getKey(identity, new byte[]{1}, () -> derive(1));
+
+        // Least recently used is evicted
+        final byte[] third = cache.getKey(identity, new byte[]{3}, () -> derive(3));
+        assertThat(_derived.get(1)).containsOnly(0);
+        assertThat(_derived.get(0)).containsOnly(1);
+
+        cache.clear();
+        assertThat(_derived.get(0)).containsOnly(0);
+        assertThat(_derived.get(2)).containsOnly(0);
+        assertThat(third).containsOnly(3);
+        assertThat(cache.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void keysInUseAreNotZeroedByConcurrentClear() throws InterruptedException {
+        final DerivedKeyCache cache = new DerivedKeyCache(4, 1000, () -> _now);
+        final String identity = cache.passwordIdentity("V001", "secret".toCharArray());
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicInteger zeroed = new AtomicInteger();
+        final List<Thread> readers = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            final byte[] salt = {(byte) i};
+            final Thread reader = new Thread(() -> {
+                while (running.get()) {
+                    final byte[] key = cache.getKey(identity, salt, () -> {
+                        final byte[] derived = new byte[32];
+                        Arrays.fill(derived, (byte) 5);
+                        return derived;
+                    });
+                    Thread.yield();
+                    for (final byte b : key) {
+                        if (b != 5) {
+                            zeroed.incrementAndGet();
+                            break;
+                        }
+                    }
+                }
+            });
+            readers.add(reader);
+            reader.start();
+        }
+
+        for (int i = 0; i < 2000; i++) {
+            cache.clear();
+            Thread.yield();
+        }
+        running.set(false);
+        for (final Thread reader : readers) {
+            reader.join();
+        }
+        assertThat(zeroed.get()).isEqualTo(0);
+    }
+
+    @Test
+    public void filesGetTheirOwnSalt() throws Exception {
+        for (final JavaPasswordbasedCryption.Version version : new JavaPasswordbasedCryption.Version[]{JavaPasswordbasedCryption.Version.V001, JavaPasswordbasedCryption.Version.V002}) {
+            final JavaPasswordbasedCryption cryption = new JavaPasswordbasedCryption(version, new SecureRandom());
+            final byte[] first = cryption.encrypt("first", "password".toCharArray());
+            final byte[] second = cryption.encrypt("second", "password".toCharArray());
+            assertThat(salt(first)).hasSize(64).isNotEqualTo(salt(second));
+        }
+    }
+
+    @Test
+    public void savingAgainReusesSaltAndKey() throws Exception {
+        DerivedKeyCache.getInstance().clear();
+        final byte[] first = new JavaPasswordbasedCryption(JavaPasswordbasedCryption.Version.V001, new SecureRandom()).encrypt("first", "password".toCharArray());
+        final byte[] second = new JavaPasswordbasedCryption(JavaPasswordbasedCryption.Version.V001, new SecureRandom())
+                .setSalt(salt(first)).encrypt("second", "password".toCharArray());
+        assertThat(DerivedKeyCache.getInstance().size()).isEqualTo(1);
+
+        // Same salt, different nonce
+        assertThat(salt(second)).isEqualTo(salt(first));
+        assertThat(Arrays.copyOfRange(first, 4, 4 + 32)).isNotEqualTo(Arrays.copyOfRange(second, 4, 4 + 32));
+
+        assertThat(JavaPasswordbasedCryption.getDecryptedText(second, "password".toCharArray())).isEqualTo("second");
+        DerivedKeyCache.getInstance().clear();
+        assertThat(JavaPasswordbasedCryption.getDecryptedText(first, "password".toCharArray())).isEqualTo("first");
+        assertThat(JavaPasswordbasedCryption.readSalt(new ByteArrayInputStream(new byte[3]))).isNull();
+    }
+
+    private static byte[] salt(final byte[] encrypted) throws IOException {
+        return JavaPasswordbasedCryption.readSalt(new ByteArrayInputStream(encrypted));
+    }
+}
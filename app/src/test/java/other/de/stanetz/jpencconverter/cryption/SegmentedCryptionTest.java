@@ -0,0 +1,188 @@
+package other.de.stanetz.jpencconverter.cryption;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Random;
+
+import other.de.stanetz.jpencconverter.JavaPasswordbasedCryption;
+import other.de.stanetz.jpencconverter.SegmentedCryption;
+
+public class SegmentedCryptionTest {
+
+    private static final int SEGMENT = SegmentedCryption.SEGMENT_SIZE;
+    private static final int HEADER = JavaPasswordbasedCryption.Version.NAME_LENGTH + SegmentedCryption.NONCE_PREFIX_LENGTH + 64;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final JavaPasswordbasedCryption testee = new JavaPasswordbasedCryption(JavaPasswordbasedCryption.Version.V002, new SecureRandom());
+
+    private static byte[] content(int length) {
+        final byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        final ByteArrayOutputStream result = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[1000];
+        for (int length; (length = in.read(buffer)) != -1; ) {
+            result.write(buffer, 0, length);
+        }
+        in.close();
+        return result.toByteArray();
+    }
+
+    private FileChannel open(byte[] encrypted) throws IOException {
+        final File file = folder.newFile();
+        Files.write(file.toPath(), encrypted);
+        return FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    }
+
+    private static byte[] decrypt(byte[] encrypted) throws IOException {
+        return readAll(JavaPasswordbasedCryption.getDecryptingStream(new ByteArrayInputStream(encrypted), "password".toCharArray()));
+    }
+
+    @Test
+    public void streamRoundtrip() throws IOException {
+        for (final int length : new int[]{0, 1, SEGMENT - 1, SEGMENT, SEGMENT + 1, 3 * SEGMENT, 3 * SEGMENT + 17}) {
+            final byte[] content = content(length);
+            final ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+            try (OutputStream out = testee.getEncryptingStream(encrypted, "password".toCharArray())) {
+                // Odd write sizes
+                for (int offset = 0; offset < length; offset += 1000) {
+                    out.write(content, offset, Math.min(1000, length - offset));
+                }
+            }
+            final int segments = Math.max(1, (length + SEGMENT - 1) / SEGMENT);
+            assertThat(encrypted.size()).isEqualTo(HEADER + length + 16 * segments);
+            assertThat(decrypt(encrypted.toByteArray())).isEqualTo(content);
+            assertThat(testee.decryptBytes(encrypted.toByteArray(), "password".toCharArray())).isEqualTo(content);
+        }
+    }
+
+    @Test
+    public void olderVersionsAreStreamedToo() throws IOException {
+        final byte[] content = content(1000);
+        final byte[] encrypted = new JavaPasswordbasedCryption(JavaPasswordbasedCryption.Version.V001, new SecureRandom()).encryptBytes(content, "password".toCharArray());
+        assertThat(decrypt(encrypted)).isEqualTo(content);
+    }
+
+    @Test
+    public void segmentedVersionIsOptIn() {
+        final byte[] encrypted = new JavaPasswordbasedCryption(26, new SecureRandom()).encrypt("text", "password".toCharArray());
+        assertThat(JavaPasswordbasedCryption.getVersion(encrypted)).isEqualTo(JavaPasswordbasedCryption.Version.V001);
+        final byte[] segmented = new JavaPasswordbasedCryption(26, true, new SecureRandom()).encrypt("text", "password".toCharArray());
+        assertThat(JavaPasswordbasedCryption.getVersion(segmented)).isEqualTo(JavaPasswordbasedCryption.Version.V002);
+        assertThat(JavaPasswordbasedCryption.getDecryptedText(segmented, "password".toCharArray())).isEqualTo("text");
+    }
+
+    @Test
+    public void segmentsAreDecryptedOnTheirOwn() throws IOException {
+        final byte[] content = content(2 * SEGMENT + 100);
+        try (FileChannel channel = open(testee.encryptBytes(content, "password".toCharArray()))) {
+            final SegmentedCryption.Segments segments = JavaPasswordbasedCryption.openSegments(channel, "password".toCharArray());
+            assertThat(segments.getSegmentCount()).isEqualTo(3);
+            assertThat(segments.getPlainLength()).isEqualTo(content.length);
+            assertThat(segments.getSegmentForOffset(2 * SEGMENT + 5)).isEqualTo(2);
+            assertThat(segments.decryptSegment(2)).isEqualTo(Arrays.copyOfRange(content, 2 * SEGMENT, content.length));
+            assertThat(segments.decryptSegment(1)).isEqualTo(Arrays.copyOfRange(content, SEGMENT, 2 * SEGMENT));
+        }
+
+        try (FileChannel channel = open(testee.encryptBytes(new byte[0], "password".toCharArray()))) {
+            final SegmentedCryption.Segments segments = JavaPasswordbasedCryption.openSegments(channel, "password".toCharArray());
+            assertThat(segments.getSegmentCount()).isEqualTo(1);
+            assertThat(segments.decryptSegment(0)).isEmpty();
+        }
+    }
+
+    @Test
+    public void modifiedSegmentsAreDetected() throws IOException {
+        final byte[] content = content(2 * SEGMENT + 100);
+        final byte[] encrypted = testee.encryptBytes(content, "password".toCharArray());
+        final int segment = SEGMENT + 16;
+
+        // Only the modified segment fails
+        final byte[] modified = encrypted.clone();
+        modified[HEADER + segment + 10] ^= 1;
+        try (FileChannel channel = open(modified)) {
+            final SegmentedCryption.Segments segments = JavaPasswordbasedCryption.openSegments(channel, "password".toCharArray());
+            assertThat(segments.decryptSegment(0)).isEqualTo(Arrays.copyOf(content, SEGMENT));
+            assertThatThrownBy(() -> segments.decryptSegment(1)).isInstanceOf(IOException.class);
+        }
+
+        // Truncated at a segment boundary, the new last segment was not the last one
+        try (FileChannel channel = open(Arrays.copyOf(encrypted, HEADER + 2 * segment))) {
+            final SegmentedCryption.Segments segments = JavaPasswordbasedCryption.openSegments(channel, "password".toCharArray());
+            assertThat(segments.getSegmentCount()).isEqualTo(2);
+            assertThatThrownBy(() -> segments.decryptSegment(1)).isInstanceOf(IOException.class);
+        }
+
+        // Truncated within a segment, or within the tag of an empty last segment
+        try (FileChannel channel = open(Arrays.copyOf(encrypted, encrypted.length - 1))) {
+            final SegmentedCryption.Segments segments = JavaPasswordbasedCryption.openSegments(channel, "password".toCharArray());
+            assertThatThrownBy(() -> segments.decryptSegment(2)).isInstanceOf(IOException.class);
+        }
+        try (FileChannel channel = open(Arrays.copyOf(encrypted, HEADER + 2 * segment + 15))) {
+            assertThatThrownBy(() -> JavaPasswordbasedCryption.openSegments(channel, "password".toCharArray())).isInstanceOf(IOException.class);
+        }
+
+        // Header modified, or truncated within the header
+        final byte[] header = encrypted.clone();
+        header[JavaPasswordbasedCryption.Version.NAME_LENGTH] ^= 1;
+        try (FileChannel channel = open(header)) {
+            final SegmentedCryption.Segments segments = JavaPasswordbasedCryption.openSegments(channel, "password".toCharArray());
+            assertThatThrownBy(() -> segments.decryptSegment(0)).isInstanceOf(IOException.class);
+        }
+        try (FileChannel channel = open(Arrays.copyOf(encrypted, HEADER - 1))) {
+            assertThatThrownBy(() -> JavaPasswordbasedCryption.openSegments(channel, "password".toCharArray())).isInstanceOf(IOException.class);
+        }
+    }
+
+    @Test
+    public void textIsDecryptedFromStream() throws IOException {
+        for (final JavaPasswordbasedCryption.Version version : JavaPasswordbasedCryption.Version.values()) {
+            final byte[] encrypted = new JavaPasswordbasedCryption(version, new SecureRandom()).encrypt("text \u20ac", "password".toCharArray());
+            assertThat(JavaPasswordbasedCryption.getDecryptedText(new ByteArrayInputStream(encrypted), "password".toCharArray())).isEqualTo("text \u20ac");
+        }
+    }
+
+    @Test
+    public void modifiedContentIsDetected() throws IOException {
+        final byte[] encrypted = testee.encryptBytes(content(2 * SEGMENT + 100), "password".toCharArray());
+        final int segment = SEGMENT + 16;
+
+        // Truncated at a segment boundary
+        assertThatThrownBy(() -> decrypt(Arrays.copyOf(encrypted, HEADER + 2 * segment))).isInstanceOf(IOException.class);
+
+        // Segments swapped
+        final byte[] swapped = encrypted.clone();
+        System.arraycopy(encrypted, HEADER, swapped, HEADER + segment, segment);
+        System.arraycopy(encrypted, HEADER + segment, swapped, HEADER, segment);
+        assertThatThrownBy(() -> decrypt(swapped)).isInstanceOf(IOException.class);
+
+        // Header modified
+        final byte[] header = encrypted.clone();
+        header[JavaPasswordbasedCryption.Version.NAME_LENGTH] ^= 1;
+        assertThatThrownBy(() -> decrypt(header)).isInstanceOf(IOException.class);
+
+        assertThatThrownBy(() -> JavaPasswordbasedCryption.getDecryptedText(Arrays.copyOf(encrypted, encrypted.length - 1), "password".toCharArray()))
+                .isInstanceOf(JavaPasswordbasedCryption.EncryptionFailedException.class);
+    }
+}
@@ -0,0 +1,143 @@
+package other.de.stanetz.jpencconverter;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Bounded, time-limited in-memory cache of keys derived from passwords, so the expensive
+ * key-stretching only runs on the first access of a session.
+ * <p>
+ * Entries are keyed by a digest of the password (with a random per-process secret, so the
+ * digest can not be compared across processes) and the salt. Passwords are never stored.
+ * Key material of removed or expired entries is overwritten with zeros.
+ * Call {@link #clear()} when the device is locked or the app goes to background.
+ */
+public final class DerivedKeyCache {
+
+    public static final int DEFAULT_MAX_ENTRIES = 16;
+    public static final long DEFAULT_TTL_MILLIS = 10 * 60 * 1000;
+
+    private static final DerivedKeyCache INSTANCE = new DerivedKeyCache(DEFAULT_MAX_ENTRIES, DEFAULT_TTL_MILLIS, System::currentTimeMillis);
+
+    public static DerivedKeyCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Source of the current time in milliseconds
+     */
+    public interface Clock {
+        long now();
+    }
+
+    /**
+     * Derives a key, called on cache misses
+     */
+    public interface KeyDerivation {
+        byte[] derive();
+    }
+
+    // Key with its expiry time
+    private static class Entry {
+        final byte[] key;
+        final long expires;
+
+        Entry(final byte[] key, final long expires) {
+            this.key = key;
+            this.expires = expires;
+        }
+    }
+
+    private final LinkedHashMap<String, Entry> _keys = new LinkedHashMap<>(16, 0.75f, true);
+    private final byte[] _secret = new byte[32];
+    private final int _maxEntries;
+    private final long _ttlMillis;
+    private final Clock _clock;
+
+    public DerivedKeyCache(final int maxEntries, final long ttlMillis, final Clock clock) {
+        _maxEntries = maxEntries;
+        _ttlMillis = ttlMillis;
+        _clock = clock;
+        new SecureRandom().nextBytes(_secret);
+    }
+
+    /**
+     * Digest identifying password for the given key derivation, without revealing it
+     */
+    public String passwordIdentity(final String derivation, final char[] password) {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(_secret);
+            digest.update(derivation.getBytes(StandardCharsets.UTF_8));
+            final ByteBuffer bytes = StandardCharsets.UTF_8.encode(CharBuffer.wrap(password));
+            final byte[] passwordBytes = new byte[bytes.remaining()];
+            bytes.get(passwordBytes);
+            digest.update(passwordBytes);
+            Arrays.fill(passwordBytes, (byte) 0);
+            if (bytes.hasArray()) {
+                Arrays.fill(bytes.array(), (byte) 0);
+            }
+            return new String(digest.digest(), StandardCharsets.ISO_8859_1);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Cached key for password identity and salt, derived if missing or expired.
+     * Returns a copy, owned by the caller, which should overwrite it with zeros after use.
+     * The cached key itself is overwritten with zeros when the entry is removed.
+     */
+    public synchronized byte[] getKey(final String identity, final byte[] salt, final KeyDerivation derivation) {
+        removeExpired();
+        final String id = identity + new String(salt, StandardCharsets.ISO_8859_1);
+        final Entry entry = _keys.get(id);
+        if (entry != null) {
+            return entry.key.clone();
+        }
+
+        final byte[] key = derivation.derive();
+        _keys.put(id, new Entry(key, _clock.now() + _ttlMillis));
+        removeEldest();
+        return key.clone();
+    }
+
+    private void removeEldest() {
+        for (final Iterator<Entry> iterator = _keys.values().iterator(); _keys.size() > _maxEntries; ) {
+            Arrays.fill(iterator.next().key, (byte) 0);
+            iterator.remove();
+        }
+    }
+
+    private void removeExpired() {
+        final long now = _clock.now();
+        for (final Iterator<Entry> iterator = _keys.values().iterator(); iterator.hasNext(); ) {
+            final Entry entry = iterator.next();
+            if (entry.expires <= now) {
+                Arrays.fill(entry.key, (byte) 0);
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Remove all keys and overwrite them with zeros
+     */
+    public synchronized void clear() {
+        for (final Entry entry : _keys.values()) {
+            Arrays.fill(entry.key, (byte) 0);
+        }
+        _keys.clear();
+    }
+
+    public synchronized int size() {
+        return _keys.size();
+    }
+}
@@ -5,12 +5,22 @@ import android.os.Build;
 
 import androidx.annotation.RequiresApi;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.spec.InvalidKeySpecException;
-import java.security.spec.KeySpec;
 import java.util.Arrays;
 import java.util.Random;
 
@@ -33,6 +43,8 @@ import javax.crypto.spec.SecretKeySpec;
  *     <li>nonce bytes - bytes as nonce for cipher depends. The length  on version.</li>
  *     <li>content bytes - the encrypted content-bytes.</li>
  * </ul>
+ * Since {@link Version#V002} the content is encrypted in segments, see {@link SegmentedCryption}.
+ * These can be encrypted and decrypted as streams, and decrypted on their own.
  * This Class need Android KitKat to run om android devices.
  */
 // COPIED FROM https://gitlab.com/opensource21/jpencconverter/-/blob/v0.2.1/src/main/java/de/stanetz/jpencconverter/cryption/JavaPasswordbasedCryption.java
@@ -47,6 +59,7 @@ public class JavaPasswordbasedCryption {
     public static final String DEFAULT_ENCRYPTION_EXTENSION = ".jenc";
     private final Version version;
     private final Random random;
+    private byte[] salt;
 
     /**
      * Create a new Instance of the given android api version.
@@ -55,7 +68,18 @@ public class JavaPasswordbasedCryption {
      * @param apiVersion the android api-version which is used to search for the best version.
      */
     public JavaPasswordbasedCryption(int apiVersion, Random random) {
-        this(getVersionForAndroid(apiVersion), random);
+        this(apiVersion, false, random);
+    }
+
+    /**
+     * Create a new Instance of the given android api version.
+     *
+     * @param random     strongest SecureRandom.getInstanceStrong(), which could be very slow.  A compromise could be SecureRandom.getInstance("SHA1PRNG") or new SecureRandom.
+     * @param apiVersion the android api-version which is used to search for the best version.
+     * @param segmented  write {@link Version#V002}, which older app versions can't read. All versions are read anyway.
+     */
+    public JavaPasswordbasedCryption(int apiVersion, boolean segmented, Random random) {
+        this(getVersionForAndroid(apiVersion, segmented), random);
     }
 
     /**
@@ -70,9 +94,39 @@ public class JavaPasswordbasedCryption {
     }
 
 
-    private static Version getVersionForAndroid(int apiVersion) {
+    /**
+     * Encrypt with the salt of the encrypted content this replaces, instead of a new random salt.
+     * The key derived for the salt is cached, so saving a file again skips the key derivation.
+     * Only pass the salt of the same file, see {@link #readSalt(InputStream)}. Each file must have its own salt.
+     *
+     * @param salt salt of the previous content of the file, ignored if null or of another length.
+     * @return this
+     */
+    public JavaPasswordbasedCryption setSalt(byte[] salt) {
+        this.salt = salt != null && salt.length == version.keySaltLength ? salt.clone() : null;
+        return this;
+    }
+
+    /**
+     * Read the salt of encrypted content.
+     *
+     * @param in encrypted bytes with version, is read up to the end of the salt.
+     * @return the salt, null if in is too short or of an unknown version.
+     * @throws IOException when in can't be read.
+     */
+    public static byte[] readSalt(InputStream in) throws IOException {
+        try {
+            final Version version = getVersion(readFully(in, Version.NAME_LENGTH));
+            readFully(in, version.nonceLenth);
+            return readFully(in, version.keySaltLength);
+        } catch (EOFException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static Version getVersionForAndroid(int apiVersion, boolean segmented) {
         if (apiVersion >= 26) {
-            return Version.V001;
+            return segmented ? Version.V002 : Version.V001;
         } else if (apiVersion >= 23) {
             return Version.U001;
         } else {
@@ -103,6 +157,26 @@ public class JavaPasswordbasedCryption {
     }
 
 
+    /**
+     * Decrypt the text of a stream. Segmented versions are decrypted while reading, without the encrypted bytes in memory.
+     *
+     * @param in       encrypted bytes with version, is closed.
+     * @param password the password <b>Warning!</b> the array will be filled with 0!
+     * @return decrypted text.
+     * @throws IOException               when in can't be read, or was modified or truncated.
+     * @throws EncryptionFailedException when the content can't be decrypted.
+     */
+    public static String getDecryptedText(InputStream in, char[] password) throws IOException, EncryptionFailedException {
+        try (InputStream encrypted = in; Reader reader = new InputStreamReader(getDecryptingStream(encrypted, password), StandardCharsets.UTF_8)) {
+            final StringBuilder text = new StringBuilder();
+            final char[] buffer = new char[8192];
+            for (int length; (length = reader.read(buffer)) > 0; ) {
+                text.append(buffer, 0, length);
+            }
+            return text.toString();
+        }
+    }
+
     /**
      * Encrypt the given text with the password.
      *
@@ -124,8 +198,17 @@ public class JavaPasswordbasedCryption {
      * @throws EncryptionFailedException when something goes wrong.
      */
     public byte[] encryptBytes(byte[] decryptedBytes, char[] password) throws EncryptionFailedException {
+        if (version.isSegmented()) {
+            final ByteArrayOutputStream result = new ByteArrayOutputStream(decryptedBytes.length + decryptedBytes.length / 1024 + 128);
+            try (OutputStream out = getEncryptingStream(result, password)) {
+                out.write(decryptedBytes);
+            } catch (IOException e) {
+                throw new EncryptionFailedException("Can't encrypt text.", e);
+            }
+            return result.toByteArray();
+        }
         try {
-            final byte[] salt = getRandomBytes(version.keySaltLength);
+            final byte[] salt = getEncryptionSalt();
             final byte[] nonce = getRandomBytes(version.nonceLenth);
             final SecretKey key = createKeyFromPassword(password, salt);
             final byte[] cryptedBytes = getCipher(key, Cipher.ENCRYPT_MODE, nonce).doFinal(decryptedBytes);
@@ -141,6 +224,116 @@ public class JavaPasswordbasedCryption {
     }
 
 
+    /**
+     * Create a stream which encrypts everything written to it, segment by segment.
+     * The stream must be closed to write the last segment. Only for segmented versions like {@link Version#V002}.
+     *
+     * @param out      the stream to write the encrypted bytes to.
+     * @param password the password to create the key <b>Warning!</b> the array will be filled with 0!
+     * @return stream to write the decrypted bytes to.
+     * @throws EncryptionFailedException when something goes wrong.
+     */
+    public OutputStream getEncryptingStream(OutputStream out, char[] password) throws EncryptionFailedException {
+        if (!version.isSegmented()) {
+            throw new IllegalStateException("Version " + version.name() + " can't encrypt streams");
+        }
+        try {
+            final byte[] salt = getEncryptionSalt();
+            final byte[] header = new byte[version.headerLength()];
+            System.arraycopy(version.name().getBytes(StandardCharsets.US_ASCII), 0, header, 0, Version.NAME_LENGTH);
+            System.arraycopy(getRandomBytes(version.nonceLenth), 0, header, Version.NAME_LENGTH, version.nonceLenth);
+            System.arraycopy(salt, 0, header, Version.NAME_LENGTH + version.nonceLenth, version.keySaltLength);
+            return new SegmentedCryption(createKeyFromPassword(password, salt), header).encryptingStream(out);
+        } catch (GeneralSecurityException e) {
+            throw new EncryptionFailedException("Can't encrypt text.", e);
+        }
+    }
+
+    /**
+     * Create a stream which decrypts the encrypted stream. Segmented versions are decrypted while reading,
+     * other versions are read and decrypted at once.
+     * Modified or truncated content fails with an {@link IOException} when reading.
+     *
+     * @param in       encrypted bytes with version
+     * @param password the password to create the key <b>Warning!</b> the array will be filled with 0!
+     * @return stream of the decrypted bytes.
+     * @throws IOException               when in can't be read.
+     * @throws EncryptionFailedException when the header can't be decrypted.
+     */
+    public static InputStream getDecryptingStream(InputStream in, char[] password) throws IOException, EncryptionFailedException {
+        final byte[] name = readFully(in, Version.NAME_LENGTH);
+        final Version version = getVersion(name);
+        if (version.isSegmented()) {
+            final byte[] header = Arrays.copyOf(name, version.headerLength());
+            System.arraycopy(readFully(in, header.length - name.length), 0, header, name.length, header.length - name.length);
+            return new JavaPasswordbasedCryption(version, null).createSegmentedCryption(header, password).decryptingStream(in);
+        }
+
+        final ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+        encrypted.write(name);
+        final byte[] buffer = new byte[8192];
+        for (int length; (length = in.read(buffer)) > 0; ) {
+            encrypted.write(buffer, 0, length);
+        }
+        in.close();
+        return new ByteArrayInputStream(new JavaPasswordbasedCryption(version, null).decryptBytes(encrypted.toByteArray(), password));
+    }
+
+    /**
+     * Open the segments of an encrypted file, to decrypt them on their own.
+     * Only for segmented versions like {@link Version#V002}.
+     *
+     * @param channel  channel of the encrypted file, which stays open
+     * @param password the password to create the key <b>Warning!</b> the array will be filled with 0!
+     * @return the segments.
+     * @throws IOException               when the file can't be read or isn't of a segmented version.
+     * @throws EncryptionFailedException when something goes wrong.
+     */
+    public static SegmentedCryption.Segments openSegments(FileChannel channel, char[] password) throws IOException, EncryptionFailedException {
+        final ByteBuffer name = ByteBuffer.allocate(Version.NAME_LENGTH);
+        readFully(channel, name);
+        final Version version;
+        try {
+            version = getVersion(name.array());
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Unknown version", e);
+        }
+        if (!version.isSegmented()) {
+            throw new IOException("Version " + version.name() + " has no segments");
+        }
+        final ByteBuffer header = ByteBuffer.allocate(version.headerLength());
+        readFully(channel, header);
+        return new SegmentedCryption.Segments(new JavaPasswordbasedCryption(version, null).createSegmentedCryption(header.array(), password), channel);
+    }
+
+    private SegmentedCryption createSegmentedCryption(byte[] header, char[] password) {
+        final int saltStart = Version.NAME_LENGTH + version.nonceLenth;
+        final byte[] salt = Arrays.copyOfRange(header, saltStart, saltStart + version.keySaltLength);
+        try {
+            return new SegmentedCryption(createKeyFromPassword(password, salt), header);
+        } catch (GeneralSecurityException e) {
+            throw new EncryptionFailedException("Can't decrypt text.", e);
+        }
+    }
+
+    private static byte[] readFully(InputStream in, int length) throws IOException {
+        final byte[] bytes = new byte[length];
+        for (int offset = 0, read; offset < length; offset += read) {
+            if ((read = in.read(bytes, offset, length - offset)) < 0) {
+                throw new EOFException("Encrypted content is truncated");
+            }
+        }
+        return bytes;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, buffer.position()) < 0) {
+                throw new EOFException("Encrypted content is truncated");
+            }
+        }
+    }
+
     /**
      * Decrypt the given bytes with the password.
      *
@@ -168,6 +361,18 @@ public class JavaPasswordbasedCryption {
             if (currentVersion != version) {
                 throw new IllegalArgumentException("The current version " + currentVersion.name() + " differs from configured version " + version.name());
             }
+            if (version.isSegmented()) {
+                try (InputStream in = getDecryptingStream(new ByteArrayInputStream(encrypted), password)) {
+                    final ByteArrayOutputStream result = new ByteArrayOutputStream(encrypted.length);
+                    final byte[] buffer = new byte[SegmentedCryption.SEGMENT_SIZE];
+                    for (int length; (length = in.read(buffer)) > 0; ) {
+                        result.write(buffer, 0, length);
+                    }
+                    return result.toByteArray();
+                } catch (IOException e) {
+                    throw new EncryptionFailedException("Can't decrypt text.", e);
+                }
+            }
             int from = Version.NAME_LENGTH;
             int to = from + version.nonceLenth;
             final byte[] nonce = Arrays.copyOfRange(encrypted, from, to);
@@ -184,13 +389,32 @@ public class JavaPasswordbasedCryption {
         }
     }
 
+    // Salt of the previous content of the file if set, a new random one otherwise
+    private byte[] getEncryptionSalt() {
+        return salt != null ? salt.clone() : getRandomBytes(version.keySaltLength);
+    }
+
     private SecretKey createKeyFromPassword(char[] password, byte[] salt) {
         try {
-            SecretKeyFactory secretKeyFactory = SecretKeyFactory.getInstance(version.keyFactory);
-            KeySpec passwordBasedEncryptionKeySpec = new PBEKeySpec(password, salt, version.keyIterationCount, version.keyLength);
+            final DerivedKeyCache keyCache = DerivedKeyCache.getInstance();
+            final byte[] key = keyCache.getKey(keyCache.passwordIdentity(version.name(), password), salt, () -> deriveKey(password, salt));
+            try {
+                return new SecretKeySpec(key, version.keyAlgorithm);
+            } finally {
+                Arrays.fill(key, (byte) 0);
+            }
+        } finally {
             Arrays.fill(password, Character.MIN_VALUE);
+        }
+    }
+
+    private byte[] deriveKey(char[] password, byte[] salt) {
+        try {
+            SecretKeyFactory secretKeyFactory = SecretKeyFactory.getInstance(version.keyFactory);
+            PBEKeySpec passwordBasedEncryptionKeySpec = new PBEKeySpec(password, salt, version.keyIterationCount, version.keyLength);
             SecretKey secretKeyFromPBKDF2 = secretKeyFactory.generateSecret(passwordBasedEncryptionKeySpec);
-            return new SecretKeySpec(secretKeyFromPBKDF2.getEncoded(), version.keyAlgorithm);
+            passwordBasedEncryptionKeySpec.clearPassword();
+            return secretKeyFromPBKDF2.getEncoded();
         } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
             throw new EncryptionFailedException("Error creating key from password: " + e.getMessage(), e);
         }
@@ -234,6 +458,11 @@ public class JavaPasswordbasedCryption {
      */
     @SuppressWarnings("DeprecatedIsStillUsed")
     public enum Version {
+        /**
+         * Content encrypted in segments, see {@link SegmentedCryption}. The nonce is the prefix of the segment nonces.
+         */
+        V002("PBKDF2WithHmacSHA512", 10000, 256, "AES", 64, "AES/GCM/NoPadding", SegmentedCryption.NONCE_PREFIX_LENGTH),
+
         V001("PBKDF2WithHmacSHA512", 10000, 256, "AES", 64, "AES/GCM/NoPadding", 32),
 
         /**
@@ -265,6 +494,14 @@ public class JavaPasswordbasedCryption {
             this.cipher = cipher;
             this.nonceLenth = nonceLenth;
         }
+
+        private boolean isSegmented() {
+            return this == V002;
+        }
+
+        private int headerLength() {
+            return NAME_LENGTH + nonceLenth + keySaltLength;
+        }
     }
 
 }
\ No newline at end of file
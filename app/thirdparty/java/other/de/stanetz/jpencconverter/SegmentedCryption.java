@@ -0,0 +1,282 @@
+package other.de.stanetz.jpencconverter;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * Segmented AES/GCM encryption as used by {@link JavaPasswordbasedCryption.Version#V002}.
+ * <p>
+ * After the header the content is split into segments of {@link #SEGMENT_SIZE} bytes, each encrypted
+ * and authenticated on its own:
+ * <ul>
+ *     <li>header - version, nonce prefix and salt, see {@link JavaPasswordbasedCryption}.</li>
+ *     <li>segments - encrypted segment bytes followed by the 16 byte tag. Only the last segment may be shorter.</li>
+ * </ul>
+ * The nonce of a segment is the nonce prefix, the segment index (4 bytes) and a flag whether it is the last segment (1 byte).
+ * The header is authenticated with every segment. So segments can not be reordered, the content can not be truncated
+ * and the header can not be modified without failing authentication.
+ * Segments can be decrypted while streaming, or each on its own for random access, see {@link Segments}.
+ * Instances are not thread-safe.
+ */
+public class SegmentedCryption {
+
+    public static final int SEGMENT_SIZE = 64 * 1024;
+    public static final int NONCE_PREFIX_LENGTH = 7;
+    private static final int TAG_LENGTH = 16;
+    private static final int ENCRYPTED_SEGMENT_SIZE = SEGMENT_SIZE + TAG_LENGTH;
+    private static final String CIPHER = "AES/GCM/NoPadding";
+
+    private final SecretKey key;
+    private final byte[] header;
+    private final Cipher cipher;
+
+    /**
+     * @param key    the derived key
+     * @param header the complete header, the nonce prefix follows the version name
+     */
+    SegmentedCryption(SecretKey key, byte[] header) throws GeneralSecurityException {
+        this.key = key;
+        this.header = header.clone();
+        this.cipher = Cipher.getInstance(CIPHER);
+    }
+
+    private byte[] nonce(int index, boolean last) {
+        final byte[] nonce = new byte[NONCE_PREFIX_LENGTH + 5];
+        System.arraycopy(header, JavaPasswordbasedCryption.Version.NAME_LENGTH, nonce, 0, NONCE_PREFIX_LENGTH);
+        nonce[NONCE_PREFIX_LENGTH] = (byte) (index >>> 24);
+        nonce[NONCE_PREFIX_LENGTH + 1] = (byte) (index >>> 16);
+        nonce[NONCE_PREFIX_LENGTH + 2] = (byte) (index >>> 8);
+        nonce[NONCE_PREFIX_LENGTH + 3] = (byte) index;
+        nonce[NONCE_PREFIX_LENGTH + 4] = (byte) (last ? 1 : 0);
+        return nonce;
+    }
+
+    private byte[] process(int mode, int index, boolean last, byte[] input, int length) throws IOException {
+        if (index < 0) {
+            throw new IOException("Too many segments");
+        }
+        try {
+            cipher.init(mode, key, new GCMParameterSpec(TAG_LENGTH * 8, nonce(index, last)));
+            cipher.updateAAD(header);
+            return cipher.doFinal(input, 0, length);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Can't " + (mode == Cipher.ENCRYPT_MODE ? "encrypt" : "decrypt") + " segment " + index, e);
+        }
+    }
+
+    // Read until buffer is full or the stream ends
+    private static int readFully(InputStream in, byte[] buffer, int offset) throws IOException {
+        while (offset < buffer.length) {
+            final int read = in.read(buffer, offset, buffer.length - offset);
+            if (read < 0) {
+                break;
+            }
+            offset += read;
+        }
+        return offset;
+    }
+
+    /**
+     * Stream which encrypts everything written to it. The header is written first.
+     * The last segment is written on {@link OutputStream#close()}, which must be called.
+     */
+    OutputStream encryptingStream(final OutputStream out) {
+        return new OutputStream() {
+            // A full segment is only written once more content follows, as it may be the last one
+            private final byte[] buffer = new byte[SEGMENT_SIZE];
+            private int length = 0;
+            private int index = 0;
+            private boolean headerWritten = false;
+            private boolean closed = false;
+
+            private void writeSegment(boolean last) throws IOException {
+                if (!headerWritten) {
+                    out.write(header);
+                    headerWritten = true;
+                }
+                out.write(process(Cipher.ENCRYPT_MODE, index++, last, buffer, length));
+                length = 0;
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int count) throws IOException {
+                if (closed) {
+                    throw new IOException("Stream closed");
+                }
+                while (count > 0) {
+                    if (length == SEGMENT_SIZE) {
+                        writeSegment(false);
+                    }
+                    final int n = Math.min(count, SEGMENT_SIZE - length);
+                    System.arraycopy(bytes, offset, buffer, length, n);
+                    length += n;
+                    offset += n;
+                    count -= n;
+                }
+            }
+
+            @Override
+            public void flush() throws IOException {
+                out.flush();
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (!closed) {
+                    closed = true;
+                    try {
+                        writeSegment(true);
+                    } finally {
+                        out.close();
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Stream which decrypts segments as they are read. The header must already be read from in.
+     * Throws an {@link IOException} for content which was modified or truncated.
+     */
+    InputStream decryptingStream(final InputStream in) {
+        return new InputStream() {
+            // One more byte than a segment, to see whether it is the last one
+            private final byte[] encrypted = new byte[ENCRYPTED_SEGMENT_SIZE + 1];
+            private int buffered = 0;
+            private byte[] plain = new byte[0];
+            private int position = 0;
+            private int index = 0;
+            private boolean done = false;
+
+            private boolean nextSegment() throws IOException {
+                while (position == plain.length) {
+                    if (done) {
+                        return false;
+                    }
+                    buffered = readFully(in, encrypted, buffered);
+                    final boolean last = buffered <= ENCRYPTED_SEGMENT_SIZE;
+                    final int length = last ? buffered : ENCRYPTED_SEGMENT_SIZE;
+                    if (length < TAG_LENGTH) {
+                        throw new EOFException("Encrypted content is truncated");
+                    }
+                    plain = process(Cipher.DECRYPT_MODE, index++, last, encrypted, length);
+                    position = 0;
+                    if (last) {
+                        done = true;
+                    } else {
+                        encrypted[0] = encrypted[ENCRYPTED_SEGMENT_SIZE];
+                        buffered = 1;
+                    }
+                }
+                return true;
+            }
+
+            @Override
+            public int read() throws IOException {
+                return nextSegment() ? plain[position++] & 0xFF : -1;
+            }
+
+            @Override
+            public int read(byte[] bytes, int offset, int count) throws IOException {
+                if (count == 0) {
+                    return 0;
+                }
+                if (!nextSegment()) {
+                    return -1;
+                }
+                final int n = Math.min(count, plain.length - position);
+                System.arraycopy(plain, position, bytes, offset, n);
+                position += n;
+                return n;
+            }
+
+            @Override
+            public int available() {
+                return plain.length - position;
+            }
+
+            @Override
+            public void close() throws IOException {
+                in.close();
+            }
+        };
+    }
+
+    /**
+     * Random access to the segments of an encrypted file, only the read segments are decrypted.
+     * Lengths are derived from the file size. A modified or truncated file fails with an {@link IOException}
+     * when one of its segments, at the latest the last one, is decrypted.
+     */
+    public static final class Segments {
+        private final SegmentedCryption cryption;
+        private final FileChannel channel;
+        private final int count;
+        private final int lastLength;
+        private final long plainLength;
+
+        Segments(SegmentedCryption cryption, FileChannel channel) throws IOException {
+            this.cryption = cryption;
+            this.channel = channel;
+            final long size = channel.size() - cryption.header.length;
+            final long segments = Math.max(1, (size + ENCRYPTED_SEGMENT_SIZE - 1) / ENCRYPTED_SEGMENT_SIZE);
+            final long lastLength = size - (segments - 1) * ENCRYPTED_SEGMENT_SIZE;
+            if (lastLength < TAG_LENGTH || segments > Integer.MAX_VALUE) {
+                throw new EOFException("Encrypted content is truncated");
+            }
+            this.count = (int) segments;
+            this.lastLength = (int) lastLength;
+            this.plainLength = (segments - 1) * SEGMENT_SIZE + lastLength - TAG_LENGTH;
+        }
+
+        public int getSegmentCount() {
+            return count;
+        }
+
+        /**
+         * Length of the decrypted content
+         */
+        public long getPlainLength() {
+            return plainLength;
+        }
+
+        /**
+         * Segment which contains the byte at offset of the decrypted content
+         */
+        public int getSegmentForOffset(long offset) {
+            return (int) Math.min(count - 1, offset / SEGMENT_SIZE);
+        }
+
+        /**
+         * Decrypt a single segment. It starts at index * {@link #SEGMENT_SIZE} of the decrypted content.
+         */
+        public synchronized byte[] decryptSegment(int index) throws IOException {
+            if (index < 0 || index >= count) {
+                throw new IndexOutOfBoundsException("Segment " + index + " of " + count);
+            }
+            final boolean last = index == count - 1;
+            final long start = cryption.header.length + (long) index * ENCRYPTED_SEGMENT_SIZE;
+            final int length = last ? lastLength : ENCRYPTED_SEGMENT_SIZE;
+            final ByteBuffer buffer = ByteBuffer.allocate(length);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, start + buffer.position()) < 0) {
+                    throw new EOFException("Encrypted content is truncated");
+                }
+            }
+            return cryption.process(Cipher.DECRYPT_MODE, index, last, buffer.array(), length);
+        }
+    }
+}
@@ -29,13 +29,17 @@ public class WrMarkdownHeaderSpanCreator implements GsCallback.r1<Object, Matche
     }
 
     public Object callback(Matcher m) {
-        final char[] charSequence = extractMatchingRange(m);
+        return createHeaderSpan(m.start(), m.end());
+    }
+
+    public Object createHeaderSpan(final int start, final int end) {
+        final char[] charSequence = extractMatchingRange(start, end);
         float proportion = calculateProportionBasedOnHeaderType(charSequence);
         return _spanCreator.createHeaderSpan(proportion);
     }
 
-    private char[] extractMatchingRange(Matcher m) {
-        return _text.subSequence(m.start(), m.end()).toString().trim().toCharArray();
+    private char[] extractMatchingRange(final int start, final int end) {
+        return _text.subSequence(start, end).toString().trim().toCharArray();
     }
 
     private Float calculateProportionBasedOnHeaderType(final char[] charSequence) {
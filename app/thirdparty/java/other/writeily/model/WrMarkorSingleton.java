@@ -14,8 +14,10 @@ import android.content.Context;
 
 import androidx.documentfile.provider.DocumentFile;
 
+import net.gsantner.markor.ApplicationObject;
 import net.gsantner.markor.frontend.MarkorDialogFactory;
 import net.gsantner.markor.util.MarkorContextUtils;
+import net.gsantner.opoc.frontend.textview.TextViewUndoRedo;
 import net.gsantner.opoc.util.GsFileUtils;
 
 import java.io.File;
@@ -74,6 +76,9 @@ public class WrMarkorSingleton {
             } catch (Exception e) {
                 renameSuccess = false;
             }
+            if (renameSuccess) {
+                deleteUndoHistory(file);
+            }
             return (renameSuccess || (copyFile(file, dest) && deleteFile(file, context)));
         }
         return false;
@@ -107,11 +112,23 @@ public class WrMarkorSingleton {
         }
 
         final MarkorContextUtils cu = new MarkorContextUtils(context);
+        final boolean deleted;
         if (context != null && cu.isUnderStorageAccessFolder(context, file, file.isDirectory())) {
             final DocumentFile dof = cu.getDocumentFile(context, file, file.isDirectory());
-            return dof == null ? false : (dof.delete() || !dof.exists());
+            deleted = dof == null ? false : (dof.delete() || !dof.exists());
         } else {
-            return file.delete();
+            deleted = file.delete();
+        }
+        if (deleted) {
+            deleteUndoHistory(file);
+        }
+        return deleted;
+    }
+
+    // Undo history is stored by path, it does not follow the file
+    public static void deleteUndoHistory(final File file) {
+        if (ApplicationObject.settings() != null) {
+            TextViewUndoRedo.deletePersistentLog(ApplicationObject.settings().getUndoHistoryDirectory(), file);
         }
     }
 
@@ -31,6 +31,8 @@ import net.gsantner.opoc.util.GsContextUtils;
 import net.gsantner.opoc.util.GsFileUtils;
 import net.gsantner.opoc.wrapper.GsCallback;
 
+import other.writeily.model.WrMarkorSingleton;
+
 import java.io.File;
 
 public class WrRenameDialog extends DialogFragment {
@@ -92,6 +94,9 @@ public class WrRenameDialog extends DialogFragment {
                 }
             }
 
+            if (renamed) {
+                WrMarkorSingleton.deleteUndoHistory(file);
+            }
             if (renamed || !filenameChanged) {
                 if (_callback != null) {
                     _callback.callback(file);